@@ -0,0 +1,31 @@
+package com.devsmart.supernet.jfr;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.devsmart.supernet.DatagramReceive")
+@Label("Datagram Receive")
+@Description("Datagrams handed over by the transport and dispatched to the workers")
+@Category("Supernet")
+@Enabled(false)
+@StackTrace(false)
+class DatagramReceiveEvent extends jdk.jfr.Event {
+
+    @Label("Datagrams")
+    int count;
+
+    @Label("Size")
+    @DataAmount
+    int size;
+
+    @Label("Dispatch Time")
+    @Timespan
+    long dispatchTime;
+}
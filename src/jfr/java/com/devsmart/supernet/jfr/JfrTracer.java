@@ -0,0 +1,96 @@
+package com.devsmart.supernet.jfr;
+
+
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.metrics.ClientMetrics;
+import com.devsmart.supernet.metrics.Tracer;
+import jdk.jfr.EventType;
+
+import java.net.InetSocketAddress;
+
+/**
+ * {@link Tracer} that commits Java Flight Recorder events. Loaded by {@link Tracer#get()} when
+ * this class is on the classpath. The callers time the work themselves, so the durations are
+ * carried in a field of each event rather than as the event's own duration.
+ */
+public class JfrTracer extends Tracer {
+
+    private final EventType mReceive = EventType.getEventType(DatagramReceiveEvent.class);
+    private final EventType mDispatch = EventType.getEventType(PacketDispatchEvent.class);
+    private final EventType mRoute = EventType.getEventType(RouteForwardEvent.class);
+    private final EventType mLookup = EventType.getEventType(LookupEvent.class);
+    private final EventType mMaintenance = EventType.getEventType(MaintenanceEvent.class);
+
+    @Override
+    public boolean isEnabled(Event event) {
+        switch (event) {
+            case RECEIVE:
+                return mReceive.isEnabled();
+            case DISPATCH:
+                return mDispatch.isEnabled();
+            case ROUTE:
+                return mRoute.isEnabled();
+            case LOOKUP:
+                return mLookup.isEnabled();
+            case MAINTENANCE:
+                return mMaintenance.isEnabled();
+            default:
+                return false;
+        }
+    }
+
+    private static String prefix(ID id) {
+        return id != null ? id.breifToString() : null;
+    }
+
+    @Override
+    public void datagramsReceived(int count, int numBytes, long durationNanos) {
+        DatagramReceiveEvent event = new DatagramReceiveEvent();
+        event.count = count;
+        event.size = numBytes;
+        event.dispatchTime = durationNanos;
+        event.commit();
+    }
+
+    @Override
+    public void packetDispatched(int packetType, boolean isRequest, int size, InetSocketAddress remoteAddress, boolean handled, long durationNanos) {
+        PacketDispatchEvent event = new PacketDispatchEvent();
+        event.packetType = ClientMetrics.packetTypeName(packetType);
+        event.request = isRequest;
+        event.size = size;
+        event.remoteAddress = String.valueOf(remoteAddress);
+        event.handled = handled;
+        event.handlerTime = durationNanos;
+        event.commit();
+    }
+
+    @Override
+    public void routeForwarded(ID target, int hops, int size, ID nextHop, long durationNanos) {
+        RouteForwardEvent event = new RouteForwardEvent();
+        event.target = prefix(target);
+        event.nextHop = prefix(nextHop);
+        event.hops = hops;
+        event.size = size;
+        event.forwardTime = durationNanos;
+        event.commit();
+    }
+
+    @Override
+    public void lookupFinished(ID target, int numQueried, int numFound, long durationNanos) {
+        LookupEvent event = new LookupEvent();
+        event.target = prefix(target);
+        event.queried = numQueried;
+        event.found = numFound;
+        event.lookupTime = durationNanos;
+        event.commit();
+    }
+
+    @Override
+    public void maintenance(String task, int numPeers, long durationNanos) {
+        MaintenanceEvent event = new MaintenanceEvent();
+        event.task = task;
+        event.peers = numPeers;
+        event.taskTime = durationNanos;
+        event.commit();
+    }
+}
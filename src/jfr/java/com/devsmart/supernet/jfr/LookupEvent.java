@@ -0,0 +1,29 @@
+package com.devsmart.supernet.jfr;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("com.devsmart.supernet.Lookup")
+@Label("Lookup")
+@Description("An iterative lookup that has finished")
+@Category("Supernet")
+class LookupEvent extends jdk.jfr.Event {
+
+    @Label("Target")
+    @Description("Prefix of the target ID")
+    String target;
+
+    @Label("Peers Queried")
+    int queried;
+
+    @Label("Peers Found")
+    int found;
+
+    @Label("Lookup Time")
+    @Timespan
+    long lookupTime;
+}
@@ -0,0 +1,26 @@
+package com.devsmart.supernet.jfr;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("com.devsmart.supernet.Maintenance")
+@Label("Maintenance")
+@Description("A periodic routing table maintenance pass")
+@Category("Supernet")
+class MaintenanceEvent extends jdk.jfr.Event {
+
+    @Label("Task")
+    String task;
+
+    @Label("Peers")
+    @Description("Peers in the routing table after the pass")
+    int peers;
+
+    @Label("Task Time")
+    @Timespan
+    long taskTime;
+}
@@ -0,0 +1,41 @@
+package com.devsmart.supernet.jfr;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.devsmart.supernet.PacketDispatch")
+@Label("Packet Dispatch")
+@Description("A packet handled by the protocol receiver")
+@Category("Supernet")
+@Enabled(false)
+@StackTrace(false)
+class PacketDispatchEvent extends jdk.jfr.Event {
+
+    @Label("Packet Type")
+    String packetType;
+
+    @Label("Request")
+    boolean request;
+
+    @Label("Size")
+    @DataAmount
+    int size;
+
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("Handled")
+    @Description("False if the packet was malformed or not understood")
+    boolean handled;
+
+    @Label("Handler Time")
+    @Timespan
+    long handlerTime;
+}
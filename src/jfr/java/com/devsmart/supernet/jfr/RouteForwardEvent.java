@@ -0,0 +1,39 @@
+package com.devsmart.supernet.jfr;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.devsmart.supernet.RouteForward")
+@Label("Route Forward")
+@Description("A routed packet forwarded towards its target")
+@Category("Supernet")
+@Enabled(false)
+@StackTrace(false)
+class RouteForwardEvent extends jdk.jfr.Event {
+
+    @Label("Target")
+    @Description("Prefix of the target ID")
+    String target;
+
+    @Label("Next Hop")
+    @Description("Prefix of the next hop's ID")
+    String nextHop;
+
+    @Label("Hops Left")
+    int hops;
+
+    @Label("Size")
+    @DataAmount
+    int size;
+
+    @Label("Forward Time")
+    @Timespan
+    long forwardTime;
+}
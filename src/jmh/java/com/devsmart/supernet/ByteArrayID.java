@@ -0,0 +1,116 @@
+package com.devsmart.supernet;
+
+
+import com.google.common.primitives.UnsignedBytes;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * The original byte[] backed ID, kept only as a baseline for {@link IDBenchmark}.
+ */
+public class ByteArrayID implements Comparable<ByteArrayID> {
+
+    private byte[] mData = new byte[ID.NUM_BYTES];
+
+    public ByteArrayID(byte[] buf, int offset) {
+        System.arraycopy(buf, offset, mData, 0, ID.NUM_BYTES);
+    }
+
+    public int write(byte[] buf, int offset) {
+        System.arraycopy(mData, 0, buf, offset, ID.NUM_BYTES);
+        return ID.NUM_BYTES;
+    }
+
+    public static int compareDistance(ByteArrayID a, ByteArrayID b, ByteArrayID c) {
+        for(int i=0;i<ID.NUM_BYTES;i++) {
+            int ac = 0xFF & (a.mData[i] ^ c.mData[i]);
+            int bc = 0xFF & (b.mData[i] ^ c.mData[i]);
+
+            if(ac < bc) {
+                return -1;
+            } else if(ac > bc) {
+                return 1;
+            }
+        }
+
+        return 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mData);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(obj instanceof ByteArrayID) {
+            ByteArrayID o = (ByteArrayID) obj;
+            return Arrays.equals(mData, o.mData);
+        } else {
+            return false;
+        }
+    }
+
+    public byte[] distance(ByteArrayID o) {
+        byte[] retval = new byte[ID.NUM_BYTES];
+        for(int i=0;i<ID.NUM_BYTES;i++) {
+            retval[i] = (byte) (mData[i] ^ o.mData[i]);
+        }
+        return retval;
+    }
+
+    public BigInteger getIntDistance(ByteArrayID o) {
+        byte[] data = distance(o);
+        return new BigInteger(1, data);
+    }
+
+    public int getNumSharedPrefixBits(ByteArrayID o) {
+        int retval = 0;
+        for(int i=0;i<ID.NUM_BYTES;i++) {
+
+            int distance = 0xFF & (mData[i] ^ o.mData[i]);
+            if(distance < 1) {
+                retval += 8;
+            } else if(distance < 2) {
+                retval += 7;
+                break;
+            } else if(distance < 4) {
+                retval += 6;
+                break;
+            } else if(distance < 8) {
+                retval += 5;
+                break;
+            } else if(distance < 16) {
+                retval += 4;
+                break;
+            } else if(distance < 32) {
+                retval += 3;
+                break;
+            } else if(distance < 64) {
+                retval += 2;
+                break;
+            } else if(distance < 128) {
+                retval += 1;
+                break;
+            } else {
+                break;
+            }
+        }
+
+        return retval;
+    }
+
+    @Override
+    public int compareTo(ByteArrayID o) {
+        int i = 0;
+        int retval;
+
+        while((retval = UnsignedBytes.compare(mData[i], o.mData[i])) == 0
+                && i < ID.NUM_BYTES-1) {
+            i++;
+        }
+
+        return retval;
+    }
+}
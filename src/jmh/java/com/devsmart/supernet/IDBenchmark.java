@@ -0,0 +1,116 @@
+package com.devsmart.supernet;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the long backed {@link ID} against the original byte[] backed implementation.
+ * The IDs share a long common prefix, which is the worst case for the byte at a time loops
+ * and the common case deep in the routing table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IDBenchmark {
+
+    private ID mA;
+    private ID mB;
+    private ID mC;
+    private ByteArrayID mOldA;
+    private ByteArrayID mOldB;
+    private ByteArrayID mOldC;
+    private byte[] mBytes;
+    private ByteBuffer mBuffer;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(1);
+        byte[] a = new byte[ID.NUM_BYTES];
+        r.nextBytes(a);
+        byte[] b = a.clone();
+        byte[] c = a.clone();
+        b[ID.NUM_BYTES - 2] ^= 0x10;
+        c[ID.NUM_BYTES - 2] ^= 0x01;
+
+        mA = new ID(a, 0);
+        mB = new ID(b, 0);
+        mC = new ID(c, 0);
+        mOldA = new ByteArrayID(a, 0);
+        mOldB = new ByteArrayID(b, 0);
+        mOldC = new ByteArrayID(c, 0);
+        mBytes = a;
+        mBuffer = ByteBuffer.allocateDirect(ID.NUM_BYTES);
+    }
+
+    @Benchmark
+    public int sharedPrefixBits() {
+        return mA.getNumSharedPrefixBits(mB);
+    }
+
+    @Benchmark
+    public int sharedPrefixBitsByteArray() {
+        return mOldA.getNumSharedPrefixBits(mOldB);
+    }
+
+    @Benchmark
+    public int compareDistance() {
+        return ID.compareDistance(mB, mC, mA);
+    }
+
+    @Benchmark
+    public int compareDistanceByteArray() {
+        return ByteArrayID.compareDistance(mOldB, mOldC, mOldA);
+    }
+
+    @Benchmark
+    public int compareTo() {
+        return mA.compareTo(mC);
+    }
+
+    @Benchmark
+    public int compareToByteArray() {
+        return mOldA.compareTo(mOldC);
+    }
+
+    @Benchmark
+    public boolean equalsID() {
+        return mA.equals(mC);
+    }
+
+    @Benchmark
+    public boolean equalsByteArray() {
+        return mOldA.equals(mOldC);
+    }
+
+    @Benchmark
+    public ID readBytes() {
+        return new ID(mBytes, 0);
+    }
+
+    @Benchmark
+    public ByteArrayID readBytesByteArray() {
+        return new ByteArrayID(mBytes, 0);
+    }
+
+    @Benchmark
+    public ID readWriteByteBuffer() {
+        mA.write(mBuffer, 0);
+        return new ID(mBuffer, 0);
+    }
+}
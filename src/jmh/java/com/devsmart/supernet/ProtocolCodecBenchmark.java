@@ -0,0 +1,118 @@
+package com.devsmart.supernet;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode paths of {@link SupernetClientProtocolReceiver}. The decode benchmarks feed
+ * packets that are fully parsed but never answered (pongs and find peers responses without a
+ * transaction, route packets on their last hop) so no datagrams are sent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolCodecBenchmark {
+
+    @Param({"16", "256", "1200"})
+    public int payloadSize;
+
+    private SupernetClient mClient;
+    private SupernetClientProtocolReceiver mReceiver;
+    private InetSocketAddress mRemoteAddress;
+    private ID mLocalId;
+    private ID mTarget;
+    private byte[] mPayload;
+    private ByteBuffer mPong;
+    private ByteBuffer mFindPeersResponse;
+    private ByteBuffer mRoute;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Random r = new Random(1);
+        mLocalId = ID.createRandom(r);
+        mTarget = ID.createRandom(r);
+        mRemoteAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 9000);
+
+        mClient = new SupernetClient.Builder()
+                .withId(mLocalId)
+                .build();
+        SupernetClientImp client = (SupernetClientImp) mClient;
+        for(int i=0;i<200;i++) {
+            client.mPeerRoutingTable.addPeer(new Peer(ID.createRandom(r), mRemoteAddress.getAddress(), 1024 + i));
+        }
+
+        mReceiver = new SupernetClientProtocolReceiver();
+        mReceiver.mClient = client;
+
+        mPayload = new byte[payloadSize];
+        r.nextBytes(mPayload);
+
+        mPong = toDirectBuffer(SupernetClientProtocolReceiver.createPong(mRemoteAddress, mTarget, 0));
+        mFindPeersResponse = toDirectBuffer(SupernetClientProtocolReceiver.createFindPeersResponse(mRemoteAddress, client.mPeerRoutingTable, mTarget, 0));
+        mRoute = toDirectBuffer(SupernetClientProtocolReceiver.createRoute(mRemoteAddress, mTarget, 1, mPayload, 0, mPayload.length));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mClient.getUDPSocket().close();
+    }
+
+    private static ByteBuffer toDirectBuffer(DatagramPacket packet) {
+        ByteBuffer retval = ByteBuffer.allocateDirect(packet.getLength());
+        retval.put(packet.getData(), packet.getOffset(), packet.getLength());
+        retval.flip();
+        return retval;
+    }
+
+    @Benchmark
+    public DatagramPacket createPing() throws Exception {
+        return SupernetClientProtocolReceiver.createPing(mRemoteAddress, mLocalId, 1);
+    }
+
+    @Benchmark
+    public DatagramPacket createFindPeersResponse() throws Exception {
+        return SupernetClientProtocolReceiver.createFindPeersResponse(mRemoteAddress, ((SupernetClientImp) mClient).mPeerRoutingTable, mTarget, 1);
+    }
+
+    @Benchmark
+    public DatagramPacket createRoute() throws Exception {
+        return SupernetClientProtocolReceiver.createRoute(mRemoteAddress, mTarget, 10, mPayload, 0, mPayload.length);
+    }
+
+    @Benchmark
+    public boolean receivePong() {
+        return mReceiver.receive(mPong, mRemoteAddress);
+    }
+
+    @Benchmark
+    public boolean receiveFindPeersResponse() {
+        return mReceiver.receive(mFindPeersResponse, mRemoteAddress);
+    }
+
+    @Benchmark
+    public boolean receiveRoute() {
+        return mReceiver.receive(mRoute, mRemoteAddress);
+    }
+}
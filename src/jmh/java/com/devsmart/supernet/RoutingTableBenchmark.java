@@ -0,0 +1,151 @@
+package com.devsmart.supernet;
+
+
+import com.google.common.base.Predicates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routing table lookups at different fill levels. The read benchmarks scale with the number of
+ * threads passed to JMH ({@code -t}); the {@code contended} group runs readers against a
+ * concurrent writer (use {@code -tg} to change the reader/writer split). {@code nextHopSearch}
+ * and {@code nextHopCached} compare picking a route's next hop with and without the
+ * {@link NextHopCache}; the clock is frozen so the peers stay ALIVE throughout.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingTableBenchmark {
+
+    private static final int NUM_TARGETS = 1024;
+
+    @Param({"100", "1000", "10000"})
+    public int numPeers;
+
+    private RoutingTable mTable;
+    private Peer[] mPeers;
+    private ID[] mTargets;
+    private NextHopCache mNextHops;
+    private final AtomicInteger mNextWrite = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int next;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        final long now = System.currentTimeMillis();
+        Clock.set(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return now;
+            }
+
+            @Override
+            public long nanoTime() {
+                return 0;
+            }
+        });
+
+        Random r = new Random(1);
+        ID localId = ID.createRandom(r);
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+
+        mTable = new RoutingTable(localId);
+
+        // half the peers start in the table, the writer adds the rest and then keeps refreshing them
+        mPeers = new Peer[numPeers * 2];
+        for(int i=0;i<mPeers.length;i++) {
+            mPeers[i] = new Peer(ID.createRandom(r), address, 1024 + (i % 60000));
+            mPeers[i].markSeen();
+            if(i < numPeers) {
+                mTable.addPeer(mPeers[i]);
+            }
+        }
+
+        mTargets = new ID[NUM_TARGETS];
+        for(int i=0;i<NUM_TARGETS;i++) {
+            mTargets[i] = ID.createRandom(r);
+        }
+
+        mNextHops = new NextHopCache(mTable);
+        for(ID target : mTargets) {
+            mNextHops.put(target, mTable.getKClosest(target, 1, Peer.IS_ALIVE).get(0), mTable.getVersion());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Clock.set(Clock.SYSTEM);
+    }
+
+    private ID nextTarget(ThreadState state) {
+        return mTargets[(state.next++) & (NUM_TARGETS - 1)];
+    }
+
+    @Benchmark
+    public void getClosestPeers(ThreadState state, Blackhole bh) {
+        Iterator<Peer> it = mTable.getClosestPeers(nextTarget(state)).iterator();
+        for(int i=0;i<RoutingTable.MAX_BUCKET_SIZE && it.hasNext();i++) {
+            bh.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    public List<Peer> getKClosest(ThreadState state) {
+        return mTable.getKClosest(nextTarget(state), RoutingTable.MAX_BUCKET_SIZE, Predicates.<Peer>alwaysTrue());
+    }
+
+    @Benchmark
+    public List<Peer> nextHopSearch(ThreadState state) {
+        return mTable.getKClosest(nextTarget(state), 3, Peer.IS_ALIVE);
+    }
+
+    @Benchmark
+    public Peer nextHopCached(ThreadState state) {
+        return mNextHops.get(nextTarget(state));
+    }
+
+    @Benchmark
+    public Peer lookupPeer(ThreadState state) {
+        return mTable.lookupPeer(mPeers[(state.next++) % numPeers]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public List<Peer> contendedRead(ThreadState state) {
+        return mTable.getKClosest(nextTarget(state), RoutingTable.MAX_BUCKET_SIZE, Predicates.<Peer>alwaysTrue());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedAddPeer() {
+        mTable.addPeer(mPeers[(mNextWrite.getAndIncrement() & 0x7FFFFFFF) % mPeers.length]);
+    }
+}
@@ -0,0 +1,159 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link NioTransport} that also moves sends onto the event loop thread. Callers copy their
+ * packet into a pooled buffer and queue it; the loop thread writes out everything queued in one
+ * go, so a burst of sends from many threads costs one selector wakeup rather than one contended
+ * channel write each. When the socket's send buffer is full the queue waits for OP_WRITE instead
+ * of dropping, up to {@link #MAX_QUEUED_PACKETS}. Received datagrams are handed over in larger
+ * batches than the plain NIO transport.
+ *
+ * The JDK has no sendmmsg/recvmmsg, so each datagram is still one system call; what is
+ * batched are the wakeups and thread handoffs around them.
+ */
+public class BatchedNioTransport extends NioTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchedNioTransport.class);
+
+    /**
+     * Packets queued beyond this are dropped
+     */
+    public static final int MAX_QUEUED_PACKETS = 4096;
+
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final int MAX_RECEIVE_BATCH = 64;
+
+    private static class Outgoing {
+        final ByteBuffer mPacket;
+        final SocketAddress mRemoteAddress;
+
+        Outgoing(ByteBuffer packet, SocketAddress remoteAddress) {
+            mPacket = packet;
+            mRemoteAddress = remoteAddress;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Outgoing> mSendQueue = new ConcurrentLinkedQueue<Outgoing>();
+    private final AtomicInteger mNumQueued = new AtomicInteger();
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+
+    /**
+     * @param port the UDP port to bind, or null for any free port
+     */
+    public BatchedNioTransport(Integer port) throws IOException {
+        this(port, null);
+    }
+
+    /**
+     * @param port the UDP port to bind, or null for any free port
+     * @param eventLoop the loop to receive and send on, or null to start one for this transport
+     */
+    public BatchedNioTransport(Integer port, NioEventLoop eventLoop) throws IOException {
+        super(port, eventLoop, MAX_POOLED_BUFFERS, MAX_RECEIVE_BATCH);
+    }
+
+    @Override
+    public void send(ByteBuffer packet, SocketAddress remoteAddress) throws IOException {
+        if (mKey == null) {
+            // not started yet
+            super.send(packet, remoteAddress);
+            return;
+        }
+
+        if (!enqueue(packet, remoteAddress)) {
+            return;
+        }
+        if (mWakeupPending.compareAndSet(false, true)) {
+            mEventLoop.execute(mFlushTask);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer[] packets, SocketAddress[] remoteAddresses, int count) throws IOException {
+        if (mKey == null) {
+            super.send(packets, remoteAddresses, count);
+            return;
+        }
+
+        boolean queued = false;
+        for(int i=0;i<count;i++) {
+            queued |= enqueue(packets[i], remoteAddresses[i]);
+        }
+        if (queued && mWakeupPending.compareAndSet(false, true)) {
+            mEventLoop.execute(mFlushTask);
+        }
+    }
+
+    private boolean enqueue(ByteBuffer packet, SocketAddress remoteAddress) {
+        if (mNumQueued.incrementAndGet() > MAX_QUEUED_PACKETS) {
+            mNumQueued.decrementAndGet();
+            LOGGER.warn("send queue full, dropped packet to: {}", remoteAddress);
+            packet.position(packet.limit());
+            return false;
+        }
+
+        ByteBuffer copy = mBufferPool.acquire();
+        if (copy.capacity() < packet.remaining()) {
+            copy = ByteBuffer.allocate(packet.remaining());
+        }
+        copy.put(packet);
+        copy.flip();
+        mSendQueue.offer(new Outgoing(copy, remoteAddress));
+        return true;
+    }
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            // clear first: a packet queued after this point schedules another flush
+            mWakeupPending.set(false);
+            try {
+                flush();
+            } catch (IOException e) {
+                LOGGER.error("", e);
+            }
+        }
+    };
+
+    @Override
+    protected void onWritable() throws IOException {
+        flush();
+    }
+
+    private void flush() throws IOException {
+        if (!mKey.isValid()) {
+            return;
+        }
+
+        Outgoing outgoing;
+        while ((outgoing = mSendQueue.peek()) != null) {
+            if (mChannel.send(outgoing.mPacket, outgoing.mRemoteAddress) == 0) {
+                // socket buffer is full; try again once it is writable
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            mSendQueue.poll();
+            mNumQueued.decrementAndGet();
+            mBufferPool.release(outgoing.mPacket);
+        }
+        mKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mSendQueue.clear();
+    }
+}
@@ -0,0 +1,51 @@
+package com.devsmart.supernet;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable direct {@link ByteBuffer}s used to receive datagrams without
+ * allocating a new buffer for every packet. If the pool is empty a new buffer is allocated,
+ * and at most {@code maxPooled} buffers are retained when they are released.
+ */
+public class BufferPool {
+
+    private final int mBufferSize;
+    private final int mMaxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> mBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger mNumPooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer retval = mBuffers.poll();
+        if(retval != null) {
+            mNumPooled.decrementAndGet();
+            retval.clear();
+        } else {
+            retval = ByteBuffer.allocateDirect(mBufferSize);
+        }
+        return retval;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if(buffer.capacity() != mBufferSize) {
+            return;
+        }
+
+        if(mNumPooled.incrementAndGet() <= mMaxPooled) {
+            mBuffers.offer(buffer);
+        } else {
+            mNumPooled.decrementAndGet();
+        }
+    }
+}
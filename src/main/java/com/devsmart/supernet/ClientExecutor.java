@@ -0,0 +1,283 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One client's view of its {@link SupernetRuntime}'s shared timer. Tasks passed to
+ * {@link #execute(Runnable)} run one at a time in the order they were submitted, as they would
+ * on a single thread. Scheduled tasks wait on the shared timer and are then queued the same way,
+ * so a client's tasks never run concurrently with each other, scheduled or not.
+ *
+ * Shutting the executor down only affects this client: scheduled tasks that have not run yet
+ * do nothing when they come due, and periodic tasks stop. Tasks already passed to
+ * {@link #execute(Runnable)} still run.
+ */
+class ClientExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClientExecutor.class);
+
+    /**
+     * Tasks run per turn on a shared thread before yielding it to other clients
+     */
+    private static final int MAX_TASKS_PER_TURN = 64;
+
+    private final ScheduledExecutorService mTimer;
+
+    // guarded by mQueue
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<Runnable>();
+    private boolean mDraining;
+
+    private volatile boolean mShutdown;
+
+    ClientExecutor(ScheduledExecutorService timer) {
+        mTimer = timer;
+    }
+
+    private void checkRunning() {
+        if(mShutdown) {
+            throw new RejectedExecutionException("executor shut down");
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        checkRunning();
+        synchronized (mQueue) {
+            mQueue.add(command);
+            if(mDraining) {
+                return;
+            }
+            mDraining = true;
+        }
+        try {
+            mTimer.execute(mDrain);
+        } catch (RejectedExecutionException e) {
+            synchronized (mQueue) {
+                mQueue.clear();
+                mDraining = false;
+                mQueue.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks passed to {@link #execute(Runnable)} that have not started yet
+     */
+    int getQueueDepth() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            for(int i=0;i<MAX_TASKS_PER_TURN;i++) {
+                Runnable task;
+                synchronized (mQueue) {
+                    task = mQueue.poll();
+                    if(task == null) {
+                        mDraining = false;
+                        mQueue.notifyAll();
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.error("", e);
+                }
+            }
+            mTimer.execute(this);
+        }
+    };
+
+    /**
+     * A scheduled task. The shared timer only queues it with {@link #execute(Runnable)} when it
+     * comes due, so it runs one at a time with this client's other tasks. A periodic task is not
+     * queued again while its last run is still waiting or running, and stops after it throws.
+     */
+    private class QueuedTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private final boolean mPeriodic;
+        private final AtomicBoolean mQueued = new AtomicBoolean();
+        private volatile ScheduledFuture<?> mTimerFuture;
+
+        QueuedTask(Callable<V> callable) {
+            super(callable);
+            mPeriodic = false;
+        }
+
+        QueuedTask(Runnable task, boolean periodic) {
+            super(task, null);
+            mPeriodic = periodic;
+        }
+
+        /**
+         * Runs on the timer. Throwing makes the timer stop repeating a periodic task.
+         */
+        final Runnable mDue = new Runnable() {
+            @Override
+            public void run() {
+                if(mShutdown || isDone()) {
+                    cancel(false);
+                    if(mPeriodic) {
+                        throw new CancellationException();
+                    }
+                    return;
+                }
+                if(mQueued.compareAndSet(false, true)) {
+                    try {
+                        execute(QueuedTask.this);
+                    } catch (RejectedExecutionException e) {
+                        cancel(false);
+                        if(mPeriodic) {
+                            throw e;
+                        }
+                    }
+                }
+            }
+        };
+
+        ScheduledFuture<V> start(long initialDelay, long period, TimeUnit unit, boolean fixedRate) {
+            if(!mPeriodic) {
+                mTimerFuture = mTimer.schedule(mDue, initialDelay, unit);
+            } else if(fixedRate) {
+                mTimerFuture = mTimer.scheduleAtFixedRate(mDue, initialDelay, period, unit);
+            } else {
+                mTimerFuture = mTimer.scheduleWithFixedDelay(mDue, initialDelay, period, unit);
+            }
+            return this;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if(mShutdown) {
+                    cancel(false);
+                } else if(mPeriodic) {
+                    runAndReset();
+                } else {
+                    super.run();
+                }
+            } finally {
+                mQueued.set(false);
+            }
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            LOGGER.error("", t);
+            super.setException(t);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean retval = super.cancel(mayInterruptIfRunning);
+            final ScheduledFuture<?> timerFuture = mTimerFuture;
+            if(timerFuture != null) {
+                timerFuture.cancel(false);
+            }
+            return retval;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return mTimerFuture.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        checkRunning();
+        return new QueuedTask<Object>(command, false).start(delay, 0, unit, false);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        checkRunning();
+        return new QueuedTask<V>(callable).start(delay, 0, unit, false);
+    }
+
+    /**
+     * A run that comes due while the previous one is still queued or running is skipped.
+     */
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        checkRunning();
+        return new QueuedTask<Object>(command, true).start(initialDelay, period, unit, true);
+    }
+
+    /**
+     * The delay is counted from when the task was queued, and a run that comes due while the
+     * previous one is still queued or running is skipped.
+     */
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        checkRunning();
+        return new QueuedTask<Object>(command, true).start(initialDelay, delay, unit, false);
+    }
+
+    @Override
+    public void shutdown() {
+        mShutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        mShutdown = true;
+        synchronized (mQueue) {
+            ArrayList<Runnable> retval = new ArrayList<Runnable>(mQueue);
+            mQueue.clear();
+            return retval;
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        synchronized (mQueue) {
+            return mShutdown && !mDraining;
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mQueue) {
+            while(!(mShutdown && !mDraining)) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if(remaining <= 0) {
+                    return false;
+                }
+                mQueue.wait(remaining);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.devsmart.supernet;
+
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Where clients read the time from: peer liveness, keep alive, RTT measurements and session
+ * idle timeouts all go through {@link #get()}. It is the system clock unless a simulation has
+ * swapped in a virtual one with {@link #set(Clock)}. Real waits, such as a blocking connect,
+ * always use the system clock.
+ */
+public abstract class Clock {
+
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private static volatile Clock sClock = SYSTEM;
+
+    public static Clock get() {
+        return sClock;
+    }
+
+    /**
+     * Replace the clock for the whole process. Set it before building any clients and restore
+     * {@link #SYSTEM} once they have been shut down.
+     */
+    public static void set(Clock clock) {
+        sClock = Preconditions.checkNotNull(clock);
+    }
+
+    /**
+     * @see System#currentTimeMillis()
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * @see System#nanoTime()
+     */
+    public abstract long nanoTime();
+}
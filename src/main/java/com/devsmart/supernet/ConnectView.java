@@ -0,0 +1,65 @@
+package com.devsmart.supernet;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * View over a connect request or response.
+ */
+public class ConnectView extends PacketView {
+
+    // request
+    public static final int INITIATOR_CONNECTION_ID_OFFSET = 1;
+    public static final int INITIATOR_ID_OFFSET = 5;
+    public static final int TARGET_ID_OFFSET = INITIATOR_ID_OFFSET + ID.NUM_BYTES;
+    public static final int PORT_OFFSET = TARGET_ID_OFFSET + ID.NUM_BYTES;
+    public static final int REQUEST_WINDOW_OFFSET = PORT_OFFSET + 2;
+    public static final int REQUEST_LENGTH = REQUEST_WINDOW_OFFSET + 4;
+
+    // response
+    public static final int RESPONDER_CONNECTION_ID_OFFSET = 5;
+    public static final int STATUS_OFFSET = 9;
+    public static final int RESPONSE_WINDOW_OFFSET = 10;
+    public static final int RESPONSE_LENGTH = RESPONSE_WINDOW_OFFSET + 4;
+
+    public static final int STATUS_ACCEPTED = 0;
+    public static final int STATUS_REFUSED = 1;
+
+    @Override
+    public ConnectView wrap(ByteBuffer buffer) {
+        super.wrap(buffer);
+        return this;
+    }
+
+    public boolean isValid() {
+        return mLength >= (isRequest() ? REQUEST_LENGTH : RESPONSE_LENGTH);
+    }
+
+    public int getInitiatorConnectionId() {
+        return getInt32(INITIATOR_CONNECTION_ID_OFFSET);
+    }
+
+    public ID getInitiatorId() {
+        return getID(INITIATOR_ID_OFFSET);
+    }
+
+    public boolean targetEquals(ID id) {
+        return id.equals(mBuffer, mOffset + TARGET_ID_OFFSET);
+    }
+
+    public int getPort() {
+        return getUInt16(PORT_OFFSET);
+    }
+
+    public int getResponderConnectionId() {
+        return getInt32(RESPONDER_CONNECTION_ID_OFFSET);
+    }
+
+    public int getStatus() {
+        return getUInt8(STATUS_OFFSET);
+    }
+
+    public int getReceiveWindow() {
+        return getInt32(isRequest() ? REQUEST_WINDOW_OFFSET : RESPONSE_WINDOW_OFFSET);
+    }
+}
@@ -0,0 +1,85 @@
+package com.devsmart.supernet;
+
+
+/**
+ * CUBIC congestion window (RFC 8312), counted in segments. Not thread safe; the owning
+ * connection serializes access.
+ */
+public class CubicCongestionControl {
+
+    public static final double INITIAL_WINDOW = 10;
+    public static final double MIN_WINDOW = 2;
+    public static final double MAX_WINDOW = 4096;
+
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private double mWindow = INITIAL_WINDOW;
+    private double mSlowStartThreshold = MAX_WINDOW;
+    private double mWindowMax;
+    private double mK;
+    private long mEpochStart = -1;
+
+    public int getWindow() {
+        return (int) mWindow;
+    }
+
+    public boolean inSlowStart() {
+        return mWindow < mSlowStartThreshold;
+    }
+
+    /**
+     * @param numAcked number of segments newly acknowledged (cumulatively or selectively)
+     * @param nowNanos current time
+     * @param smoothedRttMicros connection's smoothed RTT, or a negative value if unknown
+     */
+    public void onAck(int numAcked, long nowNanos, long smoothedRttMicros) {
+        if(numAcked <= 0) {
+            return;
+        }
+
+        if(inSlowStart()) {
+            mWindow = Math.min(MAX_WINDOW, mWindow + numAcked);
+            return;
+        }
+
+        if(mEpochStart < 0) {
+            mEpochStart = nowNanos;
+            if(mWindow < mWindowMax) {
+                mK = Math.cbrt((mWindowMax - mWindow) / C);
+            } else {
+                mK = 0;
+                mWindowMax = mWindow;
+            }
+        }
+
+        double t = (nowNanos - mEpochStart) / 1e9 + Math.max(0, smoothedRttMicros) / 1e6;
+        double target = C * Math.pow(t - mK, 3) + mWindowMax;
+        if(target > mWindow) {
+            mWindow += (target - mWindow) / mWindow * numAcked;
+        } else {
+            mWindow += 0.01 * numAcked / mWindow;
+        }
+        mWindow = Math.min(MAX_WINDOW, mWindow);
+    }
+
+    /**
+     * A segment was detected lost by selective acknowledgements. Call at most once per window.
+     */
+    public void onLoss() {
+        mWindowMax = mWindow;
+        mWindow = Math.max(MIN_WINDOW, mWindow * BETA);
+        mSlowStartThreshold = mWindow;
+        mEpochStart = -1;
+    }
+
+    /**
+     * The retransmit timer expired.
+     */
+    public void onTimeout() {
+        mWindowMax = mWindow;
+        mSlowStartThreshold = Math.max(MIN_WINDOW, mWindow * BETA);
+        mWindow = 1;
+        mEpochStart = -1;
+    }
+}
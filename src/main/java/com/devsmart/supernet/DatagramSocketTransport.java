@@ -0,0 +1,128 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking {@link DatagramSocket} with a dedicated receive thread, one packet per delivery.
+ */
+public class DatagramSocketTransport implements Transport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatagramSocketTransport.class);
+
+    private final DatagramSocket mSocket;
+    private volatile boolean mRunning;
+    private Thread mReceiveThread;
+    private Receiver mReceiver;
+
+    /**
+     * @param port the UDP port to bind, or null for any free port
+     */
+    public DatagramSocketTransport(Integer port) throws IOException {
+        if(port != null) {
+            mSocket = new DatagramSocket(port);
+        } else {
+            mSocket = new DatagramSocket();
+        }
+        mSocket.setReuseAddress(true);
+    }
+
+    @Override
+    public DatagramSocket getSocket() {
+        return mSocket;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) mSocket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        mReceiver = receiver;
+        mRunning = true;
+        mReceiveThread = new Thread(mReceiveTask, "Receive UDP");
+        mReceiveThread.start();
+    }
+
+    @Override
+    public void send(ByteBuffer packet, SocketAddress remoteAddress) throws IOException {
+        if (packet.hasArray()) {
+            mSocket.send(new DatagramPacket(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining(), remoteAddress));
+            packet.position(packet.limit());
+        } else {
+            byte[] data = new byte[packet.remaining()];
+            packet.get(data);
+            mSocket.send(new DatagramPacket(data, data.length, remoteAddress));
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer[] packets, SocketAddress[] remoteAddresses, int count) throws IOException {
+        for(int i=0;i<count;i++) {
+            send(packets[i], remoteAddresses[i]);
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer packet) {
+    }
+
+    @Override
+    public void close() {
+        mRunning = false;
+        try {
+            if (mReceiveThread != null) {
+                mReceiveThread.join();
+                mReceiveThread = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mSocket.close();
+    }
+
+    private final Runnable mReceiveTask = new Runnable() {
+
+        @Override
+        public void run() {
+            final ByteBuffer[] packets = new ByteBuffer[1];
+            final InetSocketAddress[] remoteAddresses = new InetSocketAddress[1];
+            final int packetSize = 64*1024;
+
+            try {
+                LOGGER.info("starting UDP server on: {}", mSocket.getLocalSocketAddress());
+                mSocket.setSoTimeout(1000);
+
+                while (mRunning) {
+                    final DatagramPacket receivedPacket = new DatagramPacket(new byte[packetSize], packetSize);
+                    try {
+                        mSocket.receive(receivedPacket);
+
+                        packets[0] = ByteBuffer.wrap(receivedPacket.getData(), receivedPacket.getOffset(), receivedPacket.getLength());
+                        remoteAddresses[0] = (InetSocketAddress) receivedPacket.getSocketAddress();
+                        mReceiver.receive(packets, remoteAddresses, 1);
+
+                    } catch (SocketTimeoutException e) {
+                    }
+                }
+
+            } catch (IOException e) {
+                if (mRunning) {
+                    LOGGER.error("", e);
+                }
+            }
+
+            LOGGER.info("exiting UDP receive thread");
+        }
+    };
+}
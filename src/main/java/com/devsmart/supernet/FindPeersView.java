@@ -0,0 +1,88 @@
+package com.devsmart.supernet;
+
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * View over a find peers request or response. Response entries are read in place; only
+ * {@link #getPeerSocketAddress(int)} allocates.
+ */
+public class FindPeersView extends PacketView {
+
+    public static final int TRANSACTION_ID_OFFSET = 1;
+    public static final int TARGET_OFFSET = 3;
+    public static final int REQUEST_LENGTH = TARGET_OFFSET + ID.NUM_BYTES;
+
+    public static final int COUNT_OFFSET = 3;
+    public static final int ENTRIES_OFFSET = 4;
+    public static final int ENTRY_LENGTH = ID.NUM_BYTES + 6;
+
+    @Override
+    public FindPeersView wrap(ByteBuffer buffer) {
+        super.wrap(buffer);
+        return this;
+    }
+
+    public boolean isValid() {
+        if(isRequest()) {
+            return mLength >= REQUEST_LENGTH;
+        } else {
+            return mLength > COUNT_OFFSET && mLength >= ENTRIES_OFFSET + getCount() * ENTRY_LENGTH;
+        }
+    }
+
+    public int getTransactionId() {
+        return getUInt16(TRANSACTION_ID_OFFSET);
+    }
+
+    public ID getTarget() {
+        return getID(TARGET_OFFSET);
+    }
+
+    public int getCount() {
+        return getUInt8(COUNT_OFFSET);
+    }
+
+    private int entryOffset(int i) {
+        return ENTRIES_OFFSET + i * ENTRY_LENGTH;
+    }
+
+    public ID getPeerId(int i) {
+        return getID(entryOffset(i));
+    }
+
+    public boolean peerIdEquals(int i, ID id) {
+        return id.equals(mBuffer, mOffset + entryOffset(i));
+    }
+
+    /**
+     * @return the IPv4 address of entry {@code i} as a big-endian int
+     */
+    public int getPeerAddress(int i) {
+        return mBuffer.getInt(mOffset + entryOffset(i) + ID.NUM_BYTES);
+    }
+
+    public int getPeerPort(int i) {
+        return getUInt16(entryOffset(i) + ID.NUM_BYTES + 4);
+    }
+
+    public InetSocketAddress getPeerSocketAddress(int i) {
+        int address = getPeerAddress(i);
+        byte[] addressBytes = new byte[] {
+                (byte) (address >>> 24),
+                (byte) (address >>> 16),
+                (byte) (address >>> 8),
+                (byte) address
+        };
+        try {
+            InetAddress inetAddress = Inet4Address.getByAddress(addressBytes);
+            return new InetSocketAddress(inetAddress, getPeerPort(i));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
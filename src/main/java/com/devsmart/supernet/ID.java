@@ -2,16 +2,22 @@ package com.devsmart.supernet;
 
 
 import com.google.common.io.BaseEncoding;
-import com.google.common.primitives.UnsignedBytes;
 
 import java.math.BigInteger;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Random;
 
+/**
+ * 160 bit node ID. The bits are held in two longs and an int (most significant first) so prefix
+ * and distance math runs a word at a time and never allocates.
+ */
 public class ID implements Comparable<ID> {
     public static final int NUM_BYTES = 20;
 
-    private byte[] mData = new byte[NUM_BYTES];
+    private final long mHigh;
+    private final long mMid;
+    private final int mLow;
 
     public static ID fromBase64String(String str) {
         return fromString(str, BaseEncoding.base64Url());
@@ -29,16 +35,88 @@ public class ID implements Comparable<ID> {
     }
 
     public ID(byte[] buf, int offset) {
-        System.arraycopy(buf, offset, mData, 0, NUM_BYTES);
+        mHigh = readLong(buf, offset);
+        mMid = readLong(buf, offset + 8);
+        mLow = (int) (readBits(buf, offset + 16, 4));
     }
 
+    /**
+     * Read an ID from {@code buf} at the absolute position {@code offset}. The buffer's
+     * position is not changed.
+     */
+    public ID(ByteBuffer buf, int offset) {
+        if(buf.order() == ByteOrder.BIG_ENDIAN) {
+            mHigh = buf.getLong(offset);
+            mMid = buf.getLong(offset + 8);
+            mLow = buf.getInt(offset + 16);
+        } else {
+            mHigh = Long.reverseBytes(buf.getLong(offset));
+            mMid = Long.reverseBytes(buf.getLong(offset + 8));
+            mLow = Integer.reverseBytes(buf.getInt(offset + 16));
+        }
+    }
 
+    private static long readLong(byte[] buf, int offset) {
+        return readBits(buf, offset, 8);
+    }
+
+    private static long readBits(byte[] buf, int offset, int numBytes) {
+        long retval = 0;
+        for(int i=0;i<numBytes;i++) {
+            retval = (retval << 8) | (0xFF & buf[offset + i]);
+        }
+        return retval;
+    }
+
+    private static void writeBits(long value, byte[] buf, int offset, int numBytes) {
+        for(int i=numBytes-1;i>=0;i--) {
+            buf[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
 
     public int write(byte[] buf, int offset) {
-        System.arraycopy(mData, 0, buf, offset, NUM_BYTES);
+        writeBits(mHigh, buf, offset, 8);
+        writeBits(mMid, buf, offset + 8, 8);
+        writeBits(mLow, buf, offset + 16, 4);
+        return NUM_BYTES;
+    }
+
+    /**
+     * Write this ID to {@code buf} at the absolute position {@code offset}. The buffer's
+     * position is not changed.
+     */
+    public int write(ByteBuffer buf, int offset) {
+        if(buf.order() == ByteOrder.BIG_ENDIAN) {
+            buf.putLong(offset, mHigh);
+            buf.putLong(offset + 8, mMid);
+            buf.putInt(offset + 16, mLow);
+        } else {
+            buf.putLong(offset, Long.reverseBytes(mHigh));
+            buf.putLong(offset + 8, Long.reverseBytes(mMid));
+            buf.putInt(offset + 16, Integer.reverseBytes(mLow));
+        }
         return NUM_BYTES;
     }
 
+    public byte[] toByteArray() {
+        byte[] retval = new byte[NUM_BYTES];
+        write(retval, 0);
+        return retval;
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return a < b ? -1 : (a > b ? 1 : 0);
+    }
+
+    private static int compareUnsigned(int a, int b) {
+        a += Integer.MIN_VALUE;
+        b += Integer.MIN_VALUE;
+        return a < b ? -1 : (a > b ? 1 : 0);
+    }
+
     /**
      * Compare the distance between ac and bc. Return -1 if ac < bc,
      * 1 if ac > bc and 0 if ac == bc.
@@ -48,37 +126,53 @@ public class ID implements Comparable<ID> {
      * @return
      */
     public static int compareDistance(ID a, ID b, ID c) {
-        for(int i=0;i<NUM_BYTES;i++) {
-            int ac = a.mData[i] ^ c.mData[i];
-            int bc = b.mData[i] ^ c.mData[i];
-
-            if(ac < bc) {
-                return -1;
-            } else if(ac > bc) {
-                return 1;
-            }
+        int retval = compareUnsigned(a.mHigh ^ c.mHigh, b.mHigh ^ c.mHigh);
+        if(retval != 0) {
+            return retval;
+        }
+
+        retval = compareUnsigned(a.mMid ^ c.mMid, b.mMid ^ c.mMid);
+        if(retval != 0) {
+            return retval;
         }
 
-        return 0;
+        return compareUnsigned(a.mLow ^ c.mLow, b.mLow ^ c.mLow);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(mData);
+        long h = mHigh ^ (mMid * 31) ^ mLow;
+        return (int) (h ^ (h >>> 32));
     }
 
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof ID) {
             ID o = (ID) obj;
-            return Arrays.equals(mData, o.mData);
+            return mHigh == o.mHigh && mMid == o.mMid && mLow == o.mLow;
         } else {
             return false;
         }
     }
 
+    /**
+     * @return true if the ID stored in {@code buf} at the absolute position {@code offset}
+     * is equal to this ID
+     */
+    public boolean equals(ByteBuffer buf, int offset) {
+        if(buf.order() == ByteOrder.BIG_ENDIAN) {
+            return mHigh == buf.getLong(offset)
+                    && mMid == buf.getLong(offset + 8)
+                    && mLow == buf.getInt(offset + 16);
+        } else {
+            return mHigh == Long.reverseBytes(buf.getLong(offset))
+                    && mMid == Long.reverseBytes(buf.getLong(offset + 8))
+                    && mLow == Integer.reverseBytes(buf.getInt(offset + 16));
+        }
+    }
+
     public String toString(BaseEncoding encoding) {
-        return encoding.encode(mData, 0, NUM_BYTES);
+        return encoding.encode(toByteArray(), 0, NUM_BYTES);
     }
 
     public String toBase64String() {
@@ -96,9 +190,9 @@ public class ID implements Comparable<ID> {
 
     public byte[] distance(ID o) {
         byte[] retval = new byte[NUM_BYTES];
-        for(int i=0;i<NUM_BYTES;i++) {
-            retval[i] = (byte) (mData[i] ^ o.mData[i]);
-        }
+        writeBits(mHigh ^ o.mHigh, retval, 0, 8);
+        writeBits(mMid ^ o.mMid, retval, 8, 8);
+        writeBits(mLow ^ o.mLow, retval, 16, 4);
         return retval;
     }
 
@@ -108,52 +202,32 @@ public class ID implements Comparable<ID> {
     }
 
     public int getNumSharedPrefixBits(ID o) {
-        int retval = 0;
-        for(int i=0;i<NUM_BYTES;i++) {
-
-            int distance = 0xFF & (mData[i] ^ o.mData[i]);
-            if(distance < 1) {
-                retval += 8;
-            } else if(distance < 2) {
-                retval += 7;
-                break;
-            } else if(distance < 4) {
-                retval += 6;
-                break;
-            } else if(distance < 8) {
-                retval += 5;
-                break;
-            } else if(distance < 16) {
-                retval += 4;
-                break;
-            } else if(distance < 32) {
-                retval += 3;
-                break;
-            } else if(distance < 64) {
-                retval += 2;
-                break;
-            } else if(distance < 128) {
-                retval += 1;
-                break;
-            } else {
-                break;
-            }
+        long distance = mHigh ^ o.mHigh;
+        if(distance != 0) {
+            return Long.numberOfLeadingZeros(distance);
         }
 
-        return retval;
+        distance = mMid ^ o.mMid;
+        if(distance != 0) {
+            return 64 + Long.numberOfLeadingZeros(distance);
+        }
+
+        return 128 + Integer.numberOfLeadingZeros(mLow ^ o.mLow);
     }
 
 
     @Override
     public int compareTo(ID o) {
-        int i = 0;
-        int retval;
+        int retval = compareUnsigned(mHigh, o.mHigh);
+        if(retval != 0) {
+            return retval;
+        }
 
-        while((retval = UnsignedBytes.compare(mData[i], o.mData[i])) == 0
-                && i < NUM_BYTES-1) {
-            i++;
+        retval = compareUnsigned(mMid, o.mMid);
+        if(retval != 0) {
+            return retval;
         }
 
-        return retval;
+        return compareUnsigned(mLow, o.mLow);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,178 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel that keeps peers ALIVE. Every peer in the routing table is hashed by ID
+ * into one of {@link #NUM_SLOTS} slots and the wheel advances one slot per tick, so each peer
+ * is visited once per {@link #KEEP_ALIVE_INTERVAL_MS} and the pings are spread evenly over the
+ * interval. A peer is only pinged if it could drop out of ALIVE before the visit after next,
+ * which leaves a whole turn of the wheel for the pong, including a retransmit, to arrive
+ * before the peer stops being ALIVE. The pings for a slot are handed to the transport together,
+ * in one send call, on the tick that visits it.
+ */
+public class KeepAliveScheduler implements RoutingTable.Listener, RoutingTable.PeerVerifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeepAliveScheduler.class);
+
+    public static final long KEEP_ALIVE_INTERVAL_MS = 3000;
+    public static final int NUM_SLOTS = 20;
+    private static final long TICK_MS = KEEP_ALIVE_INTERVAL_MS / NUM_SLOTS;
+    private static final int PING_RETRIES = 1;
+
+    /**
+     * Peers last seen at least this long ago are pinged when the wheel visits them
+     */
+    static final long PING_AGE_MS = Peer.Status.ALIVE.threshold - 2 * KEEP_ALIVE_INTERVAL_MS;
+
+    private final SupernetClientImp mClient;
+    private final ArrayList<Set<Peer>> mWheel = new ArrayList<Set<Peer>>(NUM_SLOTS);
+    private final ArrayList<Peer> mBatch = new ArrayList<Peer>();
+    private int mCurrentSlot;
+    private ScheduledFuture<?> mTickTask;
+
+    public KeepAliveScheduler(SupernetClientImp client) {
+        mClient = client;
+        for(int i=0;i<NUM_SLOTS;i++) {
+            mWheel.add(Collections.newSetFromMap(new ConcurrentHashMap<Peer, Boolean>()));
+        }
+    }
+
+    public void start(ScheduledExecutorService timer, long initialDelay, TimeUnit unit) {
+        mClient.mPeerRoutingTable.addListener(this);
+        mClient.mPeerRoutingTable.setPeerVerifier(this);
+        for(RoutingTable.Bucket b : mClient.mPeerRoutingTable.getBuckets()) {
+            for(Peer p : b.getPeers()) {
+                onPeerAdded(p);
+            }
+        }
+
+        mTickTask = timer.scheduleAtFixedRate(mTick, unit.toMillis(initialDelay), TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        mClient.mPeerRoutingTable.removeListener(this);
+        mClient.mPeerRoutingTable.setPeerVerifier(null);
+        if(mTickTask != null) {
+            mTickTask.cancel(false);
+            mTickTask = null;
+        }
+    }
+
+    /**
+     * @return true if {@code peer} has not been seen recently enough to stay ALIVE until the
+     * wheel's next visit plus the time a ping then needs to be answered
+     */
+    public static boolean isPingDue(Peer peer, long nowMillis) {
+        return peer.getTimeSinceLastSeen(nowMillis) >= PING_AGE_MS;
+    }
+
+    private static int slotIndex(Peer peer) {
+        return (peer.id.hashCode() & 0x7FFFFFFF) % NUM_SLOTS;
+    }
+
+    @Override
+    public void onPeerAdded(Peer peer) {
+        mWheel.get(slotIndex(peer)).add(peer);
+    }
+
+    @Override
+    public void onPeerRemoved(Peer peer) {
+        mWheel.get(slotIndex(peer)).remove(peer);
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                Set<Peer> slot = mWheel.get(mCurrentSlot);
+                mCurrentSlot = (mCurrentSlot + 1) % NUM_SLOTS;
+
+                final long now = Clock.get().currentTimeMillis();
+                for(Peer p : slot) {
+                    if(isPingDue(p, now)) {
+                        mBatch.add(p);
+                    }
+                }
+
+                if(!mBatch.isEmpty()) {
+                    sendPings(mBatch);
+                    mBatch.clear();
+                }
+
+            } catch (Exception e) {
+                LOGGER.error("", e);
+            }
+        }
+    };
+
+    /**
+     * Ping a stale peer that a newer peer is waiting to replace.
+     */
+    @Override
+    public void verify(Peer peer) {
+        sendPing(peer, mVerifyListener);
+    }
+
+    private final TransactionTable.Listener mVerifyListener = new TransactionTable.Listener() {
+        @Override
+        public void onResponse(TransactionTable.Transaction transaction, Object response) {
+            mClient.mPeerRoutingTable.peerVerified(transaction.peer);
+        }
+
+        @Override
+        public void onTimeout(TransactionTable.Transaction transaction) {
+            LOGGER.trace("stale peer {} did not answer", transaction.peer);
+            mClient.mPeerRoutingTable.peerFailed(transaction.peer);
+        }
+    };
+
+    private void sendPings(ArrayList<Peer> peers) {
+        final int count = peers.size();
+        TransactionTable.Transaction[] transactions = new TransactionTable.Transaction[count];
+        DatagramPacket[] requests = new DatagramPacket[count];
+        try {
+            for(int i=0;i<count;i++) {
+                Peer p = peers.get(i);
+                LOGGER.trace("sending ping to: {}", p);
+                transactions[i] = mClient.mTransactions.begin(p, null);
+                requests[i] = SupernetClientProtocolReceiver.createPing(p.getSocketAddress(), mClient.mClientId, transactions[i].id);
+            }
+        } catch (IOException e) {
+            LOGGER.error("", e);
+            for(int i=0;i<count && transactions[i] != null;i++) {
+                mClient.mTransactions.cancel(transactions[i]);
+            }
+            return;
+        }
+        mClient.mTransactions.send(transactions, requests, count, PING_RETRIES);
+    }
+
+    void sendPing(Peer p) {
+        sendPing(p, null);
+    }
+
+    private void sendPing(Peer p, TransactionTable.Listener listener) {
+        try {
+            LOGGER.trace("sending ping to: {}", p);
+
+            TransactionTable.Transaction transaction = mClient.mTransactions.begin(p, listener);
+            DatagramPacket packet = SupernetClientProtocolReceiver.createPing(p.getSocketAddress(), mClient.mClientId, transaction.id);
+            mClient.mTransactions.send(transaction, packet, PING_RETRIES);
+        } catch (IOException e) {
+            LOGGER.error("", e);
+        }
+    }
+}
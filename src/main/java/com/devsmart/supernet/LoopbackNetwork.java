@@ -0,0 +1,53 @@
+package com.devsmart.supernet;
+
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory network connecting {@link LoopbackTransport}s, for running many clients in one
+ * process without sockets. Every transport gets its own port on the loopback address; packets
+ * to a port nobody is bound to are dropped.
+ */
+public class LoopbackNetwork {
+
+    private static final int FIRST_PORT = 10000;
+
+    private final ConcurrentHashMap<InetSocketAddress, LoopbackTransport> mTransports = new ConcurrentHashMap<InetSocketAddress, LoopbackTransport>();
+    private final AtomicInteger mNextPort = new AtomicInteger(FIRST_PORT);
+
+    /**
+     * Create a transport bound to the next free port.
+     */
+    public LoopbackTransport createTransport() {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), mNextPort.getAndIncrement());
+        LoopbackTransport retval = new LoopbackTransport(this, address);
+        mTransports.put(address, retval);
+        return retval;
+    }
+
+    public int getNumTransports() {
+        return mTransports.size();
+    }
+
+    void deliver(ByteBuffer packet, InetSocketAddress from, SocketAddress to) {
+        LoopbackTransport destination = mTransports.get(to);
+        if (destination == null) {
+            packet.position(packet.limit());
+            return;
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet);
+        copy.flip();
+        destination.deliver(copy, from);
+    }
+
+    void remove(LoopbackTransport transport) {
+        mTransports.remove(transport.getLocalAddress(), transport);
+    }
+}
@@ -0,0 +1,74 @@
+package com.devsmart.supernet;
+
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Transport} on a {@link LoopbackNetwork}. Sent packets are copied and handed to the
+ * destination's receiver on the sending thread, so a loopback transport has no thread of its
+ * own. Packets sent to a transport that has not been started yet are dropped.
+ */
+public class LoopbackTransport implements Transport {
+
+    private final LoopbackNetwork mNetwork;
+    private final InetSocketAddress mAddress;
+    private volatile boolean mClosed;
+    private volatile Receiver mReceiver;
+
+    LoopbackTransport(LoopbackNetwork network, InetSocketAddress address) {
+        mNetwork = network;
+        mAddress = address;
+    }
+
+    @Override
+    public DatagramSocket getSocket() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        mReceiver = receiver;
+    }
+
+    @Override
+    public void send(ByteBuffer packet, SocketAddress remoteAddress) throws IOException {
+        if (mClosed) {
+            throw new SocketException("transport closed");
+        }
+        mNetwork.deliver(packet, mAddress, remoteAddress);
+    }
+
+    @Override
+    public void send(ByteBuffer[] packets, SocketAddress[] remoteAddresses, int count) throws IOException {
+        for(int i=0;i<count;i++) {
+            send(packets[i], remoteAddresses[i]);
+        }
+    }
+
+    void deliver(ByteBuffer packet, InetSocketAddress from) {
+        final Receiver receiver = mReceiver;
+        if (!mClosed && receiver != null) {
+            receiver.receive(new ByteBuffer[]{ packet }, new InetSocketAddress[]{ from }, 1);
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer packet) {
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mNetwork.remove(this);
+    }
+}
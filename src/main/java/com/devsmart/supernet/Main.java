@@ -15,6 +15,7 @@ public class Main {
     private static class ConfigFile {
         String id;
         Integer port;
+        Integer peerStoreCapacity;
         String[] bootstrap;
 
     }
@@ -68,8 +69,13 @@ public class Main {
                 builder.withUDPPort(gConfigFile.port);
             }
 
+            builder.withRoutingTableSnapshot(new File(new File(gHomeDir, ".supernet"), "routes.bin"));
 
-            SupernetClient client = builder.build();
+            if(gConfigFile.peerStoreCapacity != null) {
+                builder.withPeerStore(new File(new File(gHomeDir, ".supernet"), "peers.db"), gConfigFile.peerStoreCapacity);
+            }
+
+            final SupernetClient client = builder.build();
 
             InetSocketAddress stunServer = new InetSocketAddress(InetAddress.getByName("stun.l.google.com"), 19302);
             STUNBinding binding = new STUNBinding(client.getUDPSocket(), stunServer);
@@ -79,6 +85,12 @@ public class Main {
             }
 
             client.start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    client.shutdown();
+                }
+            });
 
             Thread.sleep(1000);
 
@@ -0,0 +1,21 @@
+package com.devsmart.supernet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the payloads of routed packets addressed to this client. Set one with
+ * {@link SupernetClient#setMessageHandler(MessageHandler)}, or use a {@link MessageQueue} to
+ * hand the messages to application threads.
+ */
+public interface MessageHandler {
+
+    /**
+     * Called on a worker thread; messages relayed by the same last hop arrive in order, others
+     * may arrive concurrently. Blocking here holds up that worker's other packets.
+     *
+     * @param payload read only view of the message, between position and limit, sharing the
+     *                received datagram's buffer. Only valid for the duration of this call; copy
+     *                what you need to keep.
+     */
+    void onMessage(ByteBuffer payload);
+}
@@ -0,0 +1,296 @@
+package com.devsmart.supernet;
+
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link MessageHandler} that copies each message into a bounded queue for application
+ * threads to take, one at a time or in batches with {@link #drainTo(Collection, int)}. Any
+ * number of threads may produce and consume.
+ *
+ * The queue is an array based ring where every slot carries a sequence number, so producers
+ * and consumers claim slots with a single CAS and never take a lock. The lock is only used to
+ * park threads that wait for a message or, with {@link DropPolicy#BLOCK}, for space.
+ */
+public class MessageQueue implements MessageHandler {
+
+    /**
+     * What to do with a message that arrives while the queue is full
+     */
+    public enum DropPolicy {
+        /**
+         * Drop the arriving message
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drop the oldest queued message to make room
+         */
+        DROP_OLDEST,
+
+        /**
+         * Block the delivering worker until there is room. The backpressure reaches the socket,
+         * where the kernel drops datagrams once its buffer fills, and holds up every other
+         * packet the worker would handle. Don't use it in a simulation, whose single thread
+         * would wait forever.
+         */
+        BLOCK
+    }
+
+    private final DropPolicy mDropPolicy;
+    private final int mMask;
+    private final AtomicReferenceArray<byte[]> mSlots;
+
+    // a slot is free for the producer at position p when its sequence is p, and holds a
+    // message for the consumer at position p when its sequence is p + 1
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mProducerPosition = new AtomicLong();
+    private final AtomicLong mConsumerPosition = new AtomicLong();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final AtomicInteger mWaitingConsumers = new AtomicInteger();
+    private final AtomicInteger mWaitingProducers = new AtomicInteger();
+
+    private final AtomicLong mNumDropped = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public MessageQueue(int capacity, DropPolicy dropPolicy) {
+        Preconditions.checkArgument(capacity > 0 && capacity <= (1 << 30));
+        mDropPolicy = Preconditions.checkNotNull(dropPolicy);
+        final int size = Integer.highestOneBit(capacity * 2 - 1);
+        mMask = size - 1;
+        mSlots = new AtomicReferenceArray<byte[]>(size);
+        mSequences = new AtomicLongArray(size);
+        for(int i=0;i<size;i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return the number of queued messages; only a snapshot while others produce or consume
+     */
+    public int size() {
+        long size = mProducerPosition.get() - mConsumerPosition.get();
+        return (int) Math.max(0, Math.min(size, getCapacity()));
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full
+     */
+    public long getNumDropped() {
+        return mNumDropped.get();
+    }
+
+    @Override
+    public void onMessage(ByteBuffer payload) {
+        byte[] message = new byte[payload.remaining()];
+        payload.get(message);
+        put(message);
+    }
+
+    /**
+     * Queue {@code message}, applying the drop policy if the queue is full.
+     * @return false if {@code message} was dropped
+     */
+    public boolean put(byte[] message) {
+        Preconditions.checkNotNull(message);
+        if(offer(message)) {
+            return true;
+        }
+
+        switch (mDropPolicy) {
+            case DROP_OLDEST:
+                while(!offer(message)) {
+                    if(poll() != null) {
+                        mNumDropped.incrementAndGet();
+                    }
+                }
+                return true;
+
+            case BLOCK:
+                try {
+                    awaitSpace(message);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+        }
+        mNumDropped.incrementAndGet();
+        return false;
+    }
+
+    private void awaitSpace(byte[] message) throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            mWaitingProducers.incrementAndGet();
+            try {
+                while(!offer(message)) {
+                    mNotFull.await();
+                }
+            } finally {
+                mWaitingProducers.decrementAndGet();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queue {@code message} if there is room, whatever the drop policy.
+     * @return false if the queue is full
+     */
+    public boolean offer(byte[] message) {
+        long position = mProducerPosition.get();
+        int index;
+        while(true) {
+            index = (int) position & mMask;
+            long diff = mSequences.get(index) - position;
+            if(diff == 0) {
+                if(mProducerPosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mProducerPosition.get();
+            } else if(diff < 0) {
+                return false;
+            } else {
+                position = mProducerPosition.get();
+            }
+        }
+
+        mSlots.set(index, message);
+        mSequences.set(index, position + 1);
+        if(mWaitingConsumers.get() > 0) {
+            signal(mNotEmpty);
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest message or null if the queue is empty
+     */
+    public byte[] poll() {
+        long position = mConsumerPosition.get();
+        int index;
+        while(true) {
+            index = (int) position & mMask;
+            long diff = mSequences.get(index) - (position + 1);
+            if(diff == 0) {
+                if(mConsumerPosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mConsumerPosition.get();
+            } else if(diff < 0) {
+                return null;
+            } else {
+                position = mConsumerPosition.get();
+            }
+        }
+
+        byte[] retval = mSlots.get(index);
+        mSlots.set(index, null);
+        mSequences.set(index, position + getCapacity());
+        if(mWaitingProducers.get() > 0) {
+            signal(mNotFull);
+        }
+        return retval;
+    }
+
+    private void signal(Condition condition) {
+        mLock.lock();
+        try {
+            condition.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the oldest message, waiting for one if the queue is empty
+     */
+    public byte[] take() throws InterruptedException {
+        byte[] retval = poll();
+        if(retval != null) {
+            return retval;
+        }
+
+        mLock.lockInterruptibly();
+        try {
+            mWaitingConsumers.incrementAndGet();
+            try {
+                while((retval = poll()) == null) {
+                    mNotEmpty.await();
+                }
+            } finally {
+                mWaitingConsumers.decrementAndGet();
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return retval;
+    }
+
+    /**
+     * Move up to {@code maxMessages} queued messages to {@code c}, oldest first, without waiting.
+     * @return the number of messages moved
+     */
+    public int drainTo(Collection<? super byte[]> c, int maxMessages) {
+        int retval = 0;
+        byte[] message;
+        while(retval < maxMessages && (message = poll()) != null) {
+            c.add(message);
+            retval++;
+        }
+        return retval;
+    }
+
+    /**
+     * Like {@link #drainTo(Collection, int)}, but waits up to {@code timeout} for the first
+     * message if the queue is empty.
+     * @return the number of messages moved, 0 if the timeout passed
+     */
+    public int drainTo(Collection<? super byte[]> c, int maxMessages, long timeout, TimeUnit unit) throws InterruptedException {
+        Preconditions.checkArgument(maxMessages > 0);
+        byte[] first = poll();
+        if(first == null) {
+            long nanos = unit.toNanos(timeout);
+            mLock.lockInterruptibly();
+            try {
+                mWaitingConsumers.incrementAndGet();
+                try {
+                    while((first = poll()) == null) {
+                        if(nanos <= 0) {
+                            return 0;
+                        }
+                        nanos = mNotEmpty.awaitNanos(nanos);
+                    }
+                } finally {
+                    mWaitingConsumers.decrementAndGet();
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        c.add(first);
+        return 1 + drainTo(c, maxMessages - 1);
+    }
+}
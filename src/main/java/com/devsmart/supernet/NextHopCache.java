@@ -0,0 +1,78 @@
+package com.devsmart.supernet;
+
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the next hop chosen for each target ID, so a steady flow to one target is routed
+ * with a hash lookup per packet instead of a search of the routing table. Bounded to
+ * {@link #MAX_ENTRIES} targets, evicting the least recently used.
+ *
+ * An entry is only used while the routing table is at the {@link RoutingTable#getVersion()}
+ * it was computed at and its next hop is still ALIVE. Entries also expire after
+ * {@link #MAX_AGE_MS}, so changes the version does not capture, such as a closer peer coming
+ * back to life or RTTs shifting, are picked up.
+ */
+public class NextHopCache {
+
+    public static final int MAX_ENTRIES = 4096;
+    public static final long MAX_AGE_MS = 1000;
+
+    private static class Entry {
+        final Peer nextHop;
+        final long version;
+
+        Entry(Peer nextHop, long version) {
+            this.nextHop = nextHop;
+            this.version = version;
+        }
+    }
+
+    private final RoutingTable mRoutingTable;
+    private final Cache<ID, Entry> mCache;
+
+    public NextHopCache(RoutingTable routingTable) {
+        mRoutingTable = routingTable;
+        mCache = CacheBuilder.newBuilder()
+                .maximumSize(MAX_ENTRIES)
+                .expireAfterWrite(MAX_AGE_MS, TimeUnit.MILLISECONDS)
+                .ticker(new Ticker() {
+                    @Override
+                    public long read() {
+                        return Clock.get().nanoTime();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @param version the routing table's version, read before the table was searched
+     */
+    public void put(ID target, Peer nextHop, long version) {
+        mCache.put(target, new Entry(nextHop, version));
+    }
+
+    /**
+     * @return the cached next hop for {@code target} or null if there is none or it is no
+     * longer valid
+     */
+    public Peer get(ID target) {
+        Entry entry = mCache.getIfPresent(target);
+        if(entry == null) {
+            return null;
+        }
+        if(entry.version != mRoutingTable.getVersion() || entry.nextHop.getStatus() != Peer.Status.ALIVE) {
+            // left for the next put to replace, invalidating here could drop a fresher entry
+            return null;
+        }
+        return entry.nextHop;
+    }
+
+    public void clear() {
+        mCache.invalidateAll();
+    }
+}
@@ -0,0 +1,148 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread running a {@link Selector} for any number of channels. Every {@link NioTransport}
+ * built against the same loop shares its thread. Tasks passed to {@link #execute(Runnable)} run
+ * on the loop thread before it selects again, which is how channels are registered and how
+ * other threads hand work to a channel.
+ */
+public class NioEventLoop {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioEventLoop.class);
+
+    interface Handler {
+
+        /**
+         * Called on the loop thread once {@code key} is registered.
+         */
+        void registered(SelectionKey key);
+
+        /**
+         * Called on the loop thread when {@code key} has ready operations.
+         */
+        void ready(SelectionKey key);
+    }
+
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+
+    public NioEventLoop(String name) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(mLoop, name);
+        mThread.start();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Run {@code task} on the loop thread.
+     */
+    public void execute(Runnable task) {
+        mTasks.offer(task);
+        if(!inEventLoop()) {
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Register {@code channel} for {@code ops}. {@link Handler#registered(SelectionKey)} is
+     * called once that has happened on the loop thread.
+     */
+    void register(final SelectableChannel channel, final int ops, final Handler handler) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.registered(channel.register(mSelector, ops, handler));
+                } catch (ClosedChannelException e) {
+                    LOGGER.warn("channel closed before it was registered");
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the loop thread and close the selector. Channels registered with it are not closed.
+     */
+    public void close() {
+        mRunning = false;
+        mSelector.wakeup();
+        if(!inEventLoop()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("", e);
+            }
+        }
+    }
+
+    private final Runnable mLoop = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while(mRunning) {
+                    runTasks();
+                    if(mTasks.isEmpty()) {
+                        mSelector.select();
+                    } else {
+                        mSelector.selectNow();
+                    }
+
+                    Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                    while(it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if(key.isValid()) {
+                            try {
+                                ((Handler) key.attachment()).ready(key);
+                            } catch (RuntimeException e) {
+                                LOGGER.error("", e);
+                            }
+                        }
+                    }
+                }
+                runTasks();
+            } catch (IOException e) {
+                LOGGER.error("", e);
+            }
+
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                LOGGER.error("", e);
+            }
+            LOGGER.info("exiting {}", mThread.getName());
+        }
+    };
+}
@@ -0,0 +1,238 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking {@link DatagramChannel} on a {@link NioEventLoop}, receiving into a pool of direct
+ * buffers sized to the MTU. Datagrams that are ready when the selector wakes up are read in
+ * batches before they are handed to the receiver. A datagram too large for the buffers is
+ * dropped and counted rather than handed on cut short. Sends go straight to the channel and are
+ * dropped if the socket's send buffer is full.
+ *
+ * A transport built without an event loop starts one of its own. Transports sharing a loop
+ * take turns: each reads at most {@link #MAX_BATCHES_PER_WAKEUP} batches before the next one
+ * gets to read.
+ */
+public class NioTransport implements Transport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioTransport.class);
+
+    /**
+     * Maximum number of idle receive buffers kept in the pool
+     */
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    /**
+     * Maximum number of datagrams handed to the receiver at once
+     */
+    private static final int MAX_RECEIVE_BATCH = 16;
+
+    /**
+     * Maximum number of batches read each time the channel is readable
+     */
+    static final int MAX_BATCHES_PER_WAKEUP = 4;
+
+    protected final DatagramChannel mChannel;
+    protected final BufferPool mBufferPool;
+    protected NioEventLoop mEventLoop;
+    protected volatile SelectionKey mKey;
+    private boolean mOwnsEventLoop;
+    private final ByteBuffer[] mPackets;
+    private final InetSocketAddress[] mRemoteAddresses;
+    private volatile boolean mRunning;
+    private Receiver mReceiver;
+    private volatile long mNumTruncated;
+
+    /**
+     * @param port the UDP port to bind, or null for any free port
+     */
+    public NioTransport(Integer port) throws IOException {
+        this(port, null);
+    }
+
+    /**
+     * @param port the UDP port to bind, or null for any free port
+     * @param eventLoop the loop to receive on, or null to start one for this transport
+     */
+    public NioTransport(Integer port, NioEventLoop eventLoop) throws IOException {
+        this(port, eventLoop, MAX_POOLED_BUFFERS, MAX_RECEIVE_BATCH);
+    }
+
+    protected NioTransport(Integer port, NioEventLoop eventLoop, int maxPooledBuffers, int maxReceiveBatch) throws IOException {
+        mChannel = DatagramChannel.open();
+        mChannel.socket().setReuseAddress(true);
+        mChannel.socket().bind(new InetSocketAddress(port != null ? port : 0));
+        // one spare byte: a datagram that fills the buffer was truncated
+        mBufferPool = new BufferPool(Utils.getMaxDatagramSize(mChannel.socket().getLocalAddress()) + 1, maxPooledBuffers);
+        mEventLoop = eventLoop;
+        mPackets = new ByteBuffer[maxReceiveBatch];
+        mRemoteAddresses = new InetSocketAddress[maxReceiveBatch];
+    }
+
+    @Override
+    public DatagramSocket getSocket() {
+        return mChannel.socket();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) mChannel.socket().getLocalSocketAddress();
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        mReceiver = receiver;
+        mChannel.configureBlocking(false);
+        if (mEventLoop == null) {
+            mEventLoop = new NioEventLoop("Receive UDP");
+            mOwnsEventLoop = true;
+        }
+        mRunning = true;
+        LOGGER.info("starting NIO UDP server on: {}", mChannel.socket().getLocalSocketAddress());
+        mEventLoop.register(mChannel, SelectionKey.OP_READ, mHandler);
+    }
+
+    @Override
+    public void send(ByteBuffer packet, SocketAddress remoteAddress) throws IOException {
+        if (mChannel.send(packet, remoteAddress) == 0) {
+            LOGGER.warn("send buffer full, dropped packet to: {}", remoteAddress);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer[] packets, SocketAddress[] remoteAddresses, int count) throws IOException {
+        for(int i=0;i<count;i++) {
+            send(packets[i], remoteAddresses[i]);
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer packet) {
+        mBufferPool.release(packet);
+    }
+
+    /**
+     * @return the number of received datagrams dropped because they did not fit in a buffer
+     */
+    public long getNumTruncated() {
+        return mNumTruncated;
+    }
+
+    @Override
+    public void close() {
+        mRunning = false;
+        if (mEventLoop != null && mEventLoop.isRunning() && !mEventLoop.inEventLoop()) {
+            // close on the loop thread so the receiver is not called once this returns
+            final CountDownLatch closed = new CountDownLatch(1);
+            mEventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeChannel();
+                    closed.countDown();
+                }
+            });
+            try {
+                closed.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeChannel();
+
+        if (mOwnsEventLoop) {
+            mEventLoop.close();
+        }
+    }
+
+    private void closeChannel() {
+        if (mKey != null) {
+            mKey.cancel();
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            LOGGER.error("", e);
+        }
+    }
+
+    /**
+     * Called on the event loop thread when the channel is writable and OP_WRITE was asked for.
+     */
+    protected void onWritable() throws IOException {
+    }
+
+    private void read() throws IOException {
+        final ByteBuffer[] packets = mPackets;
+        final InetSocketAddress[] remoteAddresses = mRemoteAddresses;
+
+        for (int batch = 0; mRunning && batch < MAX_BATCHES_PER_WAKEUP; batch++) {
+            int count = 0;
+            boolean more = true;
+            while (count < packets.length) {
+                ByteBuffer buffer = mBufferPool.acquire();
+                SocketAddress remoteAddress = mChannel.receive(buffer);
+                if (remoteAddress == null) {
+                    mBufferPool.release(buffer);
+                    more = false;
+                    break;
+                }
+                if (!buffer.hasRemaining()) {
+                    mNumTruncated++;
+                    mBufferPool.release(buffer);
+                    continue;
+                }
+
+                buffer.flip();
+                packets[count] = buffer;
+                remoteAddresses[count] = (InetSocketAddress) remoteAddress;
+                count++;
+            }
+
+            if (count > 0) {
+                mReceiver.receive(packets, remoteAddresses, count);
+            }
+            if (!more) {
+                break;
+            }
+        }
+    }
+
+    private final NioEventLoop.Handler mHandler = new NioEventLoop.Handler() {
+
+        @Override
+        public void registered(SelectionKey key) {
+            mKey = key;
+            if (!mRunning) {
+                key.cancel();
+            }
+        }
+
+        @Override
+        public void ready(SelectionKey key) {
+            try {
+                if (key.isWritable()) {
+                    onWritable();
+                }
+                if (key.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                if (mRunning) {
+                    LOGGER.error("", e);
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,88 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans work out to a fixed set of single-threaded workers. Work submitted with the same
+ * shard key always runs on the same worker, so tasks for one key run in the order they were
+ * submitted while tasks for different keys run in parallel.
+ */
+public class PacketDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PacketDispatcher.class);
+
+    private final ExecutorService[] mWorkers;
+
+    public PacketDispatcher(final String name, int numThreads) {
+        mWorkers = new ExecutorService[numThreads];
+        for(int i=0;i<numThreads;i++) {
+            final String threadName = name + " " + i;
+            mWorkers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, threadName);
+                }
+            });
+        }
+    }
+
+    /**
+     * Dispatch to {@code workers}, which must each run their tasks one at a time in order.
+     */
+    PacketDispatcher(ExecutorService... workers) {
+        mWorkers = workers;
+    }
+
+    public int getNumThreads() {
+        return mWorkers.length;
+    }
+
+    public void dispatch(Object shardKey, Runnable task) {
+        mWorkers[getShard(shardKey)].execute(task);
+    }
+
+    /**
+     * @return the index of the worker that runs tasks for {@code shardKey}
+     */
+    public int getShard(Object shardKey) {
+        return shardIndex(shardKey.hashCode(), mWorkers.length);
+    }
+
+    /**
+     * Run {@code task} on the worker returned by {@link #getShard(Object)}.
+     */
+    public void dispatchToShard(int shard, Runnable task) {
+        mWorkers[shard].execute(task);
+    }
+
+    static int shardIndex(int hash, int numShards) {
+        // spread the bits so keys that differ only in their high bits still land on different shards
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return (hash & 0x7FFFFFFF) % numShards;
+    }
+
+    public void shutdown() {
+        for(ExecutorService worker : mWorkers) {
+            worker.shutdown();
+        }
+        try {
+            for (ExecutorService worker : mWorkers) {
+                if (!worker.awaitTermination(1, TimeUnit.SECONDS)) {
+                    worker.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("interrupted waiting for workers to finish");
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,12 +1,15 @@
 package com.devsmart.supernet;
 
-import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 public interface PacketReceiver {
 
     /**
-     * @param packet
+     * @param packet the datagram, between the buffer's position and limit. The buffer may be
+     *               pooled and is only valid for the duration of this call.
+     * @param remoteAddress the address the datagram was received from
      * @return true if the the packet was handled by this function
      */
-    boolean receive(DatagramPacket packet);
-}
\ No newline at end of file
+    boolean receive(ByteBuffer packet, InetSocketAddress remoteAddress);
+}
@@ -0,0 +1,85 @@
+package com.devsmart.supernet;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view over a received datagram. The view reads header fields in place from the
+ * wrapped buffer, so decoding a packet does not copy it. Views can be re-wrapped around another
+ * buffer and are only valid for as long as the wrapped buffer is.
+ */
+public class PacketView {
+
+    protected ByteBuffer mBuffer;
+    protected int mOffset;
+    protected int mLength;
+
+    /**
+     * Wrap the bytes between {@code buffer}'s position and limit. The buffer's position and
+     * limit are not changed.
+     */
+    public PacketView wrap(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mOffset = buffer.position();
+        mLength = buffer.remaining();
+        return this;
+    }
+
+    /**
+     * Wrap {@code length} bytes of {@code buffer} starting at absolute index {@code offset}.
+     */
+    public PacketView wrap(ByteBuffer buffer, int offset, int length) {
+        mBuffer = buffer;
+        mOffset = offset;
+        mLength = length;
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int getOffset() {
+        return mOffset;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public int getHeader() {
+        return 0xFF & mBuffer.get(mOffset);
+    }
+
+    public boolean hasValidMagic() {
+        return mLength > 0 && (getHeader() & SupernetClientProtocolReceiver.HEADER_MAGIC_MASK) == SupernetClientProtocolReceiver.HEADER_MAGIC;
+    }
+
+    public int getPacketType() {
+        return getHeader() & SupernetClientProtocolReceiver.HEADER_PACKET_TYPE_MASK;
+    }
+
+    public boolean isRequest() {
+        return (getHeader() & SupernetClientProtocolReceiver.HEADER_REQUEST_BIT) > 0;
+    }
+
+    protected int getUInt8(int offset) {
+        return 0xFF & mBuffer.get(mOffset + offset);
+    }
+
+    protected int getUInt16(int offset) {
+        return 0xFFFF & mBuffer.getShort(mOffset + offset);
+    }
+
+    protected long getUInt32(int offset) {
+        return 0xFFFFFFFFL & mBuffer.getInt(mOffset + offset);
+    }
+
+    protected int getInt32(int offset) {
+        return mBuffer.getInt(mOffset + offset);
+    }
+
+    protected ID getID(int offset) {
+        return new ID(mBuffer, mOffset + offset);
+    }
+}
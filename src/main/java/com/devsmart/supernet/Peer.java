@@ -1,6 +1,7 @@
 package com.devsmart.supernet;
 
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.primitives.UnsignedBytes;
 
@@ -9,7 +10,6 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.Comparator;
-import java.util.Date;
 
 public class Peer {
 
@@ -20,6 +20,7 @@ public class Peer {
             return ComparisonChain.start()
                     .compare(o1.getStatus(), o2.getStatus())
                     .compare(o1.mFirstSeen, o2.mFirstSeen)
+                    .compare(o1, o2, BY_ID)
                     .result();
         }
     };
@@ -36,6 +37,28 @@ public class Peer {
         }
     };
 
+    /**
+     * Orders peers by smoothed round trip time, peers that have never been measured last.
+     */
+    public static final Comparator<Peer> LOWEST_RTT_FIRST = new Comparator<Peer>() {
+        @Override
+        public int compare(Peer o1, Peer o2) {
+            long rtt1 = o1.getSmoothedRtt();
+            long rtt2 = o2.getSmoothedRtt();
+            return ComparisonChain.start()
+                    .compareFalseFirst(rtt1 < 0, rtt2 < 0)
+                    .compare(rtt1, rtt2)
+                    .result();
+        }
+    };
+
+    public static final Predicate<Peer> IS_ALIVE = new Predicate<Peer>() {
+        @Override
+        public boolean apply(Peer input) {
+            return input.getStatus() == Status.ALIVE;
+        }
+    };
+
     public enum Status {
         UNKNOWN(-1),
         ALIVE(10000),
@@ -49,37 +72,139 @@ public class Peer {
         }
     }
 
+    /**
+     * A peer that has failed to answer this many requests in a row is considered dead
+     * regardless of when it was last seen.
+     */
+    public static final int MAX_FAILED_REQUESTS = 3;
+
+    public static final long INITIAL_RTO_MS = 1000;
+    public static final long MIN_RTO_MS = 200;
+    public static final long MAX_RTO_MS = 10000;
+
     public final ID id;
     public final InetAddress address;
     public final int port;
-    private final Date mFirstSeen;
-    private Date mLastSeen;
+    private final int mIPv4Address;
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final long mFirstSeen;
+    private volatile long mLastSeen = NEVER;
+    private volatile int mFailedRequests;
+    private volatile Status mReportedStatus = Status.UNKNOWN;
+    private final RttEstimator mRtt = new RttEstimator(INITIAL_RTO_MS, MIN_RTO_MS, MAX_RTO_MS);
 
     public Peer(ID id, InetAddress address, int port) {
         this.id = id;
         this.address = address;
         this.port = port;
-        this.mFirstSeen = new Date();
+        this.mIPv4Address = ipv4Bits(address);
+        this.mFirstSeen = Clock.get().currentTimeMillis();
     }
 
     public Peer(ID peerId, InetSocketAddress peerSocketAddress) {
         this.id = peerId;
         this.address = peerSocketAddress.getAddress();
         this.port = peerSocketAddress.getPort();
-        this.mFirstSeen = new Date();
+        this.mIPv4Address = ipv4Bits(address);
+        this.mFirstSeen = Clock.get().currentTimeMillis();
+    }
+
+    private static int ipv4Bits(InetAddress address) {
+        if(address instanceof Inet4Address) {
+            byte[] bytes = address.getAddress();
+            return ((0xFF & bytes[0]) << 24) | ((0xFF & bytes[1]) << 16) | ((0xFF & bytes[2]) << 8) | (0xFF & bytes[3]);
+        }
+        return 0;
+    }
+
+    /**
+     * @param ipv4Address IPv4 address as a big-endian int
+     * @return true if this peer is at {@code ipv4Address:port}
+     */
+    public boolean isAt(int ipv4Address, int port) {
+        return this.port == port && mIPv4Address == ipv4Address && address instanceof Inet4Address;
+    }
+
+    /**
+     * @return true if this peer is at {@code socketAddress}
+     */
+    public boolean isAt(InetSocketAddress socketAddress) {
+        return port == socketAddress.getPort() && address.equals(socketAddress.getAddress());
+    }
+
+    /**
+     * @return milliseconds since this peer was last seen, or {@link Long#MAX_VALUE} if it has never been seen
+     */
+    public long getTimeSinceLastSeen(long nowMillis) {
+        final long lastSeen = mLastSeen;
+        if(lastSeen == NEVER) {
+            return Long.MAX_VALUE;
+        }
+        return nowMillis - lastSeen;
     }
 
     public void markSeen() {
-        mLastSeen = new Date();
+        mLastSeen = Clock.get().currentTimeMillis();
+        mFailedRequests = 0;
+    }
+
+    /**
+     * Restore state saved by {@link RoutingTableSnapshot}.
+     * @param lastSeenMillis when the peer was last seen, in milliseconds since the epoch
+     * @param smoothedRttMicros smoothed round trip time or -1 if it was never measured
+     */
+    void restore(long lastSeenMillis, long smoothedRttMicros) {
+        mLastSeen = lastSeenMillis;
+        if(smoothedRttMicros >= 0) {
+            mRtt.update(smoothedRttMicros);
+        }
+    }
+
+    /**
+     * Add a round trip time sample and recompute the retransmit timeout.
+     * @param rttMicros measured round trip time in microseconds
+     */
+    public void updateRtt(long rttMicros) {
+        mRtt.update(rttMicros);
+    }
+
+    /**
+     * Double the retransmit timeout after a request timed out.
+     */
+    public void backoffRto() {
+        mRtt.backoff();
+    }
+
+    public void requestFailed() {
+        mFailedRequests++;
+    }
+
+    /**
+     * @return the smoothed round trip time in microseconds, or -1 if it has never been measured
+     */
+    public long getSmoothedRtt() {
+        return mRtt.getSmoothedRtt();
+    }
+
+    /**
+     * @return the retransmit timeout for requests to this peer in milliseconds
+     */
+    public long getRto() {
+        return mRtt.getRto();
     }
 
     public Status getStatus() {
-        if(mLastSeen == null) {
+        final long lastSeen = mLastSeen;
+        if(lastSeen == NEVER) {
             return Status.UNKNOWN;
         }
 
-        Date now = new Date();
-        long milliSec = now.getTime() - mLastSeen.getTime();
+        if(mFailedRequests >= MAX_FAILED_REQUESTS) {
+            return Status.DEAD;
+        }
+
+        long milliSec = Clock.get().currentTimeMillis() - lastSeen;
 
         if(milliSec < Status.ALIVE.threshold) {
             return Status.ALIVE;
@@ -90,6 +215,21 @@ public class Peer {
         }
     }
 
+    /**
+     * Record {@code status} as the last one reported for this peer.
+     * @return the status reported before
+     */
+    Status reportStatus(Status status) {
+        if(mReportedStatus == status) {
+            return status;
+        }
+        synchronized (this) {
+            Status retval = mReportedStatus;
+            mReportedStatus = status;
+            return retval;
+        }
+    }
+
     public InetSocketAddress getSocketAddress() {
         return new InetSocketAddress(address, port);
     }
@@ -0,0 +1,176 @@
+package com.devsmart.supernet;
+
+
+import com.devsmart.supernet.events.LookupCompleted;
+import com.devsmart.supernet.events.SupernetEvent;
+import com.devsmart.supernet.metrics.Tracer;
+import com.google.common.base.Predicates;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterative Kademlia FIND_NODE lookup. Keeps up to {@link #ALPHA} find peers requests in flight,
+ * each tracked in the client's {@link TransactionTable}, and merges the peers in every response into a shortlist
+ * ordered by XOR distance to the target. The lookup converges once the {@code k} closest peers
+ * in the shortlist have all been queried and no requests are outstanding.
+ */
+public class PeerLookup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerLookup.class);
+    private static final Tracer TRACER = Tracer.get();
+
+    public static final int ALPHA = 3;
+
+    private final SupernetClientImp mClient;
+    private final ID mTarget;
+    private final int mK;
+    private final SettableFuture<List<Peer>> mFuture = SettableFuture.create();
+    private final TreeSet<Peer> mShortlist;
+    private final Set<Peer> mQueried = new HashSet<Peer>();
+    private final Set<Peer> mResponded = new HashSet<Peer>();
+    private final Map<Integer, Peer> mInFlight = new HashMap<Integer, Peer>();
+    private long mStartMillis;
+
+    PeerLookup(SupernetClientImp client, ID target, int k) {
+        mClient = client;
+        mTarget = target;
+        mK = k;
+        mShortlist = new TreeSet<Peer>(byDistanceTo(target));
+    }
+
+    public ID getTarget() {
+        return mTarget;
+    }
+
+    public ListenableFuture<List<Peer>> getFuture() {
+        return mFuture;
+    }
+
+    synchronized void start() {
+        mStartMillis = Clock.get().currentTimeMillis();
+        mShortlist.addAll(mClient.mPeerRoutingTable.getKClosest(mTarget, mK, Predicates.<Peer>alwaysTrue()));
+        sendQueries();
+    }
+
+    private final TransactionTable.Listener mListener = new TransactionTable.Listener() {
+        @SuppressWarnings("unchecked")
+        @Override
+        public void onResponse(TransactionTable.Transaction transaction, Object response) {
+            PeerLookup.this.onResponse(transaction.id, (List<Peer>) response);
+        }
+
+        @Override
+        public void onTimeout(TransactionTable.Transaction transaction) {
+            PeerLookup.this.onTimeout(transaction.id);
+        }
+    };
+
+    private synchronized void onResponse(int transactionId, List<Peer> peers) {
+        Peer from = mInFlight.remove(transactionId);
+        if(from == null || mFuture.isDone()) {
+            return;
+        }
+
+        mClient.peerSeen(from);
+        mResponded.add(from);
+        for(Peer p : peers) {
+            if(!p.id.equals(mClient.mClientId)) {
+                mShortlist.add(p);
+            }
+        }
+
+        sendQueries();
+    }
+
+    private synchronized void onTimeout(int transactionId) {
+        Peer from = mInFlight.remove(transactionId);
+        if(from == null || mFuture.isDone()) {
+            return;
+        }
+
+        LOGGER.trace("find peers request to {} timed out", from);
+        mShortlist.remove(from);
+        sendQueries();
+    }
+
+    private void sendQueries() {
+        Iterator<Peer> it = mShortlist.iterator();
+        int numConsidered = 0;
+        while(mInFlight.size() < ALPHA && it.hasNext() && numConsidered < mK) {
+            Peer p = it.next();
+            numConsidered++;
+            if(mQueried.add(p)) {
+                sendQuery(p);
+            }
+        }
+
+        if(mInFlight.isEmpty()) {
+            finish();
+        }
+    }
+
+    private void sendQuery(Peer p) {
+        TransactionTable.Transaction transaction = mClient.mTransactions.begin(p, mListener);
+        try {
+            DatagramPacket packet = SupernetClientProtocolReceiver.createFindPeersRequest(p.getSocketAddress(), mTarget, transaction.id);
+            mInFlight.put(transaction.id, p);
+            mClient.mTransactions.send(transaction, packet, 0);
+
+        } catch (IOException e) {
+            LOGGER.error("", e);
+            mInFlight.remove(transaction.id);
+            mClient.mTransactions.cancel(transaction);
+            mShortlist.remove(p);
+        }
+    }
+
+    private void finish() {
+        ArrayList<Peer> retval = new ArrayList<Peer>(mK);
+        Iterator<Peer> it = mShortlist.iterator();
+        while(it.hasNext() && retval.size() < mK) {
+            Peer p = it.next();
+            if(mResponded.contains(p)) {
+                retval.add(p);
+            }
+        }
+
+        final long millis = Clock.get().currentTimeMillis() - mStartMillis;
+        mClient.mMetrics.lookupMillis.record(millis);
+        if(TRACER.isEnabled(Tracer.Event.LOOKUP)) {
+            TRACER.lookupFinished(mTarget, mQueried.size(), retval.size(), TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        if(mClient.mEvents.isSubscribed(SupernetEvent.Type.LOOKUP_COMPLETED)) {
+            mClient.mEvents.post(new LookupCompleted(mTarget, Collections.unmodifiableList(retval), millis));
+        }
+        mFuture.set(retval);
+    }
+
+    private static Comparator<Peer> byDistanceTo(final ID target) {
+        return new Comparator<Peer>() {
+            @Override
+            public int compare(Peer o1, Peer o2) {
+                int retval = ID.compareDistance(o1.id, o2.id, target);
+                if(retval == 0) {
+                    retval = Peer.BY_ID.compare(o1, o2);
+                }
+                return retval;
+            }
+        };
+    }
+}
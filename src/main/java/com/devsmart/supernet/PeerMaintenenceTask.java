@@ -1,36 +1,48 @@
 package com.devsmart.supernet;
 
 
-import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.UnmodifiableIterator;
+import com.devsmart.supernet.events.SupernetEvent;
+import com.devsmart.supernet.metrics.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Random;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class PeerMaintenenceTask {
 
     public static final Logger LOGGER = LoggerFactory.getLogger(PeerMaintenenceTask.class);
+    private static final Tracer TRACER = Tracer.get();
+
+    /**
+     * How often the routing table snapshot is written, if the client has one
+     */
+    public static final long SNAPSHOT_INTERVAL_MINUTES = 5;
+
+    /**
+     * Delay between the pings to peers restored from a snapshot and the first lookup, long
+     * enough for the pongs to come back and mark the live peers ALIVE
+     */
+    public static final long WARM_START_LOOKUP_DELAY_MS = 2000;
 
     private final SupernetClientImp mClient;
     private ScheduledFuture<?> mFindPeersTask;
-    private ScheduledFuture<?> mKeepAliveTask;
+    private final KeepAliveScheduler mKeepAlive;
     private ScheduledFuture<?> mTrimPeersTask;
-    private final RoutingTable.Bucket[] mBucketList;
+    private ScheduledFuture<?> mIdleSessionsTask;
+    private ScheduledFuture<?> mSnapshotTask;
+    private ScheduledFuture<?> mWarmStartLookupTask;
+    private ScheduledFuture<?> mMetricsLogTask;
 
 
     public PeerMaintenenceTask(SupernetClientImp client) {
         mClient = client;
-        mBucketList = mClient.mPeerRoutingTable.mBuckets;
+        mKeepAlive = new KeepAliveScheduler(client);
     }
 
     public void start() {
@@ -38,9 +50,18 @@ public class PeerMaintenenceTask {
             mFindPeersTask.cancel(false);
         }
 
-        mFindPeersTask = mClient.mMainThread.scheduleWithFixedDelay(mFindPeersFunction, 10, 40, TimeUnit.SECONDS);
-        mKeepAliveTask = mClient.mMainThread.scheduleWithFixedDelay(mKeepAliveFunction, 10, 5, TimeUnit.SECONDS);
-        mTrimPeersTask = mClient.mMainThread.scheduleWithFixedDelay(mTrimPeersFunction, 2, 2, TimeUnit.MINUTES);
+        mFindPeersTask = mClient.mMaintenanceThread.scheduleWithFixedDelay(mFindPeersFunction, 10, 40, TimeUnit.SECONDS);
+        mKeepAlive.start(mClient.mMaintenanceThread, 1, TimeUnit.SECONDS);
+        mTrimPeersTask = mClient.mMaintenanceThread.scheduleWithFixedDelay(mTrimPeersFunction, 2, 2, TimeUnit.MINUTES);
+        mIdleSessionsTask = mClient.mMaintenanceThread.scheduleWithFixedDelay(mIdleSessionsFunction, 30, 30, TimeUnit.SECONDS);
+        if (mClient.mSnapshotFile != null) {
+            mSnapshotTask = mClient.mMaintenanceThread.scheduleWithFixedDelay(mSnapshotFunction,
+                    SNAPSHOT_INTERVAL_MINUTES, SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        }
+        if (mClient.mMetricsLogMillis > 0) {
+            mMetricsLogTask = mClient.mMaintenanceThread.scheduleWithFixedDelay(mMetricsLogFunction,
+                    mClient.mMetricsLogMillis, mClient.mMetricsLogMillis, TimeUnit.MILLISECONDS);
+        }
 
     }
 
@@ -50,107 +71,128 @@ public class PeerMaintenenceTask {
             mFindPeersTask = null;
         }
 
-        if (mKeepAliveTask != null) {
-            mKeepAliveTask.cancel(false);
-            mKeepAliveTask = null;
-        }
+        mKeepAlive.stop();
 
         if (mTrimPeersTask != null) {
             mTrimPeersTask.cancel(false);
             mTrimPeersTask = null;
         }
-    }
 
-    private final Runnable mFindPeersFunction = new Runnable() {
+        if (mIdleSessionsTask != null) {
+            mIdleSessionsTask.cancel(false);
+            mIdleSessionsTask = null;
+        }
 
-        private Random mRandom = new Random();
+        if (mSnapshotTask != null) {
+            mSnapshotTask.cancel(false);
+            mSnapshotTask = null;
+        }
 
-        @Override
-        public void run() {
+        if (mWarmStartLookupTask != null) {
+            mWarmStartLookupTask.cancel(false);
+            mWarmStartLookupTask = null;
+        }
 
-            //Collections.shuffle(mBucketList);
-            for (RoutingTable.Bucket b : mBucketList) {
-                ImmutableSortedSet<Peer> peers = b.getOldestPeers();
+        if (mMetricsLogTask != null) {
+            mMetricsLogTask.cancel(false);
+            mMetricsLogTask = null;
+        }
+    }
 
-                if (!peers.isEmpty()) {
-                    int r = mRandom.nextInt(peers.size());
-                    Peer p = Iterables.get(peers, r);
-                    sendFindPeers(p);
-                    return;
+    /**
+     * Ping every peer restored from a snapshot at once rather than waiting for the keep alive
+     * wheel, then refresh the table with a lookup as soon as the live ones have answered.
+     */
+    public void warmStart(final Collection<Peer> restoredPeers) {
+        mClient.mMaintenanceThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                LOGGER.info("pinging {} peers from routing table snapshot", restoredPeers.size());
+                for (Peer p : restoredPeers) {
+                    mKeepAlive.sendPing(p);
                 }
             }
-        }
-
-    };
+        });
+        mWarmStartLookupTask = mClient.mMaintenanceThread.schedule(mFindPeersFunction, WARM_START_LOOKUP_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
 
-    private final Runnable mKeepAliveFunction = new Runnable() {
+    /**
+     * Emit a maintenance trace event for a pass that started at {@code startNanos}.
+     */
+    private void traceMaintenance(String task, long startNanos) {
+        if (TRACER.isEnabled(Tracer.Event.MAINTENANCE)) {
+            TRACER.maintenance(task, mClient.mPeerRoutingTable.getNumPeers(), System.nanoTime() - startNanos);
+        }
+    }
 
-        private Random mRandom = new Random();
+    /**
+     * Refresh the routing table by running an iterative lookup for our own ID, which
+     * discovers the peers closest to us and fills the buckets along the way.
+     */
+    private final Runnable mFindPeersFunction = new Runnable() {
 
         @Override
         public void run() {
+            final long start = System.nanoTime();
             try {
-                for (RoutingTable.Bucket b : mBucketList) {
-                    ImmutableSortedSet<Peer> peers = b.getOldestPeers();
-                    UnmodifiableIterator<Peer> it = peers.iterator();
-                    int i = 0;
-                    while (it.hasNext() && i < RoutingTable.MAX_BUCKET_SIZE) {
-                        Peer p = it.next();
-                        long randomDelay = mRandom.nextInt(300);
-                        mClient.mMainThread.schedule(createPingFuture(p), randomDelay, TimeUnit.MILLISECONDS);
-                        i++;
-                    }
-                }
+                mClient.findClosestPeers(mClient.mClientId);
             } catch (Exception e) {
                 LOGGER.error("", e);
             }
+            traceMaintenance("findPeers", start);
         }
 
-        private Runnable createPingFuture(final Peer p) {
-            return new Runnable() {
-                @Override
-                public void run() {
-                    sendPing(p);
-                }
-            };
-        }
     };
 
     private final Runnable mTrimPeersFunction = new Runnable() {
         @Override
         public void run() {
-            LOGGER.trace("trimming peers");
+            final long start = System.nanoTime();
             try {
-                for (RoutingTable.Bucket b : mBucketList) {
+                final boolean reportStatus = mClient.mEvents.isSubscribed(SupernetEvent.Type.PEER_STATUS_CHANGED);
+                for (RoutingTable.Bucket b : mClient.mPeerRoutingTable.getBuckets()) {
+                    if(reportStatus) {
+                        for(Peer p : b.getPeers()) {
+                            mClient.updateStatus(p);
+                        }
+                    }
                     b.trimPeers();
+                    b.refill();
                 }
             } catch (Exception e) {
                 LOGGER.error("", e);
             }
+            traceMaintenance("trimPeers", start);
         }
     };
 
-    private void sendFindPeers(Peer p) {
-        try {
-            LOGGER.trace("sending find peers to: {}", p);
-
-            DatagramPacket packet = SupernetClientProtocolReceiver.createFindPeersRequest(p.getSocketAddress(), mClient.mClientId);
-            mClient.mUDPSocket.send(packet);
-        } catch (IOException e) {
-            LOGGER.error("", e);
+    private final Runnable mSnapshotFunction = new Runnable() {
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            mClient.saveSnapshot();
+            traceMaintenance("snapshot", start);
         }
-    }
-
-    private void sendPing(Peer p) {
-        try {
-            LOGGER.trace("sending ping to: {}", p);
+    };
 
-            DatagramPacket packet = SupernetClientProtocolReceiver.createPing(p.getSocketAddress(), mClient.mClientId);
-            mClient.mUDPSocket.send(packet);
-        } catch (IOException e) {
-            LOGGER.error("", e);
+    private final Runnable mMetricsLogFunction = new Runnable() {
+        @Override
+        public void run() {
+            mClient.mMetrics.log();
         }
-    }
+    };
 
+    private final Runnable mIdleSessionsFunction = new Runnable() {
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            try {
+                mClient.mSessions.closeIdleSessions();
+            } catch (Exception e) {
+                LOGGER.error("", e);
+            }
+            traceMaintenance("idleSessions", start);
+        }
+    };
 
 }
@@ -0,0 +1,416 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Off-heap store of peers that did not fit in the {@link RoutingTable}, backing the buckets'
+ * in-memory replacement caches. Peers are kept in fixed-size records in a memory-mapped file
+ * and found by ID through an open-addressed hash index in a direct buffer, so the heap used
+ * does not grow with the number of peers stored.
+ *
+ * The records of each bucket form a doubly linked list, most recently stored first. When the
+ * store is full a new peer replaces the oldest one in its bucket's list. Reopening the file
+ * restores its contents.
+ *
+ * Record layout:
+ * uint8 flags + uint8 bucket + uint16 port + IPv4 address (4 bytes) + ID + int32 RTT (us)
+ * + int64 last seen (ms) + int64 time stored (ms) + int32 next + int32 previous + int32 ID hash
+ *
+ * Only IPv4 peers are stored. All methods are synchronized.
+ */
+public class PeerStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerStore.class);
+
+    public static final int MAGIC = 0x534E5053;
+    public static final int VERSION = 1;
+
+    static final int HEADER_LENGTH = 64;
+    static final int RECORD_LENGTH = 64;
+
+    private static final int FLAGS_OFFSET = 0;
+    private static final int BUCKET_OFFSET = 1;
+    private static final int PORT_OFFSET = 2;
+    private static final int ADDRESS_OFFSET = 4;
+    private static final int ID_OFFSET = 8;
+    private static final int RTT_OFFSET = ID_OFFSET + ID.NUM_BYTES;
+    private static final int LAST_SEEN_OFFSET = RTT_OFFSET + 4;
+    private static final int STORED_OFFSET = LAST_SEEN_OFFSET + 8;
+    private static final int NEXT_OFFSET = STORED_OFFSET + 8;
+    private static final int PREV_OFFSET = NEXT_OFFSET + 4;
+    private static final int HASH_OFFSET = PREV_OFFSET + 4;
+
+    private static final int FLAG_LIVE = 1;
+    private static final int NONE = -1;
+
+    private final int mCapacity;
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mRecords;
+
+    // slot -> record index + 1, 0 is empty
+    private final IntBuffer mIndex;
+    private final int mIndexMask;
+
+    private final int[] mHeads = new int[ID.NUM_BYTES * 8];
+    private final int[] mTails = new int[ID.NUM_BYTES * 8];
+    private final int[] mBucketSizes = new int[ID.NUM_BYTES * 8];
+    private int mFreeHead = NONE;
+    private int mHighWater;
+    private int mSize;
+
+    /**
+     * Open or create the store in {@code file}. An existing file written with a different
+     * capacity is discarded.
+     * @param capacity maximum number of peers kept
+     */
+    public PeerStore(File file, int capacity) throws IOException {
+        if(capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER_LENGTH) / RECORD_LENGTH) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        mCapacity = capacity;
+        Arrays.fill(mHeads, NONE);
+        Arrays.fill(mTails, NONE);
+
+        int indexSize = Integer.highestOneBit(capacity) << 2;
+        mIndex = ByteBuffer.allocateDirect(indexSize * 4).asIntBuffer();
+        mIndexMask = indexSize - 1;
+
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        mFile = new RandomAccessFile(file, "rw");
+        final long length = HEADER_LENGTH + (long) capacity * RECORD_LENGTH;
+        boolean valid = mFile.length() == length;
+        mFile.setLength(length);
+        mRecords = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+        if(valid && mRecords.getInt(0) == MAGIC && mRecords.getInt(4) == VERSION && mRecords.getInt(8) == capacity) {
+            recover();
+        } else {
+            mRecords.putInt(0, MAGIC);
+            mRecords.putInt(4, VERSION);
+            mRecords.putInt(8, capacity);
+            for(int i=0;i<capacity;i++) {
+                mRecords.put(offset(i) + FLAGS_OFFSET, (byte) 0);
+            }
+        }
+    }
+
+    private static int offset(int record) {
+        return HEADER_LENGTH + record * RECORD_LENGTH;
+    }
+
+    private static int hash(ID id) {
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+    private boolean isLive(int record) {
+        return (mRecords.get(offset(record) + FLAGS_OFFSET) & FLAG_LIVE) != 0;
+    }
+
+    private void recover() {
+        int numLive = 0;
+        for(int i=0;i<mCapacity;i++) {
+            if(isLive(i)) {
+                mHighWater = i + 1;
+                numLive++;
+            }
+        }
+
+        for(int i=mHighWater-1;i>=0;i--) {
+            if(!isLive(i)) {
+                pushFree(i);
+            } else {
+                indexInsert(i, mRecords.getInt(offset(i) + HASH_OFFSET));
+            }
+        }
+
+        // the bucket lists are in the file already; take them as they are unless a write was torn
+        if(!recoverLists(numLive)) {
+            LOGGER.warn("peer store lists are inconsistent, relinking in file order");
+            Arrays.fill(mHeads, NONE);
+            Arrays.fill(mTails, NONE);
+            Arrays.fill(mBucketSizes, 0);
+            for(int i=0;i<mHighWater;i++) {
+                if(isLive(i)) {
+                    linkFirst(0xFF & mRecords.get(offset(i) + BUCKET_OFFSET), i);
+                }
+            }
+        }
+        mSize = numLive;
+        LOGGER.info("peer store recovered {} peers", mSize);
+    }
+
+    /**
+     * Find each bucket's list by its head and walk it, checking every link.
+     * @return false if the lists don't hold exactly the {@code numLive} live records
+     */
+    private boolean recoverLists(int numLive) {
+        for(int i=0;i<mHighWater;i++) {
+            if(isLive(i) && mRecords.getInt(offset(i) + PREV_OFFSET) == NONE) {
+                final int bucket = 0xFF & mRecords.get(offset(i) + BUCKET_OFFSET);
+                if(bucket >= mHeads.length || mHeads[bucket] != NONE) {
+                    return false;
+                }
+                mHeads[bucket] = i;
+            }
+        }
+
+        int numLinked = 0;
+        for(int bucket=0;bucket<mHeads.length;bucket++) {
+            int prev = NONE;
+            for(int record = mHeads[bucket];record != NONE;) {
+                if(record < 0 || record >= mHighWater || !isLive(record) || numLinked == numLive) {
+                    return false;
+                }
+                final int offset = offset(record);
+                if((0xFF & mRecords.get(offset + BUCKET_OFFSET)) != bucket || mRecords.getInt(offset + PREV_OFFSET) != prev) {
+                    return false;
+                }
+                numLinked++;
+                mBucketSizes[bucket]++;
+                prev = record;
+                record = mRecords.getInt(offset + NEXT_OFFSET);
+            }
+            mTails[bucket] = prev;
+        }
+        return numLinked == numLive;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of peers stored for {@code bucket}
+     */
+    public synchronized int size(int bucket) {
+        return mBucketSizes[bucket];
+    }
+
+    public synchronized boolean contains(ID id) {
+        return find(id) != NONE;
+    }
+
+    /**
+     * Store {@code peer} for {@code bucket}, replacing any record with the same ID. If the
+     * store is full the oldest peer of the same bucket is replaced, or the peer is dropped if
+     * the bucket has none.
+     * @return false if the peer was not stored
+     */
+    public synchronized boolean put(int bucket, Peer peer) {
+        if(!(peer.address instanceof Inet4Address)) {
+            return false;
+        }
+
+        int record = find(peer.id);
+        if(record != NONE) {
+            // reuse the record, moving it to the front of the bucket's list
+            remove(record);
+        } else if(mFreeHead != NONE) {
+            record = mFreeHead;
+            mFreeHead = mRecords.getInt(offset(record) + NEXT_OFFSET);
+        } else if(mHighWater < mCapacity) {
+            record = mHighWater++;
+        } else if(mTails[bucket] != NONE) {
+            record = mTails[bucket];
+            remove(record);
+        } else {
+            return false;
+        }
+
+        final long now = Clock.get().currentTimeMillis();
+        final long sinceSeen = peer.getTimeSinceLastSeen(now);
+        final int offset = offset(record);
+        final int hash = hash(peer.id);
+        mRecords.put(offset + BUCKET_OFFSET, (byte) bucket);
+        mRecords.putShort(offset + PORT_OFFSET, (short) peer.port);
+        final byte[] address = peer.address.getAddress();
+        for(int i=0;i<address.length;i++) {
+            mRecords.put(offset + ADDRESS_OFFSET + i, address[i]);
+        }
+        peer.id.write(mRecords, offset + ID_OFFSET);
+        mRecords.putInt(offset + RTT_OFFSET, (int) Math.min(Integer.MAX_VALUE, peer.getSmoothedRtt()));
+        mRecords.putLong(offset + LAST_SEEN_OFFSET, sinceSeen == Long.MAX_VALUE ? 0 : now - sinceSeen);
+        mRecords.putLong(offset + STORED_OFFSET, now);
+        mRecords.putInt(offset + HASH_OFFSET, hash);
+        mRecords.put(offset + FLAGS_OFFSET, (byte) FLAG_LIVE);
+
+        indexInsert(record, hash);
+        linkFirst(bucket, record);
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Remove the peer with ID {@code id}.
+     * @return true if it was stored
+     */
+    public synchronized boolean remove(ID id) {
+        int record = find(id);
+        if(record == NONE) {
+            return false;
+        }
+        remove(record);
+        pushFree(record);
+        return true;
+    }
+
+    /**
+     * Remove and return the most recently stored peer of {@code bucket}. Its last seen time
+     * and RTT are restored.
+     * @return the peer or null if the bucket has none
+     */
+    public synchronized Peer poll(int bucket) {
+        final int record = mHeads[bucket];
+        if(record == NONE) {
+            return null;
+        }
+
+        final int offset = offset(record);
+        byte[] address = new byte[4];
+        for(int i=0;i<address.length;i++) {
+            address[i] = mRecords.get(offset + ADDRESS_OFFSET + i);
+        }
+
+        Peer retval;
+        try {
+            retval = new Peer(new ID(mRecords, offset + ID_OFFSET), InetAddress.getByAddress(address),
+                    0xFFFF & mRecords.getShort(offset + PORT_OFFSET));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+        long lastSeen = mRecords.getLong(offset + LAST_SEEN_OFFSET);
+        if(lastSeen > 0) {
+            retval.restore(lastSeen, mRecords.getInt(offset + RTT_OFFSET));
+        }
+
+        remove(record);
+        pushFree(record);
+        return retval;
+    }
+
+    /**
+     * Write changes to disk.
+     */
+    public synchronized void flush() {
+        mRecords.force();
+    }
+
+    public synchronized void close() {
+        try {
+            mRecords.force();
+            mFile.close();
+        } catch (IOException e) {
+            LOGGER.error("", e);
+        }
+    }
+
+    private int find(ID id) {
+        final int hash = hash(id);
+        for(int slot = hash & mIndexMask;;slot = (slot + 1) & mIndexMask) {
+            final int entry = mIndex.get(slot);
+            if(entry == 0) {
+                return NONE;
+            }
+            final int offset = offset(entry - 1);
+            if(mRecords.getInt(offset + HASH_OFFSET) == hash && id.equals(mRecords, offset + ID_OFFSET)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private void indexInsert(int record, int hash) {
+        int slot = hash & mIndexMask;
+        while(mIndex.get(slot) != 0) {
+            slot = (slot + 1) & mIndexMask;
+        }
+        mIndex.put(slot, record + 1);
+    }
+
+    private void indexRemove(int record) {
+        int slot = mRecords.getInt(offset(record) + HASH_OFFSET) & mIndexMask;
+        while(mIndex.get(slot) != record + 1) {
+            slot = (slot + 1) & mIndexMask;
+        }
+
+        // shift back later entries of the probe sequence so lookups never stop at the hole
+        int hole = slot;
+        for(slot = (slot + 1) & mIndexMask;;slot = (slot + 1) & mIndexMask) {
+            final int entry = mIndex.get(slot);
+            if(entry == 0) {
+                break;
+            }
+            final int home = mRecords.getInt(offset(entry - 1) + HASH_OFFSET) & mIndexMask;
+            if(((slot - home) & mIndexMask) >= ((slot - hole) & mIndexMask)) {
+                mIndex.put(hole, entry);
+                hole = slot;
+            }
+        }
+        mIndex.put(hole, 0);
+    }
+
+    private void linkFirst(int bucket, int record) {
+        final int offset = offset(record);
+        final int head = mHeads[bucket];
+        mRecords.putInt(offset + NEXT_OFFSET, head);
+        mRecords.putInt(offset + PREV_OFFSET, NONE);
+        if(head != NONE) {
+            mRecords.putInt(offset(head) + PREV_OFFSET, record);
+        } else {
+            mTails[bucket] = record;
+        }
+        mHeads[bucket] = record;
+        mBucketSizes[bucket]++;
+    }
+
+    /**
+     * Unlink a live record from its bucket and the index. The record is not freed.
+     */
+    private void remove(int record) {
+        final int offset = offset(record);
+        final int bucket = 0xFF & mRecords.get(offset + BUCKET_OFFSET);
+        final int next = mRecords.getInt(offset + NEXT_OFFSET);
+        final int prev = mRecords.getInt(offset + PREV_OFFSET);
+        if(prev != NONE) {
+            mRecords.putInt(offset(prev) + NEXT_OFFSET, next);
+        } else {
+            mHeads[bucket] = next;
+        }
+        if(next != NONE) {
+            mRecords.putInt(offset(next) + PREV_OFFSET, prev);
+        } else {
+            mTails[bucket] = prev;
+        }
+        mBucketSizes[bucket]--;
+
+        indexRemove(record);
+        mRecords.put(offset + FLAGS_OFFSET, (byte) 0);
+        mSize--;
+    }
+
+    private void pushFree(int record) {
+        mRecords.putInt(offset(record) + NEXT_OFFSET, mFreeHead);
+        mFreeHead = record;
+    }
+}
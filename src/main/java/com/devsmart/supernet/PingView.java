@@ -0,0 +1,36 @@
+package com.devsmart.supernet;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * View over a ping request or pong response.
+ */
+public class PingView extends PacketView {
+
+    public static final int TRANSACTION_ID_OFFSET = 1;
+    public static final int ID_OFFSET = 3;
+    public static final int ADDRESS_OFFSET = ID_OFFSET + ID.NUM_BYTES;
+    public static final int MIN_LENGTH = ID_OFFSET + ID.NUM_BYTES;
+
+    @Override
+    public PingView wrap(ByteBuffer buffer) {
+        super.wrap(buffer);
+        return this;
+    }
+
+    public boolean isValid() {
+        return mLength >= MIN_LENGTH;
+    }
+
+    public int getTransactionId() {
+        return getUInt16(TRANSACTION_ID_OFFSET);
+    }
+
+    /**
+     * @return the ID of the peer that sent this ping or pong
+     */
+    public ID getId() {
+        return getID(ID_OFFSET);
+    }
+}
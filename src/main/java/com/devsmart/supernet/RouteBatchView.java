@@ -0,0 +1,69 @@
+package com.devsmart.supernet;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over a ROUTE_BATCH packet: a uint8 count followed by count entries of uint16
+ * length + a complete ROUTE packet.
+ */
+public class RouteBatchView extends PacketView {
+
+    public static final int COUNT_OFFSET = 1;
+    public static final int ENTRIES_OFFSET = 2;
+    public static final int ENTRY_HEADER_LENGTH = 2;
+    public static final int MAX_ENTRIES = 255;
+
+    private int mEntryOffset;
+    private int mEntryLength;
+    private int mEntriesLeft;
+
+    @Override
+    public RouteBatchView wrap(ByteBuffer buffer) {
+        super.wrap(buffer);
+        mEntryOffset = ENTRIES_OFFSET;
+        mEntryLength = 0;
+        mEntriesLeft = isValid() ? getCount() : 0;
+        return this;
+    }
+
+    public boolean isValid() {
+        return mLength >= ENTRIES_OFFSET;
+    }
+
+    public int getCount() {
+        return getUInt8(COUNT_OFFSET);
+    }
+
+    /**
+     * Advance to the next entry.
+     * @return false if there are no more entries or the next one is truncated
+     */
+    public boolean next() {
+        if (mEntriesLeft == 0) {
+            return false;
+        }
+        mEntryOffset += mEntryLength;
+        if (mEntryOffset + ENTRY_HEADER_LENGTH > mLength) {
+            mEntriesLeft = 0;
+            return false;
+        }
+        mEntryLength = getUInt16(mEntryOffset);
+        mEntryOffset += ENTRY_HEADER_LENGTH;
+        if (mEntryOffset + mEntryLength > mLength) {
+            mEntriesLeft = 0;
+            return false;
+        }
+        mEntriesLeft--;
+        return true;
+    }
+
+    /**
+     * Wrap {@code route} around the current entry's ROUTE packet without copying or duplicating
+     * the buffer.
+     * @return {@code route}
+     */
+    public RouteView getEntry(RouteView route) {
+        return route.wrap(mBuffer, mOffset + mEntryOffset, mEntryLength);
+    }
+}
@@ -0,0 +1,236 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces ROUTE packets bound for the same next hop into ROUTE_BATCH datagrams. The first
+ * packet queued for a next hop starts a timer of {@code maxDelayMicros}; the batch is sent when
+ * the timer fires or when the next packet would not fit in {@code maxDatagramSize}. A batch
+ * holding a single packet is sent as a plain ROUTE packet.
+ *
+ * A next hop's batch is dropped once nothing has been sent to it for {@link #IDLE_TIMEOUT_MS},
+ * so next hops that churn away don't keep their buffers.
+ */
+public class RouteBatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RouteBatcher.class);
+
+    static final long IDLE_TIMEOUT_MS = 30000;
+
+    private final SupernetClientImp mClient;
+    private final long mMaxDelayMicros;
+    private final int mMaxDatagramSize;
+    private final ConcurrentHashMap<InetSocketAddress, Batch> mBatches = new ConcurrentHashMap<InetSocketAddress, Batch>();
+    private final ScheduledExecutorService mTimer;
+
+    private final AtomicLong mNumPackets = new AtomicLong();
+    private final AtomicLong mNumDatagrams = new AtomicLong();
+
+    private class Batch implements Runnable {
+        final InetSocketAddress mNextHop;
+        final ByteBuffer mBuffer = ByteBuffer.allocate(mMaxDatagramSize);
+        int mCount;
+        long mLastFlushMillis;
+        boolean mIdleCheckScheduled;
+
+        Batch(InetSocketAddress nextHop) {
+            mNextHop = nextHop;
+            mBuffer.put((byte) (SupernetClientProtocolReceiver.HEADER_MAGIC | SupernetClientProtocolReceiver.PACKET_ROUTE_BATCH
+                    | SupernetClientProtocolReceiver.HEADER_REQUEST_BIT));
+            mBuffer.put((byte) 0);
+        }
+
+        /**
+         * @return false if the packet does not fit in the remaining space
+         */
+        boolean add(ByteBuffer routePacket) {
+            final int length = routePacket.remaining();
+            if (mCount == RouteBatchView.MAX_ENTRIES || mBuffer.remaining() < RouteBatchView.ENTRY_HEADER_LENGTH + length) {
+                return false;
+            }
+            mBuffer.putShort((short) length);
+            mBuffer.put(routePacket);
+            if (mCount++ == 0) {
+                mTimer.schedule(this, mMaxDelayMicros, TimeUnit.MICROSECONDS);
+            }
+            return true;
+        }
+
+        boolean add(ID target, int hops, byte[] data, int offset, int length) {
+            final int packetLength = RouteView.PAYLOAD_OFFSET + length;
+            if (mCount == RouteBatchView.MAX_ENTRIES || mBuffer.remaining() < RouteBatchView.ENTRY_HEADER_LENGTH + packetLength) {
+                return false;
+            }
+            mBuffer.putShort((short) packetLength);
+            mBuffer.put((byte) (SupernetClientProtocolReceiver.HEADER_MAGIC | SupernetClientProtocolReceiver.PACKET_ROUTE
+                    | SupernetClientProtocolReceiver.HEADER_REQUEST_BIT));
+            target.write(mBuffer, mBuffer.position());
+            mBuffer.position(mBuffer.position() + ID.NUM_BYTES);
+            mBuffer.put((byte) hops);
+            mBuffer.put(data, offset, length);
+            if (mCount++ == 0) {
+                mTimer.schedule(this, mMaxDelayMicros, TimeUnit.MICROSECONDS);
+            }
+            return true;
+        }
+
+        void flush() {
+            if (mCount == 0) {
+                return;
+            }
+
+            ByteBuffer datagram;
+            if (mCount == 1) {
+                datagram = ByteBuffer.wrap(mBuffer.array(), RouteBatchView.ENTRIES_OFFSET + RouteBatchView.ENTRY_HEADER_LENGTH,
+                        mBuffer.position() - RouteBatchView.ENTRIES_OFFSET - RouteBatchView.ENTRY_HEADER_LENGTH);
+            } else {
+                mBuffer.put(RouteBatchView.COUNT_OFFSET, (byte) mCount);
+                datagram = ByteBuffer.wrap(mBuffer.array(), 0, mBuffer.position());
+            }
+
+            mNumPackets.addAndGet(mCount);
+            mNumDatagrams.incrementAndGet();
+            try {
+                mClient.send(datagram, mNextHop);
+            } catch (IOException e) {
+                LOGGER.error("", e);
+            }
+
+            mBuffer.position(RouteBatchView.ENTRIES_OFFSET);
+            mCount = 0;
+            mLastFlushMillis = Clock.get().currentTimeMillis();
+            if (!mIdleCheckScheduled && !mTimer.isShutdown()) {
+                mIdleCheckScheduled = true;
+                mTimer.schedule(mIdleCheck, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Drops this batch once it has been empty for {@link #IDLE_TIMEOUT_MS}. A sender that
+         * looked the batch up just before it was dropped still has its packets flushed by the
+         * batch's own timer.
+         */
+        private final Runnable mIdleCheck = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Batch.this) {
+                    mIdleCheckScheduled = false;
+                    if (mCount > 0) {
+                        // the next flush checks again
+                        return;
+                    }
+                    final long idleMillis = Clock.get().currentTimeMillis() - mLastFlushMillis;
+                    if (idleMillis >= IDLE_TIMEOUT_MS) {
+                        mBatches.remove(mNextHop, Batch.this);
+                    } else if (!mTimer.isShutdown()) {
+                        mIdleCheckScheduled = true;
+                        mTimer.schedule(this, IDLE_TIMEOUT_MS - idleMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        };
+
+        @Override
+        public synchronized void run() {
+            flush();
+        }
+    }
+
+    RouteBatcher(SupernetClientImp client, long maxDelayMicros, int maxDatagramSize) {
+        mClient = client;
+        mTimer = client.mRuntime.newClientExecutor();
+        mMaxDelayMicros = maxDelayMicros;
+        mMaxDatagramSize = maxDatagramSize;
+    }
+
+    private Batch getBatch(InetSocketAddress nextHop) {
+        Batch batch = mBatches.get(nextHop);
+        if (batch == null) {
+            batch = new Batch(nextHop);
+            Batch existing = mBatches.putIfAbsent(nextHop, batch);
+            if (existing != null) {
+                batch = existing;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Queue the ROUTE packet between {@code routePacket}'s position and limit. The bytes are copied.
+     */
+    public void send(ByteBuffer routePacket, InetSocketAddress nextHop) throws IOException {
+        if (RouteBatchView.ENTRIES_OFFSET + RouteBatchView.ENTRY_HEADER_LENGTH + routePacket.remaining() > mMaxDatagramSize) {
+            mNumPackets.incrementAndGet();
+            mNumDatagrams.incrementAndGet();
+            mClient.send(routePacket, nextHop);
+            return;
+        }
+
+        Batch batch = getBatch(nextHop);
+        synchronized (batch) {
+            if (!batch.add(routePacket.duplicate())) {
+                batch.flush();
+                batch.add(routePacket.duplicate());
+            }
+        }
+    }
+
+    /**
+     * Queue a new ROUTE packet carrying {@code length} bytes of {@code data}.
+     */
+    public void send(ID target, int hops, byte[] data, int offset, int length, InetSocketAddress nextHop) throws IOException {
+        if (RouteBatchView.ENTRIES_OFFSET + RouteBatchView.ENTRY_HEADER_LENGTH + RouteView.PAYLOAD_OFFSET + length > mMaxDatagramSize) {
+            mNumPackets.incrementAndGet();
+            mNumDatagrams.incrementAndGet();
+            mClient.send(SupernetClientProtocolReceiver.createRoute(nextHop, target, hops, data, offset, length));
+            return;
+        }
+
+        Batch batch = getBatch(nextHop);
+        synchronized (batch) {
+            if (!batch.add(target, hops, data, offset, length)) {
+                batch.flush();
+                batch.add(target, hops, data, offset, length);
+            }
+        }
+    }
+
+    /**
+     * @return the average number of ROUTE packets carried per datagram sent, 1 if nothing was sent yet
+     */
+    public double getBatchingRatio() {
+        final long datagrams = mNumDatagrams.get();
+        return datagrams == 0 ? 1 : (double) mNumPackets.get() / datagrams;
+    }
+
+    /**
+     * @return the number of next hops that have a batch
+     */
+    int getNumBatches() {
+        return mBatches.size();
+    }
+
+    /**
+     * Send everything still queued.
+     */
+    public void flush() {
+        for (Batch batch : mBatches.values()) {
+            batch.run();
+        }
+    }
+
+    void shutdown() {
+        mTimer.shutdown();
+        flush();
+    }
+}
@@ -0,0 +1,78 @@
+package com.devsmart.supernet;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * View over a route packet. A relay decrements the hop count in place with {@link #setHops(int)}
+ * and sends the same buffer on to the next hop.
+ */
+public class RouteView extends PacketView {
+
+    public static final int TARGET_OFFSET = 1;
+    public static final int HOPS_OFFSET = TARGET_OFFSET + ID.NUM_BYTES;
+    public static final int PAYLOAD_OFFSET = HOPS_OFFSET + 1;
+
+    @Override
+    public RouteView wrap(ByteBuffer buffer) {
+        super.wrap(buffer);
+        return this;
+    }
+
+    @Override
+    public RouteView wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        return this;
+    }
+
+    public boolean isValid() {
+        return mLength >= PAYLOAD_OFFSET;
+    }
+
+    public ID getTarget() {
+        return getID(TARGET_OFFSET);
+    }
+
+    public boolean targetEquals(ID id) {
+        return id.equals(mBuffer, mOffset + TARGET_OFFSET);
+    }
+
+    public int getHops() {
+        return getUInt8(HOPS_OFFSET);
+    }
+
+    public void setHops(int hops) {
+        mBuffer.put(mOffset + HOPS_OFFSET, (byte) hops);
+    }
+
+    /**
+     * @return the absolute offset of the payload in {@link #getBuffer()}
+     */
+    public int getPayloadOffset() {
+        return mOffset + PAYLOAD_OFFSET;
+    }
+
+    public int getPayloadLength() {
+        return mLength - PAYLOAD_OFFSET;
+    }
+
+    /**
+     * @return a read only buffer sharing the payload bytes of this packet
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer retval = mBuffer.asReadOnlyBuffer();
+        retval.limit(mOffset + mLength);
+        retval.position(getPayloadOffset());
+        return retval.slice();
+    }
+
+    /**
+     * @return a buffer covering the whole packet, for sending it on unchanged
+     */
+    public ByteBuffer getPacket() {
+        ByteBuffer retval = mBuffer.duplicate();
+        retval.limit(mOffset + mLength);
+        retval.position(mOffset);
+        return retval;
+    }
+}
@@ -2,77 +2,511 @@ package com.devsmart.supernet;
 
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.UnmodifiableIterator;
 
+import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class RoutingTable {
 
     public static final int MAX_BUCKET_SIZE = 8;
 
+    /**
+     * Number of peers each bucket keeps waiting for a slot
+     */
+    public static final int MAX_REPLACEMENTS = 8;
+
+    /**
+     * Largest number of shared prefix bits a bucket is kept for
+     */
+    static final int MAX_PREFIX = ID.NUM_BYTES * 8 - 1;
+
+    public interface Listener {
+        void onPeerAdded(Peer peer);
+        void onPeerRemoved(Peer peer);
+    }
+
+    /**
+     * Asked to check on a peer that holds a slot in a full bucket while a newer peer waits in
+     * the bucket's replacement cache. Call {@link RoutingTable#peerFailed(Peer)} if it does
+     * not answer.
+     */
+    public interface PeerVerifier {
+        void verify(Peer peer);
+    }
+
     private final ID mLocalId;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private volatile PeerStore mPeerStore;
+    private volatile PeerVerifier mVerifier;
 
+    /**
+     * A k-bucket holding at most {@link #MAX_BUCKET_SIZE} peers. When it is full, new peers
+     * wait in a replacement cache of up to {@link #MAX_REPLACEMENTS} peers, most recently seen
+     * first; the oldest ones spill over into the {@link PeerStore} if there is one. A full
+     * bucket replaces a DEAD peer right away and otherwise asks the {@link PeerVerifier} to
+     * ping its least recently seen peer, which is replaced if it fails to answer.
+     *
+     * Every bucket holds the peers that share exactly {@link #sharedPrefixBits} bits with the
+     * local ID, except the last one, which also holds every peer closer than that. When the
+     * last bucket is full it is split in two instead of turning new peers away.
+     *
+     * Readers always see an immutable snapshot of a bucket's peers. Writers are serialized on
+     * the bucket and publish a new snapshot, so they never block readers. Since a bucket holds
+     * a constant number of peers, every write is O(1).
+     */
     public class Bucket {
         final int sharedPrefixBits;
-        private final TreeSet<Peer> peers = new TreeSet<Peer>(Peer.BY_ID);
+        final boolean mLast;
+        private final AtomicReference<ImmutableSortedSet<Peer>> mPeers =
+                new AtomicReference<ImmutableSortedSet<Peer>>(ImmutableSortedSet.orderedBy(Peer.BY_ID).build());
+
+        // guarded by this
+        private final ArrayDeque<Peer> mReplacements = new ArrayDeque<Peer>(MAX_REPLACEMENTS);
+        private Peer mVerifying;
+
+        // set once the bucket has been split; its peers live in the new buckets
+        private volatile boolean mRetired;
 
-        public Bucket(int sharedPrefixBits) {
+        private Bucket(int sharedPrefixBits, boolean last) {
             this.sharedPrefixBits = sharedPrefixBits;
+            mLast = last;
         }
 
-        public synchronized void addPeer(Peer p) {
-            Preconditions.checkArgument(p.id.getNumSharedPrefixBits(mLocalId) == sharedPrefixBits);
-            Peer existingPeer = peers.floor(p);
+        /**
+         * Replace the bucket's peers and bump the table's version.
+         */
+        private void publish(ImmutableSortedSet<Peer> peers) {
+            mPeers.set(peers);
+            mVersion.incrementAndGet();
+        }
+
+        boolean covers(int prefix) {
+            return prefix == sharedPrefixBits || (mLast && prefix > sharedPrefixBits);
+        }
+
+        public void addPeer(Peer p) {
+            Preconditions.checkArgument(covers(prefixOf(p.id)));
+            Peer existingPeer = find(mPeers.get(), p);
             if(existingPeer != null) {
                 existingPeer.markSeen();
-            } else {
-                peers.add(p);
+                return;
+            }
+
+            Peer added = null;
+            Peer removed = null;
+            Peer verify = null;
+            boolean retry = false;
+            synchronized (this) {
+                ImmutableSortedSet<Peer> current = mPeers.get();
+                existingPeer = find(current, p);
+                if(existingPeer != null) {
+                    existingPeer.markSeen();
+                    return;
+                }
+
+                if(mRetired) {
+                    retry = true;
+                } else if(current.size() < MAX_BUCKET_SIZE) {
+                    publish(with(current, p));
+                    mReplacements.remove(p);
+                    added = p;
+                } else if(mLast && sharedPrefixBits < MAX_PREFIX) {
+                    retry = true;
+                } else {
+                    Peer stalest = null;
+                    long stalestAge = -1;
+                    final long now = Clock.get().currentTimeMillis();
+                    for(Peer candidate : current) {
+                        if(candidate.getStatus() == Peer.Status.DEAD) {
+                            removed = candidate;
+                            break;
+                        }
+                        long age = candidate.getTimeSinceLastSeen(now);
+                        if(age > stalestAge) {
+                            stalest = candidate;
+                            stalestAge = age;
+                        }
+                    }
+
+                    if(removed != null) {
+                        publish(with(without(current, removed), p));
+                        mReplacements.remove(p);
+                        added = p;
+                    } else {
+                        addReplacement(p);
+                        if(mVerifier != null && mVerifying == null && stalest.getStatus() != Peer.Status.ALIVE) {
+                            mVerifying = stalest;
+                            verify = stalest;
+                        }
+                    }
+                }
+            }
+
+            if(retry) {
+                if(!mRetired) {
+                    split(this);
+                }
+                RoutingTable.this.addPeer(p);
+                return;
+            }
+
+            if(added != null) {
+                final PeerStore store = mPeerStore;
+                if(store != null) {
+                    store.remove(added.id);
+                }
+                notifyChanged(removed, added);
+            }
+
+            final PeerVerifier verifier = mVerifier;
+            if(verify != null) {
+                if(verifier != null) {
+                    verifier.verify(verify);
+                } else {
+                    peerVerified(verify);
+                }
+            }
+        }
+
+        private void addReplacement(Peer p) {
+            mReplacements.remove(p);
+            mReplacements.addFirst(p);
+            if(mReplacements.size() > MAX_REPLACEMENTS) {
+                Peer oldest = mReplacements.removeLast();
+                final PeerStore store = mPeerStore;
+                if(store != null && oldest.getStatus() != Peer.Status.DEAD) {
+                    store.put(prefixOf(oldest.id), oldest);
+                }
+            }
+        }
+
+        /**
+         * Called when {@code peer} failed to answer. It is replaced by the most recently seen
+         * peer in the replacement cache, if there is one.
+         */
+        public void peerFailed(Peer peer) {
+            Peer added = null;
+            boolean retired = false;
+            synchronized (this) {
+                if(mRetired) {
+                    retired = true;
+                } else {
+                    added = replace(peer);
+                }
+            }
+            if(retired) {
+                RoutingTable.this.peerFailed(peer);
+            } else if(added != null) {
+                notifyChanged(peer, added);
+            }
+        }
+
+        // guarded by this
+        private Peer replace(Peer peer) {
+            if(mVerifying == peer) {
+                mVerifying = null;
+            }
+            ImmutableSortedSet<Peer> current = mPeers.get();
+            if(find(current, peer) != peer) {
+                return null;
+            }
+            Peer replacement = pollReplacement();
+            if(replacement != null) {
+                publish(with(without(current, peer), replacement));
             }
+            return replacement;
+        }
+
+        /**
+         * Called when {@code peer} answered a {@link PeerVerifier#verify(Peer)} request.
+         */
+        public synchronized void peerVerified(Peer peer) {
+            if(mVerifying == peer) {
+                mVerifying = null;
+            }
+        }
+
+        private Peer pollReplacement() {
+            Peer retval = mReplacements.pollFirst();
+            final PeerStore store = mPeerStore;
+            if(retval == null && store != null) {
+                final int maxPrefix = mLast ? MAX_PREFIX : sharedPrefixBits;
+                for(int prefix=sharedPrefixBits;retval == null && prefix<=maxPrefix;prefix++) {
+                    retval = store.poll(prefix);
+                }
+            }
+            return retval;
+        }
+
+        private void notifyChanged(Peer removed, Peer added) {
+            for(Listener l : mListeners) {
+                if(removed != null) {
+                    l.onPeerRemoved(removed);
+                }
+                if(added != null) {
+                    l.onPeerAdded(added);
+                }
+            }
+        }
+
+        public Peer lookupPeer(Peer peer) {
+            return find(mPeers.get(), peer);
+        }
+
+        /**
+         * @return an immutable snapshot of the peers in this bucket
+         */
+        public ImmutableSortedSet<Peer> getPeers() {
+            return mPeers.get();
+        }
+
+        /**
+         * @return the peers waiting for a slot in this bucket, most recently seen first
+         */
+        public synchronized List<Peer> getReplacements() {
+            return new ArrayList<Peer>(mReplacements);
         }
 
-        public synchronized ImmutableSortedSet<Peer> getOldestPeers() {
+        public ImmutableSortedSet<Peer> getOldestPeers() {
             return ImmutableSortedSet.orderedBy(Peer.OLDEST_ALIVE_FIRST)
-                    .addAll(peers)
+                    .addAll(mPeers.get())
                     .build();
         }
 
-        public synchronized void trimPeers() {
+        /**
+         * Drop DEAD peers from the bucket and the replacement cache.
+         */
+        public void trimPeers() {
+            ArrayList<Peer> removed = new ArrayList<Peer>();
+            synchronized (this) {
+                if(mRetired) {
+                    return;
+                }
+                ImmutableSortedSet<Peer> current = mPeers.get();
+                for(Peer p : current) {
+                    if(p.getStatus() == Peer.Status.DEAD) {
+                        removed.add(p);
+                    }
+                }
+                if(!removed.isEmpty()) {
+                    ImmutableSortedSet.Builder<Peer> next = ImmutableSortedSet.orderedBy(Peer.BY_ID);
+                    for(Peer p : current) {
+                        if(!removed.contains(p)) {
+                            next.add(p);
+                        }
+                    }
+                    publish(next.build());
+                    if(removed.contains(mVerifying)) {
+                        mVerifying = null;
+                    }
+                }
 
-            ImmutableSortedSet<Peer> oldestFirst = getOldestPeers();
-            UnmodifiableIterator<Peer> it = oldestFirst.descendingIterator();
+                Iterator<Peer> it = mReplacements.iterator();
+                while(it.hasNext()) {
+                    if(it.next().getStatus() == Peer.Status.DEAD) {
+                        it.remove();
+                    }
+                }
+            }
 
-            while(it.hasNext() && peers.size() > MAX_BUCKET_SIZE) {
-                Peer peerToRemove = it.next();
-                peers.remove(peerToRemove);
+            for(Peer p : removed) {
+                notifyChanged(p, null);
+            }
+        }
+
+        /**
+         * Fill empty slots from the replacement cache and then the {@link PeerStore}. Peers
+         * taken from the store have not been heard from since they were evicted, so they are
+         * pinged by the keep alive wheel before being used.
+         */
+        public void refill() {
+            ArrayList<Peer> added = new ArrayList<Peer>();
+            synchronized (this) {
+                if(mRetired) {
+                    return;
+                }
+                ImmutableSortedSet<Peer> current = mPeers.get();
+                while(current.size() < MAX_BUCKET_SIZE) {
+                    Peer p = pollReplacement();
+                    if(p == null) {
+                        break;
+                    }
+                    if(find(current, p) == null) {
+                        current = with(current, p);
+                        added.add(p);
+                    }
+                }
+                if(!added.isEmpty()) {
+                    publish(current);
+                }
+            }
+
+            for(Peer p : added) {
+                notifyChanged(null, p);
             }
         }
     }
 
-    Bucket[] mBuckets = new Bucket[ID.NUM_BYTES * 8];
+    private static ImmutableSortedSet<Peer> with(ImmutableSortedSet<Peer> peers, Peer peer) {
+        return ImmutableSortedSet.orderedBy(Peer.BY_ID)
+                .addAll(peers)
+                .add(peer)
+                .build();
+    }
+
+    private static ImmutableSortedSet<Peer> without(ImmutableSortedSet<Peer> peers, Peer peer) {
+        ImmutableSortedSet.Builder<Peer> retval = ImmutableSortedSet.orderedBy(Peer.BY_ID);
+        for(Peer p : peers) {
+            if(p != peer) {
+                retval.add(p);
+            }
+        }
+        return retval.build();
+    }
+
+    private static Peer find(ImmutableSortedSet<Peer> peers, Peer peer) {
+        Peer retval = peers.floor(peer);
+        if(retval != null && Peer.BY_ID.compare(retval, peer) == 0) {
+            return retval;
+        } else {
+            return null;
+        }
+    }
+
+    private final AtomicReference<Bucket[]> mBuckets = new AtomicReference<Bucket[]>();
+    private final AtomicLong mVersion = new AtomicLong();
 
     public RoutingTable(ID localId) {
         mLocalId = localId;
-        for(int i = 0;i<mBuckets.length;i++) {
-            mBuckets[i] = new Bucket(i);
+        mBuckets.set(new Bucket[]{ new Bucket(0, true) });
+    }
+
+    int prefixOf(ID id) {
+        return Math.min(mLocalId.getNumSharedPrefixBits(id), MAX_PREFIX);
+    }
+
+    /**
+     * Split the last bucket into one for the peers sharing exactly its prefix and a new last
+     * bucket for everything closer to the local ID. Does nothing if {@code old} was already split.
+     */
+    private void split(Bucket old) {
+        synchronized (mBuckets) {
+            synchronized (old) {
+                final Bucket[] buckets = mBuckets.get();
+                if(old.mRetired || buckets[buckets.length-1] != old) {
+                    return;
+                }
+
+                final int n = old.sharedPrefixBits;
+                final Bucket far = new Bucket(n, false);
+                final Bucket near = new Bucket(n+1, true);
+                ArrayList<Peer> farPeers = new ArrayList<Peer>();
+                ArrayList<Peer> nearPeers = new ArrayList<Peer>();
+                for(Peer p : old.mPeers.get()) {
+                    (prefixOf(p.id) == n ? farPeers : nearPeers).add(p);
+                }
+                far.mPeers.set(ImmutableSortedSet.copyOf(Peer.BY_ID, farPeers));
+                near.mPeers.set(ImmutableSortedSet.copyOf(Peer.BY_ID, nearPeers));
+                for(Peer p : old.mReplacements) {
+                    (prefixOf(p.id) == n ? far : near).mReplacements.addLast(p);
+                }
+                old.mReplacements.clear();
+                old.mVerifying = null;
+                old.mRetired = true;
+
+                Bucket[] split = Arrays.copyOf(buckets, buckets.length + 1);
+                split[n] = far;
+                split[n+1] = near;
+                mBuckets.set(split);
+                mVersion.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the buckets that currently exist, farthest from the local ID first
+     */
+    public List<Bucket> getBuckets() {
+        return Collections.unmodifiableList(Arrays.asList(mBuckets.get()));
+    }
+
+    /**
+     * @return a number that changes whenever a peer is added to or removed from a bucket, or a
+     * bucket is split. Read it before reading the table to tell later whether what was read is
+     * still current.
+     */
+    public long getVersion() {
+        return mVersion.get();
+    }
+
+    /**
+     * @return the number of peers in all buckets, not counting replacements
+     */
+    public int getNumPeers() {
+        int retval = 0;
+        for(Bucket b : mBuckets.get()) {
+            retval += b.getPeers().size();
         }
+        return retval;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
     }
 
-    public synchronized void addPeer(Peer p) {
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Spill peers that overflow the buckets' replacement caches into {@code store} and
+     * refill buckets from it. Null disables spilling.
+     */
+    public void setPeerStore(PeerStore store) {
+        mPeerStore = store;
+    }
+
+    public PeerStore getPeerStore() {
+        return mPeerStore;
+    }
+
+    public void setPeerVerifier(PeerVerifier verifier) {
+        mVerifier = verifier;
+    }
+
+    /**
+     * @see Bucket#peerFailed(Peer)
+     */
+    public void peerFailed(Peer peer) {
+        getBucket(peer.id).peerFailed(peer);
+    }
+
+    /**
+     * @see Bucket#peerVerified(Peer)
+     */
+    public void peerVerified(Peer peer) {
+        getBucket(peer.id).peerVerified(peer);
+    }
+
+    public void addPeer(Peer p) {
         Bucket b = getBucket(p.id);
         b.addPeer(p);
     }
 
-    public synchronized Bucket getBucket(ID id) {
-        int index = mLocalId.getNumSharedPrefixBits(id);
-        index = Math.min(index, (ID.NUM_BYTES*8)-1);
-        return mBuckets[index];
+    public Bucket getBucket(ID id) {
+        final Bucket[] buckets = mBuckets.get();
+        return buckets[Math.min(prefixOf(id), buckets.length-1)];
     }
 
-    public synchronized Peer lookupPeer(Peer peer) {
+    public Peer lookupPeer(Peer peer) {
         Bucket b = getBucket(peer.id);
-        Peer retval = b.peers.floor(peer);
+        Peer retval = b.lookupPeer(peer);
         if(retval != null) {
             return retval;
         } else {
@@ -80,17 +514,102 @@ public class RoutingTable {
         }
     }
 
+    /**
+     * Find a peer by ID and IPv4 address without allocating.
+     * @return the peer or null if it is not in the table
+     */
+    public Peer findPeer(ID id, int ipv4Address, int port) {
+        for(Peer p : getBucket(id).getPeers()) {
+            if(p.id.equals(id) && p.isAt(ipv4Address, port)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a peer by ID and socket address without allocating. Like {@link #lookupPeer(Peer)}, a
+     * peer with the same ID at another address does not match.
+     * @return the peer or null if it is not in the table
+     */
+    public Peer findPeer(ID id, InetSocketAddress socketAddress) {
+        for(Peer p : getBucket(id).getPeers()) {
+            if(p.id.equals(id) && p.isAt(socketAddress)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
     public Iterable<Peer> getClosestPeers(ID id) {
-        ArrayList<Iterable<Peer>> iterators = new ArrayList<Iterable<Peer>>(30);
-        for(int i = mLocalId.getNumSharedPrefixBits(id); i>=0;i--) {
-            Bucket bucket = mBuckets[i];
+        final Bucket[] buckets = mBuckets.get();
+        ArrayList<Iterable<Peer>> iterators = new ArrayList<Iterable<Peer>>(buckets.length);
+        for(int i = Math.min(prefixOf(id), buckets.length-1); i>=0;i--) {
+            Bucket bucket = buckets[i];
             if(bucket != null) {
-                iterators.add(bucket.peers);
+                iterators.add(bucket.getPeers());
             }
         }
         return Iterables.concat(iterators);
     }
 
+    /**
+     * Find the {@code k} peers closest to {@code target} by XOR distance.
+     *
+     * Buckets are visited in order of increasing distance to the target: first the bucket at the
+     * target's shared prefix index, then every bucket above it, then each bucket below it. Peers
+     * in a later group are always farther than peers in an earlier group, so the search stops as
+     * soon as a group has filled the heap.
+     *
+     * @param filter only peers matching this predicate are returned
+     * @return at most {@code k} peers, closest first
+     */
+    public List<Peer> getKClosest(ID target, int k, Predicate<Peer> filter) {
+        Preconditions.checkArgument(k > 0);
+        final Bucket[] buckets = mBuckets.get();
+        final int prefix = Math.min(prefixOf(target), buckets.length - 1);
+        final PriorityQueue<Peer> heap = new PriorityQueue<Peer>(k + 1, farthestFirst(target));
 
+        offerAll(heap, buckets[prefix], target, k, filter);
 
+        if(heap.size() < k) {
+            for(int i=prefix+1;i<buckets.length;i++) {
+                offerAll(heap, buckets[i], target, k, filter);
+            }
+        }
+
+        for(int i=prefix-1;i>=0 && heap.size() < k;i--) {
+            offerAll(heap, buckets[i], target, k, filter);
+        }
+
+        Peer[] retval = new Peer[heap.size()];
+        for(int i=retval.length-1;i>=0;i--) {
+            retval[i] = heap.poll();
+        }
+        return Arrays.asList(retval);
+    }
+
+    private static void offerAll(PriorityQueue<Peer> heap, Bucket bucket, ID target, int k, Predicate<Peer> filter) {
+        for(Peer p : bucket.getPeers()) {
+            if(!filter.apply(p)) {
+                continue;
+            }
+
+            if(heap.size() < k) {
+                heap.add(p);
+            } else if(ID.compareDistance(p.id, heap.peek().id, target) < 0) {
+                heap.poll();
+                heap.add(p);
+            }
+        }
+    }
+
+    private static Comparator<Peer> farthestFirst(final ID target) {
+        return new Comparator<Peer>() {
+            @Override
+            public int compare(Peer o1, Peer o2) {
+                return ID.compareDistance(o2.id, o1.id, target);
+            }
+        };
+    }
 }
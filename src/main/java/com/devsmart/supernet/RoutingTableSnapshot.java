@@ -0,0 +1,143 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the peers of a {@link RoutingTable} to a file and loads them back, so a restarted
+ * client does not have to rebuild its table from the bootstrap peers.
+ *
+ * File format, big-endian:
+ * uint32 magic + uint8 version + uint32 count + count * entry + uint32 CRC32 of everything before it
+ *
+ * entry: ID + IPv4 address (4 bytes) + uint16 port + int64 last seen (ms since the epoch)
+ * + int32 smoothed RTT (us, -1 if never measured)
+ *
+ * Only IPv4 peers that have been seen and are not DEAD are saved. The file is written to a
+ * temporary file next to it and renamed into place, so a crash never leaves a partial snapshot.
+ */
+public class RoutingTableSnapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoutingTableSnapshot.class);
+
+    public static final int MAGIC = 0x534E5254;
+    public static final int VERSION = 1;
+
+    static final int HEADER_LENGTH = 4 + 1 + 4;
+    static final int ENTRY_LENGTH = ID.NUM_BYTES + 4 + 2 + 8 + 4;
+
+    /**
+     * Write every saveable peer in {@code table} to {@code file}.
+     * @return the number of peers written
+     */
+    public static int write(RoutingTable table, File file) throws IOException {
+        final long now = Clock.get().currentTimeMillis();
+        ArrayList<Peer> peers = new ArrayList<Peer>();
+        for(RoutingTable.Bucket bucket : table.getBuckets()) {
+            for(Peer p : bucket.getPeers()) {
+                Peer.Status status = p.getStatus();
+                if(p.address instanceof Inet4Address && status != Peer.Status.UNKNOWN && status != Peer.Status.DEAD) {
+                    peers.add(p);
+                }
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + peers.size() * ENTRY_LENGTH + 4);
+        buffer.putInt(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.putInt(peers.size());
+        for(Peer p : peers) {
+            p.id.write(buffer, buffer.position());
+            buffer.position(buffer.position() + ID.NUM_BYTES);
+            buffer.put(p.address.getAddress());
+            buffer.putShort((short) p.port);
+            buffer.putLong(now - p.getTimeSinceLastSeen(now));
+            buffer.putInt((int) Math.min(Integer.MAX_VALUE, p.getSmoothedRtt()));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                FileChannel channel = out.getChannel();
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmpFile.delete();
+        }
+        return peers.size();
+    }
+
+    /**
+     * Read the peers saved in {@code file}. Their last seen time and RTT are restored.
+     * @return the peers, or an empty list if the file does not exist or is not a valid snapshot
+     */
+    public static List<Peer> read(File file) throws IOException {
+        ArrayList<Peer> retval = new ArrayList<Peer>();
+        if(!file.isFile()) {
+            return retval;
+        }
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if(data.length < HEADER_LENGTH + 4 || buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+            LOGGER.warn("ignoring routing table snapshot {}: unknown format", file);
+            return retval;
+        }
+
+        final int count = buffer.getInt(5);
+        if(count < 0 || data.length != HEADER_LENGTH + count * ENTRY_LENGTH + 4) {
+            LOGGER.warn("ignoring routing table snapshot {}: bad length", file);
+            return retval;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if((int) crc.getValue() != buffer.getInt(data.length - 4)) {
+            LOGGER.warn("ignoring routing table snapshot {}: bad checksum", file);
+            return retval;
+        }
+
+        byte[] address = new byte[4];
+        buffer.position(HEADER_LENGTH);
+        for(int i=0;i<count;i++) {
+            ID id = new ID(buffer, buffer.position());
+            buffer.position(buffer.position() + ID.NUM_BYTES);
+            buffer.get(address);
+            int port = 0xFFFF & buffer.getShort();
+            long lastSeen = buffer.getLong();
+            int rtt = buffer.getInt();
+
+            Peer peer = new Peer(id, InetAddress.getByAddress(address), port);
+            peer.restore(lastSeen, rtt);
+            retval.add(peer);
+        }
+        return retval;
+    }
+}
@@ -0,0 +1,65 @@
+package com.devsmart.supernet;
+
+
+/**
+ * TCP-style round trip time estimator and retransmit timeout (RFC 6298).
+ */
+public class RttEstimator {
+
+    private final long mMinRto;
+    private final long mMaxRto;
+
+    // in microseconds. mSmoothedRtt < 0 means no samples yet.
+    private long mSmoothedRtt = -1;
+    private long mRttVariance;
+    private volatile long mRto;
+
+    /**
+     * @param initialRto retransmit timeout before the first sample, in milliseconds
+     * @param minRto lower bound of the retransmit timeout in milliseconds
+     * @param maxRto upper bound of the retransmit timeout in milliseconds
+     */
+    public RttEstimator(long initialRto, long minRto, long maxRto) {
+        mMinRto = minRto;
+        mMaxRto = maxRto;
+        mRto = initialRto;
+    }
+
+    /**
+     * Add a round trip time sample and recompute the retransmit timeout.
+     * @param rttMicros measured round trip time in microseconds
+     */
+    public synchronized void update(long rttMicros) {
+        if(mSmoothedRtt < 0) {
+            mSmoothedRtt = rttMicros;
+            mRttVariance = rttMicros / 2;
+        } else {
+            mRttVariance = (3 * mRttVariance + Math.abs(mSmoothedRtt - rttMicros)) / 4;
+            mSmoothedRtt = (7 * mSmoothedRtt + rttMicros) / 8;
+        }
+
+        long rto = (mSmoothedRtt + 4 * mRttVariance) / 1000;
+        mRto = Math.max(mMinRto, Math.min(mMaxRto, rto));
+    }
+
+    /**
+     * Double the retransmit timeout after a timeout.
+     */
+    public synchronized void backoff() {
+        mRto = Math.min(mMaxRto, mRto * 2);
+    }
+
+    /**
+     * @return the smoothed round trip time in microseconds, or -1 if there are no samples yet
+     */
+    public synchronized long getSmoothedRtt() {
+        return mSmoothedRtt;
+    }
+
+    /**
+     * @return the retransmit timeout in milliseconds
+     */
+    public long getRto() {
+        return mRto;
+    }
+}
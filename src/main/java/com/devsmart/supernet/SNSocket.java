@@ -6,27 +6,75 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+/**
+ * A reliable, ordered byte stream to a port on a remote peer. Create one with
+ * {@link SupernetClient#connect(ID, int)} or {@link SNSocketServer#accept()}. All sockets
+ * between two peers share one {@link Session}.
+ */
 public class SNSocket implements Closeable {
 
+    private final SessionStream mStream;
+
+    SNSocket(SessionStream stream) {
+        mStream = stream;
+    }
+
     public ID getRemoteAddress() {
-        return null;
+        return mStream.getSession().getRemoteId();
     }
 
     public int getRemotePort() {
-        return -1;
+        return mStream.getPort();
     }
 
+    public int getPriority() {
+        return mStream.getPriority();
+    }
+
+    /**
+     * When several sockets to the same peer have data to send, higher priorities are sent first.
+     */
+    public void setPriority(int priority) {
+        mStream.setPriority(priority);
+    }
 
     public OutputStream getOutputStream(){
-        return null;
+        return mStream.getOutputStream();
     }
 
     public InputStream getInputStream() {
-        return null;
+        return mStream.getInputStream();
+    }
+
+    public boolean isClosed() {
+        return mStream.isClosed();
+    }
+
+    /**
+     * Send any buffered data followed by an end of stream. The remote end reads -1 once it has
+     * received everything; this end can keep reading.
+     */
+    public void shutdownOutput() {
+        mStream.shutdownOutput();
     }
 
+    /**
+     * Gracefully close the connection. Buffered data is still delivered to the remote end.
+     */
     @Override
     public void close() throws IOException {
+        mStream.close();
+    }
 
+    /**
+     * Drop the connection immediately, discarding any data that has not been delivered.
+     */
+    public void reset() {
+        mStream.reset();
+    }
+
+    @Override
+    public String toString() {
+        return mStream.toString();
     }
 }
@@ -1,13 +1,81 @@
 package com.devsmart.supernet;
 
 
-public class SNSocketServer {
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
-    public SNSocket accept() {
-        return null;
+/**
+ * Accepts {@link SNSocket} streams to a port of the local peer, from any session. Create one
+ * with {@link SupernetClient#listen(int)}.
+ */
+public class SNSocketServer implements Closeable {
+
+    /**
+     * Maximum number of streams waiting for {@link #accept()} before new ones are refused
+     */
+    public static final int BACKLOG = 50;
+
+    private static final SessionStream CLOSED = new SessionStream(null, 0, -1, 0);
+
+    private final SessionManager mManager;
+    private final int mPort;
+    private final BlockingQueue<SessionStream> mBacklog = new LinkedBlockingQueue<SessionStream>(BACKLOG);
+    private volatile boolean mClosed;
+
+    SNSocketServer(SessionManager manager, int port) {
+        mManager = manager;
+        mPort = port;
+    }
+
+    boolean offer(SessionStream stream) {
+        return !mClosed && mBacklog.offer(stream);
+    }
+
+    /**
+     * Block until a remote peer connects.
+     * @throws SocketException if this server is closed
+     */
+    public SNSocket accept() throws IOException {
+        if(mClosed) {
+            throw new SocketException("socket closed");
+        }
+        try {
+            SessionStream stream = mBacklog.take();
+            if(stream == CLOSED) {
+                mBacklog.offer(CLOSED);
+                throw new SocketException("socket closed");
+            }
+            return new SNSocket(stream);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
     }
 
     public int getPort() {
-        return -1;
+        return mPort;
+    }
+
+    /**
+     * Stop accepting streams. Streams that were not accepted yet are reset.
+     */
+    @Override
+    public void close() {
+        if(mClosed) {
+            return;
+        }
+        mClosed = true;
+        mManager.unlisten(this);
+
+        SessionStream stream;
+        while((stream = mBacklog.poll()) != null) {
+            if(stream != CLOSED) {
+                stream.reset();
+            }
+        }
+        mBacklog.offer(CLOSED);
     }
 }
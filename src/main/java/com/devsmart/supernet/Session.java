@@ -0,0 +1,377 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Multiplexes any number of {@link SessionStream}s to one remote peer over a single
+ * {@link StreamConnection}, so opening a stream costs no handshake or lookup once the
+ * session exists.
+ *
+ * The connection carries a sequence of frames:
+ * uint8 type + uint32 stream ID + uint16 payload length + payload
+ *
+ * OPEN: uint16 port + uint8 priority. Data may follow immediately.
+ * DATA: stream data.
+ * CLOSE: no more data in this direction.
+ * RESET: abort the stream. Sent in reply to an OPEN for a port nobody listens on.
+ * CREDIT: uint32 number of bytes the receiver of this frame may send in addition. Stream ID 0
+ * is the whole session.
+ *
+ * A DATA frame must fit in both the stream's and the session's credit. Streams opened by the
+ * initiator of the session have odd IDs, the acceptor's are even. When several streams have
+ * data to send the highest priority goes first, equal priorities take turns frame by frame.
+ */
+public class Session {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Session.class);
+
+    public static final int FRAME_OPEN = 0;
+    public static final int FRAME_DATA = 1;
+    public static final int FRAME_CLOSE = 2;
+    public static final int FRAME_RESET = 3;
+    public static final int FRAME_CREDIT = 4;
+
+    static final int FRAME_HEADER_LENGTH = 7;
+    public static final int MAX_FRAME_DATA = 16 * 1024;
+
+    public static final int INITIAL_STREAM_CREDIT = 256 * 1024;
+    public static final int INITIAL_SESSION_CREDIT = 1024 * 1024;
+
+    private final SessionManager mManager;
+    private final StreamConnection mConnection;
+    private final ID mRemoteId;
+    private final HashMap<Integer, SessionStream> mStreams = new HashMap<Integer, SessionStream>();
+    private final ArrayList<SessionStream> mSendOrder = new ArrayList<SessionStream>();
+    private final ArrayDeque<byte[]> mControlFrames = new ArrayDeque<byte[]>();
+    private int mNextStreamId;
+    private int mNextToSend;
+    private long mSendCredit = INITIAL_SESSION_CREDIT;
+    private long mReceiveCredit = INITIAL_SESSION_CREDIT;
+    private int mConsumed;
+    private long mIdleSince = Clock.get().currentTimeMillis();
+    private IOException mError;
+    private boolean mClosing;
+
+    Session(SessionManager manager, StreamConnection connection, ID remoteId, boolean initiator) {
+        mManager = manager;
+        mConnection = connection;
+        mRemoteId = remoteId;
+        mNextStreamId = initiator ? 1 : 2;
+    }
+
+    public ID getRemoteId() {
+        return mRemoteId;
+    }
+
+    public synchronized int getNumStreams() {
+        return mStreams.size();
+    }
+
+    public synchronized boolean isClosed() {
+        return mError != null || mClosing;
+    }
+
+    void start() {
+        mManager.execute(mReader);
+        mManager.execute(mWriter);
+    }
+
+    synchronized SessionStream open(int port, int priority) throws IOException {
+        if (mError != null) {
+            throw mError;
+        }
+        if (mClosing) {
+            throw new SocketException("session closed");
+        }
+
+        SessionStream stream = new SessionStream(this, mNextStreamId, port, priority);
+        mNextStreamId += 2;
+        addStream(stream);
+
+        byte[] payload = new byte[3];
+        ByteBuffer.wrap(payload).putShort(0, (short) port).put(2, (byte) priority);
+        mControlFrames.addLast(frame(FRAME_OPEN, stream.getId(), payload, 0, payload.length));
+        notifyAll();
+        return stream;
+    }
+
+    /**
+     * Close the session if it has had no streams for at least {@code idleMillis}.
+     * @return true if the session was closed
+     */
+    synchronized boolean closeIfIdle(long nowMillis, long idleMillis) {
+        if (mStreams.isEmpty() && nowMillis - mIdleSince >= idleMillis && !isClosed()) {
+            LOGGER.debug("closing idle {}", this);
+            mClosing = true;
+            notifyAll();
+            return true;
+        }
+        return false;
+    }
+
+    void reset() {
+        mConnection.reset();
+        fail(new SocketException("session closed"));
+    }
+
+    private void addStream(SessionStream stream) {
+        mStreams.put(stream.getId(), stream);
+        mSendOrder.add(stream);
+    }
+
+    private static byte[] frame(int type, int streamId, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[FRAME_HEADER_LENGTH + length];
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        buffer.put((byte) type);
+        buffer.putInt(streamId);
+        buffer.putShort((short) length);
+        buffer.put(payload, offset, length);
+        return frame;
+    }
+
+    private static byte[] creditFrame(int streamId, int increment) {
+        byte[] payload = new byte[4];
+        ByteBuffer.wrap(payload).putInt(0, increment);
+        return frame(FRAME_CREDIT, streamId, payload, 0, payload.length);
+    }
+
+    // called by SessionStream with the monitor held
+
+    void consumed(SessionStream stream, int numBytes) {
+        if (numBytes <= 0) {
+            return;
+        }
+
+        stream.mConsumed += numBytes;
+        if (stream.mConsumed >= INITIAL_STREAM_CREDIT / 2 && !stream.isFinished()) {
+            stream.mReceiveCredit += stream.mConsumed;
+            mControlFrames.addLast(creditFrame(stream.getId(), stream.mConsumed));
+            stream.mConsumed = 0;
+        }
+        sessionConsumed(numBytes);
+    }
+
+    private void sessionConsumed(int numBytes) {
+        mConsumed += numBytes;
+        if (mConsumed >= INITIAL_SESSION_CREDIT / 2) {
+            mReceiveCredit += mConsumed;
+            mControlFrames.addLast(creditFrame(0, mConsumed));
+            mConsumed = 0;
+        }
+        notifyAll();
+    }
+
+    void sendReset(int streamId) {
+        mControlFrames.addLast(frame(FRAME_RESET, streamId, new byte[0], 0, 0));
+        notifyAll();
+    }
+
+    void streamChanged(SessionStream stream) {
+        if (stream.isFinished() && mStreams.remove(stream.getId()) != null) {
+            mSendOrder.remove(stream);
+            if (mStreams.isEmpty()) {
+                mIdleSince = Clock.get().currentTimeMillis();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Pick the next frame to send: control frames first, then DATA or CLOSE from the highest
+     * priority stream that can send, round robin among equals.
+     * @return the frame or null if there is nothing to send
+     */
+    private byte[] nextFrame() {
+        byte[] frame = mControlFrames.pollFirst();
+        if (frame != null) {
+            return frame;
+        }
+
+        final int numStreams = mSendOrder.size();
+        SessionStream next = null;
+        int nextIndex = 0;
+        for (int i = 0; i < numStreams; i++) {
+            int index = (mNextToSend + i) % numStreams;
+            SessionStream stream = mSendOrder.get(index);
+            if (stream.hasSendableFrame(mSendCredit) && (next == null || stream.getPriority() > next.getPriority())) {
+                next = stream;
+                nextIndex = index;
+            }
+        }
+        if (next == null) {
+            return null;
+        }
+        mNextToSend = nextIndex + 1;
+
+        if (next.getPendingBytes() > 0) {
+            byte[] data = next.takePending((int) Math.min(MAX_FRAME_DATA, mSendCredit));
+            mSendCredit -= data.length;
+            // make room in the stream's send buffer
+            notifyAll();
+            return frame(FRAME_DATA, next.getId(), data, 0, data.length);
+        } else {
+            next.closeSent();
+            return frame(FRAME_CLOSE, next.getId(), new byte[0], 0, 0);
+        }
+    }
+
+    private synchronized void onFrame(int type, int streamId, byte[] payload) throws IOException {
+        if (type == FRAME_CREDIT) {
+            if (payload.length < 4) {
+                throw new IOException("invalid CREDIT frame");
+            }
+            long increment = 0xFFFFFFFFL & ByteBuffer.wrap(payload).getInt(0);
+            if (streamId == 0) {
+                mSendCredit += increment;
+            } else {
+                SessionStream stream = mStreams.get(streamId);
+                if (stream != null) {
+                    stream.mSendCredit += increment;
+                }
+            }
+            notifyAll();
+            return;
+        }
+
+        SessionStream stream = mStreams.get(streamId);
+        switch (type) {
+            case FRAME_OPEN: {
+                if (payload.length < 3 || stream != null || (streamId & 1) == (mNextStreamId & 1)) {
+                    throw new IOException("invalid OPEN frame");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                stream = new SessionStream(this, streamId, 0xFFFF & buffer.getShort(0), 0xFF & buffer.get(2));
+                addStream(stream);
+                if (!mManager.offer(stream)) {
+                    LOGGER.debug("refused {}", stream);
+                    stream.reset();
+                }
+                break;
+            }
+
+            case FRAME_DATA:
+                // data for a stream that was reset still counts against the session
+                if (payload.length > mReceiveCredit) {
+                    throw new IOException("session credit exceeded");
+                }
+                mReceiveCredit -= payload.length;
+                if (stream == null) {
+                    sessionConsumed(payload.length);
+                } else if (!stream.onData(payload)) {
+                    throw new IOException("stream credit exceeded");
+                }
+                break;
+
+            case FRAME_CLOSE:
+                if (stream != null) {
+                    stream.onClose();
+                }
+                break;
+
+            case FRAME_RESET:
+                if (stream != null) {
+                    stream.abort(stream.hasReceivedFrame() ? new SocketException("connection reset")
+                            : new ConnectException("connection refused"));
+                }
+                break;
+
+            default:
+                throw new IOException("unknown frame type: " + type);
+        }
+        notifyAll();
+    }
+
+    private synchronized void fail(IOException error) {
+        if (mError != null) {
+            return;
+        }
+        mError = error;
+        for (SessionStream stream : new ArrayList<SessionStream>(mStreams.values())) {
+            stream.abort(error);
+        }
+        mStreams.clear();
+        mSendOrder.clear();
+        mControlFrames.clear();
+        notifyAll();
+        mManager.sessionClosed(this);
+    }
+
+    private final Runnable mReader = new Runnable() {
+        @Override
+        public void run() {
+            DataInputStream in = new DataInputStream(mConnection.getInputStream());
+            try {
+                while (true) {
+                    int type = in.read();
+                    if (type < 0) {
+                        break;
+                    }
+                    int streamId = in.readInt();
+                    byte[] payload = new byte[in.readUnsignedShort()];
+                    in.readFully(payload);
+                    onFrame(type, streamId, payload);
+                }
+                fail(new EOFException("session closed"));
+                mConnection.close();
+            } catch (IOException e) {
+                LOGGER.debug("{} failed: {}", Session.this, e.getMessage());
+                mConnection.reset();
+                fail(e);
+            }
+        }
+    };
+
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            OutputStream out = mConnection.getOutputStream();
+            try {
+                while (true) {
+                    byte[] frame;
+                    synchronized (Session.this) {
+                        frame = nextFrame();
+                    }
+
+                    if (frame == null) {
+                        // nothing else is ready; push out any partial segment
+                        out.flush();
+                        synchronized (Session.this) {
+                            while (mError == null && (frame = nextFrame()) == null && !mClosing) {
+                                Session.this.wait();
+                            }
+                            if (frame == null) {
+                                break;
+                            }
+                        }
+                    }
+                    out.write(frame);
+                }
+                mConnection.shutdownOutput();
+            } catch (IOException e) {
+                mConnection.reset();
+                fail(e);
+            } catch (InterruptedException e) {
+                mConnection.reset();
+                fail(new SocketException("session closed"));
+            }
+        }
+    };
+
+    @Override
+    public String toString() {
+        return String.format("session to %s", mRemoteId.breifToString());
+    }
+}
@@ -0,0 +1,207 @@
+package com.devsmart.supernet;
+
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Keeps at most one {@link Session} per remote peer ID and routes streams opened by remote
+ * peers to the {@link SNSocketServer} listening on their port.
+ */
+public class SessionManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionManager.class);
+
+    /**
+     * The {@link StreamConnection} port sessions are opened on
+     */
+    public static final int SESSION_PORT = 0;
+
+    /**
+     * Sessions without streams for this long are closed
+     */
+    public static final long IDLE_TIMEOUT_MS = 2 * 60 * 1000;
+
+    private final SupernetClientImp mClient;
+    private final ConcurrentHashMap<ID, ListenableFuture<Session>> mSessions = new ConcurrentHashMap<ID, ListenableFuture<Session>>();
+    private final ConcurrentHashMap<Integer, SNSocketServer> mListeners = new ConcurrentHashMap<Integer, SNSocketServer>();
+    private final ExecutorService mThreads;
+
+    SessionManager(SupernetClientImp client) {
+        mClient = client;
+        mThreads = client.mRuntime.getBlockingExecutor();
+    }
+
+    void execute(Runnable task) {
+        mThreads.execute(task);
+    }
+
+    /**
+     * Open a stream to {@code port} on {@code remote}, reusing the session to it if there is one.
+     * The remote end is not waited for; a refused stream fails its first read or write with
+     * {@link java.net.ConnectException}.
+     */
+    SessionStream open(ID remote, int port, int priority) throws IOException {
+        while (true) {
+            Session session = getSession(remote);
+            try {
+                return session.open(port, priority);
+            } catch (IOException e) {
+                // the session went away between lookup and open; try a new one
+                if (!session.isClosed()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private Session getSession(ID remote) throws IOException {
+        while (true) {
+            ListenableFuture<Session> future = mSessions.get(remote);
+            if (future == null) {
+                SettableFuture<Session> created = SettableFuture.create();
+                future = mSessions.putIfAbsent(remote, created);
+                if (future == null) {
+                    try {
+                        Session session = createSession(remote);
+                        created.set(session);
+                        return session;
+                    } catch (IOException e) {
+                        mSessions.remove(remote, created);
+                        created.setException(e);
+                        throw e;
+                    }
+                }
+            }
+
+            Session session;
+            try {
+                session = future.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+
+            if (!session.isClosed()) {
+                return session;
+            }
+            mSessions.remove(remote, future);
+        }
+    }
+
+    private Session createSession(ID remote) throws IOException {
+        Peer peer = mClient.resolvePeer(remote);
+        StreamConnection connection = mClient.mStreams.connect(peer, SESSION_PORT, StreamManager.DEFAULT_CONNECT_TIMEOUT_MS);
+        Session session = new Session(this, connection, remote, true);
+        session.start();
+        LOGGER.debug("opened {}", session);
+        return session;
+    }
+
+    /**
+     * Start a session on a connection a remote peer opened to {@link #SESSION_PORT}.
+     */
+    void accept(StreamConnection connection) {
+        Session session = new Session(this, connection, connection.getRemotePeer().id, false);
+        session.start();
+        LOGGER.debug("accepted {}", session);
+
+        ListenableFuture<Session> existing = mSessions.putIfAbsent(session.getRemoteId(), Futures.immediateFuture(session));
+        if (existing != null && existing.isDone()) {
+            // keep using a healthy session we opened ourselves; both stay usable by the remote end
+            Session current = getDone(existing);
+            if (current == null || current.isClosed()) {
+                mSessions.replace(session.getRemoteId(), existing, Futures.immediateFuture(session));
+            }
+        }
+    }
+
+    /**
+     * @return the session of a completed future, or null if opening it failed; the caller that
+     * opened it got the error
+     */
+    private static Session getDone(ListenableFuture<Session> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    void sessionClosed(Session session) {
+        ListenableFuture<Session> future = mSessions.get(session.getRemoteId());
+        if (future != null && future.isDone() && getDone(future) == session) {
+            mSessions.remove(session.getRemoteId(), future);
+        }
+    }
+
+    SNSocketServer listen(int port) throws IOException {
+        SNSocketServer server = new SNSocketServer(this, port);
+        if (mListeners.putIfAbsent(port, server) != null) {
+            throw new BindException("port " + port + " already in use");
+        }
+        return server;
+    }
+
+    void unlisten(SNSocketServer server) {
+        mListeners.remove(server.getPort(), server);
+    }
+
+    /**
+     * Hand a stream opened by the remote end to the server listening on its port.
+     * @return false if nobody is listening or the server's backlog is full
+     */
+    boolean offer(SessionStream stream) {
+        SNSocketServer server = mListeners.get(stream.getPort());
+        return server != null && server.offer(stream);
+    }
+
+    /**
+     * Close sessions that have had no streams for {@link #IDLE_TIMEOUT_MS}. Run periodically
+     * by the client's maintenance thread.
+     */
+    void closeIdleSessions() {
+        final long now = Clock.get().currentTimeMillis();
+        for (ListenableFuture<Session> future : mSessions.values()) {
+            Session session = future.isDone() ? getDone(future) : null;
+            if (session != null) {
+                try {
+                    session.closeIfIdle(now, IDLE_TIMEOUT_MS);
+                } catch (Exception e) {
+                    LOGGER.error("", e);
+                }
+            }
+        }
+    }
+
+    void shutdown() {
+        for (SNSocketServer server : mListeners.values()) {
+            server.close();
+        }
+        for (ListenableFuture<Session> future : mSessions.values()) {
+            Session session = future.isDone() ? getDone(future) : null;
+            if (session != null) {
+                try {
+                    session.reset();
+                } catch (Exception e) {
+                    LOGGER.error("", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.devsmart.supernet;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+
+/**
+ * One logical stream multiplexed over a {@link Session}. All state is guarded by the session's monitor.
+ */
+public class SessionStream {
+
+    /**
+     * Number of bytes that can be written but not yet framed before writes block.
+     */
+    public static final int SEND_BUFFER_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private final Session mSession;
+    private final int mId;
+    private final int mPort;
+    private int mPriority;
+
+    // sender state
+    private byte[] mPending;
+    private int mPendingStart;
+    private int mPendingEnd;
+    long mSendCredit = Session.INITIAL_STREAM_CREDIT;
+    private boolean mOutputShutdown;
+    private boolean mCloseSent;
+
+    // receiver state
+    private final ArrayDeque<byte[]> mReadQueue = new ArrayDeque<byte[]>();
+    private int mReadOffset;
+    private int mReadBufferedBytes;
+    long mReceiveCredit = Session.INITIAL_STREAM_CREDIT;
+    int mConsumed;
+    private boolean mReceivedFrame;
+    private boolean mRemoteClosed;
+    private boolean mInputShutdown;
+
+    private IOException mError;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : (0xFF & b[0]);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return SessionStream.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (mSession) {
+                return mReadBufferedBytes;
+            }
+        }
+
+        @Override
+        public void close() {
+            shutdownInput();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            SessionStream.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            shutdownOutput();
+        }
+    };
+
+    SessionStream(Session session, int id, int port, int priority) {
+        mSession = session;
+        mId = id;
+        mPort = port;
+        mPriority = priority;
+    }
+
+    public Session getSession() {
+        return mSession;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    public int getPriority() {
+        synchronized (mSession) {
+            return mPriority;
+        }
+    }
+
+    /**
+     * Streams with a higher priority are framed first when several have data to send.
+     */
+    public void setPriority(int priority) {
+        synchronized (mSession) {
+            mPriority = priority;
+        }
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    public boolean isClosed() {
+        synchronized (mSession) {
+            return isFinished();
+        }
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        synchronized (mSession) {
+            try {
+                while (mReadQueue.isEmpty()) {
+                    if (mRemoteClosed) {
+                        return -1;
+                    }
+                    if (mError != null) {
+                        throw mError;
+                    }
+                    if (mInputShutdown) {
+                        throw new SocketException("socket closed");
+                    }
+                    mSession.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            int read = 0;
+            while (read < len && !mReadQueue.isEmpty()) {
+                byte[] head = mReadQueue.peekFirst();
+                int n = Math.min(len - read, head.length - mReadOffset);
+                System.arraycopy(head, mReadOffset, b, off + read, n);
+                read += n;
+                mReadOffset += n;
+                if (mReadOffset == head.length) {
+                    mReadQueue.pollFirst();
+                    mReadOffset = 0;
+                }
+            }
+            mReadBufferedBytes -= read;
+            mSession.consumed(this, read);
+            return read;
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        synchronized (mSession) {
+            try {
+                while (len > 0) {
+                    if (mError != null) {
+                        throw mError;
+                    }
+                    if (mOutputShutdown) {
+                        throw new SocketException("socket closed");
+                    }
+
+                    if (mPending == null) {
+                        mPending = new byte[SEND_BUFFER_SIZE];
+                    }
+                    int space = SEND_BUFFER_SIZE - (mPendingEnd - mPendingStart);
+                    if (space <= 0) {
+                        mSession.wait();
+                        continue;
+                    }
+
+                    if (mPendingEnd + space > mPending.length) {
+                        System.arraycopy(mPending, mPendingStart, mPending, 0, mPendingEnd - mPendingStart);
+                        mPendingEnd -= mPendingStart;
+                        mPendingStart = 0;
+                    }
+
+                    int n = Math.min(space, len);
+                    System.arraycopy(b, off, mPending, mPendingEnd, n);
+                    mPendingEnd += n;
+                    off += n;
+                    len -= n;
+                    mSession.notifyAll();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Send a CLOSE frame after any buffered data. Reading is still possible until the remote end closes.
+     */
+    public void shutdownOutput() {
+        synchronized (mSession) {
+            if (!mOutputShutdown) {
+                mOutputShutdown = true;
+                mSession.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Discard any received and future data.
+     */
+    public void shutdownInput() {
+        synchronized (mSession) {
+            if (mInputShutdown) {
+                return;
+            }
+            mInputShutdown = true;
+            int discarded = mReadBufferedBytes;
+            mReadQueue.clear();
+            mReadOffset = 0;
+            mReadBufferedBytes = 0;
+            mSession.consumed(this, discarded);
+            mSession.streamChanged(this);
+        }
+    }
+
+    public void close() {
+        synchronized (mSession) {
+            shutdownInput();
+            shutdownOutput();
+        }
+    }
+
+    /**
+     * Drop the stream immediately, discarding any data that has not been framed.
+     */
+    public void reset() {
+        synchronized (mSession) {
+            if (mError == null && !isFinished()) {
+                mSession.sendReset(mId);
+                abort(new SocketException("socket closed"));
+            }
+        }
+    }
+
+    // called by the session with its monitor held
+
+    void abort(IOException error) {
+        if (mError == null) {
+            mError = error;
+        }
+        mPending = null;
+        mPendingStart = mPendingEnd = 0;
+        mSession.streamChanged(this);
+    }
+
+    IOException getError() {
+        return mError;
+    }
+
+    boolean isFinished() {
+        return mError != null || (mCloseSent && mRemoteClosed && mReadQueue.isEmpty());
+    }
+
+    int getPendingBytes() {
+        return mPendingEnd - mPendingStart;
+    }
+
+    /**
+     * @return true if a DATA or CLOSE frame for this stream can be sent now
+     */
+    boolean hasSendableFrame(long sessionCredit) {
+        if (mError != null) {
+            return false;
+        }
+        int pending = getPendingBytes();
+        if (pending > 0) {
+            return mSendCredit > 0 && sessionCredit > 0;
+        }
+        return mOutputShutdown && !mCloseSent;
+    }
+
+    /**
+     * Remove up to {@code maxLength} bytes for a DATA frame.
+     */
+    byte[] takePending(int maxLength) {
+        int len = (int) Math.min(Math.min(getPendingBytes(), maxLength), mSendCredit);
+        byte[] data = new byte[len];
+        System.arraycopy(mPending, mPendingStart, data, 0, len);
+        mPendingStart += len;
+        if (mPendingStart == mPendingEnd) {
+            mPendingStart = mPendingEnd = 0;
+        }
+        mSendCredit -= len;
+        return data;
+    }
+
+    void closeSent() {
+        mCloseSent = true;
+        mSession.streamChanged(this);
+    }
+
+    boolean hasReceivedFrame() {
+        return mReceivedFrame;
+    }
+
+    /**
+     * @return false if the data exceeded the stream's credit
+     */
+    boolean onData(byte[] data) {
+        mReceivedFrame = true;
+        if (data.length > mReceiveCredit || mRemoteClosed) {
+            return false;
+        }
+        mReceiveCredit -= data.length;
+        if (mInputShutdown) {
+            mSession.consumed(this, data.length);
+        } else if (data.length > 0) {
+            mReadQueue.addLast(data);
+            mReadBufferedBytes += data.length;
+        }
+        return true;
+    }
+
+    void onClose() {
+        mReceivedFrame = true;
+        mRemoteClosed = true;
+        mSession.streamChanged(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s stream %d:%d", mSession, mId, mPort);
+    }
+}
@@ -0,0 +1,875 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.DatagramPacket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One end of a reliable, ordered byte stream between two peers.
+ *
+ * Data is cut into segments of at most {@link #MSS} bytes that are numbered consecutively.
+ * The receiver acknowledges cumulatively and reports out-of-order segments as SACK ranges.
+ * A segment is considered lost once {@link #DUP_THRESH} segments sent after it have been
+ * selectively acknowledged, once a segment sent after it was delivered and it has been
+ * outstanding for more than a round trip plus a reordering allowance, or when the retransmit
+ * timer expires. Before the retransmit timer a tail loss probe is sent after two round trips
+ * without acks, so losses at the end of a flight are found without waiting for the timeout.
+ * The sending rate is governed by {@link CubicCongestionControl} and the receiver's advertised window.
+ *
+ * All state is guarded by the connection's monitor.
+ */
+public class StreamConnection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamConnection.class);
+
+    public static final int MSS = 1200;
+
+    /**
+     * Number of segments the receiver buffers, in order or not, before it stops accepting data.
+     */
+    public static final int RECEIVE_WINDOW = 512;
+
+    /**
+     * Number of bytes that can be written but not yet acknowledged before writes block.
+     */
+    public static final int SEND_BUFFER_SIZE = 1024 * MSS;
+
+    private static final int DUP_THRESH = 3;
+    private static final long MIN_PROBE_TIMEOUT_MICROS = 10000;
+    private static final long MIN_REORDER_WINDOW_MICROS = 1000;
+    private static final long DELAYED_ACK_MS = 10;
+    private static final int MAX_CONSECUTIVE_TIMEOUTS = 8;
+    private static final int MAX_CONNECT_ATTEMPTS = 5;
+    private static final long LINGER_MS = 60000;
+
+    private static final long INITIAL_RTO_MS = 1000;
+    private static final long MIN_RTO_MS = 200;
+    private static final long MAX_RTO_MS = 60000;
+
+    interface Factory {
+        StreamConnection create(int localConnectionId);
+    }
+
+    enum State {
+        CONNECTING,
+        ESTABLISHED,
+        CLOSED
+    }
+
+    private static class Segment {
+        final long seq;
+        final byte[] data;
+        final boolean fin;
+        long sentNanos;
+        int transmissions;
+        boolean sacked;
+        boolean lost;
+        boolean inFlight;
+
+        Segment(long seq, byte[] data, boolean fin) {
+            this.seq = seq;
+            this.data = data;
+            this.fin = fin;
+        }
+    }
+
+    private final StreamManager mManager;
+    private final Peer mRemotePeer;
+    private final int mPort;
+    private final int mLocalConnectionId;
+    private int mRemoteConnectionId;
+    private State mState;
+    private IOException mError;
+    private int mConnectAttempts;
+    private long mConnectSentNanos;
+
+    private final RttEstimator mRtt = new RttEstimator(INITIAL_RTO_MS, MIN_RTO_MS, MAX_RTO_MS);
+    private final CubicCongestionControl mCongestion = new CubicCongestionControl();
+    private ScheduledFuture<?> mRetransmitTimer;
+    private ScheduledFuture<?> mLingerTimer;
+
+    // sender state
+    private final TreeMap<Long, Segment> mUnacked = new TreeMap<Long, Segment>();
+    private final TreeSet<Long> mLost = new TreeSet<Long>();
+    private final byte[] mPending = new byte[SEND_BUFFER_SIZE];
+    private int mPendingStart;
+    private int mPendingEnd;
+    private int mUnackedBytes;
+    private int mInFlight;
+    private long mNextSeq;
+    private long mRecoveryPoint;
+    private int mPeerWindow;
+    private int mConsecutiveTimeouts;
+    private boolean mProbeSent;
+    private long mDeliveredSentNanos;
+    private boolean mPush;
+    private boolean mOutputShutdown;
+    private boolean mFinSent;
+    private boolean mFinAcked;
+
+    // receiver state
+    private final TreeMap<Long, byte[]> mOutOfOrder = new TreeMap<Long, byte[]>();
+    private final ArrayDeque<byte[]> mReadQueue = new ArrayDeque<byte[]>();
+    private int mReadOffset;
+    private int mReadBufferedBytes;
+    private long mReceiveNext;
+    private long mRemoteFinSeq = -1;
+    private boolean mInputShutdown;
+    private int mSegmentsSinceAck;
+    private int mAdvertisedWindow = RECEIVE_WINDOW;
+    private ScheduledFuture<?> mDelayedAck;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : (0xFF & b[0]);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return StreamConnection.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (StreamConnection.this) {
+                return mReadBufferedBytes;
+            }
+        }
+
+        @Override
+        public void close() {
+            shutdownInput();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            StreamConnection.this.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            StreamConnection.this.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            shutdownOutput();
+        }
+    };
+
+    /**
+     * Create the initiating end of a connection. Call {@link #connect(long)} to perform the handshake.
+     */
+    StreamConnection(StreamManager manager, Peer remotePeer, int port, int localConnectionId) {
+        mManager = manager;
+        mRemotePeer = remotePeer;
+        mPort = port;
+        mLocalConnectionId = localConnectionId;
+        mState = State.CONNECTING;
+        mPeerWindow = 1;
+    }
+
+    /**
+     * Create the accepting end of a connection, already established.
+     */
+    StreamConnection(StreamManager manager, Peer remotePeer, int port, int localConnectionId, int remoteConnectionId, int peerWindow) {
+        mManager = manager;
+        mRemotePeer = remotePeer;
+        mPort = port;
+        mLocalConnectionId = localConnectionId;
+        mRemoteConnectionId = remoteConnectionId;
+        mPeerWindow = peerWindow;
+        mState = State.ESTABLISHED;
+    }
+
+    public Peer getRemotePeer() {
+        return mRemotePeer;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    int getLocalConnectionId() {
+        return mLocalConnectionId;
+    }
+
+    synchronized int getRemoteConnectionId() {
+        return mRemoteConnectionId;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * @return the congestion window in segments
+     */
+    public synchronized int getCongestionWindow() {
+        return mCongestion.getWindow();
+    }
+
+    /**
+     * @return the smoothed round trip time in microseconds, or -1 if it has never been measured
+     */
+    public long getSmoothedRtt() {
+        return mRtt.getSmoothedRtt();
+    }
+
+    synchronized int getReceiveWindow() {
+        int buffered = mOutOfOrder.size() + (mReadBufferedBytes + MSS - 1) / MSS;
+        return Math.max(0, RECEIVE_WINDOW - buffered);
+    }
+
+    /**
+     * Send the connect request and block until the remote end accepts or refuses it.
+     */
+    synchronized void connect(long timeoutMillis) throws IOException {
+        sendConnect();
+
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (mState == State.CONNECTING) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    abort(new SocketTimeoutException("connect timed out"));
+                    break;
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            abort(new InterruptedIOException("connect interrupted"));
+        }
+
+        if (mState != State.ESTABLISHED) {
+            throw mError;
+        }
+    }
+
+    private void sendConnect() {
+        mConnectAttempts++;
+        mConnectSentNanos = Clock.get().nanoTime();
+        try {
+            mManager.send(SupernetClientProtocolReceiver.createConnectRequest(mRemotePeer.getSocketAddress(),
+                    mLocalConnectionId, mManager.getLocalId(), mRemotePeer.id, mPort, getReceiveWindow()));
+        } catch (SocketException e) {
+            LOGGER.error("", e);
+        }
+        scheduleRetransmit();
+    }
+
+    synchronized void onConnectResponse(ConnectView response) {
+        if (mState != State.CONNECTING) {
+            return;
+        }
+
+        if (response.getStatus() != ConnectView.STATUS_ACCEPTED) {
+            abort(new ConnectException("connection refused"));
+            return;
+        }
+
+        if (mConnectAttempts == 1) {
+            mRtt.update((Clock.get().nanoTime() - mConnectSentNanos) / 1000);
+        }
+        mRemoteConnectionId = response.getResponderConnectionId();
+        mPeerWindow = response.getReceiveWindow();
+        mState = State.ESTABLISHED;
+        cancelRetransmit();
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        try {
+            while (mReadQueue.isEmpty()) {
+                if (mRemoteFinSeq >= 0 && mReceiveNext > mRemoteFinSeq) {
+                    return -1;
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+                if (mInputShutdown || mState == State.CLOSED) {
+                    throw new SocketException("socket closed");
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+
+        int read = 0;
+        while (read < len && !mReadQueue.isEmpty()) {
+            byte[] head = mReadQueue.peekFirst();
+            int n = Math.min(len - read, head.length - mReadOffset);
+            System.arraycopy(head, mReadOffset, b, off + read, n);
+            read += n;
+            mReadOffset += n;
+            if (mReadOffset == head.length) {
+                mReadQueue.pollFirst();
+                mReadOffset = 0;
+            }
+        }
+        mReadBufferedBytes -= read;
+
+        // window update once the application has made a useful amount of room
+        if (getReceiveWindow() - mAdvertisedWindow >= RECEIVE_WINDOW / 4) {
+            sendAck();
+        }
+        return read;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        try {
+            while (len > 0) {
+                checkWritable();
+                int space = SEND_BUFFER_SIZE - (mPendingEnd - mPendingStart) - mUnackedBytes;
+                if (space <= 0) {
+                    wait();
+                    continue;
+                }
+
+                if (mPendingEnd + space > mPending.length) {
+                    System.arraycopy(mPending, mPendingStart, mPending, 0, mPendingEnd - mPendingStart);
+                    mPendingEnd -= mPendingStart;
+                    mPendingStart = 0;
+                }
+
+                int n = Math.min(space, len);
+                System.arraycopy(b, off, mPending, mPendingEnd, n);
+                mPendingEnd += n;
+                off += n;
+                len -= n;
+                pump();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private synchronized void flush() throws IOException {
+        checkWritable();
+        if (mPendingEnd > mPendingStart) {
+            mPush = true;
+            pump();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (mError != null) {
+            throw mError;
+        }
+        if (mOutputShutdown || mState != State.ESTABLISHED) {
+            throw new SocketException("socket closed");
+        }
+    }
+
+    /**
+     * Send a FIN after any buffered data. Reading is still possible until the remote end closes.
+     */
+    synchronized void shutdownOutput() {
+        if (mOutputShutdown || mState != State.ESTABLISHED) {
+            return;
+        }
+        mOutputShutdown = true;
+        pump();
+    }
+
+    /**
+     * Discard any received and future data.
+     */
+    synchronized void shutdownInput() {
+        mInputShutdown = true;
+        mReadQueue.clear();
+        mReadOffset = 0;
+        mReadBufferedBytes = 0;
+        notifyAll();
+    }
+
+    /**
+     * Gracefully close both directions. The connection lingers until the FIN exchange completes
+     * and is reset if that takes longer than {@link #LINGER_MS}.
+     */
+    synchronized void close() {
+        if (mState == State.CONNECTING) {
+            reset();
+            return;
+        }
+        shutdownInput();
+        shutdownOutput();
+        if (mState == State.ESTABLISHED && mLingerTimer == null) {
+            mLingerTimer = mManager.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (StreamConnection.this) {
+                        mLingerTimer = null;
+                        if (mState != State.CLOSED) {
+                            reset();
+                        }
+                    }
+                }
+            }, LINGER_MS, TimeUnit.MILLISECONDS);
+        }
+        checkClosed();
+    }
+
+    /**
+     * Tell the remote end to drop the connection and close it locally.
+     */
+    synchronized void reset() {
+        if (mState == State.ESTABLISHED) {
+            try {
+                mManager.send(SupernetClientProtocolReceiver.createDisconnect(mRemotePeer.getSocketAddress(), mRemoteConnectionId));
+            } catch (SocketException e) {
+                LOGGER.error("", e);
+            }
+        }
+        abort(new SocketException("socket closed"));
+    }
+
+    synchronized void abort(IOException error) {
+        if (mState == State.CLOSED) {
+            return;
+        }
+        if (mError == null && !isFinished()) {
+            mError = error;
+        }
+        mState = State.CLOSED;
+        cancelRetransmit();
+        cancelDelayedAck();
+        if (mLingerTimer != null) {
+            mLingerTimer.cancel(false);
+            mLingerTimer = null;
+        }
+        mManager.remove(this);
+        notifyAll();
+    }
+
+    private boolean isFinished() {
+        return mFinAcked && mRemoteFinSeq >= 0 && mReceiveNext > mRemoteFinSeq;
+    }
+
+    private void checkClosed() {
+        if (mState == State.ESTABLISHED && isFinished()) {
+            LOGGER.debug("connection {} closed", mLocalConnectionId);
+            abort(null);
+        }
+    }
+
+    synchronized void onData(StreamView data) {
+        if (mState != State.ESTABLISHED) {
+            return;
+        }
+
+        final long seq = data.getSequence();
+        if (seq < mReceiveNext || seq >= mReceiveNext + RECEIVE_WINDOW || mOutOfOrder.containsKey(seq)) {
+            // duplicate or beyond the window; the ack tells the sender where we are
+            sendAck();
+            return;
+        }
+
+        byte[] payload = new byte[data.getPayloadLength()];
+        data.getPayload(payload, 0);
+        if ((data.getFlags() & StreamView.FLAG_FIN) != 0) {
+            mRemoteFinSeq = seq;
+        }
+
+        final boolean inOrder = seq == mReceiveNext;
+        mOutOfOrder.put(seq, payload);
+        while ((payload = mOutOfOrder.remove(mReceiveNext)) != null) {
+            if (payload.length > 0 && !mInputShutdown) {
+                mReadQueue.addLast(payload);
+                mReadBufferedBytes += payload.length;
+            }
+            mReceiveNext++;
+        }
+        notifyAll();
+
+        mSegmentsSinceAck++;
+        if (!inOrder || !mOutOfOrder.isEmpty() || mSegmentsSinceAck >= 2 || seq == mRemoteFinSeq) {
+            sendAck();
+        } else if (mDelayedAck == null) {
+            mDelayedAck = mManager.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (StreamConnection.this) {
+                        mDelayedAck = null;
+                        if (mState == State.ESTABLISHED && mSegmentsSinceAck > 0) {
+                            sendAck();
+                        }
+                    }
+                }
+            }, DELAYED_ACK_MS, TimeUnit.MILLISECONDS);
+        }
+        checkClosed();
+    }
+
+    private void sendAck() {
+        cancelDelayedAck();
+        mSegmentsSinceAck = 0;
+        mAdvertisedWindow = getReceiveWindow();
+
+        long[] sackBlocks = new long[2 * StreamView.MAX_SACK_BLOCKS];
+        int numBlocks = 0;
+        for (Long seq : mOutOfOrder.keySet()) {
+            if (numBlocks > 0 && sackBlocks[2 * numBlocks - 1] == seq) {
+                sackBlocks[2 * numBlocks - 1] = seq + 1;
+            } else if (numBlocks < StreamView.MAX_SACK_BLOCKS) {
+                sackBlocks[2 * numBlocks] = seq;
+                sackBlocks[2 * numBlocks + 1] = seq + 1;
+                numBlocks++;
+            } else {
+                break;
+            }
+        }
+
+        try {
+            mManager.send(SupernetClientProtocolReceiver.createStreamAck(mRemotePeer.getSocketAddress(), mRemoteConnectionId,
+                    mReceiveNext, mAdvertisedWindow, sackBlocks, numBlocks));
+        } catch (SocketException e) {
+            LOGGER.error("", e);
+        }
+    }
+
+    private void cancelDelayedAck() {
+        if (mDelayedAck != null) {
+            mDelayedAck.cancel(false);
+            mDelayedAck = null;
+        }
+    }
+
+    synchronized void onAck(StreamView ack) {
+        if (mState != State.ESTABLISHED) {
+            return;
+        }
+
+        final long now = Clock.get().nanoTime();
+        final long cumulativeAck = ack.getAck();
+        if (cumulativeAck > mNextSeq) {
+            return;
+        }
+        mPeerWindow = ack.getWindow();
+
+        int newlyAcked = 0;
+        long rttSampleNanos = -1;
+
+        while (!mUnacked.isEmpty() && mUnacked.firstKey() < cumulativeAck) {
+            Segment s = mUnacked.pollFirstEntry().getValue();
+            if (!s.sacked) {
+                newlyAcked++;
+                if (s.transmissions == 1) {
+                    rttSampleNanos = now - s.sentNanos;
+                }
+                mDeliveredSentNanos = Math.max(mDeliveredSentNanos, s.sentNanos);
+            }
+            removeFromFlight(s);
+            mLost.remove(s.seq);
+            mUnackedBytes -= s.data.length;
+            if (s.fin) {
+                mFinAcked = true;
+            }
+        }
+
+        for (int i = 0; i < ack.getNumSackBlocks(); i++) {
+            long start = Math.max(ack.getSackStart(i), cumulativeAck);
+            long end = ack.getSackEnd(i);
+            if (end <= start) {
+                continue;
+            }
+            for (Segment s : mUnacked.subMap(start, end).values()) {
+                if (!s.sacked) {
+                    s.sacked = true;
+                    newlyAcked++;
+                    if (s.transmissions == 1) {
+                        rttSampleNanos = now - s.sentNanos;
+                    }
+                    mDeliveredSentNanos = Math.max(mDeliveredSentNanos, s.sentNanos);
+                    removeFromFlight(s);
+                    mLost.remove(s.seq);
+                }
+            }
+        }
+
+        if (rttSampleNanos >= 0) {
+            mRtt.update(rttSampleNanos / 1000);
+        }
+
+        if (newlyAcked > 0) {
+            mConsecutiveTimeouts = 0;
+            mProbeSent = false;
+        }
+
+        long firstLoss = detectLosses(now);
+        if (firstLoss >= 0 && firstLoss >= mRecoveryPoint) {
+            // one window reduction per round trip of losses
+            enterRecovery();
+        } else if (newlyAcked > 0 && cumulativeAck >= mRecoveryPoint) {
+            mCongestion.onAck(newlyAcked, now, mRtt.getSmoothedRtt());
+        }
+
+        if (newlyAcked > 0) {
+            cancelRetransmit();
+        }
+        pump();
+        notifyAll();
+        checkClosed();
+    }
+
+    /**
+     * Mark outstanding segments lost. Only segments sent for the first time are judged by the
+     * SACK count; the time based rule also catches lost retransmissions.
+     * @return the lowest sequence number newly marked lost, or -1
+     */
+    private long detectLosses(long nowNanos) {
+        final long srtt = mRtt.getSmoothedRtt();
+        final long lossDelayNanos = srtt < 0 ? Long.MAX_VALUE
+                : 1000 * (srtt + Math.max(MIN_REORDER_WINDOW_MICROS, srtt / 4));
+
+        long firstLoss = -1;
+        int sackedAbove = 0;
+        for (Segment s : mUnacked.descendingMap().values()) {
+            if (s.sacked) {
+                sackedAbove++;
+            } else if (!s.lost && ((sackedAbove >= DUP_THRESH && s.transmissions == 1)
+                    || (s.sentNanos < mDeliveredSentNanos && nowNanos - s.sentNanos >= lossDelayNanos))) {
+                markLost(s);
+                firstLoss = s.seq;
+            }
+        }
+        return firstLoss;
+    }
+
+    private void enterRecovery() {
+        mCongestion.onLoss();
+        mRecoveryPoint = mNextSeq;
+        LOGGER.trace("{} loss, cwnd: {}", this, mCongestion.getWindow());
+    }
+
+    private void markLost(Segment s) {
+        s.lost = true;
+        removeFromFlight(s);
+        mLost.add(s.seq);
+    }
+
+    private void removeFromFlight(Segment s) {
+        if (s.inFlight) {
+            s.inFlight = false;
+            mInFlight--;
+        }
+    }
+
+    private void transmit(Segment s) {
+        s.sentNanos = Clock.get().nanoTime();
+        s.transmissions++;
+        s.lost = false;
+        if (!s.inFlight) {
+            s.inFlight = true;
+            mInFlight++;
+        }
+
+        try {
+            mManager.send(SupernetClientProtocolReceiver.createStreamData(mRemotePeer.getSocketAddress(), mRemoteConnectionId,
+                    s.seq, s.fin ? StreamView.FLAG_FIN : 0, s.data, 0, s.data.length));
+        } catch (SocketException e) {
+            LOGGER.error("", e);
+        }
+    }
+
+    /**
+     * Send as many lost and new segments as the congestion and receive windows allow.
+     */
+    private void pump() {
+        if (mState != State.ESTABLISHED) {
+            return;
+        }
+
+        final int window = mCongestion.getWindow();
+
+        Iterator<Long> it = mLost.iterator();
+        while (mInFlight < window && it.hasNext()) {
+            Segment s = mUnacked.get(it.next());
+            it.remove();
+            if (s != null && !s.sacked) {
+                transmit(s);
+            }
+        }
+
+        final long sendUnacked = mUnacked.isEmpty() ? mNextSeq : mUnacked.firstKey();
+        while (mInFlight < window && mNextSeq < sendUnacked + mPeerWindow) {
+            if (!sendNewSegment(false)) {
+                break;
+            }
+        }
+
+        if (!mUnacked.isEmpty() || (mPendingEnd > mPendingStart || (mOutputShutdown && !mFinSent))) {
+            scheduleRetransmit();
+        }
+    }
+
+    /**
+     * @param force send a partial segment even if more data could be coming; used for window probes
+     * @return true if a segment was sent
+     */
+    private boolean sendNewSegment(boolean force) {
+        final int pending = mPendingEnd - mPendingStart;
+        final int len = Math.min(MSS, pending);
+        final boolean fin = mOutputShutdown && !mFinSent && len == pending;
+        if (len == 0 && !fin) {
+            return false;
+        }
+
+        // only send a partial segment when asked to, or when nothing is outstanding
+        if (len < MSS && !fin && !mPush && !mUnacked.isEmpty() && !force) {
+            return false;
+        }
+
+        byte[] data = new byte[len];
+        System.arraycopy(mPending, mPendingStart, data, 0, len);
+        mPendingStart += len;
+        if (mPendingStart == mPendingEnd) {
+            mPendingStart = mPendingEnd = 0;
+            mPush = false;
+        }
+
+        Segment s = new Segment(mNextSeq++, data, fin);
+        mUnacked.put(s.seq, s);
+        mUnackedBytes += len;
+        if (fin) {
+            mFinSent = true;
+        }
+        transmit(s);
+        return true;
+    }
+
+    private void scheduleRetransmit() {
+        if (mRetransmitTimer != null || mState == State.CLOSED) {
+            return;
+        }
+
+        long delayMicros = 1000 * mRtt.getRto();
+        final long srtt = mRtt.getSmoothedRtt();
+        if (mState == State.ESTABLISHED && !mProbeSent && !mUnacked.isEmpty() && srtt >= 0) {
+            delayMicros = Math.min(delayMicros, Math.max(MIN_PROBE_TIMEOUT_MICROS, 2 * srtt));
+        }
+        mRetransmitTimer = mManager.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onRetransmitTimeout();
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private void cancelRetransmit() {
+        if (mRetransmitTimer != null) {
+            mRetransmitTimer.cancel(false);
+            mRetransmitTimer = null;
+        }
+    }
+
+    private synchronized void onRetransmitTimeout() {
+        mRetransmitTimer = null;
+
+        if (mState == State.CONNECTING) {
+            if (mConnectAttempts >= MAX_CONNECT_ATTEMPTS) {
+                abort(new SocketTimeoutException("connect timed out"));
+            } else {
+                mRtt.backoff();
+                sendConnect();
+            }
+            return;
+        }
+
+        if (mState != State.ESTABLISHED) {
+            return;
+        }
+
+        if (mUnacked.isEmpty()) {
+            // the receive window is closed; probe it with one segment
+            sendNewSegment(true);
+            mRtt.backoff();
+            scheduleRetransmit();
+            return;
+        }
+
+        if (!mProbeSent && mRtt.getSmoothedRtt() >= 0) {
+            // tail loss probe: recover whatever the time based rule now considers lost, otherwise
+            // elicit an ack with one segment. The window is only reduced once a loss is confirmed.
+            mProbeSent = true;
+            long firstLoss = detectLosses(Clock.get().nanoTime());
+            if (firstLoss >= 0) {
+                if (firstLoss >= mRecoveryPoint) {
+                    enterRecovery();
+                }
+                pump();
+            } else if (!sendNewSegment(true)) {
+                for (Segment s : mUnacked.descendingMap().values()) {
+                    if (!s.sacked) {
+                        transmit(s);
+                        break;
+                    }
+                }
+            }
+            scheduleRetransmit();
+            return;
+        }
+
+        if (++mConsecutiveTimeouts > MAX_CONSECUTIVE_TIMEOUTS) {
+            LOGGER.warn("connection {} to {} timed out", mLocalConnectionId, mRemotePeer);
+            abort(new SocketTimeoutException("connection timed out"));
+            return;
+        }
+
+        LOGGER.debug("{} retransmit timeout, rto: {}", this, mRtt.getRto());
+        mRtt.backoff();
+        mCongestion.onTimeout();
+        mRecoveryPoint = mNextSeq;
+        for (Map.Entry<Long, Segment> e : mUnacked.entrySet()) {
+            Segment s = e.getValue();
+            if (!s.sacked) {
+                markLost(s);
+            }
+        }
+        pump();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d -> %s:%d", mLocalConnectionId, mRemotePeer, mPort);
+    }
+}
@@ -0,0 +1,186 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns every {@link StreamConnection} of a client: demultiplexes CONNECT, DISCONNECT and
+ * STREAM packets to them by connection ID and runs their retransmit and ack timers.
+ * Connections accepted on {@link SessionManager#SESSION_PORT} are handed to the client's
+ * {@link SessionManager}; any other port is refused.
+ */
+public class StreamManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamManager.class);
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 30000;
+
+    private static class RemoteKey {
+        final InetSocketAddress address;
+        final int connectionId;
+
+        RemoteKey(InetSocketAddress address, int connectionId) {
+            this.address = address;
+            this.connectionId = connectionId;
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode() ^ connectionId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(obj == null || obj.getClass() != getClass()) {
+                return false;
+            }
+            RemoteKey other = (RemoteKey) obj;
+            return connectionId == other.connectionId && address.equals(other.address);
+        }
+    }
+
+    private final SupernetClientImp mClient;
+    private final ScheduledExecutorService mTimer;
+    private final Random mRandom = new Random();
+    private final ConcurrentHashMap<Integer, StreamConnection> mConnections = new ConcurrentHashMap<Integer, StreamConnection>();
+    private final ConcurrentHashMap<RemoteKey, StreamConnection> mAccepted = new ConcurrentHashMap<RemoteKey, StreamConnection>();
+
+    StreamManager(SupernetClientImp client) {
+        mClient = client;
+        mTimer = client.mRuntime.newClientExecutor();
+    }
+
+    ID getLocalId() {
+        return mClient.getID();
+    }
+
+    void send(DatagramPacket packet) {
+        try {
+            mClient.send(packet);
+        } catch (IOException e) {
+            LOGGER.error("", e);
+        }
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return mTimer.schedule(task, delay, unit);
+    }
+
+    private StreamConnection register(StreamConnection.Factory factory) {
+        while(true) {
+            int id = mRandom.nextInt();
+            StreamConnection connection = factory.create(id);
+            if(mConnections.putIfAbsent(id, connection) == null) {
+                return connection;
+            }
+        }
+    }
+
+    StreamConnection connect(final Peer peer, final int port, long timeoutMillis) throws IOException {
+        StreamConnection connection = register(new StreamConnection.Factory() {
+            @Override
+            public StreamConnection create(int connectionId) {
+                return new StreamConnection(StreamManager.this, peer, port, connectionId);
+            }
+        });
+        LOGGER.debug("connecting {}", connection);
+        connection.connect(timeoutMillis);
+        return connection;
+    }
+
+    void remove(StreamConnection connection) {
+        mConnections.remove(connection.getLocalConnectionId(), connection);
+        mAccepted.remove(new RemoteKey(connection.getRemotePeer().getSocketAddress(), connection.getRemoteConnectionId()), connection);
+    }
+
+    void receiveConnect(ConnectView connect, InetSocketAddress remoteAddress) {
+        if(!connect.isRequest()) {
+            StreamConnection connection = mConnections.get(connect.getInitiatorConnectionId());
+            if(connection != null && connection.getRemotePeer().getSocketAddress().equals(remoteAddress)) {
+                connection.onConnectResponse(connect);
+            }
+            return;
+        }
+
+        final int remoteConnectionId = connect.getInitiatorConnectionId();
+        if(!connect.targetEquals(getLocalId())) {
+            sendConnectResponse(remoteAddress, remoteConnectionId, 0, ConnectView.STATUS_REFUSED, 0);
+            return;
+        }
+
+        final RemoteKey key = new RemoteKey(remoteAddress, remoteConnectionId);
+        StreamConnection connection = mAccepted.get(key);
+        if(connection == null) {
+            if(connect.getPort() != SessionManager.SESSION_PORT) {
+                LOGGER.debug("refused connection to port {} from {}", connect.getPort(), remoteAddress);
+                sendConnectResponse(remoteAddress, remoteConnectionId, 0, ConnectView.STATUS_REFUSED, 0);
+                return;
+            }
+
+            final Peer peer = new Peer(connect.getInitiatorId(), remoteAddress);
+            final int port = connect.getPort();
+            final int peerWindow = connect.getReceiveWindow();
+            connection = register(new StreamConnection.Factory() {
+                @Override
+                public StreamConnection create(int connectionId) {
+                    return new StreamConnection(StreamManager.this, peer, port, connectionId, remoteConnectionId, peerWindow);
+                }
+            });
+
+            mAccepted.put(key, connection);
+            LOGGER.debug("accepted {}", connection);
+            mClient.mSessions.accept(connection);
+        }
+
+        // also answers retransmitted requests whose response was lost
+        sendConnectResponse(remoteAddress, remoteConnectionId, connection.getLocalConnectionId(),
+                ConnectView.STATUS_ACCEPTED, connection.getReceiveWindow());
+    }
+
+    private void sendConnectResponse(InetSocketAddress remoteAddress, int initiatorConnectionId, int connectionId, int status, int window) {
+        try {
+            send(SupernetClientProtocolReceiver.createConnectResponse(remoteAddress, initiatorConnectionId, connectionId, status, window));
+        } catch (SocketException e) {
+            LOGGER.error("", e);
+        }
+    }
+
+    void receiveDisconnect(int connectionId, InetSocketAddress remoteAddress) {
+        StreamConnection connection = mConnections.get(connectionId);
+        if(connection != null && connection.getRemotePeer().getSocketAddress().equals(remoteAddress)) {
+            LOGGER.debug("connection reset {}", connection);
+            connection.abort(new SocketException("connection reset"));
+        }
+    }
+
+    void receiveStream(StreamView stream, InetSocketAddress remoteAddress) {
+        StreamConnection connection = mConnections.get(stream.getConnectionId());
+        if(connection == null || !connection.getRemotePeer().getSocketAddress().equals(remoteAddress)) {
+            return;
+        }
+
+        if(stream.isRequest()) {
+            connection.onData(stream);
+        } else {
+            connection.onAck(stream);
+        }
+    }
+
+    void shutdown() {
+        for(StreamConnection connection : mConnections.values()) {
+            connection.reset();
+        }
+        mTimer.shutdown();
+    }
+}
@@ -0,0 +1,84 @@
+package com.devsmart.supernet;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * View over a stream data segment (request) or its acknowledgement (response).
+ */
+public class StreamView extends PacketView {
+
+    public static final int CONNECTION_ID_OFFSET = 1;
+
+    // data
+    public static final int SEQUENCE_OFFSET = 5;
+    public static final int FLAGS_OFFSET = 9;
+    public static final int PAYLOAD_OFFSET = 10;
+
+    public static final int FLAG_FIN = 0x01;
+
+    // ack
+    public static final int ACK_OFFSET = 5;
+    public static final int WINDOW_OFFSET = 9;
+    public static final int NUM_SACK_BLOCKS_OFFSET = 13;
+    public static final int SACK_BLOCKS_OFFSET = 14;
+    public static final int SACK_BLOCK_LENGTH = 8;
+    public static final int MAX_SACK_BLOCKS = 4;
+
+    @Override
+    public StreamView wrap(ByteBuffer buffer) {
+        super.wrap(buffer);
+        return this;
+    }
+
+    public boolean isValid() {
+        if(isRequest()) {
+            return mLength >= PAYLOAD_OFFSET;
+        } else {
+            return mLength >= SACK_BLOCKS_OFFSET && mLength >= SACK_BLOCKS_OFFSET + getNumSackBlocks() * SACK_BLOCK_LENGTH;
+        }
+    }
+
+    public int getConnectionId() {
+        return getInt32(CONNECTION_ID_OFFSET);
+    }
+
+    public long getSequence() {
+        return getUInt32(SEQUENCE_OFFSET);
+    }
+
+    public int getFlags() {
+        return getUInt8(FLAGS_OFFSET);
+    }
+
+    public int getPayloadLength() {
+        return mLength - PAYLOAD_OFFSET;
+    }
+
+    public void getPayload(byte[] dst, int offset) {
+        ByteBuffer src = mBuffer.duplicate();
+        src.position(mOffset + PAYLOAD_OFFSET);
+        src.limit(mOffset + mLength);
+        src.get(dst, offset, getPayloadLength());
+    }
+
+    public long getAck() {
+        return getUInt32(ACK_OFFSET);
+    }
+
+    public int getWindow() {
+        return getInt32(WINDOW_OFFSET);
+    }
+
+    public int getNumSackBlocks() {
+        return Math.min(MAX_SACK_BLOCKS, getUInt8(NUM_SACK_BLOCKS_OFFSET));
+    }
+
+    public long getSackStart(int i) {
+        return getUInt32(SACK_BLOCKS_OFFSET + i * SACK_BLOCK_LENGTH);
+    }
+
+    public long getSackEnd(int i) {
+        return getUInt32(SACK_BLOCKS_OFFSET + i * SACK_BLOCK_LENGTH + 4);
+    }
+}
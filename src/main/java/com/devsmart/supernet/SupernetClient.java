@@ -1,11 +1,15 @@
 package com.devsmart.supernet;
 
 
+import com.devsmart.supernet.events.ClientEvents;
+import com.devsmart.supernet.metrics.ClientMetrics;
 import com.google.common.base.Preconditions;
 import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -14,7 +18,9 @@ import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public abstract class SupernetClient {
 
@@ -30,14 +36,107 @@ public abstract class SupernetClient {
     }
 
     public abstract void bootstrap(String address);
+
+    /**
+     * @return the UDP socket, or null if the client was built with a transport that has none
+     */
     public abstract DatagramSocket getUDPSocket();
+
+    /**
+     * @return the address this client receives packets on
+     */
+    public abstract InetSocketAddress getLocalAddress();
+
     public abstract  void sendPacket(ID target, byte[] data, int offset, int len) throws IOException;
-    public abstract void packetReceived(byte[] data, int offset, int len);
+
+    /**
+     * Set the handler that receives the payloads of packets routed to this client. Until one
+     * is set, those payloads are dropped.
+     * @param handler the new handler, or null to drop them again
+     */
+    public abstract void setMessageHandler(MessageHandler handler);
+
+    /**
+     * Start an iterative lookup for the peers closest to {@code target}.
+     * @return a future that completes with up to {@link RoutingTable#MAX_BUCKET_SIZE} peers
+     * that answered the lookup, closest first
+     */
+    public abstract ListenableFuture<List<Peer>> findClosestPeers(ID target);
+
+    /**
+     * Open a reliable stream to {@code port} on the peer with ID {@code remote}. Streams to the
+     * same peer share one session; only the first one looks the peer up and waits for a
+     * handshake. A refused stream fails its first read or write with {@link java.net.ConnectException}.
+     * @throws java.net.NoRouteToHostException if the peer can not be found
+     */
+    public SNSocket connect(ID remote, int port) throws IOException {
+        return connect(remote, port, SessionStream.DEFAULT_PRIORITY);
+    }
+
+    /**
+     * @param priority streams with a higher priority are sent first when several streams to
+     *                 the same peer have data ready
+     * @see #connect(ID, int)
+     */
+    public abstract SNSocket connect(ID remote, int port, int priority) throws IOException;
+
+    /**
+     * Accept streams to {@code port} on this peer.
+     * @throws java.net.BindException if the port is already being listened on
+     */
+    public abstract SNSocketServer listen(int port) throws IOException;
+
+    /**
+     * @return the average number of routed messages sent per datagram, 1 unless route batching
+     * is enabled with {@link Builder#withRouteBatching(long, int)}
+     */
+    public abstract double getRouteBatchingRatio();
+
+    /**
+     * @return packet counts and latencies, also registered over JMX while the client runs
+     */
+    public abstract ClientMetrics getMetrics();
+
+    /**
+     * @return the peer and lookup events of this client, for subscribing to
+     */
+    public abstract ClientEvents getEvents();
+
+    public enum IOMode {
+        /**
+         * Non-blocking {@link java.nio.channels.DatagramChannel} with a
+         * {@link java.nio.channels.Selector}, receiving into a pool of direct buffers sized to
+         * the MTU. See {@link NioTransport}.
+         */
+        NIO,
+
+        /**
+         * Like {@link #NIO}, but sends are queued and written out by the IO thread, which waits
+         * for the socket to become writable instead of dropping. See {@link BatchedNioTransport}.
+         */
+        BATCHED_NIO,
+
+        /**
+         * Blocking {@link DatagramSocket} with a dedicated receive thread, even when the client
+         * is built against a shared {@link SupernetRuntime}.
+         */
+        DATAGRAM_SOCKET
+    }
 
     public static class Builder {
 
         private ID mId;
         private Integer mUDPPort;
+        private IOMode mIOMode = IOMode.NIO;
+        private Transport mTransport;
+        private SupernetRuntime mRuntime;
+        private int mNumWorkerThreads = Runtime.getRuntime().availableProcessors();
+        private long mBatchMaxDelayMicros = -1;
+        private int mBatchMaxDatagramSize;
+        private File mSnapshotFile;
+        private File mPeerStoreFile;
+        private int mPeerStoreCapacity;
+        private long mMetricsLogMillis;
 
         public Builder withId(ID id) {
             mId = id;
@@ -49,20 +148,135 @@ public abstract class SupernetClient {
             return this;
         }
 
+        public Builder withIOMode(IOMode mode) {
+            mIOMode = Preconditions.checkNotNull(mode);
+            return this;
+        }
+
+        /**
+         * Use {@code transport} instead of one of the built-in {@link IOMode}s. The UDP port
+         * and IO mode are ignored.
+         */
+        public Builder withTransport(Transport transport) {
+            mTransport = Preconditions.checkNotNull(transport);
+            return this;
+        }
+
+        /**
+         * Run on {@code runtime}'s threads instead of starting a private set of threads for
+         * this client. The runtime is not shut down with the client.
+         */
+        public Builder withRuntime(SupernetRuntime runtime) {
+            mRuntime = Preconditions.checkNotNull(runtime);
+            return this;
+        }
+
+        /**
+         * Number of threads received packets are dispatched to. Packets from the same
+         * remote peer are always handled by the same thread. Ignored if the client is built
+         * with {@link #withRuntime(SupernetRuntime)}.
+         */
+        public Builder withWorkerThreads(int numThreads) {
+            Preconditions.checkArgument(numThreads > 0);
+            mNumWorkerThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * Coalesce routed messages bound for the same next hop into one datagram, trading up to
+         * {@code maxDelayMicros} of latency for fewer datagrams. Disabled by default.
+         * @param maxDatagramSize upper bound on the size of a batched datagram
+         */
+        public Builder withRouteBatching(long maxDelayMicros, int maxDatagramSize) {
+            Preconditions.checkArgument(maxDelayMicros >= 0);
+            Preconditions.checkArgument(maxDatagramSize >= 64 && maxDatagramSize <= Utils.MAX_UDP_PAYLOAD);
+            mBatchMaxDelayMicros = maxDelayMicros;
+            mBatchMaxDatagramSize = maxDatagramSize;
+            return this;
+        }
+
+        /**
+         * Save the routing table to {@code file} every few minutes and on shutdown, and restore
+         * it from there on start. Restored peers are pinged right away so the table is usable
+         * within seconds instead of after several lookup rounds.
+         */
+        public Builder withRoutingTableSnapshot(File file) {
+            mSnapshotFile = Preconditions.checkNotNull(file);
+            return this;
+        }
+
+        /**
+         * Keep up to {@code capacity} peers evicted from the routing table in a memory-mapped
+         * {@link PeerStore} at {@code file}, and refill buckets from it. Meant for nodes that
+         * should remember far more peers than the routing table holds.
+         */
+        public Builder withPeerStore(File file, int capacity) {
+            Preconditions.checkArgument(capacity > 0);
+            mPeerStoreFile = Preconditions.checkNotNull(file);
+            mPeerStoreCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Write the client's {@link ClientMetrics} to the log every {@code interval}. Off by
+         * default; the metrics are collected and exported over JMX either way.
+         */
+        public Builder withMetricsLog(long interval, TimeUnit unit) {
+            Preconditions.checkArgument(interval > 0);
+            mMetricsLogMillis = unit.toMillis(interval);
+            return this;
+        }
+
         public SupernetClient build() throws IOException {
             Preconditions.checkState(mId != null);
 
-            SupernetClientImp retval = new SupernetClientImp();
+            SupernetRuntime runtime = mRuntime;
+            if(runtime == null) {
+                runtime = new SupernetRuntime(1, mNumWorkerThreads, 2);
+            }
+            try {
+                return build(runtime);
+            } catch (IOException e) {
+                if(runtime != mRuntime) {
+                    runtime.shutdown();
+                }
+                throw e;
+            }
+        }
+
+        private SupernetClient build(SupernetRuntime runtime) throws IOException {
+            SupernetClientImp retval = new SupernetClientImp(runtime, runtime != mRuntime);
             retval.mClientId = mId;
             retval.mPeerRoutingTable = new RoutingTable(mId);
+            retval.mNextHopCache = new NextHopCache(retval.mPeerRoutingTable);
+            retval.mSnapshotFile = mSnapshotFile;
+            retval.mMetricsLogMillis = mMetricsLogMillis;
+            if(mPeerStoreFile != null) {
+                retval.mPeerStore = new PeerStore(mPeerStoreFile, mPeerStoreCapacity);
+                retval.mPeerRoutingTable.setPeerStore(retval.mPeerStore);
+            }
+            if(mBatchMaxDelayMicros >= 0) {
+                retval.mRouteBatcher = new RouteBatcher(retval, mBatchMaxDelayMicros, mBatchMaxDatagramSize);
+            }
 
-            if(mUDPPort != null) {
-                retval.mUDPSocket = new DatagramSocket(mUDPPort);
+            if(mTransport != null) {
+                retval.mTransport = mTransport;
             } else {
-                retval.mUDPSocket = new DatagramSocket();
+                switch (mIOMode) {
+                    case NIO:
+                        retval.mTransport = new NioTransport(mUDPPort, runtime.nextEventLoop());
+                        break;
+
+                    case BATCHED_NIO:
+                        retval.mTransport = new BatchedNioTransport(mUDPPort, runtime.nextEventLoop());
+                        break;
+
+                    case DATAGRAM_SOCKET:
+                        retval.mTransport = new DatagramSocketTransport(mUDPPort);
+                        break;
+                }
             }
 
-            retval.mUDPSocket.setReuseAddress(true);
             return retval;
         }
     }
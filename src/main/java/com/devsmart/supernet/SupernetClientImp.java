@@ -1,41 +1,89 @@
 package com.devsmart.supernet;
 
-import com.google.common.eventbus.EventBus;
+import com.devsmart.supernet.events.ClientEvents;
+import com.devsmart.supernet.events.NewPeerDiscovered;
+import com.devsmart.supernet.events.PeerEvicted;
+import com.devsmart.supernet.events.PeerStatusChanged;
+import com.devsmart.supernet.events.SupernetEvent;
+import com.devsmart.supernet.metrics.ClientMetrics;
+import com.devsmart.supernet.metrics.Gauge;
+import com.devsmart.supernet.metrics.Tracer;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 class SupernetClientImp extends SupernetClient {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SupernetClientImp.class);
-
-    DatagramSocket mUDPSocket;
-
-    private Thread mUDPReceiveThread;
-    private boolean mUDPSocketRunning;
-    private PacketReceiver mPacketReceiver;
-    final ScheduledExecutorService mMainThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
-        @Override
-        public Thread newThread(Runnable r) {
-            return new Thread(r, "SupernetClient Main Thread");
-        }
-    });
+    private static final Tracer TRACER = Tracer.get();
+
+    /**
+     * Hop limit routed packets are sent with
+     */
+    static final int MAX_ROUTE_HOPS = 10;
+
+    Transport mTransport;
+    private volatile PacketReceiver mPacketReceiver;
+    private volatile MessageHandler mMessageHandler;
+    final SupernetRuntime mRuntime;
+    private final boolean mOwnsRuntime;
+    final ScheduledExecutorService mMainThread;
+    final ScheduledExecutorService mMaintenanceThread;
+    final PacketDispatcher mDispatcher;
+    RouteBatcher mRouteBatcher;
+    File mSnapshotFile;
+    PeerStore mPeerStore;
+    final ClientMetrics mMetrics = new ClientMetrics();
+    long mMetricsLogMillis;
 
     RoutingTable mPeerRoutingTable;
-    public final EventBus mEventBus = new EventBus();
+    NextHopCache mNextHopCache;
+    final TransactionTable mTransactions;
+    final StreamManager mStreams;
+    final SessionManager mSessions;
+    final ClientEvents mEvents = new ClientEvents();
     PeerMaintenenceTask mPeerMaintenence;
     SupernetClientProtocolReceiver mBaseProtocolReceiver;
 
+    /**
+     * @param ownsRuntime shut {@code runtime} down with this client
+     */
+    SupernetClientImp(SupernetRuntime runtime, boolean ownsRuntime) {
+        mRuntime = runtime;
+        mOwnsRuntime = ownsRuntime;
+        final ClientExecutor mainThread = runtime.newClientExecutor();
+        mMainThread = mainThread;
+        mMetrics.setMainQueueDepth(new Gauge() {
+            @Override
+            public long get() {
+                return mainThread.getQueueDepth();
+            }
+        });
+        mMaintenanceThread = runtime.newClientExecutor();
+        mDispatcher = runtime.getDispatcher();
+        mTransactions = new TransactionTable(this, mMaintenanceThread);
+        mStreams = new StreamManager(this);
+        mSessions = new SessionManager(this);
+    }
+
 
     public void peerSeen(Peer peer) {
         if(!peer.id.equals(mClientId)) {
+            peer.markSeen();
+            updateStatus(peer);
             RoutingTable.Bucket bucket = mPeerRoutingTable.getBucket(peer.id);
             bucket.addPeer(peer);
         }
@@ -52,8 +100,8 @@ class SupernetClientImp extends SupernetClient {
 
                     LOGGER.trace("sending ping to: {}", address);
 
-                    DatagramPacket packet = SupernetClientProtocolReceiver.createPing(address, getID());
-                    mUDPSocket.send(packet);
+                    DatagramPacket packet = SupernetClientProtocolReceiver.createPing(address, getID(), 0);
+                    send(packet);
 
                 } catch (IOException e) {
                     LOGGER.error("", e);
@@ -65,30 +113,148 @@ class SupernetClientImp extends SupernetClient {
 
     @Override
     public DatagramSocket getUDPSocket() {
-        return mUDPSocket;
+        return mTransport.getSocket();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return mTransport.getLocalAddress();
     }
 
     @Override
     public void sendPacket(ID target, byte[] data, int offset, int len) throws IOException {
-        Peer nearest;
-        int hops = 10;
-        Iterator<Peer> it = mPeerRoutingTable.getClosestPeers(target).iterator();
-        while(it.hasNext() && (nearest = it.next()).getStatus() == Peer.Status.ALIVE) {
+        int hops = MAX_ROUTE_HOPS;
+        Peer nextHop = selectNextHop(target);
+        if(nextHop != null) {
 
             int payloadLen = len - (1 + ID.NUM_BYTES + 1);
-            DatagramPacket packet = SupernetClientProtocolReceiver.createRoute(nearest.getSocketAddress(), target, hops,
-                    data, offset + 1 + ID.NUM_BYTES + 1, payloadLen);
+            if(mRouteBatcher != null) {
+                mRouteBatcher.send(target, hops, data, offset + 1 + ID.NUM_BYTES + 1, payloadLen, nextHop.getSocketAddress());
+            } else {
+                DatagramPacket packet = SupernetClientProtocolReceiver.createRoute(nextHop.getSocketAddress(), target, hops,
+                        data, offset + 1 + ID.NUM_BYTES + 1, payloadLen);
+                send(packet);
+            }
+        }
+    }
+
+    @Override
+    public ListenableFuture<List<Peer>> findClosestPeers(ID target) {
+        PeerLookup lookup = new PeerLookup(this, target, RoutingTable.MAX_BUCKET_SIZE);
+        lookup.start();
+        return lookup.getFuture();
+    }
+
+    @Override
+    public SNSocket connect(ID remote, int port, int priority) throws IOException {
+        return new SNSocket(mSessions.open(remote, port, priority));
+    }
+
+    @Override
+    public SNSocketServer listen(int port) throws IOException {
+        return mSessions.listen(port);
+    }
+
+    /**
+     * Find the address of the peer with ID {@code remote} in the routing table or, failing
+     * that, with a lookup.
+     * @throws NoRouteToHostException if the peer can not be found
+     */
+    Peer resolvePeer(ID remote) throws IOException {
+        Peer peer = null;
+        List<Peer> closest = mPeerRoutingTable.getKClosest(remote, 1, Peer.IS_ALIVE);
+        if(!closest.isEmpty() && closest.get(0).id.equals(remote)) {
+            peer = closest.get(0);
+        } else {
+            try {
+                closest = findClosestPeers(remote).get(StreamManager.DEFAULT_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if(!closest.isEmpty() && closest.get(0).id.equals(remote)) {
+                    peer = closest.get(0);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                LOGGER.warn("lookup failed", e);
+            } catch (TimeoutException e) {
+                LOGGER.warn("lookup for {} timed out", remote);
+            }
+        }
 
-            mUDPSocket.send(packet);
+        if(peer == null) {
+            throw new NoRouteToHostException("no route to peer " + remote);
+        }
+        return peer;
+    }
+
+    /**
+     * Number of closest ALIVE peers considered when picking the next hop for a routed packet
+     */
+    private static final int NUM_NEXT_HOP_CANDIDATES = 3;
+
+    /**
+     * Pick the peer to forward a packet for {@code target} to. If the target itself is ALIVE
+     * it is used directly, otherwise the lowest RTT peer of the few ALIVE peers closest to the
+     * target is chosen. The choice is remembered in the {@link NextHopCache}.
+     * @return the next hop or null if there are no ALIVE peers
+     */
+    Peer selectNextHop(ID target) {
+        Peer retval = mNextHopCache.get(target);
+        if(retval != null) {
+            mMetrics.routeCacheHits.increment();
+            return retval;
+        }
+        mMetrics.routeCacheMisses.increment();
 
-            break;
+        final long version = mPeerRoutingTable.getVersion();
+        retval = searchNextHop(target);
+        if(retval != null) {
+            mNextHopCache.put(target, retval, version);
         }
+        return retval;
+    }
+
+    private Peer searchNextHop(ID target) {
+        List<Peer> candidates = mPeerRoutingTable.getKClosest(target, NUM_NEXT_HOP_CANDIDATES, Peer.IS_ALIVE);
+        if(candidates.isEmpty()) {
+            return null;
+        }
+
+        Peer retval = candidates.get(0);
+        if(retval.id.equals(target)) {
+            return retval;
+        }
+
+        for(int i=1;i<candidates.size();i++) {
+            Peer candidate = candidates.get(i);
+            if(Peer.LOWEST_RTT_FIRST.compare(candidate, retval) < 0) {
+                retval = candidate;
+            }
+        }
+        return retval;
     }
 
     @Override
-    public void packetReceived(byte[] data, int offset, int len) {
-        LOGGER.debug("packet received");
+    public ClientEvents getEvents() {
+        return mEvents;
+    }
 
+    @Override
+    public void setMessageHandler(MessageHandler handler) {
+        mMessageHandler = handler;
+    }
+
+    void deliver(ByteBuffer payload) {
+        MessageHandler handler = mMessageHandler;
+        if(handler == null) {
+            mMetrics.messagesUndelivered.increment();
+            return;
+        }
+        try {
+            handler.onMessage(payload);
+            mMetrics.messagesDelivered.increment();
+        } catch (RuntimeException e) {
+            LOGGER.error("", e);
+        }
     }
 
     @Override
@@ -97,17 +263,36 @@ class SupernetClientImp extends SupernetClient {
 
             LOGGER.info("Local peer starting with ID: {}", mClientId);
 
-            mAddresses.add(mUDPSocket.getLocalSocketAddress());
+            mAddresses.add(mTransport.getLocalAddress());
 
             mBaseProtocolReceiver = new SupernetClientProtocolReceiver();
             mBaseProtocolReceiver.mClient = this;
             mPacketReceiver = mBaseProtocolReceiver;
 
-            mUDPReceiveThread = new Thread(mReceiveUDPTask, "Receive UDP");
-            mUDPReceiveThread.start();
+            mMetrics.setRoutingTablePeers(new Gauge() {
+                @Override
+                public long get() {
+                    return mPeerRoutingTable.getNumPeers();
+                }
+            });
+            mMetrics.setRoutingTableBuckets(new Gauge() {
+                @Override
+                public long get() {
+                    return mPeerRoutingTable.getBuckets().size();
+                }
+            });
+            mMetrics.register(mClientId);
+            mPeerRoutingTable.addListener(mRoutingTableListener);
+
+            mTransport.start(mTransportReceiver);
+
+            List<Peer> restoredPeers = loadSnapshot();
 
             mPeerMaintenence = new PeerMaintenenceTask(this);
             mPeerMaintenence.start();
+            if(!restoredPeers.isEmpty()) {
+                mPeerMaintenence.warmStart(restoredPeers);
+            }
 
         } catch (Exception e) {
             LOGGER.error("", e);
@@ -118,10 +303,22 @@ class SupernetClientImp extends SupernetClient {
     public void shutdown() {
         try {
             mPeerMaintenence.stop();
-            if (mUDPReceiveThread != null) {
-                mUDPSocketRunning = false;
-                mUDPReceiveThread.join();
-                mUDPReceiveThread = null;
+            mPeerRoutingTable.removeListener(mRoutingTableListener);
+            saveSnapshot();
+            mSessions.shutdown();
+            mStreams.shutdown();
+            if (mRouteBatcher != null) {
+                mRouteBatcher.shutdown();
+            }
+            mTransport.close();
+            if (mPeerStore != null) {
+                mPeerStore.close();
+            }
+            mMetrics.unregister();
+            mMaintenanceThread.shutdown();
+            mMainThread.shutdown();
+            if (mOwnsRuntime) {
+                mRuntime.shutdown();
             }
         } catch (Exception e) {
             LOGGER.error("", e);
@@ -130,6 +327,95 @@ class SupernetClientImp extends SupernetClient {
 
     }
 
+    /**
+     * Send a datagram through this client's {@link Transport}.
+     */
+    public void send(DatagramPacket packet) throws IOException {
+        mMetrics.packetSent(packet.getData()[packet.getOffset()]);
+        mTransport.send(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()), packet.getSocketAddress());
+    }
+
+    /**
+     * Send the bytes between {@code buffer}'s position and limit as one datagram. The NIO
+     * transport hands the buffer to the channel as is, so a received buffer can be forwarded
+     * without copying.
+     */
+    public void send(ByteBuffer buffer, SocketAddress remoteAddress) throws IOException {
+        mMetrics.packetSent(buffer.get(buffer.position()));
+        mTransport.send(buffer, remoteAddress);
+    }
+
+    /**
+     * Send the first {@code count} packets, {@code packets[i]} to {@code remoteAddresses[i]}.
+     */
+    public void send(ByteBuffer[] packets, SocketAddress[] remoteAddresses, int count) throws IOException {
+        for(int i=0;i<count;i++) {
+            mMetrics.packetSent(packets[i].get(packets[i].position()));
+        }
+        mTransport.send(packets, remoteAddresses, count);
+    }
+
+    /**
+     * Send a ROUTE packet towards its next hop, through the {@link RouteBatcher} if batching is enabled.
+     */
+    void sendRoute(ByteBuffer routePacket, InetSocketAddress nextHop) throws IOException {
+        if(mRouteBatcher != null) {
+            mRouteBatcher.send(routePacket, nextHop);
+        } else {
+            send(routePacket, nextHop);
+        }
+    }
+
+    @Override
+    public ClientMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public double getRouteBatchingRatio() {
+        return mRouteBatcher != null ? mRouteBatcher.getBatchingRatio() : 1;
+    }
+
+    /**
+     * Add the peers saved in the routing table snapshot, if there is one, to the routing table.
+     * @return the peers that were added
+     */
+    private List<Peer> loadSnapshot() {
+        ArrayList<Peer> retval = new ArrayList<Peer>();
+        if(mSnapshotFile == null) {
+            return retval;
+        }
+
+        try {
+            for(Peer p : RoutingTableSnapshot.read(mSnapshotFile)) {
+                if(!p.id.equals(mClientId)) {
+                    mPeerRoutingTable.addPeer(p);
+                    retval.add(p);
+                }
+            }
+            LOGGER.info("restored {} peers from {}", retval.size(), mSnapshotFile);
+        } catch (IOException e) {
+            LOGGER.warn("could not read routing table snapshot", e);
+        }
+        return retval;
+    }
+
+    /**
+     * Write the routing table snapshot, if this client was built with one.
+     */
+    void saveSnapshot() {
+        if(mSnapshotFile == null) {
+            return;
+        }
+
+        try {
+            int numPeers = RoutingTableSnapshot.write(mPeerRoutingTable, mSnapshotFile);
+            LOGGER.debug("saved {} peers to {}", numPeers, mSnapshotFile);
+        } catch (IOException e) {
+            LOGGER.error("", e);
+        }
+    }
+
     public void setReceiver(PacketReceiver receiver) {
         mPacketReceiver = receiver;
     }
@@ -138,57 +424,124 @@ class SupernetClientImp extends SupernetClient {
         mMainThread.execute(r);
     }
 
-    public void postEvent(final Object event) {
-        post(new Runnable() {
-            @Override
-            public void run() {
-                mEventBus.post(event);
-            }
-        });
+    /**
+     * Post a {@link PeerStatusChanged} event if {@code peer}'s status changed since the last
+     * time it was checked.
+     */
+    void updateStatus(Peer peer) {
+        Peer.Status status = peer.getStatus();
+        Peer.Status previous = peer.reportStatus(status);
+        if(previous != status && mEvents.isSubscribed(SupernetEvent.Type.PEER_STATUS_CHANGED)) {
+            mEvents.post(new PeerStatusChanged(peer, previous, status));
+        }
     }
 
-    private final Runnable mReceiveUDPTask = new Runnable() {
+    private final RoutingTable.Listener mRoutingTableListener = new RoutingTable.Listener() {
+        @Override
+        public void onPeerAdded(Peer peer) {
+            if(mEvents.isSubscribed(SupernetEvent.Type.PEER_DISCOVERED)) {
+                mEvents.post(new NewPeerDiscovered(peer));
+            }
+        }
+
+        @Override
+        public void onPeerRemoved(Peer peer) {
+            if(mEvents.isSubscribed(SupernetEvent.Type.PEER_EVICTED)) {
+                mEvents.post(new PeerEvicted(peer));
+            }
+        }
+    };
 
-        private DatagramPacket createPacket() {
-            final int packetSize = 64*1024;
-            return new DatagramPacket(new byte[packetSize], packetSize);
+    private void handlePacket(ByteBuffer packet, InetSocketAddress remoteAddress) {
+        try {
+            if (!packet.hasRemaining()) {
+                return;
+            }
+            final byte header = packet.get(packet.position());
+            mMetrics.packetReceived(header);
+            final PacketReceiver receiver = mPacketReceiver;
+            if (receiver == null || !receiver.receive(packet, remoteAddress)) {
+                mMetrics.packetDropped(header);
+            }
+        } finally {
+            mTransport.release(packet);
         }
+    }
 
+    /**
+     * Hands received packets to the worker thread for their sender, so packets from one peer
+     * are handled in order while different peers are handled in parallel. A batch becomes one
+     * task per worker rather than one per packet. Timing takes one clock read per task and one
+     * per packet.
+     */
+    private final Transport.Receiver mTransportReceiver = new Transport.Receiver() {
         @Override
-        public void run() {
-            try {
-                LOGGER.info("starting UDP server on: {}", mUDPSocket.getLocalSocketAddress());
-                mUDPSocketRunning = true;
-                mUDPSocket.setSoTimeout(1000);
-
-                while (mUDPSocketRunning) {
-                    final DatagramPacket receivedPacket = createPacket();
-                    try {
-                        mUDPSocket.receive(receivedPacket);
-
-                        LOGGER.trace("received packet {}", receivedPacket.getAddress());
-
-                        post(new Runnable() {
-                            @Override
-                            public void run() {
-                                if (mPacketReceiver != null) {
-                                    mPacketReceiver.receive(receivedPacket);
-                                } else {
-                                    LOGGER.warn("dropped packet");
-                                }
-                            }
-                        });
-
-                    } catch (SocketTimeoutException e) {
-                    }
+        public void receive(ByteBuffer[] packets, InetSocketAddress[] remoteAddresses, int count) {
+            final long receivedNanos = System.nanoTime();
+            if (TRACER.isEnabled(Tracer.Event.RECEIVE)) {
+                // sized before dispatching, after which the workers own the buffers
+                int numBytes = 0;
+                for(int i=0;i<count;i++) {
+                    numBytes += packets[i].remaining();
                 }
+                dispatch(packets, remoteAddresses, count, receivedNanos);
+                TRACER.datagramsReceived(count, numBytes, System.nanoTime() - receivedNanos);
+            } else {
+                dispatch(packets, remoteAddresses, count, receivedNanos);
+            }
+        }
 
-            }catch (IOException e) {
-                LOGGER.error("", e);
+        private void dispatch(ByteBuffer[] packets, InetSocketAddress[] remoteAddresses, int count, final long receivedNanos) {
+            if (count == 1) {
+                final ByteBuffer packet = packets[0];
+                final InetSocketAddress remoteAddress = remoteAddresses[0];
+                mDispatcher.dispatch(remoteAddress, new Runnable() {
+                    @Override
+                    public void run() {
+                        final long start = System.nanoTime();
+                        mMetrics.receiveToDispatchNanos.record(start - receivedNanos);
+                        handlePacket(packet, remoteAddress);
+                        mMetrics.dispatchToHandledNanos.record(System.nanoTime() - start);
+                    }
+                });
+                return;
             }
 
-            LOGGER.info("exiting UDP receive thread");
+            final int[] shards = new int[count];
+            final int[] shardCounts = new int[mDispatcher.getNumThreads()];
+            for(int i=0;i<count;i++) {
+                shards[i] = mDispatcher.getShard(remoteAddresses[i]);
+                shardCounts[shards[i]]++;
+            }
 
+            for(int shard=0;shard<shardCounts.length;shard++) {
+                if(shardCounts[shard] == 0) {
+                    continue;
+                }
+                final ByteBuffer[] shardPackets = new ByteBuffer[shardCounts[shard]];
+                final InetSocketAddress[] shardAddresses = new InetSocketAddress[shardCounts[shard]];
+                int n = 0;
+                for(int i=0;i<count;i++) {
+                    if(shards[i] == shard) {
+                        shardPackets[n] = packets[i];
+                        shardAddresses[n] = remoteAddresses[i];
+                        n++;
+                    }
+                }
+                mDispatcher.dispatchToShard(shard, new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = System.nanoTime();
+                        mMetrics.receiveToDispatchNanos.record(start - receivedNanos);
+                        for(int i=0;i<shardPackets.length;i++) {
+                            handlePacket(shardPackets[i], shardAddresses[i]);
+                            final long now = System.nanoTime();
+                            mMetrics.dispatchToHandledNanos.record(now - start);
+                            start = now;
+                        }
+                    }
+                });
+            }
         }
     };
 
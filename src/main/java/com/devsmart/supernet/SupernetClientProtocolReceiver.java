@@ -1,18 +1,22 @@
 package com.devsmart.supernet;
 
 
+import com.devsmart.supernet.metrics.Tracer;
+import com.google.common.base.Predicates;
 import com.google.common.primitives.UnsignedBytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
 
 public class SupernetClientProtocolReceiver implements PacketReceiver {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SupernetClientProtocolReceiver.class);
+    private static final Tracer TRACER = Tracer.get();
 
     /*
     Header byte definition:
@@ -26,19 +30,25 @@ public class SupernetClientProtocolReceiver implements PacketReceiver {
     2: route
     3: connect
     4: disconnect
+    5: stream
+    6: route batch
 
 
+    Ping and find peers requests carry a uint16 transaction ID directly after the header byte,
+    which the response echoes back. Transaction ID 0 means the sender is not tracking the request.
+    The other packet types have no transaction ID.
+
     Ping Request:
-    Payload: requester's ID
+    Payload: uint16 transaction ID + requester's ID
 
     Ping Response:
-    Payload: responder's ID + requester's IPv4 address
+    Payload: uint16 transaction ID of the request + responder's ID + requester's IPv4 address
 
     Find Peers Request:
-    Payload: ID of target
+    Payload: uint16 transaction ID + ID of target
 
     Find Peers Response:
-    Payload: UBJSON Array list of ID+IPv4 Addresses closest to target
+    Payload: uint16 transaction ID of the request + uint8 count + list of ID+IPv4 Addresses closest to target
 
     Route Request:
     Payload: ID target + uint8 hops + data payload
@@ -46,17 +56,28 @@ public class SupernetClientProtocolReceiver implements PacketReceiver {
     Route Response:
     OK/ERROR
 
+    Route Batch Request:
+    Payload: uint8 count + count * (uint16 length + a complete Route Request packet). Each entry is
+    handled as if it had arrived in its own datagram.
+
     Connect Request:
-    Payload: ID + port
+    Payload: uint32 initiator's connection ID + initiator's ID + target ID + uint16 port + uint32 receive window
 
     Connect Response:
-    OK/ERROR
+    Payload: uint32 initiator's connection ID + uint32 responder's connection ID + uint8 status (0 accepted, 1 refused)
+    + uint32 receive window
 
     Disconnect Request:
-    Payload: ID + port
+    Payload: uint32 receiver's connection ID. Aborts the connection; a graceful close is a FIN stream segment.
 
-    Disconnect Response:
-    OK/ERROR
+    Stream Request (data segment):
+    Payload: uint32 receiver's connection ID + uint32 sequence number + uint8 flags (0x01 FIN) + data
+
+    Stream Response (acknowledgement):
+    Payload: uint32 receiver's connection ID + uint32 next expected sequence number + uint32 receive window
+    + uint8 count + count * (uint32 start, uint32 end) selectively acknowledged ranges
+
+    Sequence numbers and windows count segments, not bytes.
     */
 
     public static final int HEADER_MAGIC_MASK = 0xF0;
@@ -69,36 +90,81 @@ public class SupernetClientProtocolReceiver implements PacketReceiver {
     public static final int PACKET_ROUTE = 2;
     public static final int PACKET_CONNECT = 3;
     public static final int PACKET_DISCONNECT = 4;
-
-    public static
+    public static final int PACKET_STREAM = 5;
+    public static final int PACKET_ROUTE_BATCH = 6;
 
     SupernetClientImp mClient;
 
+    /**
+     * The views a worker decodes packets with, re-wrapped around each packet it handles. The
+     * handlers must not keep a view past the call.
+     */
+    private static class Views {
+        final PingView ping = new PingView();
+        final FindPeersView findPeers = new FindPeersView();
+        final RouteView route = new RouteView();
+        final ConnectView connect = new ConnectView();
+        final PacketView disconnect = new PacketView();
+        final StreamView stream = new StreamView();
+        final RouteBatchView routeBatch = new RouteBatchView();
+        final RouteView batchEntry = new RouteView();
+    }
+
+    private static final ThreadLocal<Views> VIEWS = new ThreadLocal<Views>() {
+        @Override
+        protected Views initialValue() {
+            return new Views();
+        }
+    };
+
     @Override
-    public boolean receive(DatagramPacket packet) {
+    public boolean receive(ByteBuffer packet, InetSocketAddress remoteAddress) {
 
-        byte[] data = packet.getData();
-        byte header = data[0];
+        if(!packet.hasRemaining()) {
+            return false;
+        }
+
+        if(TRACER.isEnabled(Tracer.Event.DISPATCH)) {
+            final byte header = packet.get(packet.position());
+            final int size = packet.remaining();
+            final long start = System.nanoTime();
+            final boolean handled = dispatch(packet, remoteAddress);
+            TRACER.packetDispatched(header & HEADER_PACKET_TYPE_MASK, (header & HEADER_REQUEST_BIT) > 0, size,
+                    remoteAddress, handled, System.nanoTime() - start);
+            return handled;
+        }
+        return dispatch(packet, remoteAddress);
+    }
+
+    private boolean dispatch(ByteBuffer packet, InetSocketAddress remoteAddress) {
+        byte header = packet.get(packet.position());
 
         if ((header & HEADER_MAGIC_MASK) == HEADER_MAGIC) {
             final int packetType = (header & HEADER_PACKET_TYPE_MASK);
             final boolean isRequest = (header & HEADER_REQUEST_BIT) > 0;
+            final Views views = VIEWS.get();
 
             switch (packetType) {
                 case PACKET_PING:
-                    return receivePing(isRequest, packet);
+                    return receivePing(isRequest, views.ping.wrap(packet), remoteAddress);
 
                 case PACKET_FIND_PEERS:
-                    return receiveFindPeers(isRequest, packet);
+                    return receiveFindPeers(isRequest, views.findPeers.wrap(packet), remoteAddress);
 
                 case PACKET_ROUTE:
-                    return route(isRequest, packet);
+                    return route(isRequest, views.route.wrap(packet), remoteAddress);
 
                 case PACKET_CONNECT:
-                    break;
+                    return receiveConnect(views.connect.wrap(packet), remoteAddress);
 
                 case PACKET_DISCONNECT:
-                    break;
+                    return receiveDisconnect(isRequest, views.disconnect.wrap(packet), remoteAddress);
+
+                case PACKET_STREAM:
+                    return receiveStream(views.stream.wrap(packet), remoteAddress);
+
+                case PACKET_ROUTE_BATCH:
+                    return routeBatch(isRequest, views.routeBatch.wrap(packet), views.batchEntry, remoteAddress);
 
                 default:
                     LOGGER.warn("unknown packet type recevied");
@@ -110,56 +176,61 @@ public class SupernetClientProtocolReceiver implements PacketReceiver {
         return false;
     }
 
-    public static DatagramPacket createPing(InetSocketAddress remoteAddress, ID id) throws SocketException {
-        byte[] payload = new byte[1 + ID.NUM_BYTES];
+    public static DatagramPacket createPing(InetSocketAddress remoteAddress, ID id, int transactionId) throws SocketException {
+        byte[] payload = new byte[3 + ID.NUM_BYTES];
         payload[0] = HEADER_MAGIC | PACKET_PING | HEADER_REQUEST_BIT;
-        id.write(payload, 1);
+        writeTransactionId(transactionId, payload, 1);
+        id.write(payload, 3);
         return new DatagramPacket(payload, payload.length, remoteAddress);
     }
 
-    public static DatagramPacket createPong(InetSocketAddress remoteAddress, ID id) throws SocketException {
+    public static DatagramPacket createPong(InetSocketAddress remoteAddress, ID id, int transactionId) throws SocketException {
         Inet4Address ipv4Address = (Inet4Address) remoteAddress.getAddress();
 
-        byte[] payload = new byte[1 + ID.NUM_BYTES + 6]; // header + ID + IPv4 SocketAddress
+        byte[] payload = new byte[3 + ID.NUM_BYTES + 6]; // header + transaction ID + ID + IPv4 SocketAddress
         payload[0] = HEADER_MAGIC | PACKET_PING;
-        id.write(payload, 1);
-        Utils.writeIPv4SocketAddress(ipv4Address, remoteAddress.getPort(), payload, 1 + ID.NUM_BYTES);
+        writeTransactionId(transactionId, payload, 1);
+        id.write(payload, 3);
+        Utils.writeIPv4SocketAddress(ipv4Address, remoteAddress.getPort(), payload, 3 + ID.NUM_BYTES);
 
         return new DatagramPacket(payload, payload.length, remoteAddress);
     }
 
-    public static DatagramPacket createFindPeersRequest(SocketAddress remoteAddress, ID target) throws SocketException {
-        byte[] payload = new byte[1 + ID.NUM_BYTES];
+    public static DatagramPacket createFindPeersRequest(SocketAddress remoteAddress, ID target, int transactionId) throws SocketException {
+        byte[] payload = new byte[3 + ID.NUM_BYTES];
         payload[0] = HEADER_MAGIC | PACKET_FIND_PEERS | HEADER_REQUEST_BIT;
-        target.write(payload, 1);
+        writeTransactionId(transactionId, payload, 1);
+        target.write(payload, 3);
 
         return new DatagramPacket(payload, payload.length, remoteAddress);
     }
 
-    public static DatagramPacket createFindPeersResponse(SocketAddress remoteAddress, RoutingTable routingTable, ID targetPeer) throws SocketException {
-        ArrayList<Peer> closestPeers = new ArrayList<Peer>(8);
-        Iterator<Peer> nearByPeers = routingTable.getClosestPeers(targetPeer).iterator();
-        for (int i = 0; i < 8 && nearByPeers.hasNext(); i++) {
-            closestPeers.add(nearByPeers.next());
-        }
+    public static DatagramPacket createFindPeersResponse(SocketAddress remoteAddress, RoutingTable routingTable, ID targetPeer, int transactionId) throws SocketException {
+        List<Peer> closestPeers = routingTable.getKClosest(targetPeer, RoutingTable.MAX_BUCKET_SIZE, Predicates.<Peer>alwaysTrue());
 
-        byte[] payload = new byte[2 + (closestPeers.size() * (ID.NUM_BYTES + 6))];
+        byte[] payload = new byte[4 + (closestPeers.size() * (ID.NUM_BYTES + 6))];
         payload[0] = HEADER_MAGIC | PACKET_FIND_PEERS;
-        payload[1] = (byte) closestPeers.size();
+        writeTransactionId(transactionId, payload, 1);
+        payload[3] = (byte) closestPeers.size();
 
         int i = 0;
         for (Peer p : closestPeers) {
-            p.id.write(payload, 2 + i * (ID.NUM_BYTES + 6));
+            p.id.write(payload, 4 + i * (ID.NUM_BYTES + 6));
             InetSocketAddress address = p.getSocketAddress();
 
             Utils.writeIPv4SocketAddress((Inet4Address) address.getAddress(), address.getPort(),
-                    payload, 2 + i * (ID.NUM_BYTES + 6) + ID.NUM_BYTES);
+                    payload, 4 + i * (ID.NUM_BYTES + 6) + ID.NUM_BYTES);
             i++;
         }
 
         return new DatagramPacket(payload, payload.length, remoteAddress);
     }
 
+    private static void writeTransactionId(int transactionId, byte[] buf, int offset) {
+        buf[offset] = (byte) ((transactionId >>> 8) & 0xFF);
+        buf[offset + 1] = (byte) (transactionId & 0xFF);
+    }
+
     public static DatagramPacket createRoute(SocketAddress remoteAddress, ID target, int hops, byte[] data, int offset, int length) throws SocketException {
         byte[] payload = new byte[1 + ID.NUM_BYTES + 1 + length];
         payload[0] = HEADER_MAGIC | PACKET_ROUTE | HEADER_REQUEST_BIT;
@@ -170,19 +241,87 @@ public class SupernetClientProtocolReceiver implements PacketReceiver {
         return new DatagramPacket(payload, payload.length, remoteAddress);
     }
 
+    public static DatagramPacket createConnectRequest(SocketAddress remoteAddress, int connectionId, ID localId, ID target, int port, int receiveWindow) throws SocketException {
+        ByteBuffer payload = ByteBuffer.allocate(ConnectView.REQUEST_LENGTH);
+        payload.put(0, (byte) (HEADER_MAGIC | PACKET_CONNECT | HEADER_REQUEST_BIT));
+        payload.putInt(ConnectView.INITIATOR_CONNECTION_ID_OFFSET, connectionId);
+        localId.write(payload, ConnectView.INITIATOR_ID_OFFSET);
+        target.write(payload, ConnectView.TARGET_ID_OFFSET);
+        payload.putShort(ConnectView.PORT_OFFSET, (short) port);
+        payload.putInt(ConnectView.REQUEST_WINDOW_OFFSET, receiveWindow);
+
+        return new DatagramPacket(payload.array(), payload.capacity(), remoteAddress);
+    }
 
-    private boolean receivePing(boolean isRequest, DatagramPacket packet) {
+    public static DatagramPacket createConnectResponse(SocketAddress remoteAddress, int initiatorConnectionId, int connectionId, int status, int receiveWindow) throws SocketException {
+        ByteBuffer payload = ByteBuffer.allocate(ConnectView.RESPONSE_LENGTH);
+        payload.put(0, (byte) (HEADER_MAGIC | PACKET_CONNECT));
+        payload.putInt(ConnectView.INITIATOR_CONNECTION_ID_OFFSET, initiatorConnectionId);
+        payload.putInt(ConnectView.RESPONDER_CONNECTION_ID_OFFSET, connectionId);
+        payload.put(ConnectView.STATUS_OFFSET, (byte) status);
+        payload.putInt(ConnectView.RESPONSE_WINDOW_OFFSET, receiveWindow);
+
+        return new DatagramPacket(payload.array(), payload.capacity(), remoteAddress);
+    }
+
+    public static DatagramPacket createDisconnect(SocketAddress remoteAddress, int connectionId) throws SocketException {
+        ByteBuffer payload = ByteBuffer.allocate(5);
+        payload.put(0, (byte) (HEADER_MAGIC | PACKET_DISCONNECT | HEADER_REQUEST_BIT));
+        payload.putInt(1, connectionId);
+
+        return new DatagramPacket(payload.array(), payload.capacity(), remoteAddress);
+    }
+
+    public static DatagramPacket createStreamData(SocketAddress remoteAddress, int connectionId, long sequence, int flags, byte[] data, int offset, int length) throws SocketException {
+        byte[] payload = new byte[StreamView.PAYLOAD_OFFSET + length];
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.put(0, (byte) (HEADER_MAGIC | PACKET_STREAM | HEADER_REQUEST_BIT));
+        buffer.putInt(StreamView.CONNECTION_ID_OFFSET, connectionId);
+        buffer.putInt(StreamView.SEQUENCE_OFFSET, (int) sequence);
+        buffer.put(StreamView.FLAGS_OFFSET, (byte) flags);
+        System.arraycopy(data, offset, payload, StreamView.PAYLOAD_OFFSET, length);
+
+        return new DatagramPacket(payload, payload.length, remoteAddress);
+    }
+
+    /**
+     * @param sackBlocks pairs of start (inclusive), end (exclusive) sequence numbers
+     * @param numSackBlocks number of pairs in {@code sackBlocks} to send
+     */
+    public static DatagramPacket createStreamAck(SocketAddress remoteAddress, int connectionId, long ack, int receiveWindow, long[] sackBlocks, int numSackBlocks) throws SocketException {
+        numSackBlocks = Math.min(numSackBlocks, StreamView.MAX_SACK_BLOCKS);
+        byte[] payload = new byte[StreamView.SACK_BLOCKS_OFFSET + numSackBlocks * StreamView.SACK_BLOCK_LENGTH];
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.put(0, (byte) (HEADER_MAGIC | PACKET_STREAM));
+        buffer.putInt(StreamView.CONNECTION_ID_OFFSET, connectionId);
+        buffer.putInt(StreamView.ACK_OFFSET, (int) ack);
+        buffer.putInt(StreamView.WINDOW_OFFSET, receiveWindow);
+        buffer.put(StreamView.NUM_SACK_BLOCKS_OFFSET, (byte) numSackBlocks);
+        for(int i=0;i<numSackBlocks;i++) {
+            buffer.putInt(StreamView.SACK_BLOCKS_OFFSET + i * StreamView.SACK_BLOCK_LENGTH, (int) sackBlocks[2*i]);
+            buffer.putInt(StreamView.SACK_BLOCKS_OFFSET + i * StreamView.SACK_BLOCK_LENGTH + 4, (int) sackBlocks[2*i+1]);
+        }
+
+        return new DatagramPacket(payload, payload.length, remoteAddress);
+    }
+
+    private boolean receivePing(boolean isRequest, PingView ping, InetSocketAddress remoteAddress) {
         try {
-            final ID remoteId = new ID(packet.getData(), 1);
-            Peer peer = mClient.mPeerRoutingTable.lookupPeer(new Peer(remoteId, packet.getAddress(), packet.getPort()));
+            if (!ping.isValid()) {
+                return false;
+            }
+            final int transactionId = ping.getTransactionId();
+            final ID remoteId = ping.getId();
+            Peer peer = mClient.mPeerRoutingTable.findPeer(remoteId, remoteAddress);
+            if (peer == null) {
+                peer = new Peer(remoteId, remoteAddress);
+            }
             mClient.peerSeen(peer);
 
-            boolean isPing = isRequest;
-            LOGGER.trace("{} Received from: {}", isPing ? "Ping" : "Pong", peer);
-
             if (isRequest) {
-                LOGGER.trace("sending pong to: {}", peer);
-                mClient.mUDPSocket.send(createPong(peer.getSocketAddress(), mClient.getID()));
+                mClient.send(createPong(remoteAddress, mClient.getID(), transactionId));
+            } else if (transactionId != 0) {
+                mClient.mTransactions.complete(transactionId, remoteAddress, peer);
             }
 
             return true;
@@ -192,29 +331,36 @@ public class SupernetClientProtocolReceiver implements PacketReceiver {
         }
     }
 
-    private boolean receiveFindPeers(boolean isRequest, DatagramPacket packet) {
+    private boolean receiveFindPeers(boolean isRequest, FindPeersView findPeers, InetSocketAddress remoteAddress) {
         try {
-            final SocketAddress remoteAddress = packet.getSocketAddress();
-            LOGGER.trace("FindPeers Received from: {}", remoteAddress);
+            if (!findPeers.isValid()) {
+                return false;
+            }
+            final int transactionId = findPeers.getTransactionId();
             if (isRequest) {
-                final ID targetPeer = new ID(packet.getData(), 1);
-                mClient.mUDPSocket.send(createFindPeersResponse(remoteAddress, mClient.mPeerRoutingTable, targetPeer));
+                final ID targetPeer = findPeers.getTarget();
+                mClient.send(createFindPeersResponse(remoteAddress, mClient.mPeerRoutingTable, targetPeer, transactionId));
                 return true;
 
             } else {
-                byte[] payload = packet.getData();
-                int size = payload[1];
+                final int size = findPeers.getCount();
+                ArrayList<Peer> peers = new ArrayList<Peer>(size);
                 for (int i = 0; i < size; i++) {
-                    ID peerId = new ID(payload, 2 + i * (ID.NUM_BYTES + 6));
-                    if (!peerId.equals(mClient.mClientId)) {
-                        InetSocketAddress peerSocketAddress = Utils.readIPv4SocketAddress(payload, 2 + i * (ID.NUM_BYTES + 6) + ID.NUM_BYTES);
-
-                        Peer peer = mClient.mPeerRoutingTable.lookupPeer(new Peer(peerId, peerSocketAddress));
-
-                        LOGGER.trace("discovered new peer: {} from: {}", peer, packet.getSocketAddress());
+                    if (findPeers.peerIdEquals(i, mClient.mClientId)) {
+                        continue;
+                    }
 
+                    ID peerId = findPeers.getPeerId(i);
+                    Peer peer = mClient.mPeerRoutingTable.findPeer(peerId, findPeers.getPeerAddress(i), findPeers.getPeerPort(i));
+                    if (peer == null) {
+                        peer = new Peer(peerId, findPeers.getPeerSocketAddress(i));
                         mClient.mPeerRoutingTable.addPeer(peer);
                     }
+                    peers.add(peer);
+                }
+
+                if (transactionId != 0) {
+                    mClient.mTransactions.complete(transactionId, remoteAddress, peers);
                 }
 
                 return true;
@@ -227,33 +373,32 @@ public class SupernetClientProtocolReceiver implements PacketReceiver {
 
     }
 
-    private boolean route(boolean isRequest, DatagramPacket packet) {
+    private boolean route(boolean isRequest, RouteView route, InetSocketAddress remoteAddress) {
         try {
-            byte[] data = packet.getData();
-            int offset = packet.getOffset();
-            int length = packet.getLength();
+            if (!route.isValid()) {
+                return false;
+            }
 
-            final ID targetPeer = new ID(data, offset + 1);
-            if (mClient.mClientId.equals(targetPeer)) {
-                mClient.packetReceived(data, offset + 1 + ID.NUM_BYTES, length);
+            if (route.targetEquals(mClient.mClientId)) {
+                mClient.mMetrics.routeHops.record(SupernetClientImp.MAX_ROUTE_HOPS - route.getHops() + 1);
+                mClient.deliver(route.getPayload());
             } else {
-                int hops = UnsignedBytes.toInt(data[offset + 1 + ID.NUM_BYTES]);
-
-                LOGGER.trace("route packet received: {} {}", targetPeer, hops);
+                int hops = route.getHops();
 
                 hops--;
                 if (hops > 0) {
-                    Peer nearest;
-                    Iterator<Peer> it = mClient.mPeerRoutingTable.getClosestPeers(targetPeer).iterator();
-                    while (it.hasNext() && (nearest = it.next()).getStatus() == Peer.Status.ALIVE) {
-
-                        int payloadLen = length - (1 + ID.NUM_BYTES + 1);
-                        DatagramPacket forwardPacket = createRoute(nearest.getSocketAddress(), targetPeer, hops,
-                                data, offset + 1 + ID.NUM_BYTES + 1, payloadLen);
-
-                        mClient.mUDPSocket.send(forwardPacket);
-
-                        break;
+                    final boolean trace = TRACER.isEnabled(Tracer.Event.ROUTE);
+                    final long start = trace ? System.nanoTime() : 0;
+                    final ID targetPeer = route.getTarget();
+
+                    Peer nextHop = mClient.selectNextHop(targetPeer);
+                    if (nextHop != null) {
+                        // forward the received buffer as is, only the hop count changes
+                        route.setHops(hops);
+                        mClient.sendRoute(route.getPacket(), nextHop.getSocketAddress());
+                        if (trace) {
+                            TRACER.routeForwarded(targetPeer, hops, route.getLength(), nextHop.id, System.nanoTime() - start);
+                        }
                     }
                 }
             }
@@ -264,4 +409,42 @@ public class SupernetClientProtocolReceiver implements PacketReceiver {
             return true;
         }
     }
+
+    private boolean routeBatch(boolean isRequest, RouteBatchView batch, RouteView route, InetSocketAddress remoteAddress) {
+        if (!isRequest || !batch.isValid()) {
+            return false;
+        }
+
+        while (batch.next()) {
+            batch.getEntry(route);
+            if (route.hasValidMagic() && route.getPacketType() == PACKET_ROUTE) {
+                route(route.isRequest(), route, remoteAddress);
+            }
+        }
+        return true;
+    }
+
+    private boolean receiveConnect(ConnectView connect, InetSocketAddress remoteAddress) {
+        if (!connect.isValid()) {
+            return false;
+        }
+        mClient.mStreams.receiveConnect(connect, remoteAddress);
+        return true;
+    }
+
+    private boolean receiveDisconnect(boolean isRequest, PacketView disconnect, InetSocketAddress remoteAddress) {
+        if (!isRequest || disconnect.getLength() < 5) {
+            return false;
+        }
+        mClient.mStreams.receiveDisconnect(disconnect.getBuffer().getInt(disconnect.getOffset() + 1), remoteAddress);
+        return true;
+    }
+
+    private boolean receiveStream(StreamView stream, InetSocketAddress remoteAddress) {
+        if (!stream.isValid()) {
+            return false;
+        }
+        mClient.mStreams.receiveStream(stream, remoteAddress);
+        return true;
+    }
 }
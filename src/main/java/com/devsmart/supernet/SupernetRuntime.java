@@ -0,0 +1,156 @@
+package com.devsmart.supernet;
+
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads a {@link SupernetClient} runs on: NIO event loops that receive for every
+ * client's socket, the workers received packets are dispatched to, and a timer pool for
+ * maintenance, retransmits and posted tasks. Build many clients against one runtime with
+ * {@link SupernetClient.Builder#withRuntime(SupernetRuntime)} and they share these threads, so
+ * the number of threads depends on the number of cores rather than the number of clients.
+ *
+ * A client built without a runtime gets a private one that is shut down with it. A shared
+ * runtime is shut down by its owner once every client using it has been shut down.
+ *
+ * Sessions still take two threads per open session, a reader and a writer, from a shared
+ * cached pool, since their streams block.
+ */
+public class SupernetRuntime {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SupernetRuntime.class);
+
+    private final NioEventLoop[] mEventLoops;
+    private final AtomicInteger mNextEventLoop = new AtomicInteger();
+    private final PacketDispatcher mDispatcher;
+    private final ScheduledExecutorService mTimer;
+    private final ExecutorService mBlockingThreads;
+
+    /**
+     * A runtime sized to the number of available cores.
+     */
+    public SupernetRuntime() throws IOException {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 4),
+                Runtime.getRuntime().availableProcessors(),
+                Math.max(2, Runtime.getRuntime().availableProcessors() / 4));
+    }
+
+    /**
+     * @param numEventLoops number of NIO event loop threads; clients' sockets are spread over them
+     * @param numWorkerThreads number of threads received packets are handled on
+     * @param numTimerThreads number of threads running timers and posted tasks
+     */
+    public SupernetRuntime(int numEventLoops, int numWorkerThreads, int numTimerThreads) throws IOException {
+        Preconditions.checkArgument(numEventLoops > 0);
+        Preconditions.checkArgument(numWorkerThreads > 0);
+        Preconditions.checkArgument(numTimerThreads > 0);
+
+        mEventLoops = new NioEventLoop[numEventLoops];
+        for(int i=0;i<numEventLoops;i++) {
+            mEventLoops[i] = new NioEventLoop("Supernet IO " + i);
+        }
+        mDispatcher = new PacketDispatcher("Supernet Worker", numWorkerThreads);
+
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(numTimerThreads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "Supernet Timer " + mCount.getAndIncrement());
+            }
+        });
+        // transaction and retransmit timeouts are cancelled far more often than they fire
+        timer.setRemoveOnCancelPolicy(true);
+        timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mTimer = timer;
+
+        mBlockingThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Supernet Session " + mCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * A runtime without threads of its own that runs everything, received packets included, on
+     * {@code executor}. Meant for simulations driven by a virtual-time executor. Clients built
+     * against it must be given a {@link Transport} with
+     * {@link SupernetClient.Builder#withTransport(Transport)}, and streams, which block, can not
+     * be used.
+     */
+    public SupernetRuntime(ScheduledExecutorService executor) {
+        mEventLoops = new NioEventLoop[0];
+        mDispatcher = new PacketDispatcher(executor);
+        mTimer = executor;
+        mBlockingThreads = executor;
+    }
+
+    /**
+     * @return the event loops in turn, so sockets are spread evenly over them
+     */
+    NioEventLoop nextEventLoop() {
+        Preconditions.checkState(mEventLoops.length > 0, "runtime has no event loops");
+        return mEventLoops[(mNextEventLoop.getAndIncrement() & 0x7FFFFFFF) % mEventLoops.length];
+    }
+
+    PacketDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    /**
+     * @return a new executor for one client on the shared timer threads
+     */
+    ClientExecutor newClientExecutor() {
+        return new ClientExecutor(mTimer);
+    }
+
+    ExecutorService getBlockingExecutor() {
+        return mBlockingThreads;
+    }
+
+    /**
+     * @return the total number of threads this runtime starts, not counting session threads
+     */
+    public int getNumThreads() {
+        if(mTimer instanceof ScheduledThreadPoolExecutor) {
+            return mEventLoops.length + mDispatcher.getNumThreads() + ((ScheduledThreadPoolExecutor) mTimer).getCorePoolSize();
+        }
+        return 0;
+    }
+
+    /**
+     * Stop every thread. Clients built against this runtime must be shut down first.
+     */
+    public void shutdown() {
+        mTimer.shutdown();
+        mDispatcher.shutdown();
+        for(NioEventLoop loop : mEventLoops) {
+            loop.close();
+        }
+        mBlockingThreads.shutdown();
+        try {
+            if(!mTimer.awaitTermination(1, TimeUnit.SECONDS)) {
+                mTimer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("interrupted waiting for timers to finish");
+            Thread.currentThread().interrupt();
+        }
+    }
+}
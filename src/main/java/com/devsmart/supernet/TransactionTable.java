@@ -0,0 +1,208 @@
+package com.devsmart.supernet;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pending request table. Every request is given a 16-bit transaction ID that the response
+ * echoes back. When the response arrives the round trip time is fed into the peer's RTT
+ * estimator; requests that go unanswered are retransmitted after the peer's adaptive
+ * retransmit timeout, backing off on every attempt.
+ */
+public class TransactionTable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionTable.class);
+
+    public interface Listener {
+        void onResponse(Transaction transaction, Object response);
+        void onTimeout(Transaction transaction);
+    }
+
+    public class Transaction {
+        public final int id;
+        public final Peer peer;
+        private final Listener mListener;
+        private DatagramPacket mRequest;
+        private int mRetriesLeft;
+        private boolean mRetransmitted;
+        private long mSentNanos;
+        private ScheduledFuture<?> mTimeout;
+
+        Transaction(int id, Peer peer, Listener listener) {
+            this.id = id;
+            this.peer = peer;
+            mListener = listener;
+        }
+    }
+
+    private final SupernetClientImp mClient;
+    private final ScheduledExecutorService mTimer;
+    private final ConcurrentHashMap<Integer, Transaction> mPending = new ConcurrentHashMap<Integer, Transaction>();
+    private final AtomicInteger mNextTransactionId = new AtomicInteger(new Random().nextInt());
+
+    public TransactionTable(SupernetClientImp client, ScheduledExecutorService timer) {
+        mClient = client;
+        mTimer = timer;
+    }
+
+    public int size() {
+        return mPending.size();
+    }
+
+    /**
+     * Reserve a new transaction ID for a request to {@code peer}. Build the request with
+     * {@link Transaction#id} and then pass it to {@link #send(Transaction, DatagramPacket, int)}.
+     */
+    public Transaction begin(Peer peer, Listener listener) {
+        while(true) {
+            int id = mNextTransactionId.incrementAndGet() & 0xFFFF;
+            if(id == 0) {
+                continue;
+            }
+            Transaction retval = new Transaction(id, peer, listener);
+            if(mPending.putIfAbsent(id, retval) == null) {
+                return retval;
+            }
+        }
+    }
+
+    public void send(Transaction transaction, DatagramPacket request, int maxRetries) {
+        synchronized (transaction) {
+            transaction.mRequest = request;
+            transaction.mRetriesLeft = maxRetries;
+            transmit(transaction);
+        }
+    }
+
+    /**
+     * Send the first {@code count} requests, {@code requests[i]} for {@code transactions[i]}, with
+     * one call to the transport. Retransmits are sent one at a time.
+     */
+    public void send(Transaction[] transactions, DatagramPacket[] requests, int count, int maxRetries) {
+        ByteBuffer[] packets = new ByteBuffer[count];
+        SocketAddress[] remoteAddresses = new SocketAddress[count];
+        final long now = Clock.get().nanoTime();
+        for(int i=0;i<count;i++) {
+            final Transaction transaction = transactions[i];
+            final DatagramPacket request = requests[i];
+            synchronized (transaction) {
+                transaction.mRequest = request;
+                transaction.mRetriesLeft = maxRetries;
+                transaction.mSentNanos = now;
+            }
+            packets[i] = ByteBuffer.wrap(request.getData(), request.getOffset(), request.getLength());
+            remoteAddresses[i] = request.getSocketAddress();
+        }
+
+        try {
+            mClient.send(packets, remoteAddresses, count);
+        } catch (IOException e) {
+            LOGGER.error("", e);
+        }
+
+        for(int i=0;i<count;i++) {
+            final Transaction transaction = transactions[i];
+            synchronized (transaction) {
+                scheduleTimeout(transaction);
+            }
+        }
+    }
+
+    /**
+     * Match a response to its request.
+     * @return true if {@code transactionId} was pending for a request sent to {@code from}
+     */
+    public boolean complete(int transactionId, InetSocketAddress from, Object response) {
+        Transaction transaction = mPending.get(transactionId);
+        if(transaction == null || !transaction.peer.getSocketAddress().equals(from)
+                || !mPending.remove(transactionId, transaction)) {
+            return false;
+        }
+
+        synchronized (transaction) {
+            if(transaction.mTimeout != null) {
+                transaction.mTimeout.cancel(false);
+            }
+
+            // Karn's algorithm: a response to a retransmitted request is ambiguous, don't sample it
+            if(!transaction.mRetransmitted) {
+                transaction.peer.updateRtt(TimeUnit.NANOSECONDS.toMicros(Clock.get().nanoTime() - transaction.mSentNanos));
+            }
+        }
+
+        transaction.peer.markSeen();
+        mClient.updateStatus(transaction.peer);
+        if(transaction.mListener != null) {
+            transaction.mListener.onResponse(transaction, response);
+        }
+        return true;
+    }
+
+    public void cancel(Transaction transaction) {
+        if(mPending.remove(transaction.id, transaction)) {
+            synchronized (transaction) {
+                if (transaction.mTimeout != null) {
+                    transaction.mTimeout.cancel(false);
+                }
+            }
+        }
+    }
+
+    private void transmit(final Transaction transaction) {
+        try {
+            transaction.mSentNanos = Clock.get().nanoTime();
+            mClient.send(transaction.mRequest);
+        } catch (IOException e) {
+            LOGGER.error("", e);
+        }
+        scheduleTimeout(transaction);
+    }
+
+    private void scheduleTimeout(final Transaction transaction) {
+        transaction.mTimeout = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(transaction);
+            }
+        }, transaction.peer.getRto(), TimeUnit.MILLISECONDS);
+    }
+
+    private void onTimeout(Transaction transaction) {
+        synchronized (transaction) {
+            if(mPending.get(transaction.id) != transaction) {
+                return;
+            }
+
+            transaction.peer.backoffRto();
+            if(transaction.mRetriesLeft > 0) {
+                transaction.mRetriesLeft--;
+                transaction.mRetransmitted = true;
+                transmit(transaction);
+                return;
+            }
+
+            if(!mPending.remove(transaction.id, transaction)) {
+                return;
+            }
+        }
+
+        transaction.peer.requestFailed();
+        mClient.updateStatus(transaction.peer);
+        if(transaction.mListener != null) {
+            transaction.mListener.onTimeout(transaction);
+        }
+    }
+}
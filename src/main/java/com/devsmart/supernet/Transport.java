@@ -0,0 +1,58 @@
+package com.devsmart.supernet;
+
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves datagrams between a {@link SupernetClient} and the network. Set one with
+ * {@link SupernetClient.Builder#withTransport(Transport)}.
+ */
+public interface Transport {
+
+    interface Receiver {
+
+        /**
+         * Handle {@code count} received packets, each between its buffer's position and limit.
+         * Called from the transport's receive thread. Ownership of every buffer passes to the
+         * receiver, which gives it back with {@link Transport#release(ByteBuffer)} when done.
+         */
+        void receive(ByteBuffer[] packets, InetSocketAddress[] remoteAddresses, int count);
+    }
+
+    /**
+     * @return the underlying socket, or null if this transport does not use one
+     */
+    DatagramSocket getSocket();
+
+    InetSocketAddress getLocalAddress();
+
+    /**
+     * Start delivering received packets to {@code receiver}.
+     */
+    void start(Receiver receiver) throws IOException;
+
+    /**
+     * Send the bytes between {@code packet}'s position and limit as one datagram. The transport
+     * does not keep a reference to {@code packet} after this returns.
+     */
+    void send(ByteBuffer packet, SocketAddress remoteAddress) throws IOException;
+
+    /**
+     * Send the first {@code count} packets, {@code packets[i]} to {@code remoteAddresses[i]}.
+     */
+    void send(ByteBuffer[] packets, SocketAddress[] remoteAddresses, int count) throws IOException;
+
+    /**
+     * Return a buffer handed to {@link Receiver#receive}.
+     */
+    void release(ByteBuffer packet);
+
+    /**
+     * Stop receiving and close the socket.
+     */
+    void close();
+}
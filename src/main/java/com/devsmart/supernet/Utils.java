@@ -7,7 +7,10 @@ import org.slf4j.LoggerFactory;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Enumeration;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,6 +18,17 @@ public class Utils {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Utils.class);
 
+    /**
+     * Largest payload that fits in a single IPv4 UDP datagram
+     */
+    public static final int MAX_UDP_PAYLOAD = 65507;
+
+    /**
+     * IPv4 header + UDP header
+     */
+    private static final int UDP_IPV4_OVERHEAD = 28;
+    private static final int DEFAULT_MTU = 1500;
+
     private static final Pattern REGEX_ADDRESS = Pattern.compile("([0-9a-zA-Z\\.\\-]*):([0-9]+)");
 
     public static InetSocketAddress parseSocketAddress(String str) {
@@ -54,5 +68,40 @@ public class Utils {
         }
     }
 
+    /**
+     * Returns the largest UDP payload that can be received on the interface bound to
+     * {@code bindAddress}. If {@code bindAddress} is null or the wildcard address, the largest
+     * MTU of the physical interfaces that are up is used; loopback and virtual interfaces are
+     * skipped.
+     */
+    public static int getMaxDatagramSize(InetAddress bindAddress) {
+        int mtu = 0;
+        try {
+            if(bindAddress != null && !bindAddress.isAnyLocalAddress()) {
+                NetworkInterface networkInterface = NetworkInterface.getByInetAddress(bindAddress);
+                if(networkInterface != null) {
+                    mtu = networkInterface.getMTU();
+                }
+            } else {
+                Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+                while(interfaces != null && interfaces.hasMoreElements()) {
+                    NetworkInterface networkInterface = interfaces.nextElement();
+                    // loopback MTUs are typically 64 KiB and no peer reaches us through them
+                    if(networkInterface.isUp() && !networkInterface.isLoopback() && !networkInterface.isVirtual()) {
+                        mtu = Math.max(mtu, networkInterface.getMTU());
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            LOGGER.warn("could not determine MTU", e);
+        }
+
+        if(mtu <= 0) {
+            mtu = DEFAULT_MTU;
+        }
+
+        return Math.min(mtu - UDP_IPV4_OVERHEAD, MAX_UDP_PAYLOAD);
+    }
+
 
 }
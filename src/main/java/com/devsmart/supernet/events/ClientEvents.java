@@ -0,0 +1,181 @@
+package com.devsmart.supernet.events;
+
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers a client's events to its subscribers. Each subscription has its own bounded queue
+ * and runs its listener on its own {@link Executor}, so posting never blocks: an event is
+ * offered to the queue of every subscription that wants its type, and a subscription that
+ * falls behind drops the events that don't fit instead of holding up the thread that posted
+ * them. A subscription's listener is called by one task at a time, in the order the events
+ * were posted.
+ *
+ * Posting an event nobody subscribed to is free; callers check {@link #isSubscribed} before
+ * creating the event.
+ */
+public class ClientEvents {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClientEvents.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Largest number of events a subscription delivers before it gives its executor back
+     */
+    private static final int MAX_BATCH = 64;
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    // bit per SupernetEvent.Type that at least one subscription wants
+    private volatile int mSubscribedTypes;
+
+    public class Subscription {
+
+        private final EventListener mListener;
+        private final Executor mExecutor;
+        private final int mTypes;
+        private final ArrayBlockingQueue<SupernetEvent> mQueue;
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private final AtomicLong mNumDropped = new AtomicLong();
+        private volatile boolean mCanceled;
+
+        private Subscription(EventListener listener, Executor executor, int types, int capacity) {
+            mListener = listener;
+            mExecutor = executor;
+            mTypes = types;
+            mQueue = new ArrayBlockingQueue<SupernetEvent>(capacity);
+        }
+
+        /**
+         * Stop delivering events. Events already queued are dropped, one that is being
+         * delivered finishes.
+         */
+        public void cancel() {
+            mCanceled = true;
+            unsubscribe(this);
+            mQueue.clear();
+        }
+
+        /**
+         * @return the number of events dropped because the queue was full
+         */
+        public long getNumDropped() {
+            return mNumDropped.get();
+        }
+
+        private void offer(SupernetEvent event) {
+            if((mTypes & bit(event.type)) == 0) {
+                return;
+            }
+            if(!mQueue.offer(event)) {
+                mNumDropped.incrementAndGet();
+                return;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if(mScheduled.compareAndSet(false, true)) {
+                try {
+                    mExecutor.execute(mDeliver);
+                } catch (RejectedExecutionException e) {
+                    mScheduled.set(false);
+                    LOGGER.warn("event executor rejected delivery", e);
+                }
+            }
+        }
+
+        private final Runnable mDeliver = new Runnable() {
+            @Override
+            public void run() {
+                SupernetEvent event;
+                for(int i=0;i<MAX_BATCH && !mCanceled && (event = mQueue.poll()) != null;i++) {
+                    try {
+                        event.dispatch(mListener);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("", e);
+                    }
+                }
+
+                // an event offered after the last poll found mScheduled still set
+                mScheduled.set(false);
+                if(!mCanceled && !mQueue.isEmpty()) {
+                    schedule();
+                }
+            }
+        };
+    }
+
+    private static int bit(SupernetEvent.Type type) {
+        return 1 << type.ordinal();
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        mSubscriptions.remove(subscription);
+        updateSubscribedTypes();
+    }
+
+    private void updateSubscribedTypes() {
+        int types = 0;
+        for(Subscription s : mSubscriptions) {
+            types |= s.mTypes;
+        }
+        mSubscribedTypes = types;
+    }
+
+    /**
+     * Subscribe {@code listener} to every type of event, with a queue of
+     * {@link #DEFAULT_QUEUE_CAPACITY} events.
+     * @param executor runs the listener; a direct executor runs it on the thread that posted
+     *                 the event, which gives up the protection from a slow listener
+     */
+    public Subscription subscribe(EventListener listener, Executor executor) {
+        return subscribe(listener, executor, EnumSet.allOf(SupernetEvent.Type.class), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param types the types of events to deliver
+     * @param capacity the number of events that may wait for the listener before new ones are dropped
+     * @see #subscribe(EventListener, Executor)
+     */
+    public Subscription subscribe(EventListener listener, Executor executor, EnumSet<SupernetEvent.Type> types, int capacity) {
+        Preconditions.checkNotNull(listener);
+        Preconditions.checkNotNull(executor);
+        Preconditions.checkArgument(capacity > 0);
+
+        int bits = 0;
+        for(SupernetEvent.Type type : types) {
+            bits |= bit(type);
+        }
+        Subscription retval = new Subscription(listener, executor, bits, capacity);
+        synchronized (this) {
+            mSubscriptions.add(retval);
+            updateSubscribedTypes();
+        }
+        return retval;
+    }
+
+    /**
+     * @return true if an event of {@code type} would be delivered to anyone
+     */
+    public boolean isSubscribed(SupernetEvent.Type type) {
+        return (mSubscribedTypes & bit(type)) != 0;
+    }
+
+    public void post(SupernetEvent event) {
+        for(Subscription s : mSubscriptions) {
+            s.offer(event);
+        }
+    }
+}
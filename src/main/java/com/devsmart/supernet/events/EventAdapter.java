@@ -0,0 +1,24 @@
+package com.devsmart.supernet.events;
+
+
+/**
+ * An {@link EventListener} that ignores every event.
+ */
+public abstract class EventAdapter implements EventListener {
+
+    @Override
+    public void onPeerDiscovered(NewPeerDiscovered event) {
+    }
+
+    @Override
+    public void onPeerStatusChanged(PeerStatusChanged event) {
+    }
+
+    @Override
+    public void onPeerEvicted(PeerEvicted event) {
+    }
+
+    @Override
+    public void onLookupCompleted(LookupCompleted event) {
+    }
+}
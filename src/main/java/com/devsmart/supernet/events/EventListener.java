@@ -0,0 +1,13 @@
+package com.devsmart.supernet.events;
+
+
+/**
+ * Receives the events a {@link ClientEvents} subscription was made for. Extend
+ * {@link EventAdapter} to only handle some of them.
+ */
+public interface EventListener {
+    void onPeerDiscovered(NewPeerDiscovered event);
+    void onPeerStatusChanged(PeerStatusChanged event);
+    void onPeerEvicted(PeerEvicted event);
+    void onLookupCompleted(LookupCompleted event);
+}
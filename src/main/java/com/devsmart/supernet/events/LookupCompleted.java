@@ -0,0 +1,40 @@
+package com.devsmart.supernet.events;
+
+
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.Peer;
+
+import java.util.List;
+
+/**
+ * An iterative lookup finished, including the ones the client runs to maintain its routing
+ * table.
+ */
+public class LookupCompleted extends SupernetEvent {
+
+    public final ID target;
+
+    /**
+     * The peers closest to {@link #target} that answered, closest first
+     */
+    public final List<Peer> peers;
+
+    public final long millis;
+
+    public LookupCompleted(ID target, List<Peer> peers, long millis) {
+        super(Type.LOOKUP_COMPLETED);
+        this.target = target;
+        this.peers = peers;
+        this.millis = millis;
+    }
+
+    @Override
+    void dispatch(EventListener listener) {
+        listener.onLookupCompleted(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("lookup %s found %d peers in %d ms", target.breifToString(), peers.size(), millis);
+    }
+}
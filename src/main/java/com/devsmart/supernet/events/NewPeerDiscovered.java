@@ -1,14 +1,28 @@
 package com.devsmart.supernet.events;
 
 
-import com.devsmart.supernet.ID;
+import com.devsmart.supernet.Peer;
 
-import java.net.SocketAddress;
+/**
+ * A peer was added to the routing table, whether it was heard from directly, learned from a
+ * lookup response, or promoted from a bucket's replacement cache.
+ */
+public class NewPeerDiscovered extends SupernetEvent {
 
-public class NewPeerDiscovered {
+    public final Peer peer;
 
-    public SocketAddress gossipPeer;
-    public ID remoteId;
-    public SocketAddress socketAddress;
+    public NewPeerDiscovered(Peer peer) {
+        super(Type.PEER_DISCOVERED);
+        this.peer = peer;
+    }
 
+    @Override
+    void dispatch(EventListener listener) {
+        listener.onPeerDiscovered(this);
+    }
+
+    @Override
+    public String toString() {
+        return "discovered " + peer;
+    }
 }
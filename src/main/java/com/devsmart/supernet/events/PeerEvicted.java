@@ -0,0 +1,28 @@
+package com.devsmart.supernet.events;
+
+
+import com.devsmart.supernet.Peer;
+
+/**
+ * A peer was removed from the routing table because it was DEAD or failed to answer while a
+ * newer peer was waiting for its slot.
+ */
+public class PeerEvicted extends SupernetEvent {
+
+    public final Peer peer;
+
+    public PeerEvicted(Peer peer) {
+        super(Type.PEER_EVICTED);
+        this.peer = peer;
+    }
+
+    @Override
+    void dispatch(EventListener listener) {
+        listener.onPeerEvicted(this);
+    }
+
+    @Override
+    public String toString() {
+        return "evicted " + peer;
+    }
+}
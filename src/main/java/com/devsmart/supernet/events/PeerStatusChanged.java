@@ -0,0 +1,33 @@
+package com.devsmart.supernet.events;
+
+
+import com.devsmart.supernet.Peer;
+
+/**
+ * The status of a peer changed since it was last checked. A peer's status follows from when it
+ * was last seen, so the change is only noticed when the peer answers or fails a request, and
+ * for the peers in the routing table, on each maintenance sweep.
+ */
+public class PeerStatusChanged extends SupernetEvent {
+
+    public final Peer peer;
+    public final Peer.Status previous;
+    public final Peer.Status status;
+
+    public PeerStatusChanged(Peer peer, Peer.Status previous, Peer.Status status) {
+        super(Type.PEER_STATUS_CHANGED);
+        this.peer = peer;
+        this.previous = previous;
+        this.status = status;
+    }
+
+    @Override
+    void dispatch(EventListener listener) {
+        listener.onPeerStatusChanged(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s -> %s", peer, previous, status);
+    }
+}
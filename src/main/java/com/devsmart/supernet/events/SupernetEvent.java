@@ -0,0 +1,27 @@
+package com.devsmart.supernet.events;
+
+
+/**
+ * Something that happened in a client's overlay. Events are immutable and shared by every
+ * subscriber they are delivered to.
+ */
+public abstract class SupernetEvent {
+
+    public enum Type {
+        PEER_DISCOVERED,
+        PEER_STATUS_CHANGED,
+        PEER_EVICTED,
+        LOOKUP_COMPLETED
+    }
+
+    public final Type type;
+
+    SupernetEvent(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * Call the {@code listener} method for this type of event.
+     */
+    abstract void dispatch(EventListener listener);
+}
@@ -0,0 +1,278 @@
+package com.devsmart.supernet.metrics;
+
+
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.SupernetClientProtocolReceiver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Everything a client counts about itself. Counters and histograms are updated on the packet
+ * path and cost an atomic add each, so they are always on; gauges are read when the metrics
+ * are. Exposed over JMX while the client runs, see {@link ClientMetricsMXBean}.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClientMetrics.class);
+
+    private static final String[] PACKET_TYPE_NAMES = new String[SupernetClientProtocolReceiver.HEADER_PACKET_TYPE_MASK + 1];
+    static {
+        for(int i=0;i<PACKET_TYPE_NAMES.length;i++) {
+            PACKET_TYPE_NAMES[i] = "type" + i;
+        }
+        PACKET_TYPE_NAMES[SupernetClientProtocolReceiver.PACKET_PING] = "ping";
+        PACKET_TYPE_NAMES[SupernetClientProtocolReceiver.PACKET_FIND_PEERS] = "findPeers";
+        PACKET_TYPE_NAMES[SupernetClientProtocolReceiver.PACKET_ROUTE] = "route";
+        PACKET_TYPE_NAMES[SupernetClientProtocolReceiver.PACKET_CONNECT] = "connect";
+        PACKET_TYPE_NAMES[SupernetClientProtocolReceiver.PACKET_DISCONNECT] = "disconnect";
+        PACKET_TYPE_NAMES[SupernetClientProtocolReceiver.PACKET_STREAM] = "stream";
+        PACKET_TYPE_NAMES[SupernetClientProtocolReceiver.PACKET_ROUTE_BATCH] = "routeBatch";
+    }
+
+    private static final Gauge ZERO = new Gauge() {
+        @Override
+        public long get() {
+            return 0;
+        }
+    };
+
+    private final StripedCounter[] mReceived = newCounters();
+    private final StripedCounter[] mSent = newCounters();
+    private final StripedCounter[] mDropped = newCounters();
+
+    /**
+     * Time from the transport handing a packet over to a worker starting on it
+     */
+    public final Histogram receiveToDispatchNanos = new Histogram();
+
+    /**
+     * Time a worker spends handling one packet
+     */
+    public final Histogram dispatchToHandledNanos = new Histogram();
+
+    /**
+     * Time an iterative lookup takes from start to converging
+     */
+    public final Histogram lookupMillis = new Histogram();
+
+    /**
+     * Hops taken by routed packets delivered to this client
+     */
+    public final Histogram routeHops = new Histogram();
+
+    /**
+     * Next hops found in the {@code NextHopCache}
+     */
+    public final StripedCounter routeCacheHits = new StripedCounter();
+
+    /**
+     * Next hops that had to be looked up in the routing table
+     */
+    public final StripedCounter routeCacheMisses = new StripedCounter();
+
+    /**
+     * Routed payloads handed to the {@code MessageHandler}
+     */
+    public final StripedCounter messagesDelivered = new StripedCounter();
+
+    /**
+     * Routed payloads dropped because no {@code MessageHandler} was set
+     */
+    public final StripedCounter messagesUndelivered = new StripedCounter();
+
+    private volatile Gauge mMainQueueDepth = ZERO;
+    private volatile Gauge mRoutingTablePeers = ZERO;
+    private volatile Gauge mRoutingTableBuckets = ZERO;
+
+    private ObjectName mObjectName;
+
+    private static StripedCounter[] newCounters() {
+        StripedCounter[] retval = new StripedCounter[PACKET_TYPE_NAMES.length];
+        for(int i=0;i<retval.length;i++) {
+            retval[i] = new StripedCounter();
+        }
+        return retval;
+    }
+
+    /**
+     * @return the name packets of {@code packetType} are reported under
+     */
+    public static String packetTypeName(int packetType) {
+        return PACKET_TYPE_NAMES[packetType & SupernetClientProtocolReceiver.HEADER_PACKET_TYPE_MASK];
+    }
+
+    private static int packetType(byte header) {
+        return header & SupernetClientProtocolReceiver.HEADER_PACKET_TYPE_MASK;
+    }
+
+    /**
+     * Count a received packet by the type in its {@code header} byte.
+     */
+    public void packetReceived(byte header) {
+        mReceived[packetType(header)].increment();
+    }
+
+    public void packetSent(byte header) {
+        mSent[packetType(header)].increment();
+    }
+
+    /**
+     * Count a received packet that was not handled: malformed, of an unknown type, or
+     * arriving with no receiver set.
+     */
+    public void packetDropped(byte header) {
+        mDropped[packetType(header)].increment();
+    }
+
+    public void setMainQueueDepth(Gauge gauge) {
+        mMainQueueDepth = gauge;
+    }
+
+    public void setRoutingTablePeers(Gauge gauge) {
+        mRoutingTablePeers = gauge;
+    }
+
+    public void setRoutingTableBuckets(Gauge gauge) {
+        mRoutingTableBuckets = gauge;
+    }
+
+    private static Map<String, Long> byType(StripedCounter[] counters) {
+        LinkedHashMap<String, Long> retval = new LinkedHashMap<String, Long>();
+        for(int i=0;i<counters.length;i++) {
+            retval.put(PACKET_TYPE_NAMES[i], counters[i].get());
+        }
+        return retval;
+    }
+
+    @Override
+    public Map<String, Long> getPacketsReceived() {
+        return byType(mReceived);
+    }
+
+    @Override
+    public Map<String, Long> getPacketsSent() {
+        return byType(mSent);
+    }
+
+    @Override
+    public Map<String, Long> getPacketsDropped() {
+        return byType(mDropped);
+    }
+
+    @Override
+    public Map<String, Long> getReceiveToDispatchNanos() {
+        return receiveToDispatchNanos.summary();
+    }
+
+    @Override
+    public Map<String, Long> getDispatchToHandledNanos() {
+        return dispatchToHandledNanos.summary();
+    }
+
+    @Override
+    public Map<String, Long> getLookupMillis() {
+        return lookupMillis.summary();
+    }
+
+    @Override
+    public Map<String, Long> getRouteHops() {
+        return routeHops.summary();
+    }
+
+    @Override
+    public long getRouteCacheHits() {
+        return routeCacheHits.get();
+    }
+
+    @Override
+    public long getRouteCacheMisses() {
+        return routeCacheMisses.get();
+    }
+
+    @Override
+    public long getMessagesDelivered() {
+        return messagesDelivered.get();
+    }
+
+    @Override
+    public long getMessagesUndelivered() {
+        return messagesUndelivered.get();
+    }
+
+    @Override
+    public long getMainQueueDepth() {
+        return mMainQueueDepth.get();
+    }
+
+    @Override
+    public long getRoutingTablePeers() {
+        return mRoutingTablePeers.get();
+    }
+
+    @Override
+    public long getRoutingTableBuckets() {
+        return mRoutingTableBuckets.get();
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("received ").append(getPacketsReceived()).append('\n');
+        buf.append("sent ").append(getPacketsSent()).append('\n');
+        buf.append("dropped ").append(getPacketsDropped()).append('\n');
+        buf.append("receiveToDispatchNanos ").append(getReceiveToDispatchNanos()).append('\n');
+        buf.append("dispatchToHandledNanos ").append(getDispatchToHandledNanos()).append('\n');
+        buf.append("lookupMillis ").append(getLookupMillis()).append('\n');
+        buf.append("routeHops ").append(getRouteHops()).append('\n');
+        buf.append("routeCache hits=").append(getRouteCacheHits())
+                .append(" misses=").append(getRouteCacheMisses()).append('\n');
+        buf.append("messages delivered=").append(getMessagesDelivered())
+                .append(" undelivered=").append(getMessagesUndelivered()).append('\n');
+        buf.append("mainQueueDepth ").append(getMainQueueDepth()).append('\n');
+        buf.append("routingTable peers=").append(getRoutingTablePeers())
+                .append(" buckets=").append(getRoutingTableBuckets());
+        return buf.toString();
+    }
+
+    /**
+     * Write {@link #dump()} to the log.
+     */
+    public void log() {
+        LOGGER.info("metrics:\n{}", dump());
+    }
+
+    /**
+     * Register with the platform MBean server under the client's ID. Failing to register is
+     * logged and otherwise ignored.
+     */
+    public synchronized void register(ID clientId) {
+        try {
+            ObjectName name = new ObjectName("com.devsmart.supernet:type=Client,id=" + clientId);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                mObjectName = name;
+            }
+        } catch (Exception e) {
+            LOGGER.warn("could not register metrics MBean", e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if(mObjectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+        } catch (Exception e) {
+            LOGGER.warn("could not unregister metrics MBean", e);
+        }
+        mObjectName = null;
+    }
+}
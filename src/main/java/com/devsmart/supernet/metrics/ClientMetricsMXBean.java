@@ -0,0 +1,45 @@
+package com.devsmart.supernet.metrics;
+
+
+import java.util.Map;
+
+/**
+ * The JMX view of a client's {@link ClientMetrics}, registered as
+ * {@code com.devsmart.supernet:type=Client,id=<client ID>}. Packet counts are keyed by packet
+ * type and histograms summarised by {@link Histogram#summary()}.
+ */
+public interface ClientMetricsMXBean {
+
+    Map<String, Long> getPacketsReceived();
+
+    Map<String, Long> getPacketsSent();
+
+    Map<String, Long> getPacketsDropped();
+
+    Map<String, Long> getReceiveToDispatchNanos();
+
+    Map<String, Long> getDispatchToHandledNanos();
+
+    Map<String, Long> getLookupMillis();
+
+    Map<String, Long> getRouteHops();
+
+    long getRouteCacheHits();
+
+    long getRouteCacheMisses();
+
+    long getMessagesDelivered();
+
+    long getMessagesUndelivered();
+
+    long getMainQueueDepth();
+
+    long getRoutingTablePeers();
+
+    long getRoutingTableBuckets();
+
+    /**
+     * @return every metric as text, as written by the periodic dump
+     */
+    String dump();
+}
@@ -0,0 +1,9 @@
+package com.devsmart.supernet.metrics;
+
+
+/**
+ * A value that is read when the metrics are, rather than counted as it changes.
+ */
+public interface Gauge {
+    long get();
+}
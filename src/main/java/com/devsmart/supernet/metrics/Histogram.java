@@ -0,0 +1,107 @@
+package com.devsmart.supernet.metrics;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values in fixed power of two buckets: bucket 0 holds 0, bucket {@code i} holds
+ * {@code [2^(i-1), 2^i)}. Like {@link StripedCounter}, every thread records into one of a few
+ * padded stripes, each holding its own buckets and sum, so recording a value is two
+ * uncontended atomic adds; reading sums the stripes. The histogram takes the same memory
+ * however many values it sees. Percentiles are reported as
+ * the upper bound of the bucket they fall in, so they are accurate to a factor of two.
+ */
+public final class Histogram {
+
+    private static final int NUM_BUCKETS = 64;
+
+    // a stripe is NUM_BUCKETS counts, then the sum, then padding up to the next stripe
+    private static final int SUM = NUM_BUCKETS;
+    private static final int STRIPE_LENGTH = NUM_BUCKETS + 1 + StripedCounter.PADDING;
+
+    private final AtomicLongArray mStripes = new AtomicLongArray(StripedCounter.NUM_STRIPES * STRIPE_LENGTH);
+
+    static int bucketOf(long value) {
+        if(value <= 0) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(value), NUM_BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == 0 ? 0 : (1L << bucket) - 1;
+    }
+
+    /**
+     * Record {@code value}. Negative values count as 0.
+     */
+    public void record(long value) {
+        final int stripe = StripedCounter.stripeIndex() * STRIPE_LENGTH;
+        mStripes.getAndIncrement(stripe + bucketOf(value));
+        mStripes.getAndAdd(stripe + SUM, Math.max(0, value));
+    }
+
+    private long sum(int index) {
+        long retval = 0;
+        for(int i=0;i<StripedCounter.NUM_STRIPES;i++) {
+            retval += mStripes.get(i * STRIPE_LENGTH + index);
+        }
+        return retval;
+    }
+
+    public long getCount() {
+        long retval = 0;
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            retval += sum(i);
+        }
+        return retval;
+    }
+
+    public long getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : sum(SUM) / count;
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return an upper bound for the value below which {@code fraction} of the values fall, or
+     * 0 if nothing was recorded
+     */
+    public long getPercentile(double fraction) {
+        long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            counts[i] = sum(i);
+            total += counts[i];
+        }
+        if(total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            seen += counts[i];
+            if(seen >= rank && counts[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(NUM_BUCKETS - 1);
+    }
+
+    /**
+     * @return count, mean, p50, p90, p99 and max, in that order
+     */
+    public Map<String, Long> summary() {
+        LinkedHashMap<String, Long> retval = new LinkedHashMap<String, Long>();
+        retval.put("count", getCount());
+        retval.put("mean", getMean());
+        retval.put("p50", getPercentile(0.5));
+        retval.put("p90", getPercentile(0.9));
+        retval.put("p99", getPercentile(0.99));
+        retval.put("max", getPercentile(1));
+        return retval;
+    }
+}
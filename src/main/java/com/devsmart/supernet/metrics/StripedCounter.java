@@ -0,0 +1,56 @@
+package com.devsmart.supernet.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can update at once without fighting over a cache line. Each
+ * thread adds to one of a few stripes, picked by thread ID, and the stripes are padded apart;
+ * {@link #get()} sums them. An update is a single uncontended atomic add.
+ */
+public final class StripedCounter {
+
+    /**
+     * Longs between two stripes: 128 bytes, so neither a cache line nor the pair the adjacent
+     * line prefetcher loads is shared
+     */
+    static final int PADDING = 16;
+
+    static final int NUM_STRIPES = numStripes();
+    private static final int STRIPE_MASK = NUM_STRIPES - 1;
+
+    private static int numStripes() {
+        int cores = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+        return Integer.highestOneBit(cores * 2 - 1);
+    }
+
+    private final AtomicLongArray mStripes = new AtomicLongArray(NUM_STRIPES * PADDING);
+
+    /**
+     * @return the calling thread's stripe, between 0 and {@link #NUM_STRIPES}
+     */
+    static int stripeIndex() {
+        // thread IDs are handed out in sequence, so the pool threads get different stripes
+        return (int) Thread.currentThread().getId() & STRIPE_MASK;
+    }
+
+    public void increment() {
+        mStripes.getAndIncrement(stripeIndex() * PADDING);
+    }
+
+    public void add(long value) {
+        mStripes.getAndAdd(stripeIndex() * PADDING, value);
+    }
+
+    /**
+     * @return the sum of every update so far. Updates made while summing may or may not be
+     * included.
+     */
+    public long get() {
+        long retval = 0;
+        for(int i=0;i<NUM_STRIPES;i++) {
+            retval += mStripes.get(i * PADDING);
+        }
+        return retval;
+    }
+}
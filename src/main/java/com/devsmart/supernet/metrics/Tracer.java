@@ -0,0 +1,122 @@
+package com.devsmart.supernet.metrics;
+
+
+import com.devsmart.supernet.ID;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Emits trace events for individual packets, routes, lookups and maintenance passes. Callers
+ * check {@link #isEnabled(Event)} before timing anything, so a disabled event costs a virtual
+ * call and, with JFR, a switch and a read of the event type's enabled flag, but no clock reads
+ * or allocation.
+ *
+ * {@link #get()} is backed by Java Flight Recorder when the {@code jfr} build output is on the
+ * classpath and the JVM has JFR (Java 11 and later), and does nothing otherwise. The build only
+ * includes the {@code jfr} output when it runs on Java 11 or is given {@code -PjfrJavaHome}. Start a
+ * recording with {@code -XX:StartFlightRecording} or {@code jcmd <pid> JFR.start} and the
+ * events show up under "Supernet" next to GC and thread activity.
+ *
+ * Lookup and maintenance events are recorded by default. The per-packet events, RECEIVE,
+ * DISPATCH and ROUTE, are too frequent for an always-on recording and must be enabled in the
+ * recording's settings, e.g. {@code com.devsmart.supernet.PacketDispatch#enabled=true}.
+ */
+public abstract class Tracer {
+
+    public enum Event {
+        /**
+         * Datagrams handed over by the transport and dispatched to workers
+         */
+        RECEIVE,
+
+        /**
+         * A packet handled by the protocol receiver
+         */
+        DISPATCH,
+
+        /**
+         * A routed packet forwarded towards its target
+         */
+        ROUTE,
+
+        /**
+         * An iterative lookup finished
+         */
+        LOOKUP,
+
+        /**
+         * A periodic routing table maintenance pass
+         */
+        MAINTENANCE
+    }
+
+    /**
+     * Disables tracing even if JFR is available
+     */
+    public static final String DISABLE_PROPERTY = "supernet.tracer.disable";
+
+    private static final String JFR_TRACER = "com.devsmart.supernet.jfr.JfrTracer";
+
+    public static final Tracer NOOP = new Tracer() {
+        @Override
+        public boolean isEnabled(Event event) {
+            return false;
+        }
+
+        @Override
+        public void datagramsReceived(int count, int numBytes, long durationNanos) {
+        }
+
+        @Override
+        public void packetDispatched(int packetType, boolean isRequest, int size, InetSocketAddress remoteAddress, boolean handled, long durationNanos) {
+        }
+
+        @Override
+        public void routeForwarded(ID target, int hops, int size, ID nextHop, long durationNanos) {
+        }
+
+        @Override
+        public void lookupFinished(ID target, int numQueried, int numFound, long durationNanos) {
+        }
+
+        @Override
+        public void maintenance(String task, int numPeers, long durationNanos) {
+        }
+    };
+
+    private static final Tracer INSTANCE = load();
+
+    private static Tracer load() {
+        if(Boolean.getBoolean(DISABLE_PROPERTY)) {
+            return NOOP;
+        }
+        try {
+            return (Tracer) Class.forName(JFR_TRACER).newInstance();
+        } catch (Throwable t) {
+            // built without the jfr output, or running on a JVM without JFR
+            return NOOP;
+        }
+    }
+
+    public static Tracer get() {
+        return INSTANCE;
+    }
+
+    public abstract boolean isEnabled(Event event);
+
+    public abstract void datagramsReceived(int count, int numBytes, long durationNanos);
+
+    /**
+     * @param handled false if the receiver rejected the packet
+     */
+    public abstract void packetDispatched(int packetType, boolean isRequest, int size, InetSocketAddress remoteAddress, boolean handled, long durationNanos);
+
+    public abstract void routeForwarded(ID target, int hops, int size, ID nextHop, long durationNanos);
+
+    public abstract void lookupFinished(ID target, int numQueried, int numFound, long durationNanos);
+
+    /**
+     * @param numPeers peers in the routing table after the pass
+     */
+    public abstract void maintenance(String task, int numPeers, long durationNanos);
+}
@@ -0,0 +1,229 @@
+package com.devsmart.supernet.sim;
+
+
+import com.google.common.base.Preconditions;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory packet network on a {@link VirtualScheduler}. Every packet is delayed by a
+ * latency drawn uniformly from the configured range and dropped with the configured loss rate,
+ * using one seeded {@link Random}, so a simulation replays exactly.
+ *
+ * Nodes can sit behind a NAT. A NATed node sends from a private address, and the peers it talks
+ * to see a public address and port the NAT maps it to instead; what the NAT lets back in
+ * depends on its {@link NatType}.
+ */
+public class SimNetwork {
+
+    public enum NatType {
+        /**
+         * Publicly reachable, no NAT
+         */
+        NONE,
+
+        /**
+         * One public port for every destination; anyone may send to it once it is mapped
+         */
+        FULL_CONE,
+
+        /**
+         * One public port for every destination; only addresses and ports the node has sent to
+         * may send back
+         */
+        PORT_RESTRICTED_CONE,
+
+        /**
+         * A new public port for every destination, which only that destination may send to
+         */
+        SYMMETRIC
+    }
+
+    private static final int NODE_PORT = 5000;
+    private static final int FIRST_MAPPED_PORT = 20000;
+
+    /**
+     * A NAT's public port and who may send to it.
+     */
+    static class Mapping {
+        final SimTransport mTransport;
+        final InetSocketAddress mPublicAddress;
+        final HashMap<InetSocketAddress, Boolean> mAllowed = new HashMap<InetSocketAddress, Boolean>();
+
+        Mapping(SimTransport transport, InetSocketAddress publicAddress) {
+            mTransport = transport;
+            mPublicAddress = publicAddress;
+        }
+    }
+
+    private final VirtualScheduler mScheduler;
+    private final Random mRandom;
+    private final HashMap<InetSocketAddress, Mapping> mByPublicAddress = new HashMap<InetSocketAddress, Mapping>();
+    private int mNumNodes;
+    private long mMinLatencyMicros = 10000;
+    private long mMaxLatencyMicros = 50000;
+    private double mLossRate;
+
+    private long mNumSent;
+    private long mNumDelivered;
+    private long mNumLost;
+    private long mNumFiltered;
+
+    public SimNetwork(VirtualScheduler scheduler, Random random) {
+        mScheduler = scheduler;
+        mRandom = random;
+    }
+
+    /**
+     * One way latency of every packet, drawn uniformly from {@code [minMillis, maxMillis]}
+     */
+    public SimNetwork setLatency(long minMillis, long maxMillis) {
+        Preconditions.checkArgument(minMillis >= 0 && maxMillis >= minMillis);
+        mMinLatencyMicros = TimeUnit.MILLISECONDS.toMicros(minMillis);
+        mMaxLatencyMicros = TimeUnit.MILLISECONDS.toMicros(maxMillis);
+        return this;
+    }
+
+    /**
+     * Fraction of packets dropped
+     */
+    public SimNetwork setLossRate(double lossRate) {
+        Preconditions.checkArgument(lossRate >= 0 && lossRate < 1);
+        mLossRate = lossRate;
+        return this;
+    }
+
+    /**
+     * Add a node. Its public address is 100.x.y.z; a NATed node is given a private 10.x.y.z
+     * address and its NAT the public one.
+     */
+    public SimTransport createTransport(NatType natType) {
+        final int n = ++mNumNodes;
+        InetSocketAddress publicAddress = new InetSocketAddress(address(100, n), NODE_PORT);
+        if(natType == NatType.NONE) {
+            SimTransport retval = new SimTransport(this, publicAddress, natType, publicAddress);
+            // reachable before it has sent anything
+            retval.mConeMapping = addMapping(retval, NODE_PORT);
+            return retval;
+        }
+        return new SimTransport(this, new InetSocketAddress(address(10, n), NODE_PORT), natType, publicAddress);
+    }
+
+    private static InetAddress address(int first, int n) {
+        try {
+            return InetAddress.getByAddress(new byte[]{ (byte) first, (byte) (n >> 16), (byte) (n >> 8), (byte) n });
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Mapping outboundMapping(SimTransport from, InetSocketAddress to) {
+        Mapping retval;
+        if(from.mNatType == NatType.SYMMETRIC) {
+            retval = from.mSymmetricMappings.get(to);
+            if(retval == null) {
+                retval = addMapping(from, FIRST_MAPPED_PORT + from.mSymmetricMappings.size());
+                from.mSymmetricMappings.put(to, retval);
+            }
+        } else {
+            retval = from.mConeMapping;
+            if(retval == null) {
+                retval = addMapping(from, from.mNatType == NatType.NONE ? NODE_PORT : FIRST_MAPPED_PORT);
+                from.mConeMapping = retval;
+            }
+        }
+        if(from.mNatType == NatType.PORT_RESTRICTED_CONE || from.mNatType == NatType.SYMMETRIC) {
+            retval.mAllowed.put(to, Boolean.TRUE);
+        }
+        return retval;
+    }
+
+    private Mapping addMapping(SimTransport transport, int port) {
+        Mapping retval = new Mapping(transport, new InetSocketAddress(transport.mPublicAddress.getAddress(), port));
+        mByPublicAddress.put(retval.mPublicAddress, retval);
+        return retval;
+    }
+
+    private static boolean accepts(Mapping mapping, InetSocketAddress from) {
+        switch (mapping.mTransport.mNatType) {
+            case NONE:
+            case FULL_CONE:
+                return true;
+            default:
+                return mapping.mAllowed.containsKey(from);
+        }
+    }
+
+    void send(SimTransport from, ByteBuffer packet, SocketAddress remoteAddress) {
+        mNumSent++;
+        final InetSocketAddress to = (InetSocketAddress) remoteAddress;
+        final InetSocketAddress source = outboundMapping(from, to).mPublicAddress;
+
+        final ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet);
+        copy.flip();
+
+        if(mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+            mNumLost++;
+            return;
+        }
+
+        long latency = mMinLatencyMicros;
+        if(mMaxLatencyMicros > mMinLatencyMicros) {
+            latency += (long) (mRandom.nextDouble() * (mMaxLatencyMicros - mMinLatencyMicros));
+        }
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                deliver(copy, source, to);
+            }
+        }, latency, TimeUnit.MICROSECONDS);
+    }
+
+    private void deliver(ByteBuffer packet, InetSocketAddress from, InetSocketAddress to) {
+        Mapping mapping = mByPublicAddress.get(to);
+        if(mapping == null || !accepts(mapping, from) || !mapping.mTransport.deliver(packet, from)) {
+            mNumFiltered++;
+            return;
+        }
+        mNumDelivered++;
+    }
+
+    void remove(SimTransport transport) {
+        if(transport.mConeMapping != null) {
+            mByPublicAddress.remove(transport.mConeMapping.mPublicAddress);
+        }
+        for(Mapping mapping : transport.mSymmetricMappings.values()) {
+            mByPublicAddress.remove(mapping.mPublicAddress);
+        }
+    }
+
+    public long getNumSent() {
+        return mNumSent;
+    }
+
+    public long getNumDelivered() {
+        return mNumDelivered;
+    }
+
+    /**
+     * @return packets dropped by the configured loss rate
+     */
+    public long getNumLost() {
+        return mNumLost;
+    }
+
+    /**
+     * @return packets that reached no node: dropped by a NAT, or sent to an address nobody has
+     */
+    public long getNumFiltered() {
+        return mNumFiltered;
+    }
+}
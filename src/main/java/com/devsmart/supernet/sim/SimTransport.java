@@ -0,0 +1,96 @@
+package com.devsmart.supernet.sim;
+
+
+import com.devsmart.supernet.Transport;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * A node's {@link Transport} on a {@link SimNetwork}. Packets are delivered on the thread
+ * driving the network's {@link VirtualScheduler}.
+ */
+public class SimTransport implements Transport {
+
+    private final SimNetwork mNetwork;
+    private final InetSocketAddress mLocalAddress;
+    final SimNetwork.NatType mNatType;
+    final InetSocketAddress mPublicAddress;
+
+    // the NAT's mappings for this node
+    SimNetwork.Mapping mConeMapping;
+    final HashMap<InetSocketAddress, SimNetwork.Mapping> mSymmetricMappings = new HashMap<InetSocketAddress, SimNetwork.Mapping>();
+
+    private Receiver mReceiver;
+    private boolean mClosed;
+
+    SimTransport(SimNetwork network, InetSocketAddress localAddress, SimNetwork.NatType natType, InetSocketAddress publicAddress) {
+        mNetwork = network;
+        mLocalAddress = localAddress;
+        mNatType = natType;
+        mPublicAddress = publicAddress;
+    }
+
+    public SimNetwork.NatType getNatType() {
+        return mNatType;
+    }
+
+    @Override
+    public DatagramSocket getSocket() {
+        return null;
+    }
+
+    /**
+     * @return the node's own address, which is a private one behind a NAT
+     */
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return mLocalAddress;
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        mReceiver = receiver;
+    }
+
+    @Override
+    public void send(ByteBuffer packet, SocketAddress remoteAddress) throws IOException {
+        if(mClosed) {
+            throw new SocketException("transport closed");
+        }
+        mNetwork.send(this, packet, remoteAddress);
+    }
+
+    @Override
+    public void send(ByteBuffer[] packets, SocketAddress[] remoteAddresses, int count) throws IOException {
+        for(int i=0;i<count;i++) {
+            send(packets[i], remoteAddresses[i]);
+        }
+    }
+
+    /**
+     * @return false if the packet was dropped because this node is not running
+     */
+    boolean deliver(ByteBuffer packet, InetSocketAddress from) {
+        if(mClosed || mReceiver == null) {
+            return false;
+        }
+        mReceiver.receive(new ByteBuffer[]{ packet }, new InetSocketAddress[]{ from }, 1);
+        return true;
+    }
+
+    @Override
+    public void release(ByteBuffer packet) {
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mNetwork.remove(this);
+    }
+}
@@ -0,0 +1,249 @@
+package com.devsmart.supernet.sim;
+
+
+import com.devsmart.supernet.Clock;
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.Peer;
+import com.devsmart.supernet.SupernetClient;
+import com.devsmart.supernet.SupernetRuntime;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs many {@link SupernetClient}s in one thread against a {@link VirtualScheduler} and a
+ * {@link SimNetwork}. Node IDs, latencies and losses all come from one seeded {@link Random},
+ * so a simulation with the same seed and the same calls replays exactly, however many nodes it
+ * has. Simulated minutes take as long as the CPU needs to process their packets.
+ *
+ * While a simulator is open it owns the process-wide {@link Clock}; only one can be open at a
+ * time. Clients run DHT maintenance and lookups; streams block and can not be simulated.
+ */
+public class Simulator implements Closeable {
+
+    /**
+     * How a lookup went.
+     */
+    public static class LookupResult {
+        /**
+         * The peers the lookup returned, closest first
+         */
+        public final List<Peer> peers;
+
+        /**
+         * Virtual milliseconds the lookup took
+         */
+        public final long millis;
+
+        /**
+         * How many of the returned peers are among the truly closest running nodes
+         */
+        public final int numCorrect;
+
+        LookupResult(List<Peer> peers, long millis, int numCorrect) {
+            this.peers = peers;
+            this.millis = millis;
+            this.numCorrect = numCorrect;
+        }
+    }
+
+    /**
+     * Virtual milliseconds {@link #bootstrapAndSettle()} gives a freshly bootstrapped network to
+     * fill its routing tables
+     */
+    public static final long SETTLE_MILLIS = 20000;
+
+    private final Random mRandom;
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+    private final SimNetwork mNetwork;
+    private final SupernetRuntime mRuntime;
+    private final ArrayList<SupernetClient> mNodes = new ArrayList<SupernetClient>();
+    private final Clock mPreviousClock;
+
+    public Simulator(long seed) {
+        mRandom = new Random(seed);
+        mNetwork = new SimNetwork(mScheduler, mRandom);
+        mRuntime = new SupernetRuntime(mScheduler);
+        mPreviousClock = Clock.get();
+        Clock.set(mScheduler.getClock());
+    }
+
+    /**
+     * Start a simulator with {@code numNodes} nodes that are not behind a NAT, bootstrapped off
+     * the first one and settled.
+     */
+    public static Simulator createNetwork(long seed, int numNodes) throws IOException {
+        Simulator retval = new Simulator(seed);
+        boolean started = false;
+        try {
+            retval.addNodes(numNodes, SimNetwork.NatType.NONE);
+            retval.bootstrapAndSettle();
+            started = true;
+        } finally {
+            if(!started) {
+                retval.close();
+            }
+        }
+        return retval;
+    }
+
+    public SimNetwork getNetwork() {
+        return mNetwork;
+    }
+
+    public VirtualScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public Random getRandom() {
+        return mRandom;
+    }
+
+    /**
+     * Build and start a node with a random ID.
+     */
+    public SupernetClient addNode(SimNetwork.NatType natType) throws IOException {
+        SupernetClient retval = new SupernetClient.Builder()
+                .withId(ID.createRandom(mRandom))
+                .withRuntime(mRuntime)
+                .withTransport(mNetwork.createTransport(natType))
+                .build();
+        retval.start();
+        mNodes.add(retval);
+        return retval;
+    }
+
+    /**
+     * Add {@code numNodes} nodes with random IDs.
+     */
+    public void addNodes(int numNodes, SimNetwork.NatType natType) throws IOException {
+        for(int i=0;i<numNodes;i++) {
+            addNode(natType);
+        }
+    }
+
+    public List<SupernetClient> getNodes() {
+        return Collections.unmodifiableList(mNodes);
+    }
+
+    /**
+     * Shut {@code node} down and remove it from the network, as if it crashed.
+     */
+    public void removeNode(SupernetClient node) {
+        if(mNodes.remove(node)) {
+            node.shutdown();
+        }
+    }
+
+    /**
+     * Have every node but {@code seed} bootstrap off it. {@code seed} must not be behind a NAT.
+     */
+    public void bootstrap(SupernetClient seed) {
+        final String address = seed.getLocalAddress().getAddress().getHostAddress() + ":" + seed.getLocalAddress().getPort();
+        for(SupernetClient node : mNodes) {
+            if(node != seed) {
+                node.bootstrap(address);
+            }
+        }
+    }
+
+    /**
+     * Bootstrap every node off the first one, which must not be behind a NAT, and run for
+     * {@link #SETTLE_MILLIS}.
+     */
+    public void bootstrapAndSettle() {
+        bootstrap(mNodes.get(0));
+        runFor(SETTLE_MILLIS);
+    }
+
+    /**
+     * @see VirtualScheduler#runFor(long)
+     */
+    public void runFor(long millis) {
+        mScheduler.runFor(millis);
+    }
+
+    /**
+     * Run the simulation until {@code future} is done.
+     * @throws TimeoutException if it is not done after {@code timeoutMillis} of virtual time
+     */
+    public <T> T await(final ListenableFuture<T> future, long timeoutMillis) throws ExecutionException, TimeoutException {
+        boolean done = mScheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return future.isDone();
+            }
+        }, timeoutMillis);
+        if(!done) {
+            throw new TimeoutException();
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Look up {@code target} from {@code from} and check the answer against the {@code k} running
+     * nodes that really are closest to it.
+     */
+    public LookupResult lookup(SupernetClient from, ID target, int k) throws ExecutionException, TimeoutException {
+        Preconditions.checkArgument(k > 0);
+        final long start = mScheduler.getElapsedMillis();
+        List<Peer> peers = await(from.findClosestPeers(target), 60000);
+        final long millis = mScheduler.getElapsedMillis() - start;
+
+        Set<ID> closest = new HashSet<ID>();
+        for(SupernetClient node : closestNodes(target, k, from)) {
+            closest.add(node.getID());
+        }
+        int numCorrect = 0;
+        for(Peer p : peers) {
+            if(closest.contains(p.id)) {
+                numCorrect++;
+            }
+        }
+        return new LookupResult(peers, millis, numCorrect);
+    }
+
+    /**
+     * @return the {@code k} running nodes closest to {@code target}, not counting {@code exclude}
+     */
+    public List<SupernetClient> closestNodes(final ID target, int k, SupernetClient exclude) {
+        ArrayList<SupernetClient> sorted = new ArrayList<SupernetClient>(mNodes);
+        sorted.remove(exclude);
+        Collections.sort(sorted, new Comparator<SupernetClient>() {
+            @Override
+            public int compare(SupernetClient o1, SupernetClient o2) {
+                return ID.compareDistance(o1.getID(), o2.getID(), target);
+            }
+        });
+        return sorted.subList(0, Math.min(k, sorted.size()));
+    }
+
+    /**
+     * Shut every node down and give the process its clock back.
+     */
+    @Override
+    public void close() {
+        for(SupernetClient node : mNodes) {
+            node.shutdown();
+        }
+        mNodes.clear();
+        mRuntime.shutdown();
+        Clock.set(mPreviousClock);
+    }
+}
@@ -0,0 +1,296 @@
+package com.devsmart.supernet.sim;
+
+
+import com.devsmart.supernet.Clock;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ScheduledExecutorService} on virtual time. Nothing runs until {@link #runFor(long)}
+ * or {@link #runUntil(Condition, long)} is called; those run every due task on the calling
+ * thread in order of time, tasks due at the same time in the order they were scheduled, and
+ * jump the clock straight to the next task. A run with the same inputs therefore always does
+ * exactly the same thing.
+ *
+ * Not thread safe: tasks may only be submitted from the thread driving the scheduler.
+ */
+public class VirtualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualScheduler.class);
+
+    /**
+     * What {@link Clock#currentTimeMillis()} reads when the simulation starts
+     */
+    public static final long START_MILLIS = 1500000000000L;
+
+    public interface Condition {
+        boolean isMet();
+    }
+
+    private class Task<V> implements ScheduledFuture<V>, Runnable {
+        final Callable<V> mCallable;
+        final long mPeriodNanos;
+        long mTimeNanos;
+        long mSeq;
+        boolean mDone;
+        boolean mCancelled;
+        V mResult;
+        Throwable mError;
+
+        /**
+         * @param periodNanos 0 for a one shot task, positive for fixed rate, negative for fixed delay
+         */
+        Task(Callable<V> callable, long timeNanos, long periodNanos) {
+            mCallable = callable;
+            mTimeNanos = timeNanos;
+            mPeriodNanos = periodNanos;
+        }
+
+        @Override
+        public void run() {
+            try {
+                V result = mCallable.call();
+                if(mPeriodNanos == 0) {
+                    mResult = result;
+                    mDone = true;
+                } else {
+                    mTimeNanos = mPeriodNanos > 0 ? mTimeNanos + mPeriodNanos : mNowNanos - mPeriodNanos;
+                    enqueue(this);
+                }
+            } catch (Throwable t) {
+                if(!(t instanceof CancellationException)) {
+                    LOGGER.error("", t);
+                }
+                mError = t;
+                mDone = true;
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mTimeNanos - mNowNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if(mDone) {
+                return false;
+            }
+            // left in the queue and skipped when it comes up; removing is linear in the queue size
+            mCancelled = true;
+            mDone = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * Never blocks: waiting would stop the clock.
+         * @throws IllegalStateException if the task has not run yet
+         */
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            if(!mDone) {
+                throw new IllegalStateException("task has not run yet; advance the scheduler instead of blocking");
+            }
+            if(mCancelled) {
+                throw new CancellationException();
+            }
+            if(mError != null) {
+                throw new ExecutionException(mError);
+            }
+            return mResult;
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
+            return get();
+        }
+    }
+
+    private final PriorityQueue<Task<?>> mQueue = new PriorityQueue<Task<?>>(64, new Comparator<Task<?>>() {
+        @Override
+        public int compare(Task<?> o1, Task<?> o2) {
+            int retval = Long.compare(o1.mTimeNanos, o2.mTimeNanos);
+            return retval != 0 ? retval : Long.compare(o1.mSeq, o2.mSeq);
+        }
+    });
+    private long mNextSeq;
+    private long mNowNanos;
+    private long mNumTasksRun;
+    private boolean mShutdown;
+
+    private final Clock mClock = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return START_MILLIS + TimeUnit.NANOSECONDS.toMillis(mNowNanos);
+        }
+
+        @Override
+        public long nanoTime() {
+            return mNowNanos;
+        }
+    };
+
+    /**
+     * @return a clock that reads this scheduler's virtual time
+     */
+    public Clock getClock() {
+        return mClock;
+    }
+
+    /**
+     * @return virtual milliseconds since the simulation started
+     */
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mNowNanos);
+    }
+
+    public long getNumTasksRun() {
+        return mNumTasksRun;
+    }
+
+    private void enqueue(Task<?> task) {
+        task.mSeq = mNextSeq++;
+        mQueue.add(task);
+    }
+
+    private <V> Task<V> schedule(Callable<V> callable, long delay, TimeUnit unit, long periodNanos) {
+        Preconditions.checkNotNull(callable);
+        Task<V> retval = new Task<V>(callable, mNowNanos + Math.max(0, unit.toNanos(delay)), periodNanos);
+        enqueue(retval);
+        return retval;
+    }
+
+    /**
+     * Run the next task if it is due by {@code deadlineNanos}.
+     * @return false if there is no such task
+     */
+    private boolean runNext(long deadlineNanos) {
+        Task<?> task;
+        while((task = mQueue.peek()) != null && task.mCancelled) {
+            mQueue.poll();
+        }
+        if(task == null || task.mTimeNanos > deadlineNanos) {
+            return false;
+        }
+        mQueue.poll();
+        mNowNanos = Math.max(mNowNanos, task.mTimeNanos);
+        mNumTasksRun++;
+        task.run();
+        return true;
+    }
+
+    /**
+     * Run everything that comes due in the next {@code millis} virtual milliseconds and then
+     * move the clock to the end of that period.
+     */
+    public void runFor(long millis) {
+        final long deadline = mNowNanos + TimeUnit.MILLISECONDS.toNanos(millis);
+        while(runNext(deadline)) {
+        }
+        mNowNanos = deadline;
+    }
+
+    /**
+     * Run tasks until {@code condition} holds or {@code timeoutMillis} of virtual time have passed.
+     * @return true if the condition was met
+     */
+    public boolean runUntil(Condition condition, long timeoutMillis) {
+        final long deadline = mNowNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while(!condition.isMet()) {
+            if(!runNext(deadline)) {
+                mNowNanos = Math.max(mNowNanos, deadline);
+                return condition.isMet();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(Executors.callable(command), delay, unit, 0);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return schedule(callable, delay, unit, 0);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        Preconditions.checkArgument(period > 0);
+        return schedule(Executors.callable(command), initialDelay, unit, unit.toNanos(period));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        Preconditions.checkArgument(delay > 0);
+        return schedule(Executors.callable(command), initialDelay, unit, -unit.toNanos(delay));
+    }
+
+    /**
+     * Tasks can still be scheduled after shutdown; a simulation is torn down by dropping the
+     * scheduler.
+     */
+    @Override
+    public void shutdown() {
+        mShutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        mShutdown = true;
+        ArrayList<Runnable> retval = new ArrayList<Runnable>(mQueue);
+        mQueue.clear();
+        return retval;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return mShutdown;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return mShutdown;
+    }
+}
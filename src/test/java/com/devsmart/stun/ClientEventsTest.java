@@ -0,0 +1,161 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.Peer;
+import com.devsmart.supernet.SupernetClient;
+import com.devsmart.supernet.events.ClientEvents;
+import com.devsmart.supernet.events.EventAdapter;
+import com.devsmart.supernet.events.LookupCompleted;
+import com.devsmart.supernet.events.NewPeerDiscovered;
+import com.devsmart.supernet.events.PeerEvicted;
+import com.devsmart.supernet.events.PeerStatusChanged;
+import com.devsmart.supernet.events.SupernetEvent;
+import com.devsmart.supernet.sim.SimNetwork;
+import com.devsmart.supernet.sim.Simulator;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClientEventsTest {
+
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable r;
+            while((r = tasks.poll()) != null) {
+                r.run();
+            }
+        }
+    }
+
+    private static class RecordingListener extends EventAdapter {
+        final ArrayList<SupernetEvent> events = new ArrayList<SupernetEvent>();
+
+        @Override
+        public void onPeerDiscovered(NewPeerDiscovered event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onPeerStatusChanged(PeerStatusChanged event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onPeerEvicted(PeerEvicted event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onLookupCompleted(LookupCompleted event) {
+            events.add(event);
+        }
+
+        int count(SupernetEvent.Type type) {
+            int retval = 0;
+            for(SupernetEvent e : events) {
+                if(e.type == type) {
+                    retval++;
+                }
+            }
+            return retval;
+        }
+    }
+
+    @Test
+    public void testSubscriptions() throws Exception {
+        ClientEvents events = new ClientEvents();
+        assertFalse(events.isSubscribed(SupernetEvent.Type.PEER_EVICTED));
+
+        ManualExecutor churnExecutor = new ManualExecutor();
+        RecordingListener churn = new RecordingListener();
+        ClientEvents.Subscription churnSubscription = events.subscribe(churn, churnExecutor,
+                EnumSet.of(SupernetEvent.Type.PEER_DISCOVERED, SupernetEvent.Type.PEER_EVICTED), 4);
+
+        ManualExecutor allExecutor = new ManualExecutor();
+        RecordingListener all = new RecordingListener();
+        events.subscribe(all, allExecutor);
+        assertTrue(events.isSubscribed(SupernetEvent.Type.LOOKUP_COMPLETED));
+
+        Random r = new Random(1);
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        ArrayList<SupernetEvent> posted = new ArrayList<SupernetEvent>();
+        for(int i=0;i<6;i++) {
+            Peer p = new Peer(ID.createRandom(r), address, 1000 + i);
+            posted.add(i % 2 == 0 ? new NewPeerDiscovered(p) : new PeerEvicted(p));
+        }
+        posted.add(new LookupCompleted(ID.createRandom(r), new ArrayList<Peer>(), 5));
+        for(SupernetEvent e : posted) {
+            events.post(e);
+        }
+
+        // one delivery task per subscription, however many events are waiting
+        assertEquals(1, churnExecutor.tasks.size());
+        assertEquals(1, allExecutor.tasks.size());
+
+        // the slow subscriber dropped what did not fit in its queue, the other got everything
+        churnExecutor.runAll();
+        allExecutor.runAll();
+        assertEquals(posted.subList(0, 4), churn.events);
+        assertEquals(2, churnSubscription.getNumDropped());
+        assertEquals(posted, all.events);
+
+        churnSubscription.cancel();
+        events.post(posted.get(0));
+        churnExecutor.runAll();
+        assertEquals(4, churn.events.size());
+        assertTrue(events.isSubscribed(SupernetEvent.Type.PEER_DISCOVERED));
+    }
+
+    @Test
+    public void testClientEvents() throws Exception {
+        Simulator sim = new Simulator(10);
+        try {
+            sim.addNodes(21, SimNetwork.NatType.NONE);
+            SupernetClient client = sim.getNodes().get(1);
+            RecordingListener listener = new RecordingListener();
+            client.getEvents().subscribe(listener, sim.getScheduler());
+
+            sim.bootstrapAndSettle();
+            assertTrue(listener.count(SupernetEvent.Type.PEER_DISCOVERED) > 0);
+            assertTrue(listener.count(SupernetEvent.Type.LOOKUP_COMPLETED) > 0);
+
+            // every peer that goes quiet is eventually reported DEAD and dropped
+            SupernetClient gone = sim.getNodes().get(2);
+            sim.removeNode(gone);
+            sim.runFor(200000);
+
+            List<PeerStatusChanged> changes = new ArrayList<PeerStatusChanged>();
+            boolean evicted = false;
+            for(SupernetEvent e : listener.events) {
+                if(e instanceof PeerStatusChanged && ((PeerStatusChanged) e).peer.id.equals(gone.getID())) {
+                    changes.add((PeerStatusChanged) e);
+                }
+                if(e instanceof PeerEvicted && ((PeerEvicted) e).peer.id.equals(gone.getID())) {
+                    evicted = true;
+                }
+            }
+            assertFalse(changes.isEmpty());
+            assertEquals(Peer.Status.DEAD, changes.get(changes.size() - 1).status);
+            assertTrue(evicted);
+        } finally {
+            sim.close();
+        }
+    }
+}
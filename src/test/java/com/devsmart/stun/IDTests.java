@@ -3,6 +3,9 @@ package com.devsmart.stun;
 import com.devsmart.supernet.ID;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import static org.junit.Assert.*;
 
 public class IDTests {
@@ -51,4 +54,45 @@ public class IDTests {
 
 
     }
+
+    @Test
+    public void testReadWrite() {
+        byte[] data = new byte[ID.NUM_BYTES];
+        for(int i=0;i<data.length;i++) {
+            data[i] = (byte) (0xF0 + i);
+        }
+
+        ID a = new ID(data, 0);
+        byte[] out = new byte[ID.NUM_BYTES + 3];
+        assertEquals(ID.NUM_BYTES, a.write(out, 3));
+        assertEquals(a, new ID(out, 3));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ID.NUM_BYTES + 5);
+        a.write(buffer, 5);
+        assertEquals(0, buffer.position());
+        assertEquals(a, new ID(buffer, 5));
+        assertArrayEquals(data, new ID(buffer, 5).toByteArray());
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(a, new ID(buffer, 5));
+    }
+
+    @Test
+    public void testCompareDistance() {
+        byte[] data = new byte[ID.NUM_BYTES];
+        ID zero = new ID(data, 0);
+
+        data[0] = (byte) 0x80;
+        ID far = new ID(data, 0);
+
+        data[0] = 0;
+        data[ID.NUM_BYTES-1] = 0x01;
+        ID near = new ID(data, 0);
+
+        assertTrue(ID.compareDistance(near, far, zero) < 0);
+        assertTrue(ID.compareDistance(far, near, zero) > 0);
+        assertEquals(0, ID.compareDistance(far, far, zero));
+        assertEquals(159, zero.getNumSharedPrefixBits(near));
+        assertEquals(0, zero.getNumSharedPrefixBits(far));
+    }
 }
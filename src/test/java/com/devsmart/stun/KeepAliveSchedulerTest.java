@@ -0,0 +1,62 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.Clock;
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.KeepAliveScheduler;
+import com.devsmart.supernet.Peer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeepAliveSchedulerTest {
+
+    private final ManualClock mClock = new ManualClock();
+
+    @Before
+    public void setUp() {
+        Clock.set(mClock);
+    }
+
+    @After
+    public void tearDown() {
+        Clock.set(Clock.SYSTEM);
+    }
+
+    @Test
+    public void testPingDue() throws Exception {
+        Peer peer = new Peer(ID.createRandom(new Random(1)), InetAddress.getByName("127.0.0.1"), 1000);
+
+        // never seen
+        assertTrue(KeepAliveScheduler.isPingDue(peer, mClock.millis));
+
+        peer.markSeen();
+        assertFalse(KeepAliveScheduler.isPingDue(peer, mClock.millis));
+
+        // a peer skipped on one visit is pinged on the next one with a whole turn of the wheel
+        // left before it stops being ALIVE
+        final long interval = KeepAliveScheduler.KEEP_ALIVE_INTERVAL_MS;
+        for(long age=50;age<=Peer.Status.ALIVE.threshold;age+=50) {
+            mClock.millis += 50;
+            if(!KeepAliveScheduler.isPingDue(peer, mClock.millis)) {
+                assertTrue(age + 2 * interval <= Peer.Status.ALIVE.threshold);
+            }
+        }
+
+        // stale peers are pinged while they are still ALIVE
+        Peer stale = new Peer(ID.createRandom(new Random(2)), InetAddress.getByName("127.0.0.1"), 1001);
+        stale.markSeen();
+        mClock.millis += Peer.Status.ALIVE.threshold - 2 * interval - 1;
+        assertFalse(KeepAliveScheduler.isPingDue(stale, mClock.millis));
+        mClock.millis += 1;
+        assertTrue(KeepAliveScheduler.isPingDue(stale, mClock.millis));
+        assertEquals(Peer.Status.ALIVE, stale.getStatus());
+        assertTrue(KeepAliveScheduler.isPingDue(peer, mClock.millis));
+    }
+}
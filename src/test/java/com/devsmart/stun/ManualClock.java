@@ -0,0 +1,20 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.Clock;
+
+/**
+ * A clock that only moves when a test advances {@link #millis}.
+ */
+class ManualClock extends Clock {
+    long millis = 1000000;
+
+    @Override
+    public long currentTimeMillis() {
+        return millis;
+    }
+
+    @Override
+    public long nanoTime() {
+        return millis * 1000000;
+    }
+}
@@ -0,0 +1,166 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.MessageQueue;
+import com.devsmart.supernet.SupernetClient;
+import com.devsmart.supernet.sim.Simulator;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageQueueTest {
+
+    private static byte[] message(int i) {
+        return new byte[] { (byte) i };
+    }
+
+    @Test
+    public void testDropNewest() {
+        MessageQueue queue = new MessageQueue(3, MessageQueue.DropPolicy.DROP_NEWEST);
+        assertEquals(4, queue.getCapacity());
+        for(int i=0;i<6;i++) {
+            assertEquals(i < 4, queue.put(message(i)));
+        }
+        assertEquals(4, queue.size());
+        assertEquals(2, queue.getNumDropped());
+
+        for(int i=0;i<4;i++) {
+            assertArrayEquals(message(i), queue.poll());
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testDropOldest() {
+        MessageQueue queue = new MessageQueue(4, MessageQueue.DropPolicy.DROP_OLDEST);
+        for(int i=0;i<6;i++) {
+            assertTrue(queue.put(message(i)));
+        }
+        assertEquals(2, queue.getNumDropped());
+
+        ArrayList<byte[]> batch = new ArrayList<byte[]>();
+        assertEquals(3, queue.drainTo(batch, 3));
+        assertEquals(1, queue.drainTo(batch, 3));
+        for(int i=0;i<4;i++) {
+            assertArrayEquals(message(i + 2), batch.get(i));
+        }
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        final MessageQueue queue = new MessageQueue(2, MessageQueue.DropPolicy.BLOCK);
+        queue.put(message(0));
+        queue.put(message(1));
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.put(message(2));
+            }
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+
+        assertArrayEquals(message(0), queue.take());
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(0, queue.getNumDropped());
+
+        ArrayList<byte[]> batch = new ArrayList<byte[]>();
+        assertEquals(2, queue.drainTo(batch, 10, 1, TimeUnit.SECONDS));
+        assertArrayEquals(message(2), batch.get(1));
+        assertEquals(0, queue.drainTo(batch, 10, 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final int numProducers = 4;
+        final int numConsumers = 3;
+        final int perProducer = 50000;
+        final MessageQueue queue = new MessageQueue(64, MessageQueue.DropPolicy.BLOCK);
+        final AtomicLong sum = new AtomicLong();
+
+        Thread[] producers = new Thread[numProducers];
+        for(int i=0;i<numProducers;i++) {
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j=0;j<perProducer;j++) {
+                        queue.onMessage(ByteBuffer.wrap(ByteBuffer.allocate(4).putInt(j).array()));
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        Thread[] consumers = new Thread[numConsumers];
+        for(int i=0;i<numConsumers;i++) {
+            consumers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ArrayList<byte[]> batch = new ArrayList<byte[]>();
+                    try {
+                        while(queue.drainTo(batch, 16, 500, TimeUnit.MILLISECONDS) > 0) {
+                            for(byte[] m : batch) {
+                                sum.addAndGet(ByteBuffer.wrap(m).getInt());
+                            }
+                            batch.clear();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            consumers[i].start();
+        }
+
+        for(Thread t : producers) {
+            t.join();
+        }
+        for(Thread t : consumers) {
+            t.join();
+        }
+        assertEquals((long) numProducers * perProducer * (perProducer - 1) / 2, sum.get());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDelivery() throws Exception {
+        Simulator sim = Simulator.createNetwork(9, 21);
+        try {
+            SupernetClient client = sim.getNodes().get(1);
+            SupernetClient target = sim.getNodes().get(2);
+            MessageQueue queue = new MessageQueue(16, MessageQueue.DropPolicy.DROP_NEWEST);
+            target.setMessageHandler(queue);
+
+            // sendPacket leaves room for the route header in front of the payload
+            byte[] packet = new byte[1 + ID.NUM_BYTES + 1 + 5];
+            for(int i=0;i<5;i++) {
+                packet[packet.length - 5 + i] = (byte) i;
+            }
+            client.sendPacket(target.getID(), packet, 0, packet.length);
+            sim.runFor(1000);
+
+            assertArrayEquals(new byte[] { 0, 1, 2, 3, 4 }, queue.poll());
+            assertNull(queue.poll());
+            assertEquals(1, target.getMetrics().getMessagesDelivered());
+
+            target.setMessageHandler(null);
+            client.sendPacket(target.getID(), packet, 0, packet.length);
+            sim.runFor(1000);
+            assertEquals(1, target.getMetrics().getMessagesUndelivered());
+        } finally {
+            sim.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.SupernetClient;
+import com.devsmart.supernet.metrics.ClientMetrics;
+import com.devsmart.supernet.metrics.Histogram;
+import com.devsmart.supernet.metrics.StripedCounter;
+import com.devsmart.supernet.sim.Simulator;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void testStripedCounter() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[8];
+        for(int i=0;i<threads.length;i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j=0;j<100000;j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        counter.add(5);
+        assertEquals(800005, counter.get());
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getPercentile(0.5));
+
+        for(int i=1;i<=100;i++) {
+            h.record(i);
+        }
+        h.record(-1);
+        assertEquals(101, h.getCount());
+        assertEquals(50, h.getMean());
+
+        // 50 lies in [32, 64), 100 in [64, 128)
+        assertEquals(63, h.getPercentile(0.5));
+        assertEquals(127, h.getPercentile(0.99));
+        assertEquals(127, h.getPercentile(1));
+        assertEquals(0, h.getPercentile(0));
+    }
+
+    @Test
+    public void testHistogramConcurrent() throws Exception {
+        final Histogram h = new Histogram();
+        Thread[] threads = new Thread[8];
+        for(int i=0;i<threads.length;i++) {
+            final long value = 1L << i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j=0;j<100000;j++) {
+                        h.record(value);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        assertEquals(800000, h.getCount());
+        assertEquals(255 * 100000 / 800000, h.getMean());
+        assertEquals(255, h.getPercentile(1));
+        assertEquals(1, h.getPercentile(0.1));
+    }
+
+    @Test
+    public void testClientMetrics() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name;
+
+        Simulator sim = Simulator.createNetwork(7, 21);
+        try {
+            SupernetClient client = sim.getNodes().get(1);
+            sim.lookup(client, sim.getNodes().get(2).getID(), 1);
+
+            ClientMetrics metrics = client.getMetrics();
+            assertTrue(metrics.getPacketsReceived().get("ping") > 0);
+            assertTrue(metrics.getPacketsSent().get("findPeers") > 0);
+            assertEquals(0L, (long) metrics.getPacketsDropped().get("ping"));
+            assertTrue(metrics.lookupMillis.getCount() > 0);
+            assertTrue(metrics.dispatchToHandledNanos.getCount() > 0);
+            assertTrue(metrics.getRoutingTablePeers() > 0);
+
+            name = new ObjectName("com.devsmart.supernet:type=Client,id=" + client.getID());
+            assertTrue(server.isRegistered(name));
+            assertEquals(metrics.getRoutingTablePeers(), server.getAttribute(name, "RoutingTablePeers"));
+        } finally {
+            sim.close();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.Clock;
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.NextHopCache;
+import com.devsmart.supernet.Peer;
+import com.devsmart.supernet.RoutingTable;
+import com.devsmart.supernet.SupernetClient;
+import com.devsmart.supernet.metrics.ClientMetrics;
+import com.devsmart.supernet.sim.Simulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NextHopCacheTest {
+
+    private final ManualClock mClock = new ManualClock();
+    private final Random mRandom = new Random(1);
+    private RoutingTable mTable;
+    private NextHopCache mCache;
+    private ID mTarget;
+    private Peer mNextHop;
+
+    @Before
+    public void setUp() throws Exception {
+        Clock.set(mClock);
+        mTable = new RoutingTable(ID.createRandom(mRandom));
+        mCache = new NextHopCache(mTable);
+        mTarget = ID.createRandom(mRandom);
+        mNextHop = createPeer(1000);
+        mTable.addPeer(mNextHop);
+        mNextHop.markSeen();
+    }
+
+    @After
+    public void tearDown() {
+        Clock.set(Clock.SYSTEM);
+    }
+
+    private Peer createPeer(int port) throws Exception {
+        return new Peer(ID.createRandom(mRandom), InetAddress.getByName("127.0.0.1"), port);
+    }
+
+    @Test
+    public void testVersionChange() throws Exception {
+        mCache.put(mTarget, mNextHop, mTable.getVersion());
+        assertTrue(mNextHop == mCache.get(mTarget));
+
+        // any change to a bucket could mean a better next hop
+        final long version = mTable.getVersion();
+        mTable.addPeer(createPeer(1001));
+        assertTrue(mTable.getVersion() != version);
+        assertNull(mCache.get(mTarget));
+
+        // an entry computed before the change stays invalid, a new one is used
+        mCache.put(mTarget, mNextHop, version);
+        assertNull(mCache.get(mTarget));
+        mCache.put(mTarget, mNextHop, mTable.getVersion());
+        assertTrue(mNextHop == mCache.get(mTarget));
+    }
+
+    @Test
+    public void testNextHopNotAlive() throws Exception {
+        mCache.put(mTarget, mNextHop, mTable.getVersion());
+        for(int i=0;i<Peer.MAX_FAILED_REQUESTS;i++) {
+            mNextHop.requestFailed();
+        }
+        assertTrue(mNextHop.getStatus() != Peer.Status.ALIVE);
+        assertNull(mCache.get(mTarget));
+
+        // usable again once it answers, without a new put
+        mNextHop.markSeen();
+        assertTrue(mNextHop == mCache.get(mTarget));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        mCache.put(mTarget, mNextHop, mTable.getVersion());
+        mClock.millis += NextHopCache.MAX_AGE_MS - 1;
+        mNextHop.markSeen();
+        assertTrue(mNextHop == mCache.get(mTarget));
+
+        mClock.millis += 1;
+        assertNull(mCache.get(mTarget));
+    }
+
+    @Test
+    public void testRoutedPackets() throws Exception {
+        Simulator sim = Simulator.createNetwork(8, 21);
+        try {
+            SupernetClient client = sim.getNodes().get(1);
+            ID target = sim.getNodes().get(2).getID();
+            byte[] packet = new byte[1 + ID.NUM_BYTES + 1 + 16];
+            for(int i=0;i<100;i++) {
+                client.sendPacket(target, packet, 0, packet.length);
+            }
+
+            ClientMetrics metrics = client.getMetrics();
+            assertEquals(1, metrics.getRouteCacheMisses());
+            assertEquals(99, metrics.getRouteCacheHits());
+        } finally {
+            sim.close();
+        }
+    }
+}
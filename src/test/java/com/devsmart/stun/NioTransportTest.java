@@ -0,0 +1,54 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.NioTransport;
+import com.devsmart.supernet.Transport;
+import com.devsmart.supernet.Utils;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class NioTransportTest {
+
+    @Test
+    public void testOversizedDatagramDropped() throws Exception {
+        final int maxSize = Utils.getMaxDatagramSize(null);
+        assumeTrue(maxSize < Utils.MAX_UDP_PAYLOAD);
+
+        final LinkedBlockingQueue<Integer> received = new LinkedBlockingQueue<Integer>();
+        final NioTransport transport = new NioTransport(null);
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            transport.start(new Transport.Receiver() {
+                @Override
+                public void receive(ByteBuffer[] packets, InetSocketAddress[] remoteAddresses, int count) {
+                    for(int i=0;i<count;i++) {
+                        received.add(packets[i].remaining());
+                        transport.release(packets[i]);
+                    }
+                }
+            });
+
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), transport.getLocalAddress().getPort());
+            socket.send(new DatagramPacket(new byte[maxSize + 1], maxSize + 1, address));
+            socket.send(new DatagramPacket(new byte[maxSize], maxSize, address));
+            socket.send(new DatagramPacket(new byte[100], 100, address));
+
+            // the largest datagram that fits arrives whole, the one that doesn't is not passed on
+            assertEquals(maxSize, (int) received.poll(5, TimeUnit.SECONDS));
+            assertEquals(100, (int) received.poll(5, TimeUnit.SECONDS));
+            assertEquals(1, transport.getNumTruncated());
+        } finally {
+            socket.close();
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.FindPeersView;
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.Peer;
+import com.devsmart.supernet.PingView;
+import com.devsmart.supernet.RouteBatchView;
+import com.devsmart.supernet.RouteView;
+import com.devsmart.supernet.RoutingTable;
+import com.devsmart.supernet.SupernetClientProtocolReceiver;
+import com.google.common.base.Predicates;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketViewTest {
+
+    private static ByteBuffer toDirectBuffer(DatagramPacket packet, int padding) {
+        ByteBuffer retval = ByteBuffer.allocateDirect(padding + packet.getLength());
+        retval.position(padding);
+        retval.put(packet.getData(), packet.getOffset(), packet.getLength());
+        retval.position(padding);
+        return retval;
+    }
+
+    @Test
+    public void testPingView() throws Exception {
+        ID id = ID.createRandom(new Random(1));
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("10.1.2.3"), 4567);
+
+        PingView view = new PingView().wrap(toDirectBuffer(SupernetClientProtocolReceiver.createPong(address, id, 0xBEEF), 3));
+        assertTrue(view.hasValidMagic());
+        assertTrue(view.isValid());
+        assertFalse(view.isRequest());
+        assertEquals(SupernetClientProtocolReceiver.PACKET_PING, view.getPacketType());
+        assertEquals(0xBEEF, view.getTransactionId());
+        assertEquals(id, view.getId());
+    }
+
+    @Test
+    public void testFindPeersView() throws Exception {
+        Random r = new Random(2);
+        ID localId = ID.createRandom(r);
+        RoutingTable table = new RoutingTable(localId);
+        InetAddress address = InetAddress.getByName("192.168.200.10");
+        for(int i=0;i<20;i++) {
+            table.addPeer(new Peer(ID.createRandom(r), address, 60000 + i));
+        }
+
+        ID target = ID.createRandom(r);
+        FindPeersView view = new FindPeersView().wrap(toDirectBuffer(SupernetClientProtocolReceiver.createFindPeersResponse(
+                new InetSocketAddress(address, 1), table, target, 7), 5));
+
+        assertTrue(view.isValid());
+        assertEquals(7, view.getTransactionId());
+        assertEquals(RoutingTable.MAX_BUCKET_SIZE, view.getCount());
+
+        int i = 0;
+        for(Peer p : table.getKClosest(target, RoutingTable.MAX_BUCKET_SIZE, Predicates.<Peer>alwaysTrue())) {
+            assertTrue(view.peerIdEquals(i, p.id));
+            assertEquals(p.id, view.getPeerId(i));
+            assertTrue(p.isAt(view.getPeerAddress(i), view.getPeerPort(i)));
+            assertEquals(p.getSocketAddress(), view.getPeerSocketAddress(i));
+            assertEquals(p, table.findPeer(view.getPeerId(i), view.getPeerAddress(i), view.getPeerPort(i)));
+            i++;
+        }
+    }
+
+    @Test
+    public void testRouteViewRewritesHops() throws Exception {
+        ID target = ID.createRandom(new Random(3));
+        byte[] payload = "hello world".getBytes("UTF-8");
+        ByteBuffer buffer = toDirectBuffer(SupernetClientProtocolReceiver.createRoute(
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 1), target, 10, payload, 0, payload.length), 2);
+
+        RouteView view = new RouteView().wrap(buffer);
+        assertTrue(view.isValid());
+        assertTrue(view.targetEquals(target));
+        assertEquals(10, view.getHops());
+        assertEquals(payload.length, view.getPayloadLength());
+
+        view.setHops(9);
+        RouteView forwarded = new RouteView().wrap(view.getPacket());
+        assertEquals(9, forwarded.getHops());
+        assertEquals(target, forwarded.getTarget());
+
+        byte[] readPayload = new byte[forwarded.getPayloadLength()];
+        forwarded.getPayload().get(readPayload);
+        assertEquals("hello world", new String(readPayload, "UTF-8"));
+        assertEquals(2, buffer.position());
+    }
+
+    @Test
+    public void testRouteBatchView() throws Exception {
+        Random r = new Random(4);
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("10.1.2.3"), 4567);
+        ID[] targets = new ID[3];
+        ByteBuffer[] routes = new ByteBuffer[targets.length];
+        ByteBuffer batch = ByteBuffer.allocate(1024);
+        batch.put((byte) (SupernetClientProtocolReceiver.HEADER_MAGIC | SupernetClientProtocolReceiver.PACKET_ROUTE_BATCH
+                | SupernetClientProtocolReceiver.HEADER_REQUEST_BIT));
+        batch.put((byte) targets.length);
+        for(int i=0;i<targets.length;i++) {
+            targets[i] = ID.createRandom(r);
+            byte[] payload = new byte[10 * i];
+            DatagramPacket route = SupernetClientProtocolReceiver.createRoute(address, targets[i], i + 1, payload, 0, payload.length);
+            routes[i] = ByteBuffer.wrap(route.getData(), route.getOffset(), route.getLength());
+            batch.putShort((short) route.getLength());
+            batch.put(route.getData(), route.getOffset(), route.getLength());
+        }
+        batch.flip();
+
+        RouteBatchView view = new RouteBatchView().wrap(batch);
+        assertTrue(view.isValid());
+        assertEquals(SupernetClientProtocolReceiver.PACKET_ROUTE_BATCH, view.getPacketType());
+        assertEquals(targets.length, view.getCount());
+
+        RouteView route = new RouteView();
+        for(int i=0;i<targets.length;i++) {
+            assertTrue(view.next());
+            // the entry is wrapped in place and covers exactly the ROUTE packet that was batched
+            assertTrue(route == view.getEntry(route));
+            assertEquals(routes[i], route.getPacket());
+            assertTrue(route.isValid());
+            assertEquals(SupernetClientProtocolReceiver.PACKET_ROUTE, route.getPacketType());
+            assertTrue(route.targetEquals(targets[i]));
+            assertEquals(i + 1, route.getHops());
+            assertEquals(10 * i, route.getPayloadLength());
+        }
+        assertFalse(view.next());
+
+        // a count larger than the entries present stops at the end of the packet
+        batch.put(RouteBatchView.COUNT_OFFSET, (byte) 10);
+        view.wrap(batch);
+        for(int i=0;i<targets.length;i++) {
+            assertTrue(view.next());
+        }
+        assertFalse(view.next());
+    }
+}
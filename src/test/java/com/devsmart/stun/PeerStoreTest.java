@@ -0,0 +1,207 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.Peer;
+import com.devsmart.supernet.PeerStore;
+import com.devsmart.supernet.RoutingTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PeerStoreTest {
+
+    private File mFile;
+
+    @Before
+    public void setup() throws Exception {
+        mFile = File.createTempFile("peers", ".db");
+        mFile.delete();
+    }
+
+    @After
+    public void teardown() {
+        mFile.delete();
+    }
+
+    private static Peer createPeer(Random r, int port) throws Exception {
+        Peer retval = new Peer(ID.createRandom(r), InetAddress.getByName("10.0.0." + (port % 250)), port);
+        retval.markSeen();
+        retval.updateRtt(port);
+        return retval;
+    }
+
+    @Test
+    public void testPutPoll() throws Exception {
+        Random r = new Random(1);
+        PeerStore store = new PeerStore(mFile, 100);
+        try {
+            ArrayList<Peer> peers = new ArrayList<Peer>();
+            for(int i=0;i<10;i++) {
+                Peer p = createPeer(r, 1000 + i);
+                peers.add(p);
+                assertTrue(store.put(i % 2, p));
+            }
+            assertEquals(10, store.size());
+            assertEquals(5, store.size(0));
+
+            // storing a peer again moves it to the front
+            assertTrue(store.put(0, peers.get(0)));
+            assertEquals(10, store.size());
+
+            assertTrue(store.remove(peers.get(2).id));
+            assertFalse(store.remove(peers.get(2).id));
+            assertFalse(store.contains(peers.get(2).id));
+
+            Peer p = store.poll(0);
+            assertEquals(peers.get(0), p);
+            assertEquals(1000, p.getSmoothedRtt());
+            assertEquals(Peer.Status.ALIVE, p.getStatus());
+            assertEquals(peers.get(8), store.poll(0));
+            assertEquals(peers.get(6), store.poll(0));
+            assertEquals(peers.get(4), store.poll(0));
+            assertNull(store.poll(0));
+            assertEquals(5, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        Random r = new Random(2);
+        ArrayList<Peer> peers = new ArrayList<Peer>();
+        PeerStore store = new PeerStore(mFile, 100);
+        for(int i=0;i<20;i++) {
+            Peer p = createPeer(r, 1000 + i);
+            peers.add(p);
+            store.put(3, p);
+            Thread.sleep(1);
+        }
+        store.remove(peers.get(19).id);
+        store.close();
+
+        store = new PeerStore(mFile, 100);
+        try {
+            assertEquals(19, store.size());
+            for(int i=18;i>=0;i--) {
+                assertEquals(peers.get(i), store.poll(3));
+            }
+            assertNull(store.poll(3));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        Random r = new Random(3);
+        PeerStore store = new PeerStore(mFile, 4);
+        try {
+            ArrayList<Peer> peers = new ArrayList<Peer>();
+            for(int i=0;i<4;i++) {
+                Peer p = createPeer(r, 1000 + i);
+                peers.add(p);
+                assertTrue(store.put(i < 3 ? 0 : 1, p));
+            }
+
+            // replaces the oldest peer of bucket 0
+            Peer p = createPeer(r, 2000);
+            assertTrue(store.put(0, p));
+            assertFalse(store.contains(peers.get(0).id));
+            assertEquals(4, store.size());
+
+            // bucket 2 has nothing to replace
+            assertFalse(store.put(2, createPeer(r, 2001)));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        Random r = new Random(4);
+        final int numPeers = 100000;
+        PeerStore store = new PeerStore(mFile, numPeers);
+        try {
+            ArrayList<Peer> peers = new ArrayList<Peer>(numPeers);
+            for(int i=0;i<numPeers;i++) {
+                Peer p = createPeer(r, 1 + (i % 60000));
+                peers.add(p);
+                assertTrue(store.put(i % 160, p));
+            }
+
+            HashSet<ID> removed = new HashSet<ID>();
+            for(int i=0;i<numPeers/2;i++) {
+                ID id = peers.get(r.nextInt(numPeers)).id;
+                assertEquals(removed.add(id), store.remove(id));
+            }
+            for(Peer p : peers) {
+                assertEquals(!removed.contains(p.id), store.contains(p.id));
+            }
+            assertEquals(numPeers - removed.size(), store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void kill(Iterable<Peer> peers) {
+        for(Peer p : peers) {
+            for(int i=0;i<Peer.MAX_FAILED_REQUESTS;i++) {
+                p.requestFailed();
+            }
+        }
+    }
+
+    @Test
+    public void testRoutingTableSpill() throws Exception {
+        Random r = new Random(5);
+        ID localId = ID.createRandom(r);
+        RoutingTable table = new RoutingTable(localId);
+        PeerStore store = new PeerStore(mFile, 1000);
+        table.setPeerStore(store);
+        try {
+            for(int i=0;i<200;i++) {
+                table.addPeer(createPeer(r, 1000 + i));
+            }
+
+            RoutingTable.Bucket bucket = table.getBucket(ID.createRandom(new Random(6)));
+            assertEquals(RoutingTable.MAX_BUCKET_SIZE, bucket.getPeers().size());
+            assertEquals(RoutingTable.MAX_REPLACEMENTS, bucket.getReplacements().size());
+            int numStored = store.size();
+            assertTrue(numStored > 0);
+
+            // the peers in the bucket stop answering; the replacement cache is used first
+            List<Peer> replacements = bucket.getReplacements();
+            kill(bucket.getPeers());
+            bucket.trimPeers();
+            assertTrue(bucket.getPeers().isEmpty());
+            bucket.refill();
+            assertEquals(new HashSet<Peer>(replacements), new HashSet<Peer>(bucket.getPeers()));
+            assertEquals(numStored, store.size());
+
+            // then the store
+            kill(bucket.getPeers());
+            bucket.trimPeers();
+            bucket.refill();
+            assertEquals(RoutingTable.MAX_BUCKET_SIZE, bucket.getPeers().size());
+            assertEquals(numStored - RoutingTable.MAX_BUCKET_SIZE, store.size());
+            for(Peer p : bucket.getPeers()) {
+                assertEquals(Peer.Status.ALIVE, p.getStatus());
+            }
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.Peer;
+import com.devsmart.supernet.RoutingTable;
+import com.devsmart.supernet.RoutingTableSnapshot;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoutingTableTest {
+
+    private static List<Peer> fill(RoutingTable table, ID localId, Random r, int numPeers) throws Exception {
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        ArrayList<Peer> retval = new ArrayList<Peer>();
+        for(int i=0;i<numPeers;i++) {
+            ID id = ID.createRandom(r);
+            if(!id.equals(localId)) {
+                Peer p = new Peer(id, address, 1000 + i);
+                table.addPeer(p);
+                retval.add(p);
+            }
+        }
+
+        // buckets are bounded, keep only the peers that made it into the table
+        Iterator<Peer> it = retval.iterator();
+        while(it.hasNext()) {
+            Peer p = it.next();
+            if(table.getBucket(p.id).lookupPeer(p) != p) {
+                it.remove();
+            }
+        }
+        return retval;
+    }
+
+    private static List<Peer> bruteForceClosest(List<Peer> peers, final ID target, int k) {
+        ArrayList<Peer> sorted = new ArrayList<Peer>(peers);
+        Collections.sort(sorted, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer o1, Peer o2) {
+                return ID.compareDistance(o1.id, o2.id, target);
+            }
+        });
+        return sorted.subList(0, Math.min(k, sorted.size()));
+    }
+
+    @Test
+    public void testGetKClosest() throws Exception {
+        Random r = new Random(1);
+        ID localId = ID.createRandom(r);
+        RoutingTable table = new RoutingTable(localId);
+        List<Peer> peers = fill(table, localId, r, 500);
+
+        for(int i=0;i<50;i++) {
+            ID target = ID.createRandom(r);
+            assertEquals(bruteForceClosest(peers, target, 8), table.getKClosest(target, 8, Predicates.<Peer>alwaysTrue()));
+        }
+
+        ID target = peers.get(10).id;
+        Peer known = peers.get(10);
+        assertTrue(known == table.findPeer(target, known.getSocketAddress()));
+        assertEquals(null, table.findPeer(target, new InetSocketAddress(known.address, known.port + 1)));
+        assertEquals(null, table.findPeer(localId, known.getSocketAddress()));
+        List<Peer> closest = table.getKClosest(target, 8, Predicates.<Peer>alwaysTrue());
+        assertEquals(peers.get(10), closest.get(0));
+        assertEquals(bruteForceClosest(peers, localId, 8), table.getKClosest(localId, 8, Predicates.<Peer>alwaysTrue()));
+    }
+
+    @Test
+    public void testGetKClosestFilter() throws Exception {
+        Random r = new Random(2);
+        ID localId = ID.createRandom(r);
+        RoutingTable table = new RoutingTable(localId);
+        List<Peer> peers = fill(table, localId, r, 100);
+
+        final Predicate<Peer> evenPorts = new Predicate<Peer>() {
+            @Override
+            public boolean apply(Peer input) {
+                return input.port % 2 == 0;
+            }
+        };
+
+        ArrayList<Peer> evenPeers = new ArrayList<Peer>();
+        for(Peer p : peers) {
+            if(evenPorts.apply(p)) {
+                evenPeers.add(p);
+            }
+        }
+
+        ID target = ID.createRandom(r);
+        List<Peer> closest = table.getKClosest(target, 5, evenPorts);
+        assertEquals(bruteForceClosest(evenPeers, target, 5), closest);
+        for(Peer p : closest) {
+            assertTrue(evenPorts.apply(p));
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        Random r = new Random(7);
+        ID localId = ID.createRandom(r);
+        RoutingTable table = new RoutingTable(localId);
+        List<Peer> peers = fill(table, localId, r, 200);
+        int numSaved = 0;
+        for(Peer p : peers) {
+            int i = p.port - 1000;
+            if(i % 10 == 0) {
+                // never seen
+                continue;
+            }
+            p.markSeen();
+            p.updateRtt(1000 + i);
+            if(i % 10 == 1) {
+                for(int j=0;j<Peer.MAX_FAILED_REQUESTS;j++) {
+                    p.requestFailed();
+                }
+            } else {
+                numSaved++;
+            }
+        }
+
+        File file = File.createTempFile("routes", ".bin");
+        try {
+            assertEquals(numSaved, RoutingTableSnapshot.write(table, file));
+
+            List<Peer> restored = RoutingTableSnapshot.read(file);
+            assertEquals(numSaved, restored.size());
+            for(Peer p : restored) {
+                int i = p.port - 1000;
+                assertTrue(peers.contains(p));
+                assertEquals(Peer.Status.ALIVE, p.getStatus());
+                assertEquals(1000 + i, p.getSmoothedRtt());
+                assertFalse(i % 10 == 0 || i % 10 == 1);
+            }
+
+            // a corrupt snapshot is ignored
+            FileOutputStream out = new FileOutputStream(file, true);
+            out.write(0);
+            out.close();
+            assertTrue(RoutingTableSnapshot.read(file).isEmpty());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static class RecordingVerifier implements RoutingTable.PeerVerifier {
+        final ArrayList<Peer> verified = new ArrayList<Peer>();
+
+        @Override
+        public void verify(Peer peer) {
+            verified.add(peer);
+        }
+    }
+
+    @Test
+    public void testBoundedBucket() throws Exception {
+        Random r = new Random(8);
+        ID localId = ID.createRandom(r);
+        RoutingTable table = new RoutingTable(localId);
+        RecordingVerifier verifier = new RecordingVerifier();
+        table.setPeerVerifier(verifier);
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+
+        // peers that share no prefix bits with localId all end up in bucket 0
+        ArrayList<Peer> peers = new ArrayList<Peer>();
+        while(peers.size() < RoutingTable.MAX_BUCKET_SIZE + 3) {
+            ID id = ID.createRandom(r);
+            if(id.getNumSharedPrefixBits(localId) == 0) {
+                peers.add(new Peer(id, address, 1000 + peers.size()));
+            }
+        }
+        // every peer but one has answered
+        Peer stale = peers.get(3);
+        for(int i=0;i<RoutingTable.MAX_BUCKET_SIZE;i++) {
+            Peer p = peers.get(i);
+            if(p != stale) {
+                p.markSeen();
+            }
+            table.addPeer(p);
+        }
+        assertTrue(verifier.verified.isEmpty());
+
+        // when the bucket is full the new peers wait and the stale peer is pinged once
+        Peer waiting = peers.get(RoutingTable.MAX_BUCKET_SIZE);
+        Peer newer = peers.get(RoutingTable.MAX_BUCKET_SIZE + 1);
+        table.addPeer(waiting);
+        table.addPeer(newer);
+        RoutingTable.Bucket bucket = table.getBucket(peers.get(0).id);
+        assertEquals(RoutingTable.MAX_BUCKET_SIZE, bucket.getPeers().size());
+        assertEquals(Arrays.asList(newer, waiting), bucket.getReplacements());
+        assertEquals(Collections.singletonList(stale), verifier.verified);
+
+        // it did not answer, so the most recent replacement takes its slot
+        table.peerFailed(stale);
+        assertEquals(null, bucket.lookupPeer(stale));
+        assertEquals(newer, bucket.lookupPeer(newer));
+        assertEquals(Collections.singletonList(waiting), bucket.getReplacements());
+
+        // a DEAD peer is replaced right away
+        Peer dead = peers.get(5);
+        for(int i=0;i<Peer.MAX_FAILED_REQUESTS;i++) {
+            dead.requestFailed();
+        }
+        Peer fresh;
+        do {
+            ID id = ID.createRandom(r);
+            fresh = new Peer(id, address, 2000);
+        } while(fresh.id.getNumSharedPrefixBits(localId) != 0);
+        table.addPeer(fresh);
+        assertEquals(null, bucket.lookupPeer(dead));
+        assertEquals(fresh, bucket.lookupPeer(fresh));
+        assertEquals(RoutingTable.MAX_BUCKET_SIZE, bucket.getPeers().size());
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        Random r = new Random(9);
+        ID localId = ID.createRandom(r);
+        RoutingTable table = new RoutingTable(localId);
+        assertEquals(1, table.getBuckets().size());
+
+        List<Peer> peers = fill(table, localId, r, 5000);
+
+        // only the buckets near the local ID that have peers get created
+        List<RoutingTable.Bucket> buckets = table.getBuckets();
+        assertTrue(buckets.size() < 20);
+        int total = 0;
+        for(int i=0;i<buckets.size();i++) {
+            RoutingTable.Bucket bucket = buckets.get(i);
+            assertTrue(bucket.getPeers().size() <= RoutingTable.MAX_BUCKET_SIZE);
+            for(Peer p : bucket.getPeers()) {
+                int prefix = localId.getNumSharedPrefixBits(p.id);
+                if(i < buckets.size() - 1) {
+                    assertEquals(i, prefix);
+                } else {
+                    assertTrue(prefix >= i);
+                }
+            }
+            total += bucket.getPeers().size();
+        }
+        assertEquals(peers.size(), total);
+
+        // the buckets far from the local ID are full
+        for(int i=0;i<buckets.size()-2;i++) {
+            assertEquals(RoutingTable.MAX_BUCKET_SIZE, buckets.get(i).getPeers().size());
+        }
+
+        for(int i=0;i<10;i++) {
+            ID target = ID.createRandom(r);
+            assertEquals(bruteForceClosest(peers, target, 8), table.getKClosest(target, 8, Predicates.<Peer>alwaysTrue()));
+        }
+    }
+
+    @Test
+    public void testVersion() throws Exception {
+        Random r = new Random(10);
+        ID localId = ID.createRandom(r);
+        RoutingTable table = new RoutingTable(localId);
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+
+        long version = table.getVersion();
+        Peer p = new Peer(ID.createRandom(r), address, 1000);
+        table.addPeer(p);
+        assertTrue(table.getVersion() != version);
+
+        // seeing a peer that is already there changes nothing
+        version = table.getVersion();
+        table.addPeer(table.lookupPeer(p));
+        assertEquals(version, table.getVersion());
+
+        // nothing to replace a failed peer with, so it stays
+        table.peerFailed(p);
+        assertEquals(version, table.getVersion());
+
+        // filling the table splits buckets, which bumps the version too
+        version = table.getVersion();
+        fill(table, localId, r, 100);
+        assertTrue(table.getBuckets().size() > 1);
+        assertTrue(table.getVersion() != version);
+    }
+}
@@ -0,0 +1,50 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.RttEstimator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RttEstimatorTest {
+
+    @Test
+    public void testUpdate() {
+        RttEstimator rtt = new RttEstimator(1000, 200, 10000);
+        assertEquals(-1, rtt.getSmoothedRtt());
+        assertEquals(1000, rtt.getRto());
+
+        // first sample: srtt = r, rttvar = r/2, rto = srtt + 4 * rttvar
+        rtt.update(100000);
+        assertEquals(100000, rtt.getSmoothedRtt());
+        assertEquals(300, rtt.getRto());
+
+        // rttvar = (3 * 50000 + 100000) / 4, srtt = (7 * 100000 + 200000) / 8
+        rtt.update(200000);
+        assertEquals(112500, rtt.getSmoothedRtt());
+        assertEquals((112500 + 4 * 62500) / 1000, rtt.getRto());
+
+        // a steady RTT shrinks the variance down to the minimum RTO
+        for(int i=0;i<100;i++) {
+            rtt.update(10000);
+        }
+        assertEquals(200, rtt.getRto());
+    }
+
+    @Test
+    public void testBackoff() {
+        RttEstimator rtt = new RttEstimator(1000, 200, 10000);
+        rtt.backoff();
+        assertEquals(2000, rtt.getRto());
+        rtt.backoff();
+        rtt.backoff();
+        rtt.backoff();
+        assertEquals(10000, rtt.getRto());
+
+        // a new sample replaces the backed off timeout
+        rtt.update(100000);
+        assertEquals(300, rtt.getRto());
+
+        rtt.update(100000000);
+        assertEquals(10000, rtt.getRto());
+    }
+}
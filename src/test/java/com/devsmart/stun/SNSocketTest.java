@@ -0,0 +1,188 @@
+package com.devsmart.stun;
+
+import com.devsmart.supernet.ID;
+import com.devsmart.supernet.SNSocket;
+import com.devsmart.supernet.SNSocketServer;
+import com.devsmart.supernet.SupernetClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class SNSocketTest {
+
+    private SupernetClient mServer;
+    private SupernetClient mClient;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setup() throws Exception {
+        Random r = new Random(1);
+        mServer = new SupernetClient.Builder()
+                .withId(ID.createRandom(r))
+                .build();
+        mServer.start();
+
+        mClient = new SupernetClient.Builder()
+                .withId(ID.createRandom(r))
+                .build();
+        mClient.start();
+        mClient.bootstrap("127.0.0.1:" + mServer.getUDPSocket().getLocalPort());
+        Thread.sleep(500);
+
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void teardown() {
+        mExecutor.shutdownNow();
+        mClient.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        final byte[] data = new byte[2 * 1024 * 1024];
+        new Random(2).nextBytes(data);
+
+        final SNSocketServer server = mServer.listen(80);
+        Future<byte[]> received = mExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                SNSocket socket = server.accept();
+                InputStream in = socket.getInputStream();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while((n = in.read(buf)) >= 0) {
+                    out.write(buf, 0, n);
+                }
+
+                DataOutputStream reply = new DataOutputStream(socket.getOutputStream());
+                reply.writeInt(out.size());
+                reply.flush();
+                socket.close();
+                return out.toByteArray();
+            }
+        });
+
+        SNSocket socket = mClient.connect(mServer.getID(), 80);
+        assertEquals(mServer.getID(), socket.getRemoteAddress());
+        assertEquals(80, socket.getRemotePort());
+
+        OutputStream out = socket.getOutputStream();
+        Random chunks = new Random(3);
+        int offset = 0;
+        while(offset < data.length) {
+            int len = Math.min(data.length - offset, 1 + chunks.nextInt(10000));
+            out.write(data, offset, len);
+            offset += len;
+        }
+        socket.shutdownOutput();
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals(data.length, in.readInt());
+        assertEquals(-1, in.read());
+        socket.close();
+
+        assertTrue(Arrays.equals(data, received.get(30, TimeUnit.SECONDS)));
+        server.close();
+    }
+
+    @Test(expected = ConnectException.class)
+    public void testConnectRefused() throws Exception {
+        SNSocket socket = mClient.connect(mServer.getID(), 81);
+        socket.getInputStream().read();
+    }
+
+    @Test
+    public void testManyStreams() throws Exception {
+        final SNSocketServer server = mServer.listen(8);
+        mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                while(true) {
+                    final SNSocket socket = server.accept();
+                    mExecutor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            DataInputStream in = new DataInputStream(socket.getInputStream());
+                            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                            int value = in.readInt();
+                            out.writeInt(value * 2);
+                            socket.close();
+                            return null;
+                        }
+                    });
+                }
+            }
+        });
+
+        SNSocket[] sockets = new SNSocket[20];
+        for(int i=0;i<sockets.length;i++) {
+            sockets[i] = mClient.connect(mServer.getID(), 8, i % 3);
+            new DataOutputStream(sockets[i].getOutputStream()).writeInt(i);
+        }
+        for(int i=0;i<sockets.length;i++) {
+            DataInputStream in = new DataInputStream(sockets[i].getInputStream());
+            assertEquals(2 * i, in.readInt());
+            assertEquals(-1, in.read());
+            sockets[i].close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void testBidirectional() throws Exception {
+        final SNSocketServer server = mServer.listen(7);
+        mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                SNSocket socket = server.accept();
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                byte[] buf = new byte[1024];
+                int n;
+                while((n = in.read(buf)) >= 0) {
+                    out.write(buf, 0, n);
+                    out.flush();
+                }
+                socket.close();
+                return null;
+            }
+        });
+
+        SNSocket socket = mClient.connect(mServer.getID(), 7);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        for(int i=0;i<100;i++) {
+            byte[] message = ("hello " + i).getBytes("UTF-8");
+            out.write(message);
+            out.flush();
+
+            byte[] echo = new byte[message.length];
+            in.readFully(echo);
+            assertArrayEquals(message, echo);
+        }
+        socket.close();
+        server.close();
+    }
+}
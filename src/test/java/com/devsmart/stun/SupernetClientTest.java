@@ -1,10 +1,21 @@
 package com.devsmart.stun;
 
 import com.devsmart.supernet.ID;
+import com.devsmart.supernet.LoopbackNetwork;
+import com.devsmart.supernet.Peer;
 import com.devsmart.supernet.SupernetClient;
+import com.devsmart.supernet.SupernetRuntime;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 public class SupernetClientTest {
@@ -23,4 +34,229 @@ public class SupernetClientTest {
 
         client.shutdown();
     }
+
+    @Test
+    public void testFindClosestPeers() throws Exception {
+        Random r = new Random(1);
+        ArrayList<SupernetClient> clients = new ArrayList<SupernetClient>();
+        try {
+            for (int i = 0; i < 10; i++) {
+                SupernetClient client = new SupernetClient.Builder()
+                        .withId(ID.createRandom(r))
+                        .build();
+                client.start();
+                clients.add(client);
+            }
+
+            String bootstrapAddress = "127.0.0.1:" + clients.get(0).getUDPSocket().getLocalPort();
+            for (int i = 1; i < clients.size(); i++) {
+                clients.get(i).bootstrap(bootstrapAddress);
+            }
+            Thread.sleep(500);
+
+            ID target = clients.get(7).getID();
+            List<Peer> closest = clients.get(3).findClosestPeers(target).get(10, TimeUnit.SECONDS);
+            assertFalse(closest.isEmpty());
+            assertEquals(target, closest.get(0).id);
+
+        } finally {
+            for (SupernetClient client : clients) {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testRouteBatching() throws Exception {
+        Random r = new Random(3);
+        SupernetClient a = new SupernetClient.Builder()
+                .withId(ID.createRandom(r))
+                .withRouteBatching(5000, 1400)
+                .build();
+        SupernetClient b = new SupernetClient.Builder()
+                .withId(ID.createRandom(r))
+                .build();
+        try {
+            a.start();
+            b.start();
+            a.bootstrap("127.0.0.1:" + b.getUDPSocket().getLocalPort());
+            Thread.sleep(500);
+
+            byte[] message = new byte[1 + ID.NUM_BYTES + 1 + 16];
+            for (int i = 0; i < 100; i++) {
+                a.sendPacket(b.getID(), message, 0, message.length);
+            }
+            Thread.sleep(100);
+            assertTrue(a.getRouteBatchingRatio() > 10);
+            assertEquals(1, b.getRouteBatchingRatio(), 0);
+        } finally {
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoopbackTransport() throws Exception {
+        Random r = new Random(4);
+        LoopbackNetwork network = new LoopbackNetwork();
+        ArrayList<SupernetClient> clients = new ArrayList<SupernetClient>();
+        try {
+            for (int i = 0; i < 30; i++) {
+                SupernetClient client = new SupernetClient.Builder()
+                        .withId(ID.createRandom(r))
+                        .withTransport(network.createTransport())
+                        .withWorkerThreads(1)
+                        .build();
+                client.start();
+                clients.add(client);
+            }
+            assertEquals(null, clients.get(0).getUDPSocket());
+
+            String bootstrapAddress = "127.0.0.1:" + clients.get(0).getLocalAddress().getPort();
+            for (int i = 1; i < clients.size(); i++) {
+                clients.get(i).bootstrap(bootstrapAddress);
+            }
+            Thread.sleep(500);
+
+            // buckets are bounded, so look for a peer the bootstrap node kept in its routing table
+            ID target = clients.get(0).findClosestPeers(clients.get(17).getID()).get(10, TimeUnit.SECONDS).get(0).id;
+            List<Peer> closest = clients.get(25).findClosestPeers(target).get(10, TimeUnit.SECONDS);
+            assertFalse(closest.isEmpty());
+            assertEquals(target, closest.get(0).id);
+
+        } finally {
+            for (SupernetClient client : clients) {
+                client.shutdown();
+            }
+        }
+        assertEquals(0, network.getNumTransports());
+    }
+
+    @Test
+    public void testSharedRuntime() throws Exception {
+        Random r = new Random(7);
+        SupernetRuntime runtime = new SupernetRuntime(2, 2, 2);
+        final int threadsBefore = Thread.activeCount();
+        ArrayList<SupernetClient> clients = new ArrayList<SupernetClient>();
+        try {
+            for (int i = 0; i < 40; i++) {
+                SupernetClient client = new SupernetClient.Builder()
+                        .withId(ID.createRandom(r))
+                        .withIOMode(i % 2 == 0 ? SupernetClient.IOMode.NIO : SupernetClient.IOMode.BATCHED_NIO)
+                        .withRuntime(runtime)
+                        .build();
+                client.start();
+                clients.add(client);
+            }
+
+            // clients do not start threads of their own; the runtime's pools start theirs lazily
+            assertTrue(Thread.activeCount() <= threadsBefore + runtime.getNumThreads());
+
+            String bootstrapAddress = "127.0.0.1:" + clients.get(0).getLocalAddress().getPort();
+            for (int i = 1; i < clients.size(); i++) {
+                clients.get(i).bootstrap(bootstrapAddress);
+            }
+            Thread.sleep(500);
+
+            ID target = clients.get(0).findClosestPeers(clients.get(31).getID()).get(10, TimeUnit.SECONDS).get(0).id;
+            List<Peer> closest = clients.get(12).findClosestPeers(target).get(10, TimeUnit.SECONDS);
+            assertFalse(closest.isEmpty());
+            assertEquals(target, closest.get(0).id);
+
+        } finally {
+            for (SupernetClient client : clients) {
+                client.shutdown();
+            }
+        }
+
+        // the runtime keeps working for clients built after others were shut down
+        SupernetClient a = new SupernetClient.Builder().withId(ID.createRandom(r)).withRuntime(runtime).build();
+        SupernetClient b = new SupernetClient.Builder().withId(ID.createRandom(r)).withRuntime(runtime).build();
+        try {
+            a.start();
+            b.start();
+            b.bootstrap("127.0.0.1:" + a.getLocalAddress().getPort());
+            Thread.sleep(500);
+            List<Peer> closest = b.findClosestPeers(a.getID()).get(10, TimeUnit.SECONDS);
+            assertEquals(a.getID(), closest.get(0).id);
+        } finally {
+            a.shutdown();
+            b.shutdown();
+            runtime.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchedNIO() throws Exception {
+        Random r = new Random(5);
+        ArrayList<SupernetClient> clients = new ArrayList<SupernetClient>();
+        try {
+            for (int i = 0; i < 5; i++) {
+                SupernetClient client = new SupernetClient.Builder()
+                        .withId(ID.createRandom(r))
+                        .withIOMode(SupernetClient.IOMode.BATCHED_NIO)
+                        .build();
+                client.start();
+                clients.add(client);
+            }
+
+            String bootstrapAddress = "127.0.0.1:" + clients.get(0).getLocalAddress().getPort();
+            for (int i = 1; i < clients.size(); i++) {
+                clients.get(i).bootstrap(bootstrapAddress);
+            }
+            Thread.sleep(500);
+
+            ID target = clients.get(4).getID();
+            List<Peer> closest = clients.get(2).findClosestPeers(target).get(10, TimeUnit.SECONDS);
+            assertFalse(closest.isEmpty());
+            assertEquals(target, closest.get(0).id);
+
+        } finally {
+            for (SupernetClient client : clients) {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testWarmRestart() throws Exception {
+        Random r = new Random(6);
+        ID id = ID.createRandom(r);
+        File snapshot = File.createTempFile("routes", ".bin");
+        snapshot.delete();
+
+        SupernetClient b = new SupernetClient.Builder()
+                .withId(ID.createRandom(r))
+                .build();
+        try {
+            b.start();
+
+            SupernetClient a = new SupernetClient.Builder()
+                    .withId(id)
+                    .withRoutingTableSnapshot(snapshot)
+                    .build();
+            a.start();
+            a.bootstrap("127.0.0.1:" + b.getLocalAddress().getPort());
+            Thread.sleep(500);
+            a.shutdown();
+            assertTrue(snapshot.isFile());
+
+            // no bootstrap this time; b comes from the snapshot
+            a = new SupernetClient.Builder()
+                    .withId(id)
+                    .withRoutingTableSnapshot(snapshot)
+                    .build();
+            a.start();
+            try {
+                List<Peer> closest = a.findClosestPeers(b.getID()).get(10, TimeUnit.SECONDS);
+                assertFalse(closest.isEmpty());
+                assertEquals(b.getID(), closest.get(0).id);
+            } finally {
+                a.shutdown();
+            }
+        } finally {
+            b.shutdown();
+            snapshot.delete();
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package com.devsmart.supernet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClientExecutorTest {
+
+    private ScheduledExecutorService mTimer;
+
+    @Before
+    public void setUp() {
+        mTimer = new ScheduledThreadPoolExecutor(4);
+    }
+
+    @After
+    public void tearDown() {
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void testScheduledTasksRunOneAtATime() throws Exception {
+        final ClientExecutor executor = new ClientExecutor(mTimer);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(200);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                final int n = running.incrementAndGet();
+                if(n > maxRunning.get()) {
+                    maxRunning.set(n);
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            }
+        };
+
+        for(int i=0;i<4;i++) {
+            executor.scheduleAtFixedRate(task, 0, 1, TimeUnit.MILLISECONDS);
+            executor.scheduleWithFixedDelay(task, 0, 1, TimeUnit.MILLISECONDS);
+        }
+        for(int i=0;i<50;i++) {
+            executor.schedule(task, i % 5, TimeUnit.MILLISECONDS);
+            executor.execute(task);
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void testCancelAndShutdown() throws Exception {
+        final ClientExecutor executor = new ClientExecutor(mTimer);
+        final AtomicInteger count = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+
+        ScheduledFuture<?> canceled = executor.schedule(task, 50, TimeUnit.MILLISECONDS);
+        assertTrue(canceled.cancel(false));
+        assertEquals(42, (int) executor.schedule(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 42;
+            }
+        }, 1, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS));
+
+        executor.schedule(task, 50, TimeUnit.MILLISECONDS);
+        executor.shutdown();
+        Thread.sleep(200);
+        assertEquals(0, count.get());
+    }
+}
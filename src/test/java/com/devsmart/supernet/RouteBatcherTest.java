@@ -0,0 +1,56 @@
+package com.devsmart.supernet;
+
+import com.devsmart.supernet.sim.SimNetwork;
+import com.devsmart.supernet.sim.Simulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RouteBatcherTest {
+
+    private Simulator mSim;
+    private RouteBatcher mBatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        mSim = new Simulator(1);
+        SupernetClientImp client = (SupernetClientImp) mSim.addNode(SimNetwork.NatType.NONE);
+        mBatcher = new RouteBatcher(client, 1000, 1400);
+    }
+
+    @After
+    public void tearDown() {
+        mBatcher.shutdown();
+        mSim.close();
+    }
+
+    @Test
+    public void testIdleBatchesDropped() throws Exception {
+        Random r = new Random(2);
+        InetAddress address = InetAddress.getByName("100.99.99.99");
+        byte[] data = new byte[100];
+        InetSocketAddress busy = new InetSocketAddress(address, 999);
+        for(int i=0;i<50;i++) {
+            mBatcher.send(ID.createRandom(r), 1, data, 0, data.length, new InetSocketAddress(address, 1000 + i));
+        }
+        mBatcher.send(ID.createRandom(r), 1, data, 0, data.length, busy);
+        mSim.runFor(1);
+        assertEquals(51, mBatcher.getNumBatches());
+
+        // only the next hop that keeps getting packets keeps its batch
+        for(long t=0;t<2 * RouteBatcher.IDLE_TIMEOUT_MS;t+=1000) {
+            mBatcher.send(ID.createRandom(r), 1, data, 0, data.length, busy);
+            mSim.runFor(1000);
+        }
+        assertEquals(1, mBatcher.getNumBatches());
+
+        mSim.runFor(2 * RouteBatcher.IDLE_TIMEOUT_MS);
+        assertEquals(0, mBatcher.getNumBatches());
+    }
+}
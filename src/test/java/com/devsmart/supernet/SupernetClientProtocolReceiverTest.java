@@ -0,0 +1,65 @@
+package com.devsmart.supernet;
+
+import com.devsmart.supernet.sim.SimNetwork;
+import com.devsmart.supernet.sim.Simulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds packets straight to a simulated client's receiver, as if they came from any address.
+ */
+public class SupernetClientProtocolReceiverTest {
+
+    private Simulator mSim;
+    private SupernetClientImp mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mSim = new Simulator(1);
+        mClient = (SupernetClientImp) mSim.addNode(SimNetwork.NatType.NONE);
+    }
+
+    @After
+    public void tearDown() {
+        mSim.close();
+    }
+
+    private void receivePing(ID from, InetSocketAddress remoteAddress) throws Exception {
+        DatagramPacket packet = SupernetClientProtocolReceiver.createPing(mClient.getLocalAddress(), from, 0);
+        ByteBuffer buffer = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+        assertTrue(mClient.mBaseProtocolReceiver.receive(buffer, remoteAddress));
+    }
+
+    @Test
+    public void testPingFromNewPort() throws Exception {
+        SupernetClient other = mSim.addNode(SimNetwork.NatType.NONE);
+        final InetSocketAddress current = other.getLocalAddress();
+        final InetSocketAddress stale = new InetSocketAddress(current.getAddress(), current.getPort() + 1);
+        final ID id = ID.createRandom(new Random(2));
+
+        // nobody listens on the old port any more
+        receivePing(id, stale);
+        final Peer stalePeer = mClient.mPeerRoutingTable.findPeer(id, stale);
+        assertTrue(stalePeer != null);
+        mSim.runFor(1000);
+        final long filtered = mSim.getNetwork().getNumFiltered();
+        final long delivered = mSim.getNetwork().getNumDelivered();
+
+        // the same ID pings from the port it moved to: the pong goes there, and the entry for the
+        // old port is not taken as alive
+        receivePing(id, current);
+        mSim.runFor(1000);
+        assertEquals(filtered, mSim.getNetwork().getNumFiltered());
+        assertTrue(mSim.getNetwork().getNumDelivered() > delivered);
+        assertTrue(stalePeer.getTimeSinceLastSeen(Clock.get().currentTimeMillis()) >= 2000);
+    }
+}
@@ -0,0 +1,182 @@
+package com.devsmart.supernet;
+
+import com.devsmart.supernet.sim.SimNetwork;
+import com.devsmart.supernet.sim.Simulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lives in the library's package because the table belongs to the package-private client
+ * implementation. Requests go to an address nobody listens on, so only the test answers them.
+ */
+public class TransactionTableTest {
+
+    private static class RecordingListener implements TransactionTable.Listener {
+        final ArrayList<TransactionTable.Transaction> responses = new ArrayList<TransactionTable.Transaction>();
+        final ArrayList<TransactionTable.Transaction> timeouts = new ArrayList<TransactionTable.Transaction>();
+
+        @Override
+        public void onResponse(TransactionTable.Transaction transaction, Object response) {
+            responses.add(transaction);
+        }
+
+        @Override
+        public void onTimeout(TransactionTable.Transaction transaction) {
+            timeouts.add(transaction);
+        }
+    }
+
+    private Simulator mSim;
+    private SupernetClientImp mClient;
+    private TransactionTable mTable;
+    private InetSocketAddress mAddress;
+    private final Random mRandom = new Random(1);
+
+    @Before
+    public void setUp() throws Exception {
+        mSim = new Simulator(1);
+        mClient = (SupernetClientImp) mSim.addNode(SimNetwork.NatType.NONE);
+        mTable = new TransactionTable(mClient, mSim.getScheduler());
+        mAddress = new InetSocketAddress(InetAddress.getByName("100.99.99.99"), 1000);
+    }
+
+    @After
+    public void tearDown() {
+        mSim.close();
+    }
+
+    private TransactionTable.Transaction send(Peer peer, RecordingListener listener, int retries) throws Exception {
+        TransactionTable.Transaction retval = mTable.begin(peer, listener);
+        mTable.send(retval, SupernetClientProtocolReceiver.createPing(peer.getSocketAddress(), mClient.getID(), retval.id), retries);
+        return retval;
+    }
+
+    @Test
+    public void testRetransmitBackoff() throws Exception {
+        Peer peer = new Peer(ID.createRandom(mRandom), mAddress);
+        RecordingListener listener = new RecordingListener();
+        long sent = mSim.getNetwork().getNumSent();
+        send(peer, listener, 2);
+        assertEquals(sent + 1, mSim.getNetwork().getNumSent());
+
+        // retransmitted after the initial RTO, then after twice that
+        mSim.runFor(Peer.INITIAL_RTO_MS - 1);
+        assertEquals(sent + 1, mSim.getNetwork().getNumSent());
+        mSim.runFor(1);
+        assertEquals(sent + 2, mSim.getNetwork().getNumSent());
+        assertEquals(2 * Peer.INITIAL_RTO_MS, peer.getRto());
+
+        mSim.runFor(2 * Peer.INITIAL_RTO_MS);
+        assertEquals(sent + 3, mSim.getNetwork().getNumSent());
+        assertEquals(4 * Peer.INITIAL_RTO_MS, peer.getRto());
+
+        // the last attempt times out after another doubling
+        mSim.runFor(4 * Peer.INITIAL_RTO_MS - 1);
+        assertTrue(listener.timeouts.isEmpty());
+        mSim.runFor(1);
+        assertEquals(1, listener.timeouts.size());
+        assertEquals(sent + 3, mSim.getNetwork().getNumSent());
+        assertEquals(0, mTable.size());
+    }
+
+    @Test
+    public void testSendTogether() throws Exception {
+        final int count = 5;
+        TransactionTable.Transaction[] transactions = new TransactionTable.Transaction[count];
+        DatagramPacket[] requests = new DatagramPacket[count];
+        for(int i=0;i<count;i++) {
+            Peer peer = new Peer(ID.createRandom(mRandom), new InetSocketAddress(mAddress.getAddress(), 1000 + i));
+            transactions[i] = mTable.begin(peer, null);
+            requests[i] = SupernetClientProtocolReceiver.createPing(peer.getSocketAddress(), mClient.getID(), transactions[i].id);
+        }
+        long sent = mSim.getNetwork().getNumSent();
+        mTable.send(transactions, requests, count, 1);
+        assertEquals(sent + count, mSim.getNetwork().getNumSent());
+
+        // each one is answered, retransmitted and timed out on its own
+        assertTrue(mTable.complete(transactions[0].id, transactions[0].peer.getSocketAddress(), null));
+        mSim.runFor(Peer.INITIAL_RTO_MS);
+        assertEquals(sent + 2 * count - 1, mSim.getNetwork().getNumSent());
+        mSim.runFor(2 * Peer.INITIAL_RTO_MS);
+        assertEquals(0, mTable.size());
+        assertEquals(Peer.Status.ALIVE, transactions[0].peer.getStatus());
+    }
+
+    @Test
+    public void testTimeoutFailsPeer() throws Exception {
+        Peer peer = new Peer(ID.createRandom(mRandom), mAddress);
+        peer.markSeen();
+        RecordingListener listener = new RecordingListener();
+        for(int i=0;i<Peer.MAX_FAILED_REQUESTS;i++) {
+            assertEquals(Peer.Status.ALIVE, peer.getStatus());
+            send(peer, listener, 0);
+            mSim.runFor(peer.getRto());
+            assertEquals(i + 1, listener.timeouts.size());
+        }
+        assertTrue(listener.responses.isEmpty());
+        assertEquals(Peer.Status.DEAD, peer.getStatus());
+
+        // an answer brings it back
+        TransactionTable.Transaction transaction = send(peer, listener, 0);
+        assertTrue(mTable.complete(transaction.id, mAddress, null));
+        assertEquals(1, listener.responses.size());
+        assertEquals(Peer.Status.ALIVE, peer.getStatus());
+
+        // a late, repeated or misdirected response is ignored
+        assertFalse(mTable.complete(transaction.id, mAddress, null));
+        transaction = send(peer, listener, 0);
+        assertFalse(mTable.complete(transaction.id, new InetSocketAddress(mAddress.getAddress(), 1001), null));
+        assertEquals(1, listener.responses.size());
+    }
+
+    @Test
+    public void testKarn() throws Exception {
+        Peer peer = new Peer(ID.createRandom(mRandom), mAddress);
+        RecordingListener listener = new RecordingListener();
+
+        // a response to a retransmitted request could belong to either attempt
+        TransactionTable.Transaction transaction = send(peer, listener, 1);
+        mSim.runFor(Peer.INITIAL_RTO_MS + 50);
+        assertTrue(mTable.complete(transaction.id, mAddress, null));
+        assertEquals(-1, peer.getSmoothedRtt());
+
+        // one that was only sent once is sampled
+        transaction = send(peer, listener, 1);
+        mSim.runFor(50);
+        assertTrue(mTable.complete(transaction.id, mAddress, null));
+        assertEquals(50000, peer.getSmoothedRtt());
+        assertEquals(2, listener.responses.size());
+    }
+
+    @Test
+    public void testTransactionIdWraparound() throws Exception {
+        Peer peer = new Peer(ID.createRandom(mRandom), mAddress);
+        int previous = -1;
+        boolean wrapped = false;
+        for(int i=0;i<0x10000 + 10;i++) {
+            TransactionTable.Transaction transaction = mTable.begin(peer, null);
+            assertTrue(transaction.id > 0 && transaction.id <= 0xFFFF);
+            if(previous == 0xFFFF) {
+                assertEquals(1, transaction.id);
+                wrapped = true;
+            } else if(previous != -1) {
+                assertEquals(previous + 1, transaction.id);
+            }
+            previous = transaction.id;
+            mTable.cancel(transaction);
+        }
+        assertTrue(wrapped);
+        assertEquals(0, mTable.size());
+    }
+}